@@ -22,6 +22,7 @@ package org.killbill.billing.platform.glue;
 import java.util.Map;
 
 import org.killbill.billing.platform.api.KillbillConfigSource;
+import org.killbill.billing.platform.queue.QueueDepthSampler;
 import org.killbill.notificationq.DefaultNotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
@@ -37,6 +38,7 @@ public class NotificationQueueModule extends KillBillPlatformModuleBase {
     protected void configure() {
         configureNotificationQueueService();
         configureNotificationQueueConfig();
+        configureQueueDepthSampler();
     }
 
     protected void configureNotificationQueueService() {
@@ -48,4 +50,9 @@ public class NotificationQueueModule extends KillBillPlatformModuleBase {
                                                                                                                        Map.of("instanceName", "main"));
         bind(NotificationQueueConfig.class).toInstance(config);
     }
+
+    // Shared by the queues healthcheck and the metrics exporters (persistent buses register themselves)
+    protected void configureQueueDepthSampler() {
+        bind(QueueDepthSampler.class).asEagerSingleton();
+    }
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.platform.queue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.joda.time.DateTime;
+import org.killbill.CreatorName;
+import org.killbill.billing.platform.queue.QueueDepths.QueueDepth;
+import org.killbill.clock.Clock;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.utils.annotation.VisibleForTesting;
+import org.killbill.notificationq.api.NotificationQueueConfig;
+import org.killbill.queue.DefaultQueueLifecycle;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the ready and in-flight entries of all the notification queues and buses, with one grouped query per table
+ * (instead of one count query per queue).
+ * <p>
+ * Results are cached for maxSampleAgeMillis and shared by all consumers. The tables are only sampled on behalf of
+ * background consumers (e.g. the queues healthcheck sampler): the killbill-service.kb_queue_ready_entries.* and
+ * killbill-service.kb_queue_in_flight_entries.* gauges only report the latest sample (possibly stale, null until the
+ * first one), so that a metrics scrape never queries the database. Like {@code getNbReadyEntries}, entries are
+ * restricted to the ones created by this node in sticky modes.
+ */
+@Singleton
+public class QueueDepthSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueDepthSampler.class);
+
+    public static final String READY_ENTRIES_METRIC_PREFIX = "killbill-service.kb_queue_ready_entries.";
+    public static final String IN_FLIGHT_ENTRIES_METRIC_PREFIX = "killbill-service.kb_queue_in_flight_entries.";
+
+    static final long DEFAULT_MAX_SAMPLE_AGE_MILLIS = 5000L;
+
+    private final IDBI dbi;
+    private final Clock clock;
+    private final MetricRegistry metricRegistry;
+    private final long maxSampleAgeMillis;
+    private final SampledTable notificationsTable;
+    private final List<SampledTable> busTables = new CopyOnWriteArrayList<>();
+    private final Set<String> queuesWithGauges = ConcurrentHashMap.newKeySet();
+
+    private volatile QueueDepths latestQueueDepths;
+
+    @Inject
+    public QueueDepthSampler(@Named(DefaultQueueLifecycle.QUEUE_NAME) final IDBI dbi,
+                             final Clock clock,
+                             final NotificationQueueConfig notificationQueueConfig,
+                             final MetricRegistry metricRegistry) {
+        this(dbi, clock, notificationQueueConfig, metricRegistry, DEFAULT_MAX_SAMPLE_AGE_MILLIS);
+    }
+
+    @VisibleForTesting
+    QueueDepthSampler(final IDBI dbi,
+                      final Clock clock,
+                      @Nullable final NotificationQueueConfig notificationQueueConfig,
+                      final MetricRegistry metricRegistry,
+                      final long maxSampleAgeMillis) {
+        this.dbi = dbi;
+        this.clock = clock;
+        this.metricRegistry = metricRegistry;
+        this.maxSampleAgeMillis = maxSampleAgeMillis;
+        this.notificationsTable = notificationQueueConfig == null ? null : new SampledTable(null, notificationQueueConfig);
+    }
+
+    /**
+     * Sample a bus table (one bus per table) in addition to the notifications table.
+     *
+     * @param busId      id of the bus in the samples (e.g. bus or externalBus)
+     * @param busConfig  bus configuration
+     */
+    public void registerBus(final String busId, final PersistentQueueConfig busConfig) {
+        busTables.add(new SampledTable(busId, busConfig));
+        registerGauges(busId);
+    }
+
+    /**
+     * @return the latest sample, re-sampling the tables if it is older than maxSampleAgeMillis
+     */
+    public QueueDepths getQueueDepths() {
+        final QueueDepths queueDepths = latestQueueDepths;
+        if (isFresh(queueDepths)) {
+            return queueDepths;
+        }
+        return sample();
+    }
+
+    private synchronized QueueDepths sample() {
+        // Another caller may have sampled while we were waiting for the lock
+        final QueueDepths previous = latestQueueDepths;
+        if (isFresh(previous)) {
+            return previous;
+        }
+
+        final DateTime now = clock.getUTCNow();
+        final Map<String, QueueDepth> depthPerQueue = new HashMap<>();
+        final Set<String> busIds = new HashSet<>();
+        dbi.withHandle(handle -> {
+            if (notificationsTable != null) {
+                notificationsTable.sample(handle, now, depthPerQueue);
+            }
+            for (final SampledTable busTable : busTables) {
+                busTable.sample(handle, now, depthPerQueue);
+                busIds.add(busTable.busId);
+            }
+            return null;
+        });
+
+        final QueueDepths queueDepths = new QueueDepths(now, depthPerQueue, busIds, notificationsTable != null);
+        logger.debug("Sampled queues: {}", queueDepths);
+        latestQueueDepths = queueDepths;
+
+        for (final String queueId : depthPerQueue.keySet()) {
+            registerGauges(queueId);
+        }
+        return queueDepths;
+    }
+
+    private boolean isFresh(@Nullable final QueueDepths queueDepths) {
+        return queueDepths != null && clock.getUTCNow().getMillis() - queueDepths.getSampledAt().getMillis() < maxSampleAgeMillis;
+    }
+
+    // Notification queues are only known once they have entries: gauges are registered on the first sample which sees them
+    private void registerGauges(final String queueId) {
+        if (!queuesWithGauges.add(queueId)) {
+            return;
+        }
+        metricRegistry.gauge(READY_ENTRIES_METRIC_PREFIX + queueId, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final QueueDepth queueDepth = getLatestQueueDepth(queueId);
+                return queueDepth == null ? null : queueDepth.getNbReadyEntries();
+            }
+        });
+        metricRegistry.gauge(IN_FLIGHT_ENTRIES_METRIC_PREFIX + queueId, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final QueueDepth queueDepth = getLatestQueueDepth(queueId);
+                return queueDepth == null ? null : queueDepth.getNbInFlightEntries();
+            }
+        });
+    }
+
+    // Never samples: gauges are read by the metrics exporters, possibly on every scrape
+    @Nullable
+    private QueueDepth getLatestQueueDepth(final String queueId) {
+        final QueueDepths queueDepths = latestQueueDepths;
+        return queueDepths == null ? null : queueDepths.getQueueDepth(queueId);
+    }
+
+    private static final class SampledTable {
+
+        // Null for the notifications table, whose rows are grouped by queue_name
+        private final String busId;
+        private final String sql;
+        private final String owner;
+
+        private SampledTable(@Nullable final String busId, final PersistentQueueConfig config) {
+            this.busId = busId;
+            this.owner = config.getPersistentQueueMode() == PersistentQueueMode.POLLING ? null : CreatorName.get();
+
+            // Bus entries are ready as soon as they are available, notifications once their effective date is reached
+            final String readyCondition = busId == null ? "processing_state = 'AVAILABLE' and effective_date <= :now" : "processing_state = 'AVAILABLE'";
+            final StringBuilder sqlBuilder = new StringBuilder("select ");
+            if (busId == null) {
+                sqlBuilder.append("queue_name, ");
+            }
+            sqlBuilder.append("sum(case when ").append(readyCondition).append(" then 1 else 0 end) as nb_ready")
+                      .append(", sum(case when processing_state = 'IN_PROCESSING' then 1 else 0 end) as nb_in_flight")
+                      .append(" from ").append(config.getTableName())
+                      .append(" where processing_state in ('AVAILABLE', 'IN_PROCESSING')");
+            if (owner != null) {
+                sqlBuilder.append(" and creating_owner = :owner");
+            }
+            if (busId == null) {
+                sqlBuilder.append(" group by queue_name");
+            }
+            this.sql = sqlBuilder.toString();
+        }
+
+        private void sample(final Handle handle, final DateTime now, final Map<String, QueueDepth> depthPerQueue) {
+            final Query<Map<String, Object>> query = handle.createQuery(sql);
+            if (busId == null) {
+                query.bind("now", now.toDate());
+            }
+            if (owner != null) {
+                query.bind("owner", owner);
+            }
+            final List<QueueDepthRow> rows = query.map((index, r, ctx) -> new QueueDepthRow(busId == null ? r.getString("queue_name") : busId,
+                                                                                           r.getLong("nb_ready"),
+                                                                                           r.getLong("nb_in_flight")))
+                                                  .list();
+            for (final QueueDepthRow row : rows) {
+                // Sums are null (0) when there are no entries
+                if (row.nbReadyEntries > 0 || row.nbInFlightEntries > 0) {
+                    depthPerQueue.put(row.queueId, new QueueDepth(row.nbReadyEntries, row.nbInFlightEntries));
+                }
+            }
+        }
+    }
+
+    private static final class QueueDepthRow {
+
+        private final String queueId;
+        private final long nbReadyEntries;
+        private final long nbInFlightEntries;
+
+        private QueueDepthRow(final String queueId, final long nbReadyEntries, final long nbInFlightEntries) {
+            this.queueId = queueId;
+            this.nbReadyEntries = nbReadyEntries;
+            this.nbInFlightEntries = nbInFlightEntries;
+        }
+    }
+}
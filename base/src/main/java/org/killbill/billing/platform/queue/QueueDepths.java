@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.platform.queue;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+/**
+ * Immutable result of a {@link QueueDepthSampler} round.
+ */
+public class QueueDepths {
+
+    private final DateTime sampledAt;
+    private final Map<String, QueueDepth> depthPerQueue;
+    private final Set<String> busIds;
+    private final boolean notificationQueuesSampled;
+
+    QueueDepths(final DateTime sampledAt,
+                final Map<String, QueueDepth> depthPerQueue,
+                final Set<String> busIds,
+                final boolean notificationQueuesSampled) {
+        this.sampledAt = sampledAt;
+        this.depthPerQueue = Map.copyOf(depthPerQueue);
+        this.busIds = Set.copyOf(busIds);
+        this.notificationQueuesSampled = notificationQueuesSampled;
+    }
+
+    public DateTime getSampledAt() {
+        return sampledAt;
+    }
+
+    /**
+     * @param queueId bus id (as registered) or notification queue full name
+     * @return the depth of that queue, or null if the queue isn't covered by the sampler (e.g. in-memory bus)
+     */
+    @Nullable
+    public QueueDepth getQueueDepth(final String queueId) {
+        final QueueDepth queueDepth = depthPerQueue.get(queueId);
+        if (queueDepth != null) {
+            return queueDepth;
+        } else if (busIds.contains(queueId) || notificationQueuesSampled) {
+            // No entry in the table for that queue
+            return QueueDepth.EMPTY;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return the non-empty queues
+     */
+    public Map<String, QueueDepth> getQueueDepths() {
+        return depthPerQueue;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueDepths{sampledAt=" + sampledAt + ", depthPerQueue=" + depthPerQueue + '}';
+    }
+
+    public static final class QueueDepth {
+
+        static final QueueDepth EMPTY = new QueueDepth(0, 0);
+
+        private final long nbReadyEntries;
+        private final long nbInFlightEntries;
+
+        QueueDepth(final long nbReadyEntries, final long nbInFlightEntries) {
+            this.nbReadyEntries = nbReadyEntries;
+            this.nbInFlightEntries = nbInFlightEntries;
+        }
+
+        public long getNbReadyEntries() {
+            return nbReadyEntries;
+        }
+
+        public long getNbInFlightEntries() {
+            return nbInFlightEntries;
+        }
+
+        @Override
+        public String toString() {
+            return "{ready=" + nbReadyEntries + ", inFlight=" + nbInFlightEntries + '}';
+        }
+    }
+}
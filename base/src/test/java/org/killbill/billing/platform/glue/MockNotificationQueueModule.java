@@ -33,4 +33,9 @@ public class MockNotificationQueueModule extends NotificationQueueModule {
     protected void configureNotificationQueueService() {
         bind(NotificationQueueService.class).to(MockNotificationQueueService.class).asEagerSingleton();
     }
+
+    @Override
+    protected void configureQueueDepthSampler() {
+        // No database
+    }
 }
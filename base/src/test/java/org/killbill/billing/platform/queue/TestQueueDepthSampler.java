@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.platform.queue;
+
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.joda.time.DateTime;
+import org.killbill.billing.platform.queue.QueueDepths.QueueDepth;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.clock.ClockMock;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.notificationq.api.NotificationQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.DBI;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestQueueDepthSampler {
+
+    private ClockMock clock;
+    private DBI dbi;
+    private MetricRegistry metricRegistry;
+    private QueueDepthSampler sampler;
+
+    @BeforeMethod(groups = "slow")
+    public void setUp() {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        dbi = new DBI(dataSource);
+        dbi.withHandle(handle -> {
+            handle.execute("create table notifications (record_id int auto_increment primary key, queue_name varchar(64), " +
+                           "effective_date datetime, processing_state varchar(14), creating_owner varchar(50))");
+            handle.execute("create table bus_events (record_id int auto_increment primary key, " +
+                           "processing_state varchar(14), creating_owner varchar(50))");
+            return null;
+        });
+
+        clock = new ClockMock();
+
+        final NotificationQueueConfig notificationQueueConfig = Mockito.mock(NotificationQueueConfig.class);
+        Mockito.when(notificationQueueConfig.getTableName()).thenReturn("notifications");
+        Mockito.when(notificationQueueConfig.getPersistentQueueMode()).thenReturn(PersistentQueueMode.POLLING);
+        metricRegistry = Mockito.mock(MetricRegistry.class);
+        sampler = new QueueDepthSampler(dbi, clock, notificationQueueConfig, metricRegistry, 1000L);
+
+        final PersistentBusConfig busConfig = Mockito.mock(PersistentBusConfig.class);
+        Mockito.when(busConfig.getTableName()).thenReturn("bus_events");
+        Mockito.when(busConfig.getPersistentQueueMode()).thenReturn(PersistentQueueMode.POLLING);
+        sampler.registerBus("bus", busConfig);
+    }
+
+    @Test(groups = "slow")
+    public void testGroupedCounts() {
+        final DateTime now = clock.getUTCNow();
+        insertNotification("invoice:next-billing-date", now.minusMinutes(1), "AVAILABLE");
+        insertNotification("invoice:next-billing-date", now.minusMinutes(1), "AVAILABLE");
+        // Not ready yet
+        insertNotification("invoice:next-billing-date", now.plusDays(1), "AVAILABLE");
+        insertNotification("invoice:next-billing-date", now.minusMinutes(1), "PROCESSED");
+        insertNotification("payment:retry", now.minusMinutes(1), "IN_PROCESSING");
+        insertBusEvent("AVAILABLE");
+        insertBusEvent("IN_PROCESSING");
+        insertBusEvent("IN_PROCESSING");
+
+        final QueueDepths queueDepths = sampler.getQueueDepths();
+        assertQueueDepth(queueDepths.getQueueDepth("invoice:next-billing-date"), 2, 0);
+        assertQueueDepth(queueDepths.getQueueDepth("payment:retry"), 0, 1);
+        assertQueueDepth(queueDepths.getQueueDepth("bus"), 1, 2);
+        // Covered, but empty
+        assertQueueDepth(queueDepths.getQueueDepth("usage:rollup"), 0, 0);
+        Assert.assertEquals(queueDepths.getQueueDepths().size(), 3);
+
+        // Cached
+        insertBusEvent("AVAILABLE");
+        Assert.assertSame(sampler.getQueueDepths(), queueDepths);
+
+        clock.addDeltaFromReality(1000L);
+        assertQueueDepth(sampler.getQueueDepths().getQueueDepth("bus"), 2, 2);
+    }
+
+    @Test(groups = "slow")
+    public void testGaugesOnlyReadTheLatestSample() {
+        final Gauge<Long> readyEntries = captureGauge(QueueDepthSampler.READY_ENTRIES_METRIC_PREFIX + "bus");
+        final Gauge<Long> inFlightEntries = captureGauge(QueueDepthSampler.IN_FLIGHT_ENTRIES_METRIC_PREFIX + "bus");
+
+        insertBusEvent("AVAILABLE");
+        insertBusEvent("IN_PROCESSING");
+        // Not sampled yet
+        Assert.assertNull(readyEntries.getValue());
+        Assert.assertNull(inFlightEntries.getValue());
+
+        sampler.getQueueDepths();
+        Assert.assertEquals(readyEntries.getValue(), (Long) 1L);
+        Assert.assertEquals(inFlightEntries.getValue(), (Long) 1L);
+
+        // Stale values: reading the gauges doesn't sample the tables
+        insertBusEvent("AVAILABLE");
+        clock.addDeltaFromReality(1000L);
+        Assert.assertEquals(readyEntries.getValue(), (Long) 1L);
+
+        sampler.getQueueDepths();
+        Assert.assertEquals(readyEntries.getValue(), (Long) 2L);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Gauge<Long> captureGauge(final String name) {
+        final ArgumentCaptor<Gauge> gauge = ArgumentCaptor.forClass(Gauge.class);
+        Mockito.verify(metricRegistry).gauge(Mockito.eq(name), gauge.capture());
+        return (Gauge<Long>) gauge.getValue();
+    }
+
+    private void insertNotification(final String queueName, final DateTime effectiveDate, final String processingState) {
+        dbi.withHandle(handle -> handle.insert("insert into notifications (queue_name, effective_date, processing_state, creating_owner) values (?, ?, ?, 'node')",
+                                               queueName, effectiveDate.toDate(), processingState));
+    }
+
+    private void insertBusEvent(final String processingState) {
+        dbi.withHandle(handle -> handle.insert("insert into bus_events (processing_state, creating_owner) values (?, 'node')", processingState));
+    }
+
+    private static void assertQueueDepth(final QueueDepth queueDepth, final long nbReadyEntries, final long nbInFlightEntries) {
+        Assert.assertNotNull(queueDepth);
+        Assert.assertEquals(queueDepth.getNbReadyEntries(), nbReadyEntries);
+        Assert.assertEquals(queueDepth.getNbInFlightEntries(), nbInFlightEntries);
+    }
+}
@@ -19,10 +19,15 @@
 
 package org.killbill.billing.lifecycle;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -30,22 +35,48 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 
+import org.killbill.billing.platform.api.KillbillService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Finds the interfaces extending <code>interfaceFilter</code> on the classpath.
+ * <p>
+ * When looking for {@link KillbillService} interfaces, the index generated at compile time by the
+ * <code>KillbillServiceIndexProcessor</code> (killbill-platform-api-processor) is used for each classpath entry (jar or
+ * directory) which has one: only the classes it lists are loaded. Entries without index (e.g. jars built against an older version of the platform) are scanned.
+ */
 public class ServiceFinder<T> {
 
     private static final Logger log = LoggerFactory.getLogger(ServiceFinder.class);
 
+    // Written by KillbillServiceIndexProcessor
+    static final String INDEX_RESOURCE = "META-INF/killbill/services.idx";
+
     private final ClassLoader loader;
     private final String interfaceFilter;
+    private final boolean useIndex;
     private final Set<Class<? extends T>> servicesTypes;
 
+    private int nbIndexedEntries;
+    private int nbScannedEntries;
+
     public ServiceFinder(final ClassLoader loader, final String interfaceFilter) {
+        this(loader, interfaceFilter, KillbillService.class.getName().equals(interfaceFilter));
+    }
+
+    // For testing, to compare with a full scan
+    ServiceFinder(final ClassLoader loader, final String interfaceFilter, final boolean useIndex) {
         this.loader = loader;
         this.interfaceFilter = interfaceFilter;
+        this.useIndex = useIndex;
+
+        final long startTime = System.nanoTime();
         this.servicesTypes = initialize();
+        log.info("Found {} services in {} ms ({} classpath entries indexed, {} scanned)",
+                 servicesTypes.size(), (System.nanoTime() - startTime) / 1000000, nbIndexedEntries, nbScannedEntries);
         for (final Class<? extends T> svc : servicesTypes) {
             log.debug("Found service class {}", svc.getName());
         }
@@ -55,6 +86,14 @@ public class ServiceFinder<T> {
         return Set.copyOf(servicesTypes);
     }
 
+    int getNbIndexedEntries() {
+        return nbIndexedEntries;
+    }
+
+    int getNbScannedEntries() {
+        return nbScannedEntries;
+    }
+
     private Set<Class<? extends T>> initialize() {
         try {
 
@@ -71,7 +110,6 @@ public class ServiceFinder<T> {
      *  Code originally from Kris Dover <krisdover@hotmail.com> and adapted for my purpose.
      *
      */
-    @SuppressWarnings("unchecked")
     private Set<Class<? extends T>> findClasses(final ClassLoader classLoader,
                                              final String interfaceFilter,
                                              final String jarFilter,
@@ -107,6 +145,17 @@ public class ServiceFinder<T> {
             if ("file".equals(protocol) && classPath.isDirectory()) {
                 log.debug("DIR : " + classPath);
 
+                final File index = new File(classPath, INDEX_RESOURCE);
+                if (useIndex && index.isFile()) {
+                    try (final InputStream in = Files.newInputStream(index.toPath())) {
+                        loadIndexedClasses(result, in, classLoader, interfaceFilter);
+                        continue;
+                    } catch (final IOException e) {
+                        log.warn("Unable to read service index {}, scanning {}", index, classPath, e);
+                    }
+                }
+
+                nbScannedEntries++;
                 final List<String> dirListing = new ArrayList<String>();
                 recursivelyListDir(dirListing, classPath, new StringBuffer());
                 files = Collections.enumeration(dirListing);
@@ -130,7 +179,19 @@ public class ServiceFinder<T> {
                                                      "' could not be instantiate from file path. Error: " + io.getMessage());
                 }
                 if (!failed) {
-                    files = module.entries();
+                    final ZipEntry index = useIndex ? module.getEntry(INDEX_RESOURCE) : null;
+                    if (index != null) {
+                        try (final InputStream in = module.getInputStream(index)) {
+                            loadIndexedClasses(result, in, classLoader, interfaceFilter);
+                        } catch (final IOException e) {
+                            log.warn("Unable to read service index from {}, scanning it", classPath, e);
+                            files = module.entries();
+                            nbScannedEntries++;
+                        }
+                    } else {
+                        files = module.entries();
+                        nbScannedEntries++;
+                    }
                 }
             }
 
@@ -152,27 +213,7 @@ public class ServiceFinder<T> {
                             continue;
                         }
                     }
-                    Class<?> theClass = null;
-                    try {
-                        theClass = Class.forName(className, false, classLoader);
-                    } catch (final NoClassDefFoundError e) {
-                        continue;
-                    }
-                    if (!theClass.isInterface()) {
-                        continue;
-                    }
-                    final Class<?>[] classInterfaces = getAllInterfaces(theClass);
-                    String interfaceName = null;
-                    for (final Class<?> classInterface : classInterfaces) {
-
-                        interfaceName = classInterface.getName();
-                        if (!interfaceFilter.equals(interfaceName)) {
-                            continue;
-                        }
-                        result.add((Class<? extends T>) theClass);
-                        break;
-                    }
-
+                    addIfServiceInterface(result, className, classLoader, interfaceFilter);
                 }
             }
             if (module != null) {
@@ -187,6 +228,50 @@ public class ServiceFinder<T> {
         return result;
     }
 
+    private void loadIndexedClasses(final Set<Class<? extends T>> result,
+                                    final InputStream index,
+                                    final ClassLoader classLoader,
+                                    final String interfaceFilter) throws IOException, ClassNotFoundException {
+        nbIndexedEntries++;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(index, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String className = line.trim();
+            if (className.isEmpty() || className.startsWith("#")) {
+                continue;
+            }
+            try {
+                addIfServiceInterface(result, className, classLoader, interfaceFilter);
+            } catch (final ClassNotFoundException e) {
+                // Stale index
+                log.warn("Indexed service class {} not found", className);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addIfServiceInterface(final Set<Class<? extends T>> result,
+                                       final String className,
+                                       final ClassLoader classLoader,
+                                       final String interfaceFilter) throws ClassNotFoundException {
+        final Class<?> theClass;
+        try {
+            theClass = Class.forName(className, false, classLoader);
+        } catch (final NoClassDefFoundError e) {
+            return;
+        }
+        if (!theClass.isInterface()) {
+            return;
+        }
+        final Class<?>[] classInterfaces = getAllInterfaces(theClass);
+        for (final Class<?> classInterface : classInterfaces) {
+            if (interfaceFilter.equals(classInterface.getName())) {
+                result.add((Class<? extends T>) theClass);
+                break;
+            }
+        }
+    }
+
     private static Class<?>[] getAllInterfaces(final Class<?> theClass) {
         final Set<Class<?>> superInterfaces = new HashSet<Class<?>>();
         final Class<?>[] classInterfaces = theClass.getInterfaces();
@@ -81,7 +81,8 @@ public class BusModule extends AbstractModule {
     }
 
     protected void configurePersistentEventBus(final PersistentBusConfig busConfig) {
-        final PersistentBusProvider busProvider = new PersistentBusProvider(busConfig);
+        // Same ids as in the queues healthcheck
+        final PersistentBusProvider busProvider = new PersistentBusProvider(busConfig, isExternal ? EXTERNAL_BUS_NAMED : "bus");
         if (isExternal) {
             bind(PersistentBusProvider.class).annotatedWith(Names.named(BusModule.EXTERNAL_BUS_NAMED)).toInstance(busProvider);
             bind(PersistentBus.class).annotatedWith(Names.named(BusModule.EXTERNAL_BUS_NAMED)).toProvider(Key.get(PersistentBusProvider.class, Names.named(BusModule.EXTERNAL_BUS_NAMED))).asEagerSingleton();
@@ -23,6 +23,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
+import org.killbill.billing.platform.queue.QueueDepthSampler;
 import org.killbill.bus.DefaultPersistentBus;
 import org.killbill.bus.InMemoryPersistentBus;
 import org.killbill.bus.api.PersistentBus;
@@ -40,14 +41,21 @@ public class PersistentBusProvider implements Provider<PersistentBus> {
     private static final Logger logger = LoggerFactory.getLogger(PersistentBusProvider.class);
 
     private final PersistentBusConfig busConfig;
+    private final String busId;
 
     private IDBI dbi;
     private Clock clock;
     private MetricRegistry metricRegistry;
     private DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private QueueDepthSampler queueDepthSampler;
 
     public PersistentBusProvider(final PersistentBusConfig busConfig) {
+        this(busConfig, "bus");
+    }
+
+    public PersistentBusProvider(final PersistentBusConfig busConfig, final String busId) {
         this.busConfig = busConfig;
+        this.busId = busId;
     }
 
     @Inject
@@ -61,6 +69,12 @@ public class PersistentBusProvider implements Provider<PersistentBus> {
         this.databaseTransactionNotificationApi = observable;
     }
 
+    // Not bound when there is no database (see MockNotificationQueueModule)
+    @com.google.inject.Inject(optional = true)
+    public void setQueueDepthSampler(final QueueDepthSampler queueDepthSampler) {
+        this.queueDepthSampler = queueDepthSampler;
+    }
+
     @Override
     public PersistentBus get() {
         if (busConfig.isInMemory()) {
@@ -68,6 +82,9 @@ public class PersistentBusProvider implements Provider<PersistentBus> {
             return new InMemoryPersistentBus(busConfig);
         } else {
             logger.info("Creating Persistent bus for " + busConfig.getTableName());
+            if (queueDepthSampler != null) {
+                queueDepthSampler.registerBus(busId, busConfig);
+            }
             return new DefaultPersistentBus(dbi, clock, busConfig, metricRegistry, databaseTransactionNotificationApi);
         }
     }
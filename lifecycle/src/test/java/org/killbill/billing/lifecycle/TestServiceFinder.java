@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.lifecycle;
+
+import org.killbill.billing.lifecycle.TestLifecycle.TestService1Interface;
+import org.killbill.billing.lifecycle.TestLifecycle.TestService2Interface;
+import org.killbill.billing.lifecycle.api.BusService;
+import org.killbill.billing.lifecycle.api.ExternalBusService;
+import org.killbill.billing.platform.api.KillbillService;
+import org.killbill.billing.platform.api.OSGIService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestServiceFinder {
+
+    @Test(groups = "fast")
+    public void testIndexMatchesScan() {
+        final ClassLoader classLoader = TestServiceFinder.class.getClassLoader();
+        final ServiceFinder<KillbillService> indexed = new ServiceFinder<>(classLoader, KillbillService.class.getName());
+        final ServiceFinder<KillbillService> scanned = new ServiceFinder<>(classLoader, KillbillService.class.getName(), false);
+
+        // target/classes, target/test-classes and the platform-api jar have an index generated at compile time
+        Assert.assertTrue(indexed.getNbIndexedEntries() >= 2);
+        Assert.assertEquals(scanned.getNbIndexedEntries(), 0);
+        Assert.assertTrue(indexed.getNbScannedEntries() < scanned.getNbScannedEntries());
+
+        Assert.assertTrue(indexed.getServices().contains(OSGIService.class));
+        Assert.assertTrue(indexed.getServices().contains(BusService.class));
+        Assert.assertTrue(indexed.getServices().contains(ExternalBusService.class));
+        Assert.assertTrue(indexed.getServices().contains(TestService1Interface.class));
+        Assert.assertTrue(indexed.getServices().contains(TestService2Interface.class));
+        Assert.assertEquals(indexed.getServices(), scanned.getServices());
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.api;
+
+/**
+ * Metric backed by fixed buckets, which can be exported as a cumulative histogram (and aggregated across nodes),
+ * unlike quantiles computed on each node.
+ */
+public interface BucketedHistogram {
+
+    /**
+     * @return the (inclusive) upper bounds of the buckets, in increasing order, in seconds for timers. The +Inf bucket is implicit
+     */
+    double[] getUpperBounds();
+
+    /**
+     * @return the number of observations in each bucket (not cumulative), the last element being the +Inf bucket
+     */
+    long[] getBucketCounts();
+
+    /**
+     * @return the sum of all observations, in the same unit as the upper bounds
+     */
+    double getSum();
+}
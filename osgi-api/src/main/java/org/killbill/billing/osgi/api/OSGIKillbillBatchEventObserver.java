@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.api;
+
+import java.util.List;
+import java.util.Observable;
+
+/**
+ * Observer handling Kill Bill events in micro-batches.
+ * <p>
+ * Kill Bill queues the events for the observer and a dedicated worker hands them over in batches of up to
+ * {@link #getMaxBatchSize()} events, waiting up to {@link #getLingerMillis()} for a batch to fill up. If the observer
+ * throws, each event of the batch is retried (for this observer only), in a batch of its own. OSGI framework events are
+ * still delivered one at a time, through {@link #update(Observable, Object)}.
+ */
+public interface OSGIKillbillBatchEventObserver extends OSGIKillbillEventObserver {
+
+    /**
+     * @param o      the Kill Bill event service
+     * @param events the Kill Bill events ({@code ExtBusEvent}), in the order they were received
+     */
+    void updateBatch(Observable o, List<Object> events);
+
+    default int getMaxBatchSize() {
+        return 100;
+    }
+
+    /**
+     * @return how long the first event of a batch waits for more events (0 to only batch the events already queued)
+     */
+    default long getLingerMillis() {
+        return 0;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.api;
+
+import java.util.Observer;
+import java.util.Set;
+
+/**
+ * Observer registered by OSGI bundles on the Kill Bill event {@link java.util.Observable} service.
+ * <p>
+ * Plain {@link Observer} instances are still supported: implementing this interface lets Kill Bill
+ * identify the observer (metrics, dispatch lanes, ...) and to only
+ * deliver the events it subscribed to.
+ */
+public interface OSGIKillbillEventObserver extends Observer {
+
+    /**
+     * @return a name identifying the observer, stable across restarts (e.g. bundle symbolic name and handler class)
+     */
+    String getObserverName();
+
+    /**
+     * Kill Bill events the observer is interested in, by name (see {@code ExtBusEventType}). Names are used
+     * (instead of the enum) so that a plugin built against a newer API can still be loaded.
+     *
+     * @return the event types to deliver (an empty set for none), or null for all events
+     */
+    default Set<String> getSubscribedEventTypes() {
+        return null;
+    }
+
+    /**
+     * @return the object types (see {@link org.killbill.billing.ObjectType}) of the Kill Bill events to deliver, or null for all
+     */
+    default Set<String> getSubscribedObjectTypes() {
+        return null;
+    }
+}
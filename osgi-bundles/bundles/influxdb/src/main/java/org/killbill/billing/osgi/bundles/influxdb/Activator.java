@@ -60,6 +60,13 @@ public class Activator extends KillbillActivatorBase {
             influxDbReporterFactory.setOrganization(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.organization"), "killbill"));
             influxDbReporterFactory.setBucket(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.bucket"), "killbill"));
             influxDbReporterFactory.setToken(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.token"), ""));
+            influxDbReporterFactory.setGzip(Boolean.parseBoolean(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.gzip"), "true")));
+            // Outage handling: batches are buffered in memory (and optionally spilled to disk) and retried with an exponential backoff
+            influxDbReporterFactory.setBufferBatches(Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.bufferBatches"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_BUFFER_BATCHES))));
+            influxDbReporterFactory.setSpillDirectory(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.spillDirectory"));
+            influxDbReporterFactory.setMaxSpillFiles(Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.maxSpillFiles"), "1000")));
+            influxDbReporterFactory.setInitialBackoffMillis(Long.parseLong(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.initialBackoffMillis"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_INITIAL_BACKOFF_MILLIS))));
+            influxDbReporterFactory.setMaxBackoffMillis(Long.parseLong(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.maxBackoffMillis"), String.valueOf(CustomInfluxDbHttpSender.DEFAULT_MAX_BACKOFF_MILLIS))));
 
             final int reportingFrequency = Integer.parseInt(Objects.requireNonNullElse(configProperties.getString(KILL_BILL_NAMESPACE + "metrics.influxDb.interval"), "30"));
             influxDbReporterFactory.setFrequency(Optional.of(Duration.seconds(reportingFrequency)));
@@ -17,8 +17,12 @@
 
 package org.killbill.billing.osgi.bundles.influxdb;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -26,6 +30,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,18 +38,41 @@ import org.slf4j.LoggerFactory;
 import com.izettle.metrics.influxdb.InfluxDbSender;
 import com.izettle.metrics.influxdb.data.InfluxDbPoint;
 import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
-import com.izettle.metrics.influxdb.utils.InfluxDbWriteObjectSerializer;
 
+/**
+ * Writes the metrics to the InfluxDB v2 API.
+ * <p>
+ * The line protocol is streamed (optionally gzipped) into a buffer reused across reports, and responses are fully
+ * consumed (without disconnect()) so that the JDK keeps the HTTP connection alive between writes. Batches which
+ * can't be written because InfluxDB is unavailable (I/O errors, 429 and 5xx responses) are kept in an
+ * {@link InfluxDbOutageBuffer} and retried, oldest first, with an exponential backoff.
+ */
 public class CustomInfluxDbHttpSender implements InfluxDbSender {
 
     private static final Logger logger = LoggerFactory.getLogger(CustomInfluxDbHttpSender.class);
+
+    public static final int DEFAULT_BUFFER_BATCHES = 20;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
     private final URL url;
     private final int connectTimeout;
     private final int readTimeout;
     static final Charset UTF_8 = StandardCharsets.UTF_8;
     private final InfluxDbWriteObject influxDbWriteObject;
-    private final InfluxDbWriteObjectSerializer influxDbWriteObjectSerializer;
+    private final CustomInfluxDbWriteObjectSerializer influxDbWriteObjectSerializer;
     private final String token;
+    private final boolean gzip;
+    private final InfluxDbOutageBuffer outageBuffer;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final PayloadBuffer payload = new PayloadBuffer();
+
+    private int consecutiveFailures;
+    private long nextAttemptMillis;
 
     /**
      * Creates a new http sender given connection details.
@@ -61,12 +89,28 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
                                     final TimeUnit timePrecision, final int connectTimeout, final int readTimeout,
                                     final String measurementPrefix, final String organization, final String bucket,
                                     final String token) throws Exception {
+        this(protocol, hostname, port, database, timePrecision, connectTimeout, readTimeout, measurementPrefix, organization, bucket, token,
+             true, new InfluxDbOutageBuffer(DEFAULT_BUFFER_BATCHES, null, 0), DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param gzip                 whether to gzip the payloads
+     * @param outageBuffer         buffer of the payloads to retry
+     * @param initialBackoffMillis delay before the first retry, doubled after each failure
+     * @param maxBackoffMillis     maximum delay between retries
+     */
+    public CustomInfluxDbHttpSender(final String protocol, final String hostname, final int port, final String database,
+                                    final TimeUnit timePrecision, final int connectTimeout, final int readTimeout,
+                                    final String measurementPrefix, final String organization, final String bucket,
+                                    final String token, final boolean gzip, final InfluxDbOutageBuffer outageBuffer,
+                                    final long initialBackoffMillis, final long maxBackoffMillis) throws Exception {
 
         this.influxDbWriteObject = new InfluxDbWriteObject(database, timePrecision);
         this.influxDbWriteObjectSerializer = new CustomInfluxDbWriteObjectSerializer(measurementPrefix);
 
         final String endpoint = new URL(protocol, hostname, port, "/api/v2/write").toString();
-        final String queryOrg = String.format("org=%s&bucket=%s", organization, bucket);
+        // Timestamps are written in milliseconds (see CustomInfluxDbWriteObjectSerializer)
+        final String queryOrg = String.format("org=%s&bucket=%s&precision=ms", organization, bucket);
         this.url = new URL(endpoint + "?" + queryOrg);
 
         logger.info("InfluxDB write request will be sent to this endpoint: " + endpoint);
@@ -74,6 +118,10 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
         this.connectTimeout = connectTimeout;
         this.readTimeout = readTimeout;
         this.token = token;
+        this.gzip = gzip;
+        this.outageBuffer = outageBuffer;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
     }
 
     @Override
@@ -102,30 +150,107 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
 
     @Override
     public int writeData() throws Exception {
+        serializePoints();
+
+        if (!outageBuffer.isEmpty() || System.currentTimeMillis() < nextAttemptMillis) {
+            // Keep the order: the new batch goes after the ones waiting to be retried
+            outageBuffer.add(payload.toByteArray());
+            return retryBufferedData();
+        }
+
+        final int responseCode;
+        try {
+            responseCode = post(payload.getBuffer(), payload.size());
+        } catch (final IOException e) {
+            outageBuffer.add(payload.toByteArray());
+            onFailure();
+            throw e;
+        }
+        if (isRetriable(responseCode)) {
+            outageBuffer.add(payload.toByteArray());
+            onFailure();
+        } else {
+            consecutiveFailures = 0;
+        }
+        return checkResponseCode(responseCode);
+    }
+
+    @Override
+    public Map<String, String> getTags() {
+        return influxDbWriteObject.getTags();
+    }
+
+    private void serializePoints() throws IOException {
+        payload.reset();
+        final OutputStream out = gzip ? new GZIPOutputStream(payload) : payload;
+        // Closing the writer finishes the gzip stream (closing the payload buffer is a no-op)
+        try (final Writer writer = new OutputStreamWriter(out, UTF_8)) {
+            influxDbWriteObjectSerializer.writeLineProtocol(influxDbWriteObject, writer);
+        }
+
+        logger.debug("InfluxDB data points to write: {} ({} bytes)", influxDbWriteObject.getPoints().size(), payload.size());
+    }
+
+    // Write the buffered batches, oldest first, unless we are backing off
+    private int retryBufferedData() throws IOException {
+        if (System.currentTimeMillis() < nextAttemptMillis) {
+            logger.debug("InfluxDB unavailable, {} batch(es) buffered, next attempt in {}ms", outageBuffer.size(), nextAttemptMillis - System.currentTimeMillis());
+            return 0;
+        }
+
+        int responseCode = 0;
+        byte[] batch;
+        while ((batch = outageBuffer.peek()) != null) {
+            try {
+                responseCode = post(batch, batch.length);
+            } catch (final IOException e) {
+                onFailure();
+                throw e;
+            }
+            if (isRetriable(responseCode)) {
+                onFailure();
+                return checkResponseCode(responseCode);
+            }
+            // Written, or rejected by InfluxDB (e.g. 400): retrying wouldn't help in the latter case
+            outageBuffer.remove();
+            checkResponseCode(responseCode);
+        }
+
+        if (consecutiveFailures > 0) {
+            logger.info("InfluxDB available again after {} failed attempt(s)", consecutiveFailures);
+        }
+        consecutiveFailures = 0;
+        return responseCode;
+    }
+
+    private int post(final byte[] data, final int length) throws IOException {
         final HttpURLConnection con = (HttpURLConnection) url.openConnection();
         con.setRequestMethod("POST");
         con.setRequestProperty("Authorization", "Token " + token);
+        con.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        // Buffered batches may have been spilled with a different configuration
+        if (length > 1 && (data[0] & 0xff) == GZIP_MAGIC_0 && (data[1] & 0xff) == GZIP_MAGIC_1) {
+            con.setRequestProperty("Content-Encoding", "gzip");
+        }
         con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(length);
         con.setConnectTimeout(connectTimeout);
         con.setReadTimeout(readTimeout);
 
-        final String lineProtocolString = influxDbWriteObjectSerializer.getLineProtocolString(influxDbWriteObject);
-        final byte[] line = lineProtocolString.getBytes(UTF_8);
-
-        logger.debug("InfluxDB data points to write: " + new String(line, StandardCharsets.UTF_8));
-
         try (final OutputStream out = con.getOutputStream()) {
-            out.write(line);
-            out.flush();
+            out.write(data, 0, length);
         }
 
         final int responseCode = con.getResponseCode();
-        con.disconnect();
-        // Check if non 2XX response code.
-        if (responseCode / 100 != 2) {
-            throw new IOException(
-                    "Server returned HTTP response code: " + responseCode + " for URL: " + url + " with content :'"
-                    + con.getResponseMessage() + "'");
+        // Consume the response, so that the connection can be reused
+        final InputStream in = responseCode >= 400 ? con.getErrorStream() : con.getInputStream();
+        if (in != null) {
+            try (in) {
+                final byte[] responseBody = in.readAllBytes();
+                if (responseCode / 100 != 2) {
+                    logger.debug("InfluxDB write data response body: {}", new String(responseBody, UTF_8));
+                }
+            }
         }
 
         logger.debug("InfluxDB write data response code: " + responseCode);
@@ -133,8 +258,37 @@ public class CustomInfluxDbHttpSender implements InfluxDbSender {
         return responseCode;
     }
 
-    @Override
-    public Map<String, String> getTags() {
-        return influxDbWriteObject.getTags();
+    private int checkResponseCode(final int responseCode) throws IOException {
+        // Check if non 2XX response code.
+        if (responseCode / 100 != 2) {
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return responseCode;
+    }
+
+    private void onFailure() {
+        consecutiveFailures++;
+        final long backoffMillis = initialBackoffMillis << Math.min(consecutiveFailures - 1, 30);
+        nextAttemptMillis = System.currentTimeMillis() + Math.min(backoffMillis, maxBackoffMillis);
+    }
+
+    private static boolean isRetriable(final int responseCode) {
+        return responseCode == 429 || responseCode / 100 == 5;
+    }
+
+    int getBufferedBatches() {
+        return outageBuffer.size();
+    }
+
+    // Gives access to the internal array, to avoid copying the payload when it can be written right away
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+
+        private PayloadBuffer() {
+            super(64 * 1024);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
     }
 }
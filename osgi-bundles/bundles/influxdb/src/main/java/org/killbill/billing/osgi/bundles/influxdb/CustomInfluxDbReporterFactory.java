@@ -17,6 +17,8 @@
 
 package org.killbill.billing.osgi.bundles.influxdb;
 
+import java.io.File;
+
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.izettle.metrics.dw.InfluxDbReporterFactory;
@@ -28,6 +30,12 @@ public class CustomInfluxDbReporterFactory extends InfluxDbReporterFactory {
     private String organization;
     private String bucket;
     private String token;
+    private boolean gzip = true;
+    private int bufferBatches = CustomInfluxDbHttpSender.DEFAULT_BUFFER_BATCHES;
+    private String spillDirectory;
+    private int maxSpillFiles = 1000;
+    private long initialBackoffMillis = CustomInfluxDbHttpSender.DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = CustomInfluxDbHttpSender.DEFAULT_MAX_BACKOFF_MILLIS;
 
     public String getOrganization() {
         return organization;
@@ -53,16 +61,67 @@ public class CustomInfluxDbReporterFactory extends InfluxDbReporterFactory {
         this.token = token;
     }
 
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(final boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public int getBufferBatches() {
+        return bufferBatches;
+    }
+
+    public void setBufferBatches(final int bufferBatches) {
+        this.bufferBatches = bufferBatches;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(final String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public int getMaxSpillFiles() {
+        return maxSpillFiles;
+    }
+
+    public void setMaxSpillFiles(final int maxSpillFiles) {
+        this.maxSpillFiles = maxSpillFiles;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public void setInitialBackoffMillis(final long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(final long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
     @Override
     public ScheduledReporter build(final MetricRegistry registry) {
         try {
             final Builder builder = this.builder(registry);
 
             if (this.getSenderType() == SenderType.HTTP) {
+                final File spillDir = spillDirectory == null || spillDirectory.isEmpty() ? null : new File(spillDirectory);
+                final InfluxDbOutageBuffer outageBuffer = new InfluxDbOutageBuffer(bufferBatches, spillDir, maxSpillFiles);
                 return builder.build(new CustomInfluxDbHttpSender(this.getProtocol(), this.getHost(), this.getPort(), this.getDatabase(),
                                                                   this.getPrecision().getUnit(), this.getConnectTimeout(),
                                                                   this.getReadTimeout(), this.getPrefix(), this.organization,
-                                                                  this.bucket, this.token));
+                                                                  this.bucket, this.token, this.gzip, outageBuffer,
+                                                                  this.initialBackoffMillis, this.maxBackoffMillis));
             }
 
             throw new UnsupportedOperationException(String.format("The Sender Type [%s] is not supported", this.getSenderType()));
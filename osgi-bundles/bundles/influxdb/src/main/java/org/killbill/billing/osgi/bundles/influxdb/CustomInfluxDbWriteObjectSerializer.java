@@ -17,10 +17,10 @@
 
 package org.killbill.billing.osgi.bundles.influxdb;
 
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import com.izettle.metrics.influxdb.data.InfluxDbPoint;
 import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
@@ -28,10 +28,6 @@ import com.izettle.metrics.influxdb.utils.InfluxDbWriteObjectSerializer;
 
 public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSerializer {
 
-    private static final Pattern DOUBLE_QUOTE = Pattern.compile("\"");
-    private static final Pattern COMMA = Pattern.compile(",");
-    private static final Pattern SPACE = Pattern.compile(" ");
-    private static final Pattern EQUAL = Pattern.compile("=");
     private final String measurementPrefix;
 
     public CustomInfluxDbWriteObjectSerializer(final String measurementPrefix) {
@@ -39,7 +35,7 @@ public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSeri
         this.measurementPrefix = measurementPrefix;
     }
 
-    // measurement[,tag=value,tag2=value2...] field=value[,field2=value2...]
+    // measurement[,tag=value,tag2=value2...] field=value[,field2=value2...] timestamp
 
     /**
      * Calculate the lineprotocol for all Points.
@@ -49,40 +45,42 @@ public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSeri
     @Override
     public String getLineProtocolString(final InfluxDbWriteObject influxDbWriteObject) {
         final StringBuilder stringBuilder = new StringBuilder();
-        for (final InfluxDbPoint point : influxDbWriteObject.getPoints()) {
-            pointLineProtocol(point, stringBuilder);
-            stringBuilder.append(" ");
-            stringBuilder.append("\n");
+        try {
+            writeLineProtocol(influxDbWriteObject, stringBuilder);
+        } catch (final IOException e) {
+            // Not thrown by StringBuilder
+            throw new UncheckedIOException(e);
         }
-
         return stringBuilder.toString();
     }
 
-    private void pointLineProtocol(final InfluxDbPoint point, final StringBuilder stringBuilder) {
-        lineProtocol(point.getTags(), point.getFields(), point.getMeasurement(), stringBuilder);
-    }
-
-    private void lineProtocol(final Map<String, String> tags, final Map<String, Object> fields,
-                              final String measurement, final StringBuilder stringBuilder) {
-        stringBuilder.append(escapeMeasurement(measurementPrefix + measurement));
-        concatenatedTags(tags, stringBuilder);
-        concatenateFields(fields, stringBuilder);
+    /**
+     * Stream the lineprotocol for all Points, without intermediate Strings.
+     */
+    public void writeLineProtocol(final InfluxDbWriteObject influxDbWriteObject, final Appendable out) throws IOException {
+        for (final InfluxDbPoint point : influxDbWriteObject.getPoints()) {
+            escape(measurementPrefix, out, false);
+            escape(point.getMeasurement(), out, false);
+            writeTags(point.getTags(), out);
+            writeFields(point.getFields(), out);
+            // Milliseconds (see precision=ms in CustomInfluxDbHttpSender), so that replayed points keep their time
+            out.append(' ');
+            out.append(Long.toString(point.getTime()));
+            out.append('\n');
+        }
     }
 
-    private void concatenatedTags(final Map<String, String> tags, final StringBuilder stringBuilder) {
+    private static void writeTags(final Map<String, String> tags, final Appendable out) throws IOException {
         for (final Map.Entry<String, String> tag : tags.entrySet()) {
-            stringBuilder.append(",");
-            stringBuilder.append(escapeKey(tag.getKey())).append("=").append(escapeKey(tag.getValue()));
+            out.append(',');
+            escape(tag.getKey(), out, true);
+            out.append('=');
+            escape(tag.getValue(), out, true);
         }
-        stringBuilder.append(" ");
+        out.append(' ');
     }
 
-    private void concatenateFields(final Map<String, Object> fields, final StringBuilder stringBuilder) {
-        final NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
-        numberFormat.setMaximumFractionDigits(340);
-        numberFormat.setGroupingUsed(false);
-        numberFormat.setMinimumFractionDigits(1);
-
+    private static void writeFields(final Map<String, Object> fields, final Appendable out) throws IOException {
         boolean firstField = true;
         for (final Map.Entry<String, Object> field : fields.entrySet()) {
             final Object value = field.getValue();
@@ -99,35 +97,65 @@ public class CustomInfluxDbWriteObjectSerializer extends InfluxDbWriteObjectSeri
             }
 
             if (!firstField) {
-                stringBuilder.append(",");
+                out.append(',');
             }
-            stringBuilder.append(escapeKey(field.getKey())).append("=");
+            escape(field.getKey(), out, true);
+            out.append('=');
             firstField = false;
             if (value instanceof String) {
-                final String stringValue = (String) value;
-                stringBuilder.append("\"").append(escapeField(stringValue)).append("\"");
+                writeStringField((String) value, out);
             } else if (value instanceof Number) {
-                stringBuilder.append(numberFormat.format(value));
+                writeNumber((Number) value, out);
             } else if (value instanceof Boolean) {
-                stringBuilder.append(value);
+                out.append(value.toString());
             } else {
-                stringBuilder.append("\"").append(escapeField(value.toString())).append("\"");
+                writeStringField(value.toString(), out);
             }
         }
     }
 
-    private String escapeField(final String field) {
-        return DOUBLE_QUOTE.matcher(field).replaceAll("\\\"");
+    // All numbers are written as floats (e.g. 5.0 for 5), as existing series expect float fields
+    static void writeNumber(final Number value, final Appendable out) throws IOException {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.append(Long.toString(value.longValue())).append(".0");
+        } else if (value instanceof Double) {
+            // InfluxDB accepts the scientific notation (e.g. 1.0E-5)
+            out.append(Double.toString(value.doubleValue()));
+        } else if (value instanceof Float) {
+            // Float.toString avoids spurious digits from the widening (e.g. 0.1f)
+            out.append(Float.toString(value.floatValue()));
+        } else if (value instanceof BigDecimal) {
+            out.append(((BigDecimal) value).toPlainString());
+        } else {
+            // BigInteger, AtomicLong, etc.
+            final String string = value.toString();
+            out.append(string);
+            if (string.indexOf('.') < 0) {
+                out.append(".0");
+            }
+        }
     }
 
-    private String escapeMeasurement(final String key) {
-        final String toBeEscaped = SPACE.matcher(key).replaceAll("\\\\ ");
-        return COMMA.matcher(toBeEscaped).replaceAll("\\\\,");
+    private static void writeStringField(final String value, final Appendable out) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        out.append('"');
     }
 
-    private String escapeKey(final String key) {
-        String toBeEscaped = SPACE.matcher(key).replaceAll("\\\\ ");
-        toBeEscaped = COMMA.matcher(toBeEscaped).replaceAll("\\\\,");
-        return EQUAL.matcher(toBeEscaped).replaceAll("\\\\=");
+    // Measurements escape commas and spaces, tag keys, tag values and field keys escape equal signs too
+    private static void escape(final String value, final Appendable out, final boolean escapeEquals) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == ' ' || (escapeEquals && c == '=')) {
+                out.append('\\');
+            }
+            out.append(c);
+        }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.influxdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded buffer of the payloads which couldn't be written while InfluxDB was unavailable.
+ * <p>
+ * Up to maxBatches payloads are kept in memory. When full, the oldest one is spilled to the (optional) spill
+ * directory, itself bounded to maxSpillFiles files, or dropped. Spilled payloads are replayed first, as they are the oldest.
+ * <p>
+ * Not thread safe: the reporter writes from a single thread.
+ */
+public class InfluxDbOutageBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(InfluxDbOutageBuffer.class);
+
+    private static final String SPILL_FILE_SUFFIX = ".lp";
+
+    private final int maxBatches;
+    private final File spillDirectory;
+    private final int maxSpillFiles;
+    private final Deque<byte[]> batches = new ArrayDeque<>();
+    private final Deque<File> spillFiles = new ArrayDeque<>();
+
+    private long spillSequence;
+    private long droppedBatches;
+
+    public InfluxDbOutageBuffer(final int maxBatches, @Nullable final File spillDirectory, final int maxSpillFiles) {
+        this.maxBatches = maxBatches;
+        this.spillDirectory = spillDirectory;
+        this.maxSpillFiles = maxSpillFiles;
+        if (spillDirectory != null) {
+            recoverSpillFiles();
+        }
+    }
+
+    public void add(final byte[] payload) {
+        if (maxBatches <= 0) {
+            drop();
+            return;
+        }
+        if (batches.size() >= maxBatches) {
+            spill(batches.pollFirst());
+        }
+        batches.addLast(payload);
+    }
+
+    /**
+     * @return the oldest payload (the caller must call {@link #remove()} once it has been written), or null if empty
+     */
+    @Nullable
+    public byte[] peek() {
+        while (!spillFiles.isEmpty()) {
+            final File spillFile = spillFiles.peekFirst();
+            try {
+                return Files.readAllBytes(spillFile.toPath());
+            } catch (final IOException e) {
+                logger.warn("Unable to read InfluxDB spill file {}, skipping", spillFile, e);
+                deleteOldestSpillFile();
+            }
+        }
+        return batches.peekFirst();
+    }
+
+    public void remove() {
+        if (!spillFiles.isEmpty()) {
+            deleteOldestSpillFile();
+        } else {
+            batches.pollFirst();
+        }
+    }
+
+    public boolean isEmpty() {
+        return batches.isEmpty() && spillFiles.isEmpty();
+    }
+
+    public int size() {
+        return batches.size() + spillFiles.size();
+    }
+
+    public long getDroppedBatches() {
+        return droppedBatches;
+    }
+
+    private void spill(final byte[] payload) {
+        if (spillDirectory == null || maxSpillFiles <= 0) {
+            drop();
+            return;
+        }
+        if (spillFiles.size() >= maxSpillFiles) {
+            deleteOldestSpillFile();
+            drop();
+        }
+        final File spillFile = new File(spillDirectory, String.format("%019d%s", spillSequence++, SPILL_FILE_SUFFIX));
+        try {
+            Files.write(spillFile.toPath(), payload);
+            spillFiles.addLast(spillFile);
+        } catch (final IOException e) {
+            logger.warn("Unable to write InfluxDB spill file {}", spillFile, e);
+            drop();
+        }
+    }
+
+    private void deleteOldestSpillFile() {
+        final File spillFile = spillFiles.pollFirst();
+        if (spillFile != null && !spillFile.delete()) {
+            logger.warn("Unable to delete InfluxDB spill file {}", spillFile);
+        }
+    }
+
+    private void drop() {
+        droppedBatches++;
+        // Log the first drop of each outage, and then periodically
+        if (droppedBatches == 1 || droppedBatches % 100 == 0) {
+            logger.warn("InfluxDB outage buffer full, {} batch(es) of metrics dropped so far", droppedBatches);
+        }
+    }
+
+    // Replay the payloads spilled before a restart
+    private void recoverSpillFiles() {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            logger.warn("Unable to create InfluxDB spill directory {}", spillDirectory);
+            return;
+        }
+        final File[] existing = spillDirectory.listFiles((dir, name) -> name.endsWith(SPILL_FILE_SUFFIX));
+        if (existing == null) {
+            return;
+        }
+        // Names are zero-padded sequence numbers
+        Arrays.sort(existing);
+        for (final File spillFile : existing) {
+            final String name = spillFile.getName();
+            final long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SPILL_FILE_SUFFIX.length()));
+            } catch (final NumberFormatException e) {
+                // Not ours
+                continue;
+            }
+            spillFiles.addLast(spillFile);
+            spillSequence = Math.max(spillSequence, sequence + 1);
+        }
+        if (!spillFiles.isEmpty()) {
+            logger.info("Replaying {} InfluxDB spill file(s) from {}", spillFiles.size(), spillDirectory);
+        }
+    }
+}
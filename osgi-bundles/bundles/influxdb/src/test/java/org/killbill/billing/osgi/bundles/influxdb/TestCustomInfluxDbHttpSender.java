@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.influxdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.izettle.metrics.influxdb.data.InfluxDbPoint;
+import com.izettle.metrics.influxdb.data.InfluxDbWriteObject;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestCustomInfluxDbHttpSender {
+
+    private final List<ReceivedRequest> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger responseCode = new AtomicInteger(204);
+
+    private HttpServer server;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws IOException {
+        requests.clear();
+        responseCode.set(204);
+
+        // Stub of the InfluxDB v2 write API
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/write", exchange -> {
+            final boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            final byte[] body = exchange.getRequestBody().readAllBytes();
+            requests.add(new ReceivedRequest(exchange.getRequestURI().getQuery(),
+                                             exchange.getRequestHeaders().getFirst("Authorization"),
+                                             gzipped ? gunzip(body) : new String(body, StandardCharsets.UTF_8),
+                                             exchange.getRemoteAddress().getPort()));
+            exchange.sendResponseHeaders(responseCode.get(), -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test(groups = "fast")
+    public void testWriteWithPersistentConnection() throws Exception {
+        final CustomInfluxDbHttpSender sender = createSender(true, new InfluxDbOutageBuffer(10, null, 0));
+
+        Assert.assertEquals(write(sender, "jvm.threads", 1000L, 42L), 204);
+        Assert.assertEquals(write(sender, "jvm.threads", 2000L, 43L), 204);
+
+        Assert.assertEquals(requests.size(), 2);
+        Assert.assertEquals(requests.get(0).query, "org=killbill&bucket=metrics&precision=ms");
+        Assert.assertEquals(requests.get(0).authorization, "Token secret");
+        Assert.assertEquals(requests.get(0).body, "kb.jvm.threads,host=node\\ 1 value=42.0 1000\n");
+        Assert.assertEquals(requests.get(1).body, "kb.jvm.threads,host=node\\ 1 value=43.0 2000\n");
+        // Same client socket: the connection was kept alive
+        Assert.assertEquals(requests.get(1).remotePort, requests.get(0).remotePort);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryAfterOutage() throws Exception {
+        final CustomInfluxDbHttpSender sender = createSender(false, new InfluxDbOutageBuffer(10, null, 0));
+
+        responseCode.set(503);
+        try {
+            write(sender, "jvm.threads", 1000L, 42L);
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertEquals(sender.getBufferedBatches(), 1);
+        }
+        try {
+            write(sender, "jvm.threads", 2000L, 43L);
+            Assert.fail();
+        } catch (final IOException e) {
+            // The first buffered batch was retried (and failed again), the second one was never sent
+            Assert.assertEquals(sender.getBufferedBatches(), 2);
+        }
+        Assert.assertEquals(requests.size(), 2);
+
+        responseCode.set(204);
+        requests.clear();
+        Assert.assertEquals(write(sender, "jvm.threads", 3000L, 44L), 204);
+        Assert.assertEquals(sender.getBufferedBatches(), 0);
+
+        // Oldest first
+        Assert.assertEquals(requests.size(), 3);
+        Assert.assertTrue(requests.get(0).body.endsWith(" 1000\n"));
+        Assert.assertTrue(requests.get(1).body.endsWith(" 2000\n"));
+        Assert.assertTrue(requests.get(2).body.endsWith(" 3000\n"));
+    }
+
+    @Test(groups = "fast")
+    public void testRejectedBatchIsNotRetried() throws Exception {
+        final CustomInfluxDbHttpSender sender = createSender(true, new InfluxDbOutageBuffer(10, null, 0));
+
+        responseCode.set(400);
+        try {
+            write(sender, "jvm.threads", 1000L, 42L);
+            Assert.fail();
+        } catch (final IOException e) {
+            Assert.assertEquals(sender.getBufferedBatches(), 0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSpillToDisk() throws Exception {
+        final File spillDirectory = Files.createTempDirectory("influxdb-spill").toFile();
+        try {
+            final InfluxDbOutageBuffer outageBuffer = new InfluxDbOutageBuffer(1, spillDirectory, 1);
+            outageBuffer.add(new byte[]{1});
+            outageBuffer.add(new byte[]{2});
+            // The oldest batch was spilled
+            Assert.assertEquals(spillDirectory.list().length, 1);
+            outageBuffer.add(new byte[]{3});
+            // Only one spill file allowed: batch 1 was dropped
+            Assert.assertEquals(spillDirectory.list().length, 1);
+            Assert.assertEquals(outageBuffer.getDroppedBatches(), 1);
+            Assert.assertEquals(outageBuffer.size(), 2);
+
+            // Spilled batches survive restarts
+            final InfluxDbOutageBuffer recovered = new InfluxDbOutageBuffer(1, spillDirectory, 1);
+            Assert.assertEquals(recovered.size(), 1);
+            Assert.assertEquals(recovered.peek(), new byte[]{2});
+
+            Assert.assertEquals(outageBuffer.peek(), new byte[]{2});
+            outageBuffer.remove();
+            Assert.assertEquals(outageBuffer.peek(), new byte[]{3});
+            outageBuffer.remove();
+            Assert.assertTrue(outageBuffer.isEmpty());
+            Assert.assertEquals(spillDirectory.list().length, 0);
+        } finally {
+            for (final File file : spillDirectory.listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+            Assert.assertTrue(spillDirectory.delete());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLineProtocolEscaping() throws IOException {
+        final CustomInfluxDbWriteObjectSerializer serializer = new CustomInfluxDbWriteObjectSerializer("");
+        final InfluxDbWriteObject writeObject = new InfluxDbWriteObject("killbill", TimeUnit.MILLISECONDS);
+        writeObject.setPoints(Set.of(new InfluxDbPoint("a,b c", Map.of("k=1", "v,2"), 1L, Map.of("f", "say \"hi\""))));
+        Assert.assertEquals(serializer.getLineProtocolString(writeObject), "a\\,b\\ c,k\\=1=v\\,2 f=\"say \\\"hi\\\"\" 1\n");
+
+        final StringBuilder numbers = new StringBuilder();
+        CustomInfluxDbWriteObjectSerializer.writeNumber(5, numbers);
+        numbers.append(' ');
+        CustomInfluxDbWriteObjectSerializer.writeNumber(0.25, numbers);
+        numbers.append(' ');
+        CustomInfluxDbWriteObjectSerializer.writeNumber(0.1f, numbers);
+        Assert.assertEquals(numbers.toString(), "5.0 0.25 0.1");
+    }
+
+    private CustomInfluxDbHttpSender createSender(final boolean gzip, final InfluxDbOutageBuffer outageBuffer) throws Exception {
+        // No backoff, to retry on the next write
+        return new CustomInfluxDbHttpSender("http", "127.0.0.1", server.getAddress().getPort(), "killbill", TimeUnit.MILLISECONDS,
+                                            1000, 1000, "kb.", "killbill", "metrics", "secret", gzip, outageBuffer, 0, 0);
+    }
+
+    private static int write(final CustomInfluxDbHttpSender sender, final String measurement, final long time, final long value) throws Exception {
+        sender.flush();
+        sender.appendPoints(new InfluxDbPoint(measurement, Map.of("host", "node 1"), time, Map.of("value", value)));
+        return sender.writeData();
+    }
+
+    private static String gunzip(final byte[] body) throws IOException {
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class ReceivedRequest {
+
+        private final String query;
+        private final String authorization;
+        private final String body;
+        private final int remotePort;
+
+        private ReceivedRequest(final String query, final String authorization, final String body, final int remotePort) {
+            this.query = query;
+            this.authorization = authorization;
+            this.body = body;
+            this.remotePort = remotePort;
+        }
+    }
+}
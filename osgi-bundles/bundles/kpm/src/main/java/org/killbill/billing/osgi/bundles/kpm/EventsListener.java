@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import org.killbill.billing.notification.plugin.api.BroadcastMetadata;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
@@ -48,6 +49,11 @@ public class EventsListener implements OSGIKillbillEventDispatcher.OSGIKillbillE
         this.pluginManager = pluginManager;
     }
 
+    @Override
+    public Set<ExtBusEventType> getSubscribedEventTypes() {
+        return Set.of(ExtBusEventType.BROADCAST_SERVICE);
+    }
+
     @Override
     public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
         if (killbillEvent.getEventType() != ExtBusEventType.BROADCAST_SERVICE) {
@@ -52,15 +52,13 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
     public void log(final ServiceReference serviceReference, final int level, final String message, final Throwable exception) {
         final Bundle bundle = serviceReference == null ? null : serviceReference.getBundle();
 
-        final String loggerName = message.split("; ")[0];
+        // Only look up what the SSE view needs (no copy of the MDC)
+        final String userToken = MDC.get("kb.userToken");
+        final String tenantRecordId = MDC.get("kb.tenantRecordId");
+        final String accountRecordId = MDC.get("kb.accountRecordId");
 
-        final Map<String, String> mdcContext = MDC.getCopyOfContextMap();
-        final String userToken = mdcContext != null ? mdcContext.get("kb.userToken") : null;
-        final String tenantRecordId = mdcContext != null ? mdcContext.get("kb.tenantRecordId") : null;
-        final String accountRecordId = mdcContext != null ? mdcContext.get("kb.accountRecordId") : null;
-
-        // Forward the log to HTTP consumers
-        logEntriesManager.recordEvent(new LogEntryJson(bundle, level, loggerName, message, userToken,
+        // Forward the log to HTTP consumers (the logger name is extracted from the message lazily, see OSGIAppender)
+        logEntriesManager.recordEvent(new LogEntryJson(bundle, level, null, message, userToken,
                                                        tenantRecordId, accountRecordId, exception));
 
         if (serviceReference != null && "true".equals(serviceReference.getProperty("KILL_BILL_ROOT_LOGGING"))) {
@@ -71,23 +69,21 @@ public class KillbillLogWriter implements BundleListener, FrameworkListener, Ser
         // Log comes from a pure OSGI LogService, forward it to slf4j
         final Logger delegate = getLogger(bundle, null, null);
         if (serviceReference != null) {
-            // A single thread (e.g. org.apache.felix.log.LogListenerThread) should be invoking this, but just to be safe...
-            synchronized (this) {
-                try {
-                    final Object originalMdcMap = serviceReference.getProperty(MDC_KEY);
-                    if (originalMdcMap != null) {
-                        //noinspection unchecked
-                        MDC.setContextMap((Map) originalMdcMap);
-                    }
-
-                    if (exception != null) {
-                        logInternal(delegate, serviceReference, level, message, exception);
-                    } else {
-                        logInternal(delegate, serviceReference, level, message);
-                    }
-                } finally {
-                    MDC.clear();
+            // The MDC is bound to the calling thread, no need to synchronize
+            try {
+                final Object originalMdcMap = serviceReference.getProperty(MDC_KEY);
+                if (originalMdcMap != null) {
+                    //noinspection unchecked
+                    MDC.setContextMap((Map) originalMdcMap);
+                }
+
+                if (exception != null) {
+                    logInternal(delegate, serviceReference, level, message, exception);
+                } else {
+                    logInternal(delegate, serviceReference, level, message);
                 }
+            } finally {
+                MDC.clear();
             }
         } else if (exception != null) {
             logInternal(delegate, level, message, exception);
@@ -20,18 +20,30 @@
 package org.killbill.billing.osgi.bundles.logger;
 
 import java.io.Closeable;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nullable;
 
-import org.killbill.commons.utils.collect.EvictingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps the last log entries in a single fixed-size ring buffer, shared by all SSE subscribers.
+ * <p>
+ * Writers never block: each entry is assigned a sequence number and published in its slot, overwriting the oldest one.
+ * Each subscriber only holds the sequence number of the next entry to read. A subscriber which fell behind by more than
+ * the size of the buffer gets a gap marker (a warning log entry) instead of the entries it missed.
+ * <p>
+ * Subscribers can register a filter, applied when draining, and a listener, invoked on the logging thread each time an
+ * entry matching that filter is published (it must be cheap and not block).
+ */
 public class LogEntriesManager implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(LogEntriesManager.class);
@@ -40,92 +52,198 @@ public class LogEntriesManager implements Closeable {
 
     public static final int DEFAULT_SSE_CACHE_SIZE = 5000;
 
-    private final Map<UUID, EvictingQueue<LogEntryJson>> sseIDsCaches;
-    private final EvictingQueue<LogEntryJson> rootCache;
+    // Last event id of subscribers which only want the entries recorded from now on
+    public static final long NOW = Long.MAX_VALUE;
+
+    private final int capacity;
+    private final AtomicReferenceArray<Slot> ringBuffer;
+    // Sequence number of the next entry to be written
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<UUID, Subscription>();
 
     public LogEntriesManager() {
-        sseIDsCaches = new HashMap<>();
-        final UUID rootCacheId = UUID.randomUUID();
-        rootCache = subscribe(rootCacheId, null);
+        this(getSseCacheSize());
     }
 
-    public void recordEvent(final LogEntryJson logEntry) {
-        synchronized (sseIDsCaches) {
-            for (final EvictingQueue<LogEntryJson> cache : sseIDsCaches.values()) {
-                cache.add(logEntry);
-            }
-        }
+    LogEntriesManager(final int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.ringBuffer = new AtomicReferenceArray<Slot>(this.capacity);
     }
 
-    public EvictingQueue<LogEntryJson> subscribe(final UUID cacheId, @Nullable final UUID lastEventId) {
-        int sseCacheSize = DEFAULT_SSE_CACHE_SIZE;
-
-        final String sseCacheSizeStr = System.getProperty(SSE_CACHE_SIZE_PROPERTY);
+    public void recordEvent(final LogEntryJson logEntry) {
+        final long sequence = nextSequence.getAndIncrement();
+        final Slot slot = new Slot(sequence, logEntry);
+        final int index = index(sequence);
+        // Don't overwrite a more recent entry, if a writer wrapped around in the meantime
+        Slot current;
+        do {
+            current = ringBuffer.get(index);
+            if (current != null && current.sequence > sequence) {
+                return;
+            }
+        } while (!ringBuffer.compareAndSet(index, current, slot));
 
-        if (sseCacheSizeStr != null) {
-            try {
-                sseCacheSize = Integer.parseInt(sseCacheSizeStr);
-            } catch (final NumberFormatException e) {
-                logger.warn("Invalid SSE cache size '{}', using default {}", sseCacheSizeStr, DEFAULT_SSE_CACHE_SIZE);
+        for (final Subscription subscription : subscriptions.values()) {
+            // Also wake up subscribers which skipped many entries, so that their cursor keeps up (before these entries are overwritten)
+            if (subscription.listener != null &&
+                (subscription.filter.matches(logEntry) || sequence - subscription.cursor.get() >= capacity / 2)) {
+                subscription.listener.run();
             }
         }
+    }
+
+    public void subscribe(final UUID cacheId, @Nullable final Long lastEventId) {
+        subscribe(cacheId, lastEventId, LogEntryFilter.ALL, null);
+    }
 
-        final EvictingQueue<LogEntryJson> cache = new EvictingQueue<>(sseCacheSize);
-        synchronized (sseIDsCaches) {
-            sseIDsCaches.put(cacheId, cache);
-            if (rootCache != null) {
-                if (lastEventId == null) {
-                    // Add all entries
-                    cache.addAll(rootCache);
-                } else {
-                    for (final LogEntryJson logEntryJson : rootCache) {
-                        if (lastEventId.equals(logEntryJson.getId())) {
-                            // Remove everything prior to that id
-                            cache.clear();
-                            continue;
-                        }
-                        cache.add(logEntryJson);
-                    }
+    /**
+     * @param lastEventId id of the last entry the client received, if any (the client resumes right after it), or
+     *                    {@link #NOW} to skip the buffered entries
+     * @param filter      entries to send to that client
+     * @param listener    invoked when a new entry matching the filter is recorded
+     */
+    public void subscribe(final UUID cacheId,
+                          @Nullable final Long lastEventId,
+                          final LogEntryFilter filter,
+                          @Nullable final Runnable listener) {
+        final long head = nextSequence.get();
+        long cursor = oldestSequence(head);
+        if (lastEventId != null) {
+            // Log entry ids are monotonic: resume at the first entry past that id (if it's still in the buffer)
+            long sequence = head - 1;
+            while (sequence >= cursor) {
+                final Slot slot = ringBuffer.get(index(sequence));
+                if (slot != null && slot.sequence == sequence && slot.logEntry.getId() <= lastEventId) {
+                    break;
                 }
+                sequence--;
+            }
+            if (sequence >= cursor) {
+                cursor = sequence + 1;
             }
         }
-        // Logging should be done outside the synchronized block to avoid any deadlock (the log entry will be put in the caches)
-        logger.info("Created new cache {} ({} active, cache size: {})", cacheId, sseIDsCaches.size(), sseCacheSize);
+        subscriptions.put(cacheId, new Subscription(cursor, lastEventId == null || lastEventId == NOW ? null : lastEventId, filter, listener));
 
-        return cache;
+        logger.info("Created new cache {} ({} active, cache size: {}, filter: {})", cacheId, subscriptions.size(), capacity, filter);
     }
 
     public void unsubscribe(final UUID cacheId) {
-        final EvictingQueue<LogEntryJson> cache;
-        synchronized (sseIDsCaches) {
-            cache = sseIDsCaches.remove(cacheId);
-        }
-        // Logging should be done outside the synchronized block to avoid any deadlock (the log entry will be put in the caches)
-        logger.info("Removed cache {} ({} active)", cacheId, sseIDsCaches.size());
-        cache.clear();
+        subscriptions.remove(cacheId);
+        logger.info("Removed cache {} ({} active)", cacheId, subscriptions.size());
     }
 
-    public Iterable<LogEntryJson> drain(final UUID cacheId) {
-        final Collection<LogEntryJson> elements = new LinkedList<LogEntryJson>();
+    /**
+     * @return the id of the last entry read by that subscriber (sent or filtered out), null if none
+     */
+    public Long getLastEventId(final UUID cacheId) {
+        final Subscription subscription = subscriptions.get(cacheId);
+        return subscription == null ? null : subscription.lastEventId;
+    }
 
-        synchronized (sseIDsCaches) {
-            final EvictingQueue<LogEntryJson> logEntries = sseIDsCaches.get(cacheId);
-            LogEntryJson logEntry = logEntries.poll();
-            while (logEntry != null) {
-                elements.add(logEntry);
-                logEntry = logEntries.poll();
+    public List<LogEntryJson> drain(final UUID cacheId) {
+        final Subscription subscription = subscriptions.get(cacheId);
+        if (subscription == null) {
+            return Collections.emptyList();
+        }
+        final AtomicLong cursor = subscription.cursor;
+
+        final long head = nextSequence.get();
+        long sequence = cursor.get();
+        if (sequence >= head) {
+            return Collections.emptyList();
+        }
+
+        final List<LogEntryJson> elements = new ArrayList<LogEntryJson>((int) Math.min(head - sequence + 1, capacity + 1));
+        long nbSkipped = 0;
+        if (sequence < oldestSequence(head)) {
+            nbSkipped = oldestSequence(head) - sequence;
+            sequence = oldestSequence(head);
+        }
+        while (sequence < head) {
+            final Slot slot = ringBuffer.get(index(sequence));
+            if (slot == null || slot.sequence < sequence) {
+                // Claimed but not yet published: resume from there next time
+                break;
+            }
+            if (slot.sequence > sequence) {
+                // Overwritten while we were reading
+                nbSkipped++;
+            } else {
+                if (nbSkipped > 0) {
+                    elements.add(createGapMarker(nbSkipped));
+                    nbSkipped = 0;
+                }
+                if (subscription.filter.matches(slot.logEntry)) {
+                    elements.add(slot.logEntry);
+                }
+                subscription.lastEventId = slot.logEntry.getId();
             }
-            return elements;
+            sequence++;
+        }
+        if (nbSkipped > 0) {
+            elements.add(createGapMarker(nbSkipped));
         }
+        cursor.set(sequence);
+        return elements;
     }
 
     @Override
     public void close() {
-        synchronized (sseIDsCaches) {
-            for (final EvictingQueue<LogEntryJson> cache : sseIDsCaches.values()) {
-                cache.clear();
+        subscriptions.clear();
+        for (int i = 0; i < capacity; i++) {
+            ringBuffer.set(i, null);
+        }
+    }
+
+    private long oldestSequence(final long head) {
+        return Math.max(head - capacity, 0);
+    }
+
+    private int index(final long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static LogEntryJson createGapMarker(final long nbSkipped) {
+        return LogEntryJson.createGapMarker(String.format("%s log entries were dropped (subscriber too slow)", nbSkipped));
+    }
+
+    private static int getSseCacheSize() {
+        final String sseCacheSizeStr = System.getProperty(SSE_CACHE_SIZE_PROPERTY);
+        if (sseCacheSizeStr != null) {
+            try {
+                return Integer.parseInt(sseCacheSizeStr);
+            } catch (final NumberFormatException e) {
+                logger.warn("Invalid SSE cache size '{}', using default {}", sseCacheSizeStr, DEFAULT_SSE_CACHE_SIZE);
             }
-            sseIDsCaches.clear();
+        }
+        return DEFAULT_SSE_CACHE_SIZE;
+    }
+
+    private static final class Subscription {
+
+        // Sequence number of the next entry to be read
+        private final AtomicLong cursor;
+        private final LogEntryFilter filter;
+        private final Runnable listener;
+        // Only updated by the (single) thread draining that subscription
+        private volatile Long lastEventId;
+
+        private Subscription(final long cursor, @Nullable final Long lastEventId, final LogEntryFilter filter, @Nullable final Runnable listener) {
+            this.cursor = new AtomicLong(cursor);
+            this.lastEventId = lastEventId;
+            this.filter = filter;
+            this.listener = listener;
+        }
+    }
+
+    private static final class Slot {
+
+        private final long sequence;
+        private final LogEntryJson logEntry;
+
+        private Slot(final long sequence, final LogEntryJson logEntry) {
+            this.sequence = sequence;
+            this.logEntry = logEntry;
         }
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import javax.annotation.Nullable;
+
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-side filter of the log entries sent to a SSE client (all criteria are optional and combined with AND).
+ */
+public class LogEntryFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogEntryFilter.class);
+
+    public static final LogEntryFilter ALL = new LogEntryFilter(null, null, null, null, null);
+
+    // Least severe level to send (LogService levels grow with verbosity), null to send all levels
+    private final Integer maxLevel;
+    private final String loggerPrefix;
+    private final String pluginName;
+    private final String tenantRecordId;
+    private final String accountRecordId;
+
+    public LogEntryFilter(@Nullable final String level,
+                          @Nullable final String loggerPrefix,
+                          @Nullable final String pluginName,
+                          @Nullable final String tenantRecordId,
+                          @Nullable final String accountRecordId) {
+        this.maxLevel = toLogServiceLevel(level);
+        this.loggerPrefix = emptyToNull(loggerPrefix);
+        this.pluginName = emptyToNull(pluginName);
+        this.tenantRecordId = emptyToNull(tenantRecordId);
+        this.accountRecordId = emptyToNull(accountRecordId);
+    }
+
+    public boolean matches(final LogEntryJson logEntry) {
+        if (logEntry.isGapMarker()) {
+            // Always let clients know they missed entries
+            return true;
+        }
+        if (maxLevel != null && logEntry.getIntLevel() > maxLevel) {
+            return false;
+        }
+        if (tenantRecordId != null && !tenantRecordId.equals(logEntry.getTenantRecordId())) {
+            return false;
+        }
+        if (accountRecordId != null && !accountRecordId.equals(logEntry.getAccountRecordId())) {
+            return false;
+        }
+        if (pluginName != null && !pluginName.equals(logEntry.getName())) {
+            return false;
+        }
+        if (loggerPrefix != null) {
+            final String loggerName = logEntry.getLogger();
+            return loggerName != null && loggerName.startsWith(loggerPrefix);
+        }
+        return true;
+    }
+
+    private static Integer toLogServiceLevel(@Nullable final String level) {
+        if (level == null || level.isEmpty()) {
+            return null;
+        }
+        switch (level.toUpperCase()) {
+            case "ERROR":
+                return LogService.LOG_ERROR;
+            case "WARN":
+            case "WARNING":
+                return LogService.LOG_WARNING;
+            case "INFO":
+                return LogService.LOG_INFO;
+            case "DEBUG":
+            case "TRACE":
+                return LogService.LOG_DEBUG;
+            default:
+                logger.warn("Invalid log level filter '{}', ignoring", level);
+                return null;
+        }
+    }
+
+    private static String emptyToNull(@Nullable final String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("LogEntryFilter{");
+        sb.append("maxLevel=").append(maxLevel);
+        sb.append(", loggerPrefix='").append(loggerPrefix).append('\'');
+        sb.append(", pluginName='").append(pluginName).append('\'');
+        sb.append(", tenantRecordId='").append(tenantRecordId).append('\'');
+        sb.append(", accountRecordId='").append(accountRecordId).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
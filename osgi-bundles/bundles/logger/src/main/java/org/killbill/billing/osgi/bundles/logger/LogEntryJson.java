@@ -19,7 +19,8 @@
 
 package org.killbill.billing.osgi.bundles.logger;
 
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
 import org.osgi.service.log.LogService;
@@ -27,20 +28,36 @@ import org.osgi.service.log.LogService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * Log entry, as sent to SSE clients.
+ * <p>
+ * Only what's needed is captured on the logging thread (the raw message, level, bundle and the few MDC values of interest):
+ * the level and bundle names, as well as the logger name (when it's a prefix of the message), are only computed when
+ * the entry is serialized, i.e. when a client actually reads it.
+ */
 public class LogEntryJson {
 
     private static final ObjectMapper DEFAULT_OBJECT_MAPPER = new ObjectMapper();
 
-    private final UUID id;
-    private final String level;
-    private final String name;
-    private final String logger;
+    private static final String LOGGER_NAME_SEPARATOR = "; ";
+
+    // Monotonic per node. Seeded from the clock, so that ids keep increasing across restarts (SSE clients resume from the last id they saw)
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() << 20);
+
+    private final long id;
+    private final int intLevel;
+    private final Bundle bundle;
+    private final String loggerName;
     private final String message;
-    private final Long time;
+    private final long time;
     private final String userToken;
     private final String tenantRecordId;
     private final String accountRecordId;
+    private final boolean gapMarker;
 
+    /**
+     * @param loggerName logger name, if null the message is expected to be prefixed by the logger name (see OSGIAppender)
+     */
     public LogEntryJson(final Bundle bundle,
                         final int intLevel,
                         final String loggerName,
@@ -49,54 +66,84 @@ public class LogEntryJson {
                         final String tenantRecordId,
                         final String accountRecordId,
                         final Throwable exception) {
-        id = UUID.randomUUID();
-
-        if (intLevel == LogService.LOG_ERROR) {
-            level = "ERROR";
-        } else if (intLevel == LogService.LOG_WARNING) {
-            level = "WARNING";
-        } else if (intLevel == LogService.LOG_INFO) {
-            level = "INFO";
-        } else if (intLevel == LogService.LOG_DEBUG) {
-            level = "DEBUG";
-        } else {
-            level = String.valueOf(intLevel);
-        }
-
-        if (bundle == null) {
-            name = null;
-        } else if (bundle.getLocation() != null && bundle.getLocation().startsWith("jruby-")) {
-            // Extract the plugin name (see FileInstall)
-            name = bundle.getLocation().substring(6);
-        } else if (bundle.getSymbolicName() != null && bundle.getSymbolicName().startsWith("org.kill-bill.billing.plugin.java")) {
-            // Extract the plugin name
-            name = bundle.getSymbolicName().substring(34);
-        } else {
-            name = bundle.getSymbolicName();
-        }
+        this(bundle, intLevel, loggerName, message, userToken, tenantRecordId, accountRecordId, false);
+    }
 
-        this.logger = loggerName;
+    private LogEntryJson(final Bundle bundle,
+                         final int intLevel,
+                         final String loggerName,
+                         final String message,
+                         final String userToken,
+                         final String tenantRecordId,
+                         final String accountRecordId,
+                         final boolean gapMarker) {
+        this.id = SEQUENCE.incrementAndGet();
+        this.bundle = bundle;
+        this.intLevel = intLevel;
+        this.loggerName = loggerName;
         this.message = message;
         this.time = System.currentTimeMillis();
         this.userToken = userToken;
         this.accountRecordId = accountRecordId;
         this.tenantRecordId = tenantRecordId;
+        this.gapMarker = gapMarker;
+    }
+
+    /**
+     * @return a warning entry, sent to clients in lieu of the entries they missed
+     */
+    static LogEntryJson createGapMarker(final String message) {
+        return new LogEntryJson(null, LogService.LOG_WARNING, LogEntriesManager.class.getName(), message, null, null, null, true);
+    }
+
+    // Not a bean property on purpose (not serialized)
+    boolean isGapMarker() {
+        return gapMarker;
+    }
+
+    // Not a bean property on purpose (not serialized)
+    int getIntLevel() {
+        return intLevel;
     }
 
     public String getLogger() {
-        return logger;
+        if (loggerName != null || message == null) {
+            return loggerName;
+        }
+        final int separatorIdx = message.indexOf(LOGGER_NAME_SEPARATOR);
+        return separatorIdx < 0 ? message : message.substring(0, separatorIdx);
     }
 
-    public UUID getId() {
+    public long getId() {
         return id;
     }
 
     public String getLevel() {
-        return level;
+        if (intLevel == LogService.LOG_ERROR) {
+            return "ERROR";
+        } else if (intLevel == LogService.LOG_WARNING) {
+            return "WARNING";
+        } else if (intLevel == LogService.LOG_INFO) {
+            return "INFO";
+        } else if (intLevel == LogService.LOG_DEBUG) {
+            return "DEBUG";
+        } else {
+            return String.valueOf(intLevel);
+        }
     }
 
     public String getName() {
-        return name;
+        if (bundle == null) {
+            return null;
+        } else if (bundle.getLocation() != null && bundle.getLocation().startsWith("jruby-")) {
+            // Extract the plugin name (see FileInstall)
+            return bundle.getLocation().substring(6);
+        } else if (bundle.getSymbolicName() != null && bundle.getSymbolicName().startsWith("org.kill-bill.billing.plugin.java")) {
+            // Extract the plugin name
+            return bundle.getSymbolicName().substring(34);
+        } else {
+            return bundle.getSymbolicName();
+        }
     }
 
     public String getMessage() {
@@ -119,6 +166,20 @@ public class LogEntryJson {
         return accountRecordId;
     }
 
+    /**
+     * @return the JSON array of these entries, sent as a single SSE frame
+     */
+    static String toJson(final List<LogEntryJson> logEntries) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < logEntries.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(logEntries.get(i).toString());
+        }
+        return sb.append(']').toString();
+    }
+
     @Override
     public String toString() {
         try {
@@ -126,10 +187,10 @@ public class LogEntryJson {
             return DEFAULT_OBJECT_MAPPER.writeValueAsString(this);
         } catch (final JsonProcessingException e) {
             final StringBuffer sb = new StringBuffer("{");
-            sb.append("\"id\":\"").append(id).append("\"");
-            sb.append(", \"level\":\"").append(level).append("\"");
-            sb.append(", \"name\":\"").append(name).append("\"");
-            sb.append(", \"logger\":\"").append(logger).append("\"");
+            sb.append("\"id\":").append(id);
+            sb.append(", \"level\":\"").append(getLevel()).append("\"");
+            sb.append(", \"name\":\"").append(getName()).append("\"");
+            sb.append(", \"logger\":\"").append(getLogger()).append("\"");
             sb.append(", \"userToken\":\"").append(userToken).append("\"");
             sb.append(", \"tenantRecordId\":\"").append(tenantRecordId).append("\"");
             sb.append(", \"accountRecordId\":\"").append(accountRecordId).append("\"");
@@ -151,13 +212,13 @@ public class LogEntryJson {
 
         final LogEntryJson that = (LogEntryJson) o;
 
-        if (id != null ? !id.equals(that.id) : that.id != null) {
+        if (id != that.id) {
             return false;
         }
-        if (level != null ? !level.equals(that.level) : that.level != null) {
+        if (intLevel != that.intLevel) {
             return false;
         }
-        if (name != null ? !name.equals(that.name) : that.name != null) {
+        if (bundle != null ? !bundle.equals(that.bundle) : that.bundle != null) {
             return false;
         }
         if (message != null ? !message.equals(that.message) : that.message != null) {
@@ -175,19 +236,19 @@ public class LogEntryJson {
             return false;
         }
 
-        return time != null ? time.equals(that.time) : that.time == null;
+        return time == that.time;
     }
 
     @Override
     public int hashCode() {
-        int result = id != null ? id.hashCode() : 0;
-        result = 31 * result + (level != null ? level.hashCode() : 0);
-        result = 31 * result + (name != null ? name.hashCode() : 0);
+        int result = Long.hashCode(id);
+        result = 31 * result + intLevel;
+        result = 31 * result + (bundle != null ? bundle.hashCode() : 0);
         result = 31 * result + (message != null ? message.hashCode() : 0);
         result = 31 * result + (userToken != null ? userToken.hashCode() : 0);
         result = 31 * result + (tenantRecordId != null ? tenantRecordId.hashCode() : 0);
         result = 31 * result + (accountRecordId != null ? accountRecordId.hashCode() : 0);
-        result = 31 * result + (time != null ? time.hashCode() : 0);
+        result = 31 * result + Long.hashCode(time);
         return result;
     }
 }
@@ -21,24 +21,49 @@ package org.killbill.billing.osgi.bundles.logger;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 import org.jooby.Request;
 import org.jooby.Sse;
 import org.jooby.funzy.Throwing;
 import org.killbill.commons.concurrent.Executors;
 
+/**
+ * Streams log entries to SSE clients.
+ * <p>
+ * Entries are pushed as soon as they are recorded: the first new entry schedules a flush, which goes out after a short
+ * linger so that bursts are coalesced. Supported query parameters:
+ * <ul>
+ *     <li>level, logger, plugin, tenantRecordId, accountRecordId: server-side filters (see LogEntryFilter)</li>
+ *     <li>batch=true: send each flush as a single "batch" event, whose data is a JSON array of entries</li>
+ * </ul>
+ * Clients reconnecting with a Last-Event-ID header resume right after that entry, if it's still buffered. Event ids
+ * are numeric: a non-numeric Last-Event-ID (e.g. a UUID, as sent by older versions) only gets the new entries.
+ */
 public class LogsSseHandler implements Sse.Handler, Closeable {
 
+    static final long FLUSH_LINGER_MS = 50;
+    static final long HEARTBEAT_PERIOD_MS = 5000;
+
     private final LogEntriesManager logEntriesManager;
+    private final long heartbeatPeriodMs;
     private final ScheduledExecutorService scheduledExecutorService;
 
     public LogsSseHandler(final LogEntriesManager logEntriesManager) {
+        this(logEntriesManager, HEARTBEAT_PERIOD_MS);
+    }
+
+    LogsSseHandler(final LogEntriesManager logEntriesManager, final long heartbeatPeriodMs) {
         this.logEntriesManager = logEntriesManager;
+        this.heartbeatPeriodMs = heartbeatPeriodMs;
         this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor("LogsSseHandler");
     }
 
@@ -50,35 +75,89 @@ public class LogsSseHandler implements Sse.Handler, Closeable {
 
     @Override
     public void handle(final Request req, final Sse sse) {
-        final UUID lastEventId = sse.lastEventId(UUID.class).orElse(null);
+        final Long lastEventId = parseLastEventId(sse.lastEventId().toOptional().orElse(null));
         final UUID cacheId = UUID.fromString(sse.id());
-        logEntriesManager.subscribe(cacheId, lastEventId);
+        final LogEntryFilter filter = new LogEntryFilter(req.param("level").toOptional().orElse(null),
+                                                         req.param("logger").toOptional().orElse(null),
+                                                         req.param("plugin").toOptional().orElse(null),
+                                                         req.param("tenantRecordId").toOptional().orElse(null),
+                                                         req.param("accountRecordId").toOptional().orElse(null));
+        final boolean batch = Boolean.parseBoolean(req.param("batch").toOptional().orElse("false"));
 
-        final AtomicReference<UUID> lastLogId = new AtomicReference<UUID>();
-        final ScheduledFuture<?> future = scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+        final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        final AtomicLong lastSentMillis = new AtomicLong(System.currentTimeMillis());
+        final Runnable flush = new Runnable() {
             @Override
             public void run() {
-                final Iterable<LogEntryJson> logEntries = logEntriesManager.drain(cacheId);
-                if (!logEntries.iterator().hasNext()) {
-                    // In case we have nothing to send, send a heartbeat to verify the client is still around
-                    // That way, we can more quickly cleanup our subscriptions
-                    // Note that we set the id as the last log id, so that we can easily resume
-                    sse.event("heartbeat").id(lastLogId.get()).send();
+                // Reset first, so that entries recorded while we drain trigger a new flush
+                flushScheduled.set(false);
+                final List<LogEntryJson> logEntries = logEntriesManager.drain(cacheId);
+                if (logEntries.isEmpty()) {
+                    return;
+                }
+                if (batch) {
+                    sse.event(LogEntryJson.toJson(logEntries)).name("batch").id(logEntriesManager.getLastEventId(cacheId)).send();
                 } else {
                     for (final LogEntryJson logEntryJson : logEntries) {
+                        if (logEntryJson.isGapMarker()) {
+                            // No id, so that the client resumes after the last actual entry
+                            sse.event(logEntryJson).send();
+                            continue;
+                        }
                         sse.event(logEntryJson).id(logEntryJson.getId()).send();
-                        lastLogId.set(logEntryJson.getId());
                     }
                 }
+                lastSentMillis.set(System.currentTimeMillis());
+            }
+        };
+
+        logEntriesManager.subscribe(cacheId, lastEventId, filter, new Runnable() {
+            @Override
+            public void run() {
+                // Invoked on the logging thread: only schedule a flush if none is pending
+                if (!flushScheduled.get() && flushScheduled.compareAndSet(false, true)) {
+                    scheduledExecutorService.schedule(flush, FLUSH_LINGER_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+
+        // Send what's already buffered
+        flushScheduled.set(true);
+        scheduledExecutorService.execute(flush);
+
+        final ScheduledFuture<?> heartbeat = scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (System.currentTimeMillis() - lastSentMillis.get() < heartbeatPeriodMs) {
+                    return;
+                }
+                // In case we have nothing to send, send a heartbeat to verify the client is still around
+                // That way, we can more quickly cleanup our subscriptions
+                // Note that we set the id as the last log id (including filtered out entries), so that we can easily resume
+                sse.event("heartbeat").id(logEntriesManager.getLastEventId(cacheId)).send();
+                lastSentMillis.set(System.currentTimeMillis());
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        }, heartbeatPeriodMs, heartbeatPeriodMs, TimeUnit.MILLISECONDS);
 
         sse.onClose(new Throwing.Runnable() {
             @Override
             public void tryRun() throws Throwable {
-                future.cancel(true);
+                heartbeat.cancel(true);
                 logEntriesManager.unsubscribe(cacheId);
             }
         });
     }
+
+    @Nullable
+    static Long parseLastEventId(@Nullable final String lastEventId) {
+        if (lastEventId == null || lastEventId.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (final NumberFormatException e) {
+            // We can't tell where that client stopped: don't replay the buffer
+            return LogEntriesManager.NOW;
+        }
+    }
 }
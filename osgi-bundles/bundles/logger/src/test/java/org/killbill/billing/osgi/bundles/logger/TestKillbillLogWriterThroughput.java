@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Throughput of the capture path (core log entries forwarded by OSGIAppender), with 16 logging threads and one SSE subscriber.
+ */
+public class TestKillbillLogWriterThroughput {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestKillbillLogWriterThroughput.class);
+
+    private static final int NB_THREADS = 16;
+    private static final int NB_LOGS_PER_THREAD = 200000;
+
+    @Test(groups = "stress")
+    public void testThroughput() throws InterruptedException {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager();
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+        final KillbillLogWriter logWriter = new KillbillLogWriter(logEntriesManager, new KillbillLoggerFactory(Mockito.mock(Bundle.class)));
+
+        // See OSGIAppender
+        final ServiceReference serviceReference = Mockito.mock(ServiceReference.class);
+        Mockito.when(serviceReference.getProperty("KILL_BILL_ROOT_LOGGING")).thenReturn("true");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong nbLogs = new AtomicLong();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NB_THREADS; i++) {
+            final String message = "org.killbill.billing.payment.core.PaymentProcessor; Processing payment for thread " + i;
+            final Thread thread = new Thread(() -> {
+                MDC.put("kb.userToken", UUID.randomUUID().toString());
+                MDC.put("kb.tenantRecordId", "1");
+                MDC.put("kb.accountRecordId", "2");
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < NB_LOGS_PER_THREAD; j++) {
+                    logWriter.log(serviceReference, LogService.LOG_INFO, message, null);
+                }
+                nbLogs.addAndGet(NB_LOGS_PER_THREAD);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+
+        Assert.assertEquals(nbLogs.get(), (long) NB_THREADS * NB_LOGS_PER_THREAD);
+        Assert.assertTrue(logEntriesManager.drain(subscriber).iterator().hasNext());
+        logger.info("{} threads: {} log entries captured in {} ms ({} entries/s)",
+                    NB_THREADS, nbLogs.get(), elapsedNanos / 1000000, nbLogs.get() * 1000000000L / elapsedNanos);
+    }
+}
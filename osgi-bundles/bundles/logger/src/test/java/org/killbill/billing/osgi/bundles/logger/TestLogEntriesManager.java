@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLogEntriesManager {
+
+    @Test(groups = "fast")
+    public void testSubscribeAndDrain() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(10);
+        final LogEntryJson first = record(logEntriesManager, "first");
+        final LogEntryJson second = record(logEntriesManager, "second");
+
+        // New subscribers get the buffered entries
+        final UUID subscriber1 = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber1, null);
+        // Resume after the last seen entry
+        final UUID subscriber2 = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber2, first.getId());
+
+        final LogEntryJson third = record(logEntriesManager, "third");
+
+        Assert.assertEquals(messages(logEntriesManager.drain(subscriber1)), List.of("first", "second", "third"));
+        Assert.assertEquals(messages(logEntriesManager.drain(subscriber2)), List.of("second", "third"));
+        Assert.assertFalse(logEntriesManager.drain(subscriber1).iterator().hasNext());
+
+        // Entries are shared, not copied
+        final UUID subscriber3 = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber3, second.getId());
+        Assert.assertSame(logEntriesManager.drain(subscriber3).iterator().next(), third);
+
+        logEntriesManager.unsubscribe(subscriber1);
+        record(logEntriesManager, "fourth");
+        Assert.assertFalse(logEntriesManager.drain(subscriber1).iterator().hasNext());
+    }
+
+    @Test(groups = "fast")
+    public void testSubscribeFromNow() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(10);
+        record(logEntriesManager, "first");
+        record(logEntriesManager, "second");
+
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, LogEntriesManager.NOW);
+        Assert.assertNull(logEntriesManager.getLastEventId(subscriber));
+        Assert.assertFalse(logEntriesManager.drain(subscriber).iterator().hasNext());
+
+        final LogEntryJson third = record(logEntriesManager, "third");
+        Assert.assertEquals(messages(logEntriesManager.drain(subscriber)), List.of("third"));
+        Assert.assertEquals(logEntriesManager.getLastEventId(subscriber), (Long) third.getId());
+    }
+
+    @Test(groups = "fast")
+    public void testLogEntry() {
+        final LogEntryJson first = new LogEntryJson(null, LogService.LOG_WARNING, null, "org.killbill.Foo; hello; world", null, null, null, null);
+        final LogEntryJson second = new LogEntryJson(null, LogService.LOG_ERROR, "org.killbill.Bar", "hello", null, null, null, null);
+
+        Assert.assertTrue(second.getId() > first.getId());
+        Assert.assertEquals(first.getLogger(), "org.killbill.Foo");
+        Assert.assertEquals(first.getMessage(), "org.killbill.Foo; hello; world");
+        Assert.assertEquals(first.getLevel(), "WARNING");
+        Assert.assertEquals(second.getLogger(), "org.killbill.Bar");
+        Assert.assertEquals(second.getLevel(), "ERROR");
+        Assert.assertTrue(first.toString().contains("\"logger\":\"org.killbill.Foo\""));
+        Assert.assertFalse(first.toString().contains("gapMarker"));
+    }
+
+    @Test(groups = "fast")
+    public void testFiltersAndListener() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(10);
+        final AtomicInteger nbNotifications = new AtomicInteger();
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null, new LogEntryFilter("warn", "org.killbill.billing", null, "1", null), nbNotifications::incrementAndGet);
+
+        logEntriesManager.recordEvent(new LogEntryJson(null, LogService.LOG_ERROR, "org.killbill.billing.Foo", "match", null, "1", null, null));
+        logEntriesManager.recordEvent(new LogEntryJson(null, LogService.LOG_INFO, "org.killbill.billing.Foo", "too verbose", null, "1", null, null));
+        logEntriesManager.recordEvent(new LogEntryJson(null, LogService.LOG_WARNING, "com.acme.Foo", "wrong logger", null, "1", null, null));
+        logEntriesManager.recordEvent(new LogEntryJson(null, LogService.LOG_WARNING, null, "org.killbill.billing.Bar; match too", null, "1", null, null));
+        final LogEntryJson last = new LogEntryJson(null, LogService.LOG_WARNING, "org.killbill.billing.Foo", "wrong tenant", null, "2", null, null);
+        logEntriesManager.recordEvent(last);
+
+        // Only woken up for the entries it will receive
+        Assert.assertEquals(nbNotifications.get(), 2);
+        Assert.assertEquals(messages(logEntriesManager.drain(subscriber)), List.of("match", "org.killbill.billing.Bar; match too"));
+        // Filtered out entries are acknowledged too
+        Assert.assertEquals(logEntriesManager.getLastEventId(subscriber), (Long) last.getId());
+
+        // Empty and invalid criteria are ignored
+        final LogEntryJson debug = new LogEntryJson(null, LogService.LOG_DEBUG, "com.acme.Foo", "debug", null, null, null, null);
+        Assert.assertTrue(new LogEntryFilter("bogus", "", "", null, null).matches(debug));
+    }
+
+    @Test(groups = "fast")
+    public void testListenerKeepsFilteredSubscriberCursorUp() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(10);
+        final AtomicInteger nbNotifications = new AtomicInteger();
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null, new LogEntryFilter("error", null, null, null, null), nbNotifications::incrementAndGet);
+
+        // Filtered out: no wake-up until half of the buffer is pending
+        for (int i = 0; i < 5; i++) {
+            record(logEntriesManager, "entry-" + i);
+        }
+        Assert.assertEquals(nbNotifications.get(), 0);
+        record(logEntriesManager, "entry-5");
+        Assert.assertEquals(nbNotifications.get(), 1);
+
+        // The drain catches up, without any gap marker
+        Assert.assertFalse(logEntriesManager.drain(subscriber).iterator().hasNext());
+        record(logEntriesManager, "entry-6");
+        Assert.assertEquals(nbNotifications.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testSlowSubscriberGap() {
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(4);
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+
+        for (int i = 0; i < 10; i++) {
+            record(logEntriesManager, "entry-" + i);
+        }
+
+        final List<LogEntryJson> logEntries = new ArrayList<LogEntryJson>();
+        logEntriesManager.drain(subscriber).forEach(logEntries::add);
+        Assert.assertTrue(logEntries.get(0).isGapMarker());
+        final List<String> messages = messages(logEntries);
+        Assert.assertEquals(messages.size(), 5);
+        Assert.assertTrue(messages.get(0).startsWith("6 log entries were dropped"));
+        Assert.assertEquals(messages.subList(1, 5), List.of("entry-6", "entry-7", "entry-8", "entry-9"));
+
+        record(logEntriesManager, "entry-10");
+        Assert.assertEquals(messages(logEntriesManager.drain(subscriber)), List.of("entry-10"));
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentWriters() throws InterruptedException {
+        final int nbThreads = 4;
+        final int nbEntriesPerThread = 1000;
+        final LogEntriesManager logEntriesManager = new LogEntriesManager(nbThreads * nbEntriesPerThread);
+        final UUID subscriber = UUID.randomUUID();
+        logEntriesManager.subscribe(subscriber, null);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nbThreads; i++) {
+            final int threadNb = i;
+            final Thread thread = new Thread(() -> {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < nbEntriesPerThread; j++) {
+                    record(logEntriesManager, threadNb + "-" + j);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final Set<String> drained = new HashSet<String>();
+        latch.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        drained.addAll(messages(logEntriesManager.drain(subscriber)));
+        Assert.assertEquals(drained.size(), nbThreads * nbEntriesPerThread);
+    }
+
+    private static LogEntryJson record(final LogEntriesManager logEntriesManager, final String message) {
+        final LogEntryJson logEntry = new LogEntryJson(null, LogService.LOG_INFO, "test", message, null, null, null, null);
+        logEntriesManager.recordEvent(logEntry);
+        return logEntry;
+    }
+
+    private static List<String> messages(final Iterable<LogEntryJson> logEntries) {
+        final List<String> messages = new ArrayList<String>();
+        for (final LogEntryJson logEntry : logEntries) {
+            messages.add(logEntry.getMessage());
+        }
+        return messages;
+    }
+}
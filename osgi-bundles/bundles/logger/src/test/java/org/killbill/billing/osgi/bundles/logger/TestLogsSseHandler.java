@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.logger;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.jooby.Mutant;
+import org.jooby.Request;
+import org.jooby.Sse;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLogsSseHandler {
+
+    private static final long HEARTBEAT_PERIOD_MS = 200;
+
+    private LogEntriesManager logEntriesManager;
+    private LogsSseHandler logsSseHandler;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() {
+        logEntriesManager = Mockito.spy(new LogEntriesManager(100));
+        logsSseHandler = new LogsSseHandler(logEntriesManager, HEARTBEAT_PERIOD_MS);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void afterMethod() throws IOException {
+        logsSseHandler.close();
+    }
+
+    @Test(groups = "fast")
+    public void testPush() {
+        final Sse.Event event = Mockito.mock(Sse.Event.class, Mockito.RETURNS_SELF);
+        final Sse sse = connect(event, "error", null);
+
+        final LogEntryJson filtered = record(LogService.LOG_INFO, "filtered");
+        final LogEntryJson pushed = record(LogService.LOG_ERROR, "pushed");
+
+        Mockito.verify(sse, Mockito.timeout(1000)).event(pushed);
+        Mockito.verify(event, Mockito.timeout(1000)).id(pushed.getId());
+        Mockito.verify(sse, Mockito.never()).event(filtered);
+    }
+
+    @Test(groups = "fast")
+    public void testLinger() {
+        final Sse.Event event = Mockito.mock(Sse.Event.class, Mockito.RETURNS_SELF);
+        final Sse sse = connect(event, null, null);
+        // Initial flush (nothing buffered)
+        Mockito.verify(logEntriesManager, Mockito.timeout(1000)).drain(Mockito.any(UUID.class));
+
+        // A burst is sent by a single flush
+        record(LogService.LOG_INFO, "first");
+        record(LogService.LOG_INFO, "second");
+        record(LogService.LOG_INFO, "third");
+
+        Mockito.verify(sse, Mockito.timeout(1000).times(3)).event(Mockito.any(LogEntryJson.class));
+        Mockito.verify(event, Mockito.times(3)).send();
+        Mockito.verify(logEntriesManager, Mockito.times(2)).drain(Mockito.any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testBatch() {
+        final Sse.Event event = Mockito.mock(Sse.Event.class, Mockito.RETURNS_SELF);
+        final Sse sse = connect(event, null, "true");
+        Mockito.verify(logEntriesManager, Mockito.timeout(1000)).drain(Mockito.any(UUID.class));
+
+        record(LogService.LOG_INFO, "first");
+        record(LogService.LOG_INFO, "second");
+        final LogEntryJson third = record(LogService.LOG_INFO, "third");
+
+        final ArgumentCaptor<Object> data = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(sse, Mockito.timeout(1000)).event(data.capture());
+        Assert.assertTrue(data.getValue() instanceof String);
+        final String json = (String) data.getValue();
+        Assert.assertTrue(json.startsWith("["));
+        Assert.assertTrue(json.indexOf("first") < json.indexOf("second") && json.indexOf("second") < json.indexOf("third"));
+        Mockito.verify(event).name("batch");
+        // The id of a batch is the id of its last entry
+        Mockito.verify(event).id(third.getId());
+        Mockito.verify(event).send();
+    }
+
+    @Test(groups = "fast")
+    public void testHeartbeat() {
+        final Sse.Event event = Mockito.mock(Sse.Event.class, Mockito.RETURNS_SELF);
+        final Sse sse = connect(event, "error", null);
+        // Acknowledged, but not sent
+        final LogEntryJson filtered = record(LogService.LOG_INFO, "filtered");
+        // Drained after half of the buffer is pending
+        for (int i = 0; i < 50; i++) {
+            record(LogService.LOG_DEBUG, "filtered-" + i);
+        }
+        final LogEntryJson last = record(LogService.LOG_DEBUG, "last");
+
+        Mockito.verify(sse, Mockito.timeout(2000)).event("heartbeat");
+        Mockito.verify(sse, Mockito.never()).event(filtered);
+        // Clients resume after the last entry acknowledged
+        Mockito.verify(event, Mockito.timeout(2000)).id(last.getId());
+    }
+
+    @Test(groups = "fast")
+    public void testParseLastEventId() {
+        Assert.assertNull(LogsSseHandler.parseLastEventId(null));
+        Assert.assertNull(LogsSseHandler.parseLastEventId(" "));
+        Assert.assertEquals(LogsSseHandler.parseLastEventId("1760000000000042"), (Long) 1760000000000042L);
+        // Ids sent by older versions
+        Assert.assertEquals(LogsSseHandler.parseLastEventId("5d3bd8b8-3a2c-4c43-9a3c-2d1e27a0c6f4"), (Long) LogEntriesManager.NOW);
+    }
+
+    private Sse connect(final Sse.Event event, @Nullable final String level, @Nullable final String batch) {
+        final Request req = Mockito.mock(Request.class);
+        final Mutant noParam = mutant(null);
+        Mockito.when(req.param(Mockito.anyString())).thenReturn(noParam);
+        final Mutant levelParam = mutant(level);
+        Mockito.when(req.param("level")).thenReturn(levelParam);
+        final Mutant batchParam = mutant(batch);
+        Mockito.when(req.param("batch")).thenReturn(batchParam);
+
+        final Sse sse = Mockito.mock(Sse.class);
+        Mockito.when(sse.id()).thenReturn(UUID.randomUUID().toString());
+        Mockito.when(sse.lastEventId()).thenReturn(noParam);
+        Mockito.when(sse.event(Mockito.any())).thenReturn(event);
+
+        logsSseHandler.handle(req, sse);
+        return sse;
+    }
+
+    private static Mutant mutant(@Nullable final String value) {
+        final Mutant mutant = Mockito.mock(Mutant.class);
+        Mockito.when(mutant.toOptional()).thenReturn(Optional.ofNullable(value));
+        return mutant;
+    }
+
+    private LogEntryJson record(final int level, final String message) {
+        final LogEntryJson logEntry = new LogEntryJson(null, level, "test", message, null, null, null, null);
+        logEntriesManager.recordEvent(logEntry);
+        return logEntry;
+    }
+}
@@ -35,12 +35,15 @@ public class Activator extends KillbillActivatorBase {
         super.start(context);
 
         // Feed Kill Bill metrics to a custom Prometheus Collector
+        // Note: it isn't registered in the default CollectorRegistry, the servlet streams its output directly
         final MetricRegistry kbRegistry = this.metricRegistry.getMetricRegistry();
-        final KillBillCollector killBillCollector = new KillBillCollector(kbRegistry);
-        killBillCollector.register();
+        final String builtInRules = configProperties.getString(MetricNameMapper.BUILT_IN_RULES_PROPERTY);
+        final MetricNameMapper metricNameMapper = MetricNameMapper.create(configProperties.getString(MetricNameMapper.RULES_PROPERTY),
+                                                                          builtInRules == null || Boolean.parseBoolean(builtInRules));
+        final KillBillCollector killBillCollector = new KillBillCollector(kbRegistry, metricNameMapper);
 
         // Register a servlet to expose metrics, to be read by the Prometheus server.
-        registerServlet(context, new KillBillMetricsServlet());
+        registerServlet(context, new KillBillMetricsServlet(killBillCollector));
     }
 
     private void registerServlet(final BundleContext context, final Servlet servlet) {
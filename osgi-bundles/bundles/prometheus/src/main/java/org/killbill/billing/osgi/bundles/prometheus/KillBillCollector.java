@@ -17,147 +17,456 @@
 
 package org.killbill.billing.osgi.bundles.prometheus;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.api.BucketedHistogram;
 import org.killbill.commons.metrics.api.Counter;
 import org.killbill.commons.metrics.api.Gauge;
 import org.killbill.commons.metrics.api.Histogram;
 import org.killbill.commons.metrics.api.Meter;
-import org.killbill.commons.metrics.api.Metric;
 import org.killbill.commons.metrics.api.MetricRegistry;
 import org.killbill.commons.metrics.api.Snapshot;
 import org.killbill.commons.metrics.api.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
 
+/**
+ * Exports Kill Bill metrics to Prometheus.
+ * <p>
+ * Everything derived from the metric names (sanitized family and sample names, help messages, grouping of metrics
+ * in families) is computed once and cached: it is only recomputed when a scrape finds that the set of metrics in the
+ * registry changed (the killbill-commons MetricRegistry doesn't support listeners). Samples are streamed to a
+ * {@link SampleWriter} (see {@link #writeTo(SampleWriter, Predicate)}) without intermediate lists.
+ */
 // Inspired from io.prometheus.client.dropwizard.DropwizardExports (Apache-2.0 License)
 public class KillBillCollector extends Collector {
 
+    private static final Logger logger = LoggerFactory.getLogger(KillBillCollector.class);
+
+    private static final String QUANTILE_LABEL = "quantile";
+    private static final String LE_LABEL = "le";
+    private static final String INF_LE = "+Inf";
+    private static final String[] NO_LABELS = new String[0];
+    private static final double NANOS_TO_SECONDS = 1.0D / TimeUnit.SECONDS.toNanos(1L);
+
     private final MetricRegistry registry;
+    private final MetricNameMapper metricNameMapper;
+
+    private volatile Layout layout = new Layout(Collections.emptyMap(), new Family[0]);
 
     public KillBillCollector(final MetricRegistry registry) {
+        this(registry, MetricNameMapper.NONE);
+    }
+
+    public KillBillCollector(final MetricRegistry registry, final MetricNameMapper metricNameMapper) {
         this.registry = registry;
+        this.metricNameMapper = metricNameMapper;
+    }
+
+    /**
+     * Receives families and samples, in exposition order (all samples of a family directly follow the family).
+     */
+    public interface SampleWriter {
+
+        void family(String name, Type type, String help) throws IOException;
+
+        /**
+         * @param labelNames      labels of the metric (must not be modified)
+         * @param labelValues     values of these labels (must not be modified)
+         * @param extraLabelName  additional label for that sample (e.g. quantile), if any
+         * @param extraLabelValue value of that additional label
+         */
+        void sample(String name,
+                    String[] labelNames,
+                    String[] labelValues,
+                    @Nullable String extraLabelName,
+                    @Nullable String extraLabelValue,
+                    double value) throws IOException;
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        final Map<String, MetricFamilySamples> mfSamplesMap = new HashMap<>();
+        final ListSampleWriter sampleWriter = new ListSampleWriter();
+        try {
+            writeTo(sampleWriter, null);
+        } catch (final IOException e) {
+            // Not expected, nothing is written to I/O
+            throw new UncheckedIOException(e);
+        }
+        return sampleWriter.build();
+    }
+
+    public void writeTo(final SampleWriter sampleWriter, @Nullable final Predicate<String> sampleNameFilter) throws IOException {
+        final Map<String, ?> metrics = registry.getMetrics();
 
-        for (final SortedMap.Entry<String, Gauge<?>> entry : registry.getGauges().entrySet()) {
-            addToMap(mfSamplesMap, fromGauge(entry.getKey(), entry.getValue()));
+        Layout currentLayout = layout;
+        Object[] instances = currentLayout.bind(metrics);
+        if (instances == null) {
+            currentLayout = Layout.build(metrics, metricNameMapper);
+            layout = currentLayout;
+            instances = currentLayout.bind(metrics);
+            if (instances == null) {
+                // Concurrent modification of the registry, we'll catch up at the next scrape
+                return;
+            }
         }
-        for (final SortedMap.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
-            addToMap(mfSamplesMap, fromCounter(entry.getKey(), entry.getValue()));
+
+        for (final Family family : currentLayout.families) {
+            final FamilyWriter familyWriter = new FamilyWriter(sampleWriter, sampleNameFilter, family);
+            for (final MetricInfo metricInfo : family.members) {
+                writeMetric(familyWriter, metricInfo, instances[metricInfo.index]);
+            }
         }
-        for (final SortedMap.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
-            addToMap(mfSamplesMap, fromHistogram(entry.getKey(), entry.getValue()));
+    }
+
+    private static void writeMetric(final FamilyWriter familyWriter, final MetricInfo metricInfo, final Object metric) throws IOException {
+        switch (metricInfo.kind) {
+            case GAUGE:
+                final Object obj = ((Gauge<?>) metric).getValue();
+                if (obj instanceof Number) {
+                    familyWriter.sample(metricInfo, metricInfo.sampleName, null, null, ((Number) obj).doubleValue());
+                } else if (obj instanceof Boolean) {
+                    familyWriter.sample(metricInfo, metricInfo.sampleName, null, null, ((Boolean) obj) ? 1 : 0);
+                }
+                break;
+            case COUNTER:
+                familyWriter.sample(metricInfo, metricInfo.sampleName, null, null, ((Counter) metric).getCount());
+                break;
+            case HISTOGRAM:
+                final Histogram histogram = (Histogram) metric;
+                writeSnapshotAndCount(familyWriter, metricInfo, histogram.getSnapshot(), histogram.getCount(), 1.0);
+                break;
+            case TIMER:
+                final Timer timer = (Timer) metric;
+                writeSnapshotAndCount(familyWriter, metricInfo, timer.getSnapshot(), timer.getCount(), NANOS_TO_SECONDS);
+                break;
+            case METER:
+                familyWriter.sample(metricInfo, metricInfo.sampleName, null, null, ((Meter) metric).getCount());
+                break;
+            case BUCKETED:
+                writeBuckets(familyWriter, metricInfo, (BucketedHistogram) metric);
+                break;
+            default:
+                break;
         }
-        for (final SortedMap.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
-            addToMap(mfSamplesMap, fromTimer(entry.getKey(), entry.getValue()));
+    }
+
+    private static void writeSnapshotAndCount(final FamilyWriter familyWriter,
+                                              final MetricInfo metricInfo,
+                                              @Nullable final Snapshot snapshot,
+                                              final long count,
+                                              final double factor) throws IOException {
+        if (snapshot != null) {
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.5", snapshot.getMedian() * factor);
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.75", snapshot.get75thPercentile() * factor);
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.95", snapshot.get95thPercentile() * factor);
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.98", snapshot.get98thPercentile() * factor);
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.99", snapshot.get99thPercentile() * factor);
+            familyWriter.sample(metricInfo, metricInfo.sampleName, QUANTILE_LABEL, "0.999", snapshot.get999thPercentile() * factor);
         }
-        for (final SortedMap.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
-            addToMap(mfSamplesMap, fromMeter(entry.getKey(), entry.getValue()));
+        familyWriter.sample(metricInfo, metricInfo.countSampleName, null, null, count);
+    }
+
+    private static void writeBuckets(final FamilyWriter familyWriter, final MetricInfo metricInfo, final BucketedHistogram histogram) throws IOException {
+        final long[] bucketCounts = histogram.getBucketCounts();
+        final String[] leValues = metricInfo.leValues.length == bucketCounts.length - 1 ? metricInfo.leValues : toLeValues(histogram);
+
+        // Buckets are cumulative in Prometheus
+        long cumulativeCount = 0;
+        for (int i = 0; i < leValues.length; i++) {
+            cumulativeCount += bucketCounts[i];
+            familyWriter.sample(metricInfo, metricInfo.bucketSampleName, LE_LABEL, leValues[i], cumulativeCount);
         }
-        return new ArrayList<>(mfSamplesMap.values());
+        cumulativeCount += bucketCounts[bucketCounts.length - 1];
+        familyWriter.sample(metricInfo, metricInfo.bucketSampleName, LE_LABEL, INF_LE, cumulativeCount);
+        familyWriter.sample(metricInfo, metricInfo.countSampleName, null, null, cumulativeCount);
+        familyWriter.sample(metricInfo, metricInfo.sumSampleName, null, null, histogram.getSum());
     }
 
-    private MetricFamilySamples fromCounter(final String name, final Counter counter) {
-        final MetricFamilySamples.Sample sample = createSample(name, "", new ArrayList<>(), new ArrayList<>(),
-                                                               Long.valueOf(counter.getCount()).doubleValue());
-        return new MetricFamilySamples(sample.name, Type.GAUGE, getHelpMessage(name, counter), List.of(sample));
+    private static String[] toLeValues(final BucketedHistogram histogram) {
+        final double[] upperBounds = histogram.getUpperBounds();
+        final String[] leValues = new String[upperBounds.length];
+        for (int i = 0; i < upperBounds.length; i++) {
+            leValues[i] = Collector.doubleToGoString(upperBounds[i]);
+        }
+        return leValues;
     }
 
-    private String getHelpMessage(final String metricName, final Metric metric) {
+    private static String getHelpMessage(final String metricName, final Object metric) {
         return String.format("Generated from Kill Bill metric import (metric=%s, type=%s)",
                              metricName, metric.getClass().getName());
     }
 
-    private MetricFamilySamples fromGauge(final String name, final Gauge<?> gauge) {
-        final Object obj = gauge.getValue();
-        final double value;
-        if (obj instanceof Number) {
-            value = ((Number) obj).doubleValue();
-        } else if (obj instanceof Boolean) {
-            value = ((Boolean) obj) ? 1 : 0;
-        } else {
-            return null;
-        }
-        final MetricFamilySamples.Sample sample = createSample(name, "",
-                                                               new ArrayList<>(),
-                                                               new ArrayList<>(),
-                                                               value);
-        return new MetricFamilySamples(sample.name, Type.GAUGE, getHelpMessage(name, gauge), List.of(sample));
-    }
-
-    private MetricFamilySamples fromSnapshotAndCount(final String name,
-                                                     final Snapshot snapshot,
-                                                     final long count,
-                                                     final double factor,
-                                                     final String helpMessage) {
-        final List<MetricFamilySamples.Sample> samples = Arrays.asList(
-                createSample(name, "", List.of("quantile"), List.of("0.5"), snapshot.getMedian() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.75"), snapshot.get75thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.95"), snapshot.get95thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.98"), snapshot.get98thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.99"), snapshot.get99thPercentile() * factor),
-                createSample(name, "", List.of("quantile"), List.of("0.999"), snapshot.get999thPercentile() * factor),
-                createSample(name, "_count", new ArrayList<>(), new ArrayList<>(), count)
-                                                                      );
-        return new MetricFamilySamples(samples.get(0).name, Type.SUMMARY, helpMessage, samples);
-    }
-
-    private MetricFamilySamples fromHistogram(final String name, final Histogram histogram) {
-        return fromSnapshotAndCount(name, histogram.getSnapshot(), histogram.getCount(), 1.0,
-                                    getHelpMessage(name, histogram));
-    }
-
-    private MetricFamilySamples fromTimer(final String name, final Timer timer) {
-        return fromSnapshotAndCount(name, timer.getSnapshot(), timer.getCount(),
-                                    1.0D / TimeUnit.SECONDS.toNanos(1L), getHelpMessage(name, timer));
-    }
-
-    private MetricFamilySamples fromMeter(final String name, final Meter meter) {
-        final MetricFamilySamples.Sample sample = createSample(name, "_total",
-                                                               new ArrayList<>(),
-                                                               new ArrayList<>(),
-                                                               meter.getCount());
-        return new MetricFamilySamples(sample.name, Type.COUNTER, getHelpMessage(name, meter),
-                                       List.of(sample));
-    }
-
-    private void addToMap(final Map<String, MetricFamilySamples> mfSamplesMap, final MetricFamilySamples newMfSamples) {
-        if (newMfSamples != null) {
-            final MetricFamilySamples currentMfSamples = mfSamplesMap.get(newMfSamples.name);
-            if (currentMfSamples == null) {
-                mfSamplesMap.put(newMfSamples.name, newMfSamples);
+    private static String getHelpMessage(final MetricNameMapper.MappedName mappedName, final Object metric) {
+        return String.format("Generated from Kill Bill metric import (pattern=%s, type=%s)",
+                             mappedName.getPattern(), metric.getClass().getName());
+    }
+
+    private enum Kind {
+        GAUGE(Type.GAUGE),
+        // Kill Bill counters can be decremented
+        COUNTER(Type.GAUGE),
+        HISTOGRAM(Type.SUMMARY),
+        TIMER(Type.SUMMARY),
+        METER(Type.COUNTER),
+        // Timers backed by fixed buckets (see KillbillPluginsMetricRegistry)
+        BUCKETED(Type.HISTOGRAM);
+
+        private final Type type;
+
+        Kind(final Type type) {
+            this.type = type;
+        }
+
+        @Nullable
+        private static Kind of(final Object metric) {
+            if (metric instanceof BucketedHistogram) {
+                return BUCKETED;
+            } else if (metric instanceof Gauge) {
+                return GAUGE;
+            } else if (metric instanceof Counter) {
+                return COUNTER;
+            } else if (metric instanceof Histogram) {
+                return HISTOGRAM;
+            } else if (metric instanceof Timer) {
+                return TIMER;
+            } else if (metric instanceof Meter) {
+                return METER;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private static final class MetricInfo {
+
+        // Position of the metric instance, see Layout#bind
+        private final int index;
+        private final Class<?> metricClass;
+        private final Kind kind;
+        private final String familyName;
+        private final String sampleName;
+        private final String countSampleName;
+        private final String bucketSampleName;
+        private final String sumSampleName;
+        private final String[] leValues;
+        private final String[] labelNames;
+        private final String[] labelValues;
+        private final String help;
+
+        private MetricInfo(final int index,
+                           final String name,
+                           final Object metric,
+                           @Nullable final Kind kind,
+                           @Nullable final MetricNameMapper.MappedName mappedName) {
+            this.index = index;
+            this.metricClass = metric.getClass();
+            this.kind = kind;
+            if (mappedName != null) {
+                this.familyName = mappedName.getFamilyName();
+                this.labelNames = mappedName.getLabelNames();
+                this.labelValues = mappedName.getLabelValues();
+                this.help = getHelpMessage(mappedName, metric);
             } else {
-                final List<MetricFamilySamples.Sample> samples = new ArrayList<>(currentMfSamples.samples);
-                samples.addAll(newMfSamples.samples);
-                mfSamplesMap.put(newMfSamples.name, new MetricFamilySamples(newMfSamples.name, currentMfSamples.type, currentMfSamples.help, samples));
+                this.familyName = Collector.sanitizeMetricName(name);
+                this.labelNames = NO_LABELS;
+                this.labelValues = NO_LABELS;
+                this.help = getHelpMessage(name, metric);
             }
+            this.sampleName = kind == Kind.METER ? familyName + "_total" : familyName;
+            this.countSampleName = familyName + "_count";
+            this.bucketSampleName = familyName + "_bucket";
+            this.sumSampleName = familyName + "_sum";
+            this.leValues = kind == Kind.BUCKETED ? toLeValues((BucketedHistogram) metric) : NO_LABELS;
         }
     }
 
-    public Collector.MetricFamilySamples.Sample createSample(final String name,
-                                                             final String nameSuffix,
-                                                             final List<String> additionalLabelNames,
-                                                             final List<String> additionalLabelValues,
-                                                             final double value) {
-        final String suffix = nameSuffix == null ? "" : nameSuffix;
-        final List<String> labelNames = additionalLabelNames == null ? Collections.<String>emptyList() : additionalLabelNames;
-        final List<String> labelValues = additionalLabelValues == null ? Collections.<String>emptyList() : additionalLabelValues;
-        return new Collector.MetricFamilySamples.Sample(
-                Collector.sanitizeMetricName(name + suffix),
-                new ArrayList<>(labelNames),
-                new ArrayList<>(labelValues),
-                value
-        );
+    private static final class Family {
+
+        private final String name;
+        private final Type type;
+        private final String help;
+        private final MetricInfo[] members;
+
+        private Family(final String name, final Type type, final String help, final MetricInfo[] members) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.members = members;
+        }
+    }
+
+    private static final class Layout {
+
+        private final Map<String, MetricInfo> metricInfos;
+        private final Family[] families;
+
+        private Layout(final Map<String, MetricInfo> metricInfos, final Family[] families) {
+            this.metricInfos = metricInfos;
+            this.families = families;
+        }
+
+        private static Layout build(final Map<String, ?> metrics, final MetricNameMapper metricNameMapper) {
+            final Map<String, MetricInfo> metricInfos = new HashMap<>(metrics.size() * 2);
+            // Metrics whose sanitized names collide are exported in the same family (the first one defines the type and help),
+            // as long as they are of the same kind and have the same labels
+            final Map<String, List<MetricInfo>> membersByFamily = new TreeMap<>();
+            int index = 0;
+            for (final Map.Entry<String, ?> entry : metrics.entrySet()) {
+                final Kind kind = Kind.of(entry.getValue());
+                final MetricNameMapper.MappedName mappedName = kind == null ? null : metricNameMapper.map(entry.getKey());
+                MetricInfo metricInfo = new MetricInfo(index, entry.getKey(), entry.getValue(), kind, mappedName);
+                if (kind != null && !fitsFamily(metricInfo, membersByFamily)) {
+                    final MetricInfo first = membersByFamily.get(metricInfo.familyName).get(0);
+                    // Fall back to the unmapped name (e.g. a timer and a bucketed timer mapped to the same family)
+                    final MetricInfo flattened = mappedName == null ? null : new MetricInfo(index, entry.getKey(), entry.getValue(), kind, null);
+                    if (flattened != null && fitsFamily(flattened, membersByFamily)) {
+                        logger.warn("Exporting metric {} as {}: family {} already has a {} with labels {}",
+                                    entry.getKey(), flattened.familyName, metricInfo.familyName, first.kind, Arrays.toString(first.labelNames));
+                        metricInfo = flattened;
+                    } else {
+                        logger.warn("Not exporting metric {}: family {} already has a {} with labels {}",
+                                    entry.getKey(), metricInfo.familyName, first.kind, Arrays.toString(first.labelNames));
+                        // Still bound (see Layout#bind), but never written
+                        metricInfo = new MetricInfo(index, entry.getKey(), entry.getValue(), null, null);
+                    }
+                }
+                index++;
+                metricInfos.put(entry.getKey(), metricInfo);
+                if (metricInfo.kind != null) {
+                    membersByFamily.computeIfAbsent(metricInfo.familyName, k -> new ArrayList<>()).add(metricInfo);
+                }
+            }
+
+            final Family[] families = new Family[membersByFamily.size()];
+            int i = 0;
+            for (final Map.Entry<String, List<MetricInfo>> entry : membersByFamily.entrySet()) {
+                final MetricInfo first = entry.getValue().get(0);
+                families[i++] = new Family(entry.getKey(), first.kind.type, first.help, entry.getValue().toArray(new MetricInfo[0]));
+            }
+            return new Layout(metricInfos, families);
+        }
+
+        private static boolean fitsFamily(final MetricInfo metricInfo, final Map<String, List<MetricInfo>> membersByFamily) {
+            final List<MetricInfo> members = membersByFamily.get(metricInfo.familyName);
+            if (members == null) {
+                return true;
+            }
+            final MetricInfo first = members.get(0);
+            return first.kind == metricInfo.kind && Arrays.equals(first.labelNames, metricInfo.labelNames);
+        }
+
+        /**
+         * @return the metric instances, indexed by MetricInfo#index, or null if this layout doesn't match these metrics anymore
+         */
+        @Nullable
+        private Object[] bind(final Map<String, ?> metrics) {
+            if (metrics.size() != metricInfos.size()) {
+                return null;
+            }
+            final Object[] instances = new Object[metricInfos.size()];
+            for (final Map.Entry<String, ?> entry : metrics.entrySet()) {
+                final MetricInfo metricInfo = metricInfos.get(entry.getKey());
+                if (metricInfo == null || entry.getValue() == null || metricInfo.metricClass != entry.getValue().getClass()) {
+                    return null;
+                }
+                instances[metricInfo.index] = entry.getValue();
+            }
+            return instances;
+        }
+    }
+
+    // Writes the family header lazily, so that families without any (matching) sample are omitted
+    private static final class FamilyWriter {
+
+        private final SampleWriter sampleWriter;
+        private final Predicate<String> sampleNameFilter;
+        private final Family family;
+        private boolean headerWritten;
+
+        private FamilyWriter(final SampleWriter sampleWriter, @Nullable final Predicate<String> sampleNameFilter, final Family family) {
+            this.sampleWriter = sampleWriter;
+            this.sampleNameFilter = sampleNameFilter;
+            this.family = family;
+        }
+
+        private void sample(final MetricInfo metricInfo,
+                            final String name,
+                            @Nullable final String extraLabelName,
+                            @Nullable final String extraLabelValue,
+                            final double value) throws IOException {
+            if (sampleNameFilter != null && !sampleNameFilter.test(name)) {
+                return;
+            }
+            if (!headerWritten) {
+                sampleWriter.family(family.name, family.type, family.help);
+                headerWritten = true;
+            }
+            sampleWriter.sample(name, metricInfo.labelNames, metricInfo.labelValues, extraLabelName, extraLabelValue, value);
+        }
+    }
+
+    private static final class ListSampleWriter implements SampleWriter {
+
+        private final Map<String, MetricFamilySamples> familySamples = new LinkedHashMap<>();
+
+        private String currentName;
+        private Type currentType;
+        private String currentHelp;
+        private List<MetricFamilySamples.Sample> currentSamples;
+
+        @Override
+        public void family(final String name, final Type type, final String help) {
+            flush();
+            currentName = name;
+            currentType = type;
+            currentHelp = help;
+            currentSamples = new ArrayList<>();
+        }
+
+        @Override
+        public void sample(final String name,
+                           final String[] labelNames,
+                           final String[] labelValues,
+                           @Nullable final String extraLabelName,
+                           @Nullable final String extraLabelValue,
+                           final double value) {
+            final List<String> allLabelNames = new ArrayList<>(labelNames.length + 1);
+            final List<String> allLabelValues = new ArrayList<>(labelValues.length + 1);
+            Collections.addAll(allLabelNames, labelNames);
+            Collections.addAll(allLabelValues, labelValues);
+            if (extraLabelName != null) {
+                allLabelNames.add(extraLabelName);
+                allLabelValues.add(extraLabelValue);
+            }
+            currentSamples.add(new MetricFamilySamples.Sample(name, allLabelNames, allLabelValues, value));
+        }
+
+        private List<MetricFamilySamples> build() {
+            flush();
+            return new ArrayList<>(familySamples.values());
+        }
+
+        private void flush() {
+            if (currentName != null) {
+                familySamples.put(currentName, new MetricFamilySamples(currentName, currentType, currentHelp, currentSamples));
+                currentName = null;
+            }
+        }
     }
 }
@@ -19,6 +19,7 @@ package org.killbill.billing.osgi.bundles.prometheus;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
@@ -26,7 +27,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -38,12 +41,15 @@ import io.prometheus.client.exporter.common.TextFormat;
 
 // We cannot use io.prometheus.client.servlet.common.exporter.Exporter as it puts the Response in Writer mode
 // while Kill Bill expects it to be in Streaming mode
+// Kill Bill metrics are streamed by KillBillCollector, other collectors (if any) are read from the CollectorRegistry
 public class KillBillExporter {
 
+    private final KillBillCollector killBillCollector;
     private final CollectorRegistry registry;
     private final Predicate<String> sampleNameFilter;
 
-    public KillBillExporter(final CollectorRegistry registry, final Predicate<String> sampleNameFilter) {
+    public KillBillExporter(final KillBillCollector killBillCollector, final CollectorRegistry registry, final Predicate<String> sampleNameFilter) {
+        this.killBillCollector = killBillCollector;
         this.registry = registry;
         this.sampleNameFilter = sampleNameFilter;
     }
@@ -53,8 +59,21 @@ public class KillBillExporter {
         final String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
         resp.setContentType(contentType);
 
-        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8))) {
+        // The body depends on Accept-Encoding, caches must not serve a gzipped scrape to a client which didn't ask for it
+        resp.setHeader("Vary", "Accept-Encoding");
+        final OutputStream outputStream;
+        if (acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            resp.setHeader("Content-Encoding", "gzip");
+            outputStream = new GZIPOutputStream(resp.getOutputStream(), 8192);
+        } else {
+            outputStream = resp.getOutputStream();
+        }
+
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
             final Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(this.sampleNameFilter, parse(req));
+            killBillCollector.writeTo(KillBillTextFormat.forContentType(contentType, writer), filter);
+
+            // Also writes the OpenMetrics # EOF marker
             if (filter == null) {
                 TextFormat.writeFormat(contentType, writer, this.registry.metricFamilySamples());
             } else {
@@ -65,6 +84,40 @@ public class KillBillExporter {
         }
     }
 
+    // E.g. "gzip, deflate" or "deflate, gzip;q=0.5", but not "gzip;q=0" (explicitly not acceptable) nor "x-gzipped"
+    static boolean acceptsGzip(@Nullable final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double wildcardQValue = 0;
+        for (final String element : acceptEncoding.split(",")) {
+            final String[] parts = element.split(";");
+            final String coding = parts[0].trim();
+            if ("gzip".equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+                return qValue(parts) > 0;
+            } else if ("*".equals(coding)) {
+                wildcardQValue = qValue(parts);
+            }
+        }
+        // Only used if gzip isn't listed
+        return wildcardQValue > 0;
+    }
+
+    private static double qValue(final String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            final String parameter = parts[i].trim();
+            if (parameter.length() > 2 && parameter.regionMatches(true, 0, "q=", 0, 2)) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (final NumberFormatException e) {
+                    // Invalid weight, don't risk sending gzip
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
     private Set<String> parse(final ServletRequest req) {
         final String[] includedParam = req.getParameterValues("name[]");
         return includedParam == null ? Collections.emptySet() : new HashSet(Arrays.asList(includedParam));
@@ -32,8 +32,8 @@ public class KillBillMetricsServlet extends HttpServlet {
 
     private final transient KillBillExporter exporter;
 
-    public KillBillMetricsServlet() {
-        exporter = new KillBillExporter(CollectorRegistry.defaultRegistry, null);
+    public KillBillMetricsServlet(final KillBillCollector killBillCollector) {
+        exporter = new KillBillExporter(killBillCollector, CollectorRegistry.defaultRegistry, null);
     }
 
     @Override
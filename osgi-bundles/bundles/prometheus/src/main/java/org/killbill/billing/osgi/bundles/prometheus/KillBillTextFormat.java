@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.Nullable;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Streaming equivalent of io.prometheus.client.exporter.common.TextFormat, for KillBillCollector.
+ * <p>
+ * Unlike TextFormat, the OpenMetrics writer doesn't write the final # EOF marker: the caller does (see KillBillExporter).
+ */
+public abstract class KillBillTextFormat implements KillBillCollector.SampleWriter {
+
+    protected final Writer writer;
+
+    protected KillBillTextFormat(final Writer writer) {
+        this.writer = writer;
+    }
+
+    public static KillBillTextFormat forContentType(final String contentType, final Writer writer) {
+        if (TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType)) {
+            return new OpenMetrics100(writer);
+        } else {
+            return new Text004(writer);
+        }
+    }
+
+    @Override
+    public void sample(final String name,
+                       final String[] labelNames,
+                       final String[] labelValues,
+                       @Nullable final String extraLabelName,
+                       @Nullable final String extraLabelValue,
+                       final double value) throws IOException {
+        writer.write(name);
+        if (labelNames.length > 0 || extraLabelName != null) {
+            writer.write('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeLabel(labelNames[i], labelValues[i]);
+            }
+            if (extraLabelName != null) {
+                if (labelNames.length > 0) {
+                    writer.write(',');
+                }
+                writeLabel(extraLabelName, extraLabelValue);
+            }
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(Collector.doubleToGoString(value));
+        writer.write('\n');
+    }
+
+    private void writeLabel(final String labelName, @Nullable final String labelValue) throws IOException {
+        writer.write(labelName);
+        writer.write("=\"");
+        writeEscapedLabelValue(labelValue);
+        writer.write('"');
+    }
+
+    protected void writeEscapedHelp(final String help, final boolean escapeQuotes) throws IOException {
+        for (int i = 0; i < help.length(); i++) {
+            final char c = help.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '"':
+                    writer.write(escapeQuotes ? "\\\"" : "\"");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private void writeEscapedLabelValue(@Nullable final String labelValue) throws IOException {
+        if (labelValue == null) {
+            return;
+        }
+        for (int i = 0; i < labelValue.length(); i++) {
+            final char c = labelValue.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    // Prometheus text format, version 0.0.4
+    private static final class Text004 extends KillBillTextFormat {
+
+        private Text004(final Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        public void family(final String name, final Type type, final String help) throws IOException {
+            // Counters are declared with their sample name in this format
+            final String suffix = type == Type.COUNTER ? "_total" : "";
+            writer.write("# HELP ");
+            writer.write(name);
+            writer.write(suffix);
+            writer.write(' ');
+            writeEscapedHelp(help, false);
+            writer.write('\n');
+
+            writer.write("# TYPE ");
+            writer.write(name);
+            writer.write(suffix);
+            writer.write(' ');
+            writer.write(typeString(type));
+            writer.write('\n');
+        }
+
+        private static String typeString(final Type type) {
+            switch (type) {
+                case GAUGE:
+                    return "gauge";
+                case COUNTER:
+                    return "counter";
+                case SUMMARY:
+                    return "summary";
+                case HISTOGRAM:
+                    return "histogram";
+                default:
+                    return "untyped";
+            }
+        }
+    }
+
+    // OpenMetrics, version 1.0.0
+    private static final class OpenMetrics100 extends KillBillTextFormat {
+
+        private OpenMetrics100(final Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        public void family(final String name, final Type type, final String help) throws IOException {
+            writer.write("# TYPE ");
+            writer.write(name);
+            writer.write(' ');
+            writer.write(typeString(type));
+            writer.write('\n');
+
+            writer.write("# HELP ");
+            writer.write(name);
+            writer.write(' ');
+            writeEscapedHelp(help, true);
+            writer.write('\n');
+        }
+
+        private static String typeString(final Type type) {
+            switch (type) {
+                case GAUGE:
+                    return "gauge";
+                case COUNTER:
+                    return "counter";
+                case SUMMARY:
+                    return "summary";
+                case HISTOGRAM:
+                    return "histogram";
+                default:
+                    return "unknown";
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Collector;
+
+/**
+ * Maps dotted Kill Bill metric names to a Prometheus family name and labels.
+ * <p>
+ * A rule is written {@code <pattern>=<family>}. The pattern is a list of dot-separated segments, each one being either
+ * a literal, a single segment capture {@code {name}} or (at most once per pattern) a capture of one or more segments
+ * {@code {name:**}}. The family can reference captures (e.g. {@code kb_queue_{metric}}), the other captures become labels.
+ * For instance, {@code killbill-service.kb_plugin_latency.{plugin}.{interface:**}.{method}=kb_plugin_latency} maps
+ * {@code killbill-service.kb_plugin_latency.killbill-stripe.org.killbill.billing.payment.plugin.api.PaymentPluginApi.purchasePayment}
+ * to {@code kb_plugin_latency{plugin="killbill-stripe",interface="org.killbill...PaymentPluginApi",method="purchasePayment"}}.
+ * <p>
+ * Rules are compiled into a trie of segments: mapping a name walks it once (literal segments are preferred over
+ * captures when several rules match). Captures can't be named {@code le} or {@code quantile}, as these labels are
+ * added by the exporter to histograms and summaries.
+ */
+public class MetricNameMapper {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricNameMapper.class);
+
+    public static final String RULES_PROPERTY = "org.killbill.prometheus.mapping.rules";
+    public static final String BUILT_IN_RULES_PROPERTY = "org.killbill.prometheus.mapping.builtIn";
+
+    public static final List<String> BUILT_IN_RULES = List.of(
+            // Plugin calls (see ContextClassLoaderHelper)
+            "killbill-service.kb_plugin_latency.{plugin}.{interface:**}.{method}=kb_plugin_latency",
+            "killbill-service.kb_plugin_errors.{plugin}.{interface:**}.{method}=kb_plugin_errors",
+            // Dispatch of bus events to plugins (see KillbillEventObservable and EventDeliveryLane)
+            "killbill-service.kb_event_dispatch_delivered.{event_type}=kb_event_dispatch_delivered",
+            "killbill-service.kb_event_dispatch_skipped.{event_type}=kb_event_dispatch_skipped",
+            "killbill-service.kb_event_dispatch_retry_excluded.{event_type}=kb_event_dispatch_retry_excluded",
+            "killbill-service.kb_event_dispatch_latency.{lane:**}=kb_event_dispatch_latency",
+            "killbill-service.kb_event_dispatch_queue_depth.{lane:**}=kb_event_dispatch_queue_depth",
+            "killbill-service.kb_event_dispatch_dropped.{lane:**}=kb_event_dispatch_dropped",
+            "killbill-service.kb_event_dispatch_errors.{lane:**}=kb_event_dispatch_errors",
+            "killbill-service.kb_event_observer_latency.{observer:**}=kb_event_observer_latency",
+            // Log forwarding (see OSGIAppender)
+            "killbill-service.kb_log_forwarding_dropped.{level}=kb_log_forwarding_dropped",
+            // Bus and notification queues (killbill-commons)
+            "org.killbill.queue.DBBackedQueue.{queue}.{metric}=kb_queue_{metric}",
+            "org.killbill.bus.DefaultPersistentBus.{metric}=kb_bus_{metric}",
+            "org.killbill.notificationq.NotificationQueueDispatcher.{queue:**}.{metric}=kb_notificationq_{metric}",
+            // HTTP requests (see InstrumentedFilter)
+            "org.killbill.commons.metrics.servlets.InstrumentedFilter.responseCodes.{code}=kb_http_responses",
+            "org.killbill.commons.metrics.servlets.InstrumentedFilter.{metric}=kb_http_{metric}");
+
+    // Labels added to the samples of histograms and summaries
+    private static final Set<String> RESERVED_LABEL_NAMES = Set.of("le", "quantile");
+
+    public static final MetricNameMapper NONE = new MetricNameMapper(Collections.emptyList());
+
+    private final Node root = new Node();
+
+    /**
+     * @param rules rules, a later rule with the same pattern replaces an earlier one
+     */
+    public MetricNameMapper(final Iterable<String> rules) {
+        for (final String rule : rules) {
+            final Rule compiled = Rule.parse(rule);
+            root.insert(compiled, 0);
+        }
+    }
+
+    /**
+     * @param rules           comma-separated user rules, which take precedence over the built-in ones
+     * @param includeBuiltIns whether to include the built-in rules
+     */
+    public static MetricNameMapper create(@Nullable final String rules, final boolean includeBuiltIns) {
+        final List<String> allRules = new ArrayList<>();
+        if (includeBuiltIns) {
+            allRules.addAll(BUILT_IN_RULES);
+        }
+        if (rules != null) {
+            for (final String rule : rules.split(",")) {
+                final String trimmed = rule.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Rule.parse(trimmed);
+                    allRules.add(trimmed);
+                } catch (final IllegalArgumentException e) {
+                    logger.warn("Ignoring invalid Prometheus mapping rule '{}': {}", trimmed, e.getMessage());
+                }
+            }
+        }
+        return new MetricNameMapper(allRules);
+    }
+
+    /**
+     * @return the mapped name, or null if no rule matches
+     */
+    @Nullable
+    public MappedName map(final String metricName) {
+        final String[] segments = metricName.split("\\.", -1);
+        final List<String> captures = new ArrayList<>(4);
+        final Rule rule = root.match(segments, 0, captures);
+        return rule == null ? null : rule.apply(captures);
+    }
+
+    public static final class MappedName {
+
+        private final String familyName;
+        private final String[] labelNames;
+        private final String[] labelValues;
+        private final String pattern;
+
+        private MappedName(final String familyName, final String[] labelNames, final String[] labelValues, final String pattern) {
+            this.familyName = familyName;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.pattern = pattern;
+        }
+
+        public String getFamilyName() {
+            return familyName;
+        }
+
+        public String[] getLabelNames() {
+            return labelNames.clone();
+        }
+
+        public String[] getLabelValues() {
+            return labelValues.clone();
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> literals = new HashMap<>();
+        private Node single;
+        // Multi-segment captures, by number of segments left in the pattern after the capture
+        private final Map<Integer, Node> multi = new TreeMap<>();
+        private Rule rule;
+
+        private void insert(final Rule rule, final int position) {
+            if (position == rule.segments.length) {
+                this.rule = rule;
+                return;
+            }
+            final Segment segment = rule.segments[position];
+            final Node child;
+            if (segment.literal != null) {
+                child = literals.computeIfAbsent(segment.literal, k -> new Node());
+            } else if (segment.multi) {
+                child = multi.computeIfAbsent(rule.segments.length - position - 1, k -> new Node());
+            } else {
+                if (single == null) {
+                    single = new Node();
+                }
+                child = single;
+            }
+            child.insert(rule, position + 1);
+        }
+
+        @Nullable
+        private Rule match(final String[] segments, final int position, final List<String> captures) {
+            if (position == segments.length) {
+                return rule;
+            }
+
+            final Node literal = literals.get(segments[position]);
+            if (literal != null) {
+                final Rule matched = literal.match(segments, position + 1, captures);
+                if (matched != null) {
+                    return matched;
+                }
+            }
+
+            if (single != null) {
+                captures.add(segments[position]);
+                final Rule matched = single.match(segments, position + 1, captures);
+                if (matched != null) {
+                    return matched;
+                }
+                captures.remove(captures.size() - 1);
+            }
+
+            for (final Map.Entry<Integer, Node> entry : multi.entrySet()) {
+                final int end = segments.length - entry.getKey();
+                if (end <= position) {
+                    continue;
+                }
+                captures.add(String.join(".", Arrays.asList(segments).subList(position, end)));
+                final Rule matched = entry.getValue().match(segments, end, captures);
+                if (matched != null) {
+                    return matched;
+                }
+                captures.remove(captures.size() - 1);
+            }
+
+            return null;
+        }
+    }
+
+    private static final class Segment {
+
+        // Null for captures
+        private final String literal;
+        private final String captureName;
+        private final boolean multi;
+
+        private Segment(@Nullable final String literal, @Nullable final String captureName, final boolean multi) {
+            this.literal = literal;
+            this.captureName = captureName;
+            this.multi = multi;
+        }
+    }
+
+    private static final class Rule {
+
+        private final String pattern;
+        private final Segment[] segments;
+        // Names of the captures, in order
+        private final String[] captureNames;
+        private final String familyTemplate;
+        // Whether each capture is referenced in the family template (otherwise, it's a label)
+        private final boolean[] inFamily;
+        private final String[] labelNames;
+
+        private Rule(final String pattern, final Segment[] segments, final String[] captureNames, final String familyTemplate) {
+            this.pattern = pattern;
+            this.segments = segments;
+            this.captureNames = captureNames;
+            this.familyTemplate = familyTemplate;
+            this.inFamily = new boolean[captureNames.length];
+            final List<String> labels = new ArrayList<>();
+            for (int i = 0; i < captureNames.length; i++) {
+                inFamily[i] = familyTemplate.contains("{" + captureNames[i] + "}");
+                if (!inFamily[i]) {
+                    final String labelName = sanitizeLabelName(captureNames[i]);
+                    if (RESERVED_LABEL_NAMES.contains(labelName)) {
+                        throw new IllegalArgumentException("label " + labelName + " is reserved");
+                    }
+                    labels.add(labelName);
+                }
+            }
+            this.labelNames = labels.toArray(new String[0]);
+        }
+
+        private static Rule parse(final String rule) {
+            final int separatorIdx = rule.lastIndexOf('=');
+            if (separatorIdx <= 0 || separatorIdx == rule.length() - 1) {
+                throw new IllegalArgumentException("expected <pattern>=<family>");
+            }
+            final String pattern = rule.substring(0, separatorIdx).trim();
+            final String familyTemplate = rule.substring(separatorIdx + 1).trim();
+
+            final String[] rawSegments = pattern.split("\\.", -1);
+            final Segment[] segments = new Segment[rawSegments.length];
+            final List<String> captureNames = new ArrayList<>();
+            boolean hasMulti = false;
+            for (int i = 0; i < rawSegments.length; i++) {
+                final String rawSegment = rawSegments[i];
+                if (rawSegment.isEmpty()) {
+                    throw new IllegalArgumentException("empty segment");
+                }
+                if (rawSegment.startsWith("{") && rawSegment.endsWith("}")) {
+                    final String capture = rawSegment.substring(1, rawSegment.length() - 1);
+                    final boolean multi = capture.endsWith(":**");
+                    final String captureName = multi ? capture.substring(0, capture.length() - 3) : capture;
+                    if (captureName.isEmpty()) {
+                        throw new IllegalArgumentException("unnamed capture");
+                    }
+                    if (multi) {
+                        if (hasMulti) {
+                            throw new IllegalArgumentException("only one multi-segment capture is supported");
+                        }
+                        hasMulti = true;
+                    }
+                    segments[i] = new Segment(null, captureName, multi);
+                    captureNames.add(captureName);
+                } else {
+                    segments[i] = new Segment(rawSegment, null, false);
+                }
+            }
+            return new Rule(pattern, segments, captureNames.toArray(new String[0]), familyTemplate);
+        }
+
+        private MappedName apply(final List<String> captures) {
+            String familyName = familyTemplate;
+            final String[] labelValues = new String[labelNames.length];
+            int labelIdx = 0;
+            for (int i = 0; i < captureNames.length; i++) {
+                if (inFamily[i]) {
+                    familyName = familyName.replace("{" + captureNames[i] + "}", captures.get(i));
+                } else {
+                    labelValues[labelIdx++] = captures.get(i);
+                }
+            }
+            return new MappedName(Collector.sanitizeMetricName(familyName), labelNames, labelValues, pattern);
+        }
+
+        private static String sanitizeLabelName(final String name) {
+            final StringBuilder sb = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (i > 0 && c >= '0' && c <= '9');
+                sb.append(valid ? c : '_');
+            }
+            return sb.toString();
+        }
+    }
+}
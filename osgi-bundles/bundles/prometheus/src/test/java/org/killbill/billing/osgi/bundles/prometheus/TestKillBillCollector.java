@@ -0,0 +1,171 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.killbill.billing.osgi.api.BucketedHistogram;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.killbill.commons.metrics.api.Timer;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+public class TestKillBillCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestKillBillCollector.class);
+
+    private static final int NB_TIMERS = 100;
+    private static final double[] UPPER_BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    @Test(groups = "fast")
+    public void testHistogramExport() throws IOException {
+        final String histograms = scrape(false);
+        Assert.assertEquals(histograms.split("# TYPE kb_plugin_latency histogram", -1).length, 2);
+        Assert.assertTrue(histograms.contains("kb_plugin_latency_bucket{plugin=\"plugin-0\",interface=\"org.killbill.billing.payment.plugin.api.PaymentPluginApi\",method=\"purchasePayment\",le=\"0.005\"} 1.0\n"));
+        Assert.assertTrue(histograms.contains("kb_plugin_latency_bucket{plugin=\"plugin-0\",interface=\"org.killbill.billing.payment.plugin.api.PaymentPluginApi\",method=\"purchasePayment\",le=\"+Inf\"} 12.0\n"));
+        Assert.assertTrue(histograms.contains("kb_plugin_latency_count{plugin=\"plugin-0\",interface=\"org.killbill.billing.payment.plugin.api.PaymentPluginApi\",method=\"purchasePayment\"} 12.0\n"));
+        Assert.assertTrue(histograms.contains("kb_plugin_latency_sum{plugin=\"plugin-0\",interface=\"org.killbill.billing.payment.plugin.api.PaymentPluginApi\",method=\"purchasePayment\"} 1.5\n"));
+
+        final String summaries = scrape(true);
+        Assert.assertEquals(summaries.split("# TYPE kb_plugin_latency summary", -1).length, 2);
+
+        // Histograms are larger (one line per bucket vs. one per quantile) but, unlike quantiles, can be aggregated across nodes
+        logger.info("Scrape size for {} timers: {} bytes as summaries, {} bytes as histograms ({} buckets)",
+                    NB_TIMERS, summaries.length(), histograms.length(), UPPER_BOUNDS.length + 1);
+    }
+
+    @Test(groups = "fast")
+    public void testRegistryChanges() throws IOException {
+        final Map<String, Object> metrics = new TreeMap<>();
+        metrics.put("org.killbill.a", createCounter(1));
+        final MetricRegistry registry = Mockito.mock(MetricRegistry.class);
+        Mockito.doReturn(metrics).when(registry).getMetrics();
+        final KillBillCollector collector = new KillBillCollector(registry);
+        Assert.assertTrue(scrape(collector).contains("org_killbill_a 1.0\n"));
+
+        // Added metric
+        metrics.put("org.killbill.b", createCounter(2));
+        String scrape = scrape(collector);
+        Assert.assertTrue(scrape.contains("org_killbill_a 1.0\n"));
+        Assert.assertTrue(scrape.contains("org_killbill_b 2.0\n"));
+
+        // Removed metric
+        metrics.remove("org.killbill.a");
+        scrape = scrape(collector);
+        Assert.assertFalse(scrape.contains("org_killbill_a"));
+        Assert.assertTrue(scrape.contains("org_killbill_b 2.0\n"));
+
+        // Re-created metric, of the same kind
+        metrics.put("org.killbill.b", createCounter(3));
+        Assert.assertTrue(scrape(collector).contains("org_killbill_b 3.0\n"));
+
+        // Re-created metric, of another kind
+        metrics.put("org.killbill.b", createMeter(4));
+        scrape = scrape(collector);
+        Assert.assertTrue(scrape.contains("# TYPE org_killbill_b_total counter\n"));
+        Assert.assertTrue(scrape.contains("org_killbill_b_total 4.0\n"));
+        Assert.assertFalse(scrape.contains("org_killbill_b 3.0\n"));
+    }
+
+    @Test(groups = "fast")
+    public void testFamilyCollisions() throws IOException {
+        final Map<String, Object> metrics = new TreeMap<>();
+        // Same family, different kinds
+        metrics.put("killbill-service.kb_plugin_latency.plugin-1.org.killbill.Api.call", createTimer());
+        metrics.put("killbill-service.kb_plugin_latency.plugin-2.org.killbill.Api.call", createBucketedTimer());
+        // Same family, different labels
+        metrics.put("a.x", createCounter(1));
+        metrics.put("b.y.z", createCounter(2));
+        // Same sanitized name, different kinds
+        metrics.put("c.d", createCounter(3));
+        metrics.put("c_d", createMeter(4));
+        final MetricRegistry registry = Mockito.mock(MetricRegistry.class);
+        Mockito.doReturn(metrics).when(registry).getMetrics();
+        final MetricNameMapper mapper = MetricNameMapper.create("a.{x}=ab, b.{y}.{z}=ab", true);
+
+        final String scrape = scrape(new KillBillCollector(registry, mapper));
+        Assert.assertTrue(scrape.contains("# TYPE kb_plugin_latency summary\n"));
+        Assert.assertTrue(scrape.contains("kb_plugin_latency_count{plugin=\"plugin-1\",interface=\"org.killbill.Api\",method=\"call\"} 0.0\n"));
+        Assert.assertFalse(scrape.contains("plugin=\"plugin-2\""));
+        // Exported with its flattened name instead
+        Assert.assertTrue(scrape.contains("# TYPE killbill_service_kb_plugin_latency_plugin_2_org_killbill_Api_call histogram\n"));
+        Assert.assertTrue(scrape.contains("killbill_service_kb_plugin_latency_plugin_2_org_killbill_Api_call_bucket{le=\"+Inf\"} 12.0\n"));
+
+        Assert.assertTrue(scrape.contains("ab{x=\"x\"} 1.0\n"));
+        Assert.assertTrue(scrape.contains("b_y_z 2.0\n"));
+
+        // No fallback for unmapped metrics
+        Assert.assertTrue(scrape.contains("c_d 3.0\n"));
+        Assert.assertFalse(scrape.contains("c_d_total"));
+    }
+
+    private static String scrape(final KillBillCollector collector) throws IOException {
+        final StringWriter writer = new StringWriter();
+        collector.writeTo(KillBillTextFormat.forContentType(TextFormat.CONTENT_TYPE_004, writer), null);
+        return writer.toString();
+    }
+
+    private static String scrape(final boolean summaries) throws IOException {
+        final Map<String, Object> metrics = new TreeMap<>();
+        for (int i = 0; i < NB_TIMERS; i++) {
+            final String name = "killbill-service.kb_plugin_latency.plugin-" + i + ".org.killbill.billing.payment.plugin.api.PaymentPluginApi.purchasePayment";
+            metrics.put(name, summaries ? createTimer() : createBucketedTimer());
+        }
+        final MetricRegistry registry = Mockito.mock(MetricRegistry.class);
+        Mockito.doReturn(metrics).when(registry).getMetrics();
+
+        return scrape(new KillBillCollector(registry, MetricNameMapper.create(null, true)));
+    }
+
+    private static Counter createCounter(final long count) {
+        final Counter counter = Mockito.mock(Counter.class);
+        Mockito.when(counter.getCount()).thenReturn(count);
+        return counter;
+    }
+
+    private static Meter createMeter(final long count) {
+        final Meter meter = Mockito.mock(Meter.class);
+        Mockito.when(meter.getCount()).thenReturn(count);
+        return meter;
+    }
+
+    private static Timer createTimer() {
+        final Timer timer = Mockito.mock(Timer.class);
+        Mockito.when(timer.getSnapshot()).thenReturn(Mockito.mock(Snapshot.class));
+        return timer;
+    }
+
+    private static Timer createBucketedTimer() {
+        final Timer timer = Mockito.mock(Timer.class, Mockito.withSettings().extraInterfaces(BucketedHistogram.class));
+        Mockito.when(((BucketedHistogram) timer).getUpperBounds()).thenReturn(UPPER_BOUNDS);
+        Mockito.when(((BucketedHistogram) timer).getBucketCounts()).thenReturn(new long[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+        Mockito.when(((BucketedHistogram) timer).getSum()).thenReturn(1.5);
+        return timer;
+    }
+}
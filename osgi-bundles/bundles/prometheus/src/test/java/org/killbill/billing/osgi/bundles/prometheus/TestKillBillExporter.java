@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.prometheus.client.CollectorRegistry;
+
+public class TestKillBillExporter {
+
+    private KillBillExporter exporter;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() {
+        final Counter counter = Mockito.mock(Counter.class);
+        Mockito.when(counter.getCount()).thenReturn(12L);
+        final MetricRegistry registry = Mockito.mock(MetricRegistry.class);
+        Mockito.doReturn(Map.of("org.killbill.counter", counter)).when(registry).getMetrics();
+        exporter = new KillBillExporter(new KillBillCollector(registry), new CollectorRegistry(), null);
+    }
+
+    @Test(groups = "fast")
+    public void testGzipRoundTrip() throws IOException {
+        final HttpServletResponse plainResp = Mockito.mock(HttpServletResponse.class);
+        final byte[] plain = get(null, plainResp);
+        Assert.assertTrue(new String(plain, StandardCharsets.UTF_8).contains("org_killbill_counter 12.0\n"));
+        Mockito.verify(plainResp, Mockito.never()).setHeader(Mockito.eq("Content-Encoding"), Mockito.anyString());
+        Mockito.verify(plainResp).setHeader("Vary", "Accept-Encoding");
+
+        final HttpServletResponse gzipResp = Mockito.mock(HttpServletResponse.class);
+        final byte[] gzipped = get("gzip, deflate", gzipResp);
+        Mockito.verify(gzipResp).setHeader("Content-Encoding", "gzip");
+        Mockito.verify(gzipResp).setHeader("Vary", "Accept-Encoding");
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            Assert.assertEquals(in.readAllBytes(), plain);
+        }
+
+        // Explicitly not acceptable
+        final HttpServletResponse refusedResp = Mockito.mock(HttpServletResponse.class);
+        Assert.assertEquals(get("gzip;q=0", refusedResp), plain);
+        Mockito.verify(refusedResp, Mockito.never()).setHeader(Mockito.eq("Content-Encoding"), Mockito.anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testAcceptsGzip() {
+        Assert.assertTrue(KillBillExporter.acceptsGzip("gzip"));
+        Assert.assertTrue(KillBillExporter.acceptsGzip("deflate, GZIP;q=0.5"));
+        Assert.assertTrue(KillBillExporter.acceptsGzip("gzip ; q=1.0, identity"));
+        Assert.assertTrue(KillBillExporter.acceptsGzip("*"));
+        Assert.assertTrue(KillBillExporter.acceptsGzip("x-gzip"));
+
+        Assert.assertFalse(KillBillExporter.acceptsGzip(null));
+        Assert.assertFalse(KillBillExporter.acceptsGzip(""));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("identity"));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("gzip;q=0"));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("gzip;q=0.000, deflate"));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("gzip;q=invalid"));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("x-gzipped"));
+        // Explicit gzip weight takes precedence over the wildcard
+        Assert.assertFalse(KillBillExporter.acceptsGzip("*, gzip;q=0"));
+        Assert.assertFalse(KillBillExporter.acceptsGzip("*;q=0"));
+    }
+
+    private byte[] get(@Nullable final String acceptEncoding, final HttpServletResponse resp) throws IOException {
+        final HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Mockito.when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+                body.write(b);
+            }
+        });
+
+        exporter.doGet(req, resp);
+        return body.toByteArray();
+    }
+}
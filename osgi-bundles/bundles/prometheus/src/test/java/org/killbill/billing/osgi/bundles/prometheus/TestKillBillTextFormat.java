@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.killbill.billing.osgi.api.BucketedHistogram;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.Histogram;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.killbill.commons.metrics.api.Timer;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+public class TestKillBillTextFormat {
+
+    private KillBillCollector collector;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() {
+        final Map<String, Object> metrics = new TreeMap<>();
+        metrics.put("killbill-service.kb_event_dispatch_queue_depth.lane-1", createGauge(3));
+        metrics.put("killbill-service.kb_event_dispatch_queue_depth.lane-2", createGauge(true));
+        // Help messages and label values to escape
+        metrics.put("org.killbill.\"quoted\\name\".counter", createCounter(-2));
+        metrics.put("killbill-service.kb_plugin_errors.plug\"in\\1.org.killbill.Api.call", createMeter(11));
+        metrics.put("killbill-service.kb_plugin_errors.plugin\n2.org.killbill.Api.call", createMeter(12));
+        metrics.put("killbill-service.kb_plugin_latency.plugin-1.org.killbill.Api.call", createTimer());
+        metrics.put("killbill-service.kb_event_dispatch_latency.lane-1", createBucketedTimer());
+        metrics.put("org.killbill.histogram", createHistogram());
+
+        final MetricRegistry registry = Mockito.mock(MetricRegistry.class);
+        Mockito.doReturn(metrics).when(registry).getMetrics();
+        collector = new KillBillCollector(registry, MetricNameMapper.create(null, true));
+    }
+
+    @Test(groups = "fast")
+    public void testText004() throws IOException {
+        final StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+
+        // TextFormat leaves a trailing comma after the last label (both are valid)
+        Assert.assertEquals(stream(TextFormat.CONTENT_TYPE_004), expected.toString().replace("\",}", "\"}"));
+    }
+
+    @Test(groups = "fast")
+    public void testOpenMetrics100() throws IOException {
+        final StringWriter expected = new StringWriter();
+        TextFormat.writeOpenMetrics100(expected, Collections.enumeration(collector.collect()));
+
+        // The # EOF marker is written by KillBillExporter
+        Assert.assertEquals(stream(TextFormat.CONTENT_TYPE_OPENMETRICS_100) + "# EOF\n", expected.toString());
+    }
+
+    private String stream(final String contentType) throws IOException {
+        final StringWriter writer = new StringWriter();
+        collector.writeTo(KillBillTextFormat.forContentType(contentType, writer), null);
+        return writer.toString();
+    }
+
+    private static Gauge<?> createGauge(final Object value) {
+        final Gauge<?> gauge = Mockito.mock(Gauge.class);
+        Mockito.doReturn(value).when(gauge).getValue();
+        return gauge;
+    }
+
+    private static Counter createCounter(final long count) {
+        final Counter counter = Mockito.mock(Counter.class);
+        Mockito.when(counter.getCount()).thenReturn(count);
+        return counter;
+    }
+
+    private static Meter createMeter(final long count) {
+        final Meter meter = Mockito.mock(Meter.class);
+        Mockito.when(meter.getCount()).thenReturn(count);
+        return meter;
+    }
+
+    private static Timer createTimer() {
+        final Timer timer = Mockito.mock(Timer.class);
+        final Snapshot snapshot = createSnapshot(1000000);
+        Mockito.when(timer.getSnapshot()).thenReturn(snapshot);
+        Mockito.when(timer.getCount()).thenReturn(42L);
+        return timer;
+    }
+
+    private static Histogram createHistogram() {
+        final Histogram histogram = Mockito.mock(Histogram.class);
+        final Snapshot snapshot = createSnapshot(1);
+        Mockito.when(histogram.getSnapshot()).thenReturn(snapshot);
+        Mockito.when(histogram.getCount()).thenReturn(7L);
+        return histogram;
+    }
+
+    private static Snapshot createSnapshot(final double unit) {
+        final Snapshot snapshot = Mockito.mock(Snapshot.class);
+        Mockito.when(snapshot.getMedian()).thenReturn(1.5 * unit);
+        Mockito.when(snapshot.get75thPercentile()).thenReturn(2.0 * unit);
+        Mockito.when(snapshot.get95thPercentile()).thenReturn(3.0 * unit);
+        Mockito.when(snapshot.get98thPercentile()).thenReturn(4.0 * unit);
+        Mockito.when(snapshot.get99thPercentile()).thenReturn(5.0 * unit);
+        Mockito.when(snapshot.get999thPercentile()).thenReturn(Double.NaN);
+        return snapshot;
+    }
+
+    private static Timer createBucketedTimer() {
+        final Timer timer = Mockito.mock(Timer.class, Mockito.withSettings().extraInterfaces(BucketedHistogram.class));
+        Mockito.when(((BucketedHistogram) timer).getUpperBounds()).thenReturn(new double[]{0.1, 1});
+        Mockito.when(((BucketedHistogram) timer).getBucketCounts()).thenReturn(new long[]{3, 2, 1});
+        Mockito.when(((BucketedHistogram) timer).getSum()).thenReturn(4.2);
+        return timer;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.bundles.prometheus;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestMetricNameMapper {
+
+    @Test(groups = "fast")
+    public void testBuiltInRules() {
+        final MetricNameMapper mapper = MetricNameMapper.create(null, true);
+
+        final MetricNameMapper.MappedName latency = mapper.map("killbill-service.kb_plugin_latency.killbill-stripe.org.killbill.billing.payment.plugin.api.PaymentPluginApi.purchasePayment");
+        Assert.assertNotNull(latency);
+        Assert.assertEquals(latency.getFamilyName(), "kb_plugin_latency");
+        Assert.assertEquals(latency.getLabelNames(), new String[]{"plugin", "interface", "method"});
+        Assert.assertEquals(latency.getLabelValues(), new String[]{"killbill-stripe", "org.killbill.billing.payment.plugin.api.PaymentPluginApi", "purchasePayment"});
+
+        final MetricNameMapper.MappedName queue = mapper.map("org.killbill.queue.DBBackedQueue.bus_events.rawGetEntries");
+        Assert.assertNotNull(queue);
+        Assert.assertEquals(queue.getFamilyName(), "kb_queue_rawGetEntries");
+        Assert.assertEquals(queue.getLabelNames(), new String[]{"queue"});
+        Assert.assertEquals(queue.getLabelValues(), new String[]{"bus_events"});
+
+        // Literals are preferred over captures
+        final MetricNameMapper.MappedName responses = mapper.map("org.killbill.commons.metrics.servlets.InstrumentedFilter.responseCodes.ok");
+        Assert.assertNotNull(responses);
+        Assert.assertEquals(responses.getFamilyName(), "kb_http_responses");
+        Assert.assertEquals(responses.getLabelValues(), new String[]{"ok"});
+        final MetricNameMapper.MappedName requests = mapper.map("org.killbill.commons.metrics.servlets.InstrumentedFilter.requests");
+        Assert.assertNotNull(requests);
+        Assert.assertEquals(requests.getFamilyName(), "kb_http_requests");
+        Assert.assertEquals(requests.getLabelNames().length, 0);
+
+        // Not enough segments for the plugin latency rule
+        Assert.assertNull(mapper.map("killbill-service.kb_plugin_latency.killbill-stripe.purchasePayment"));
+        Assert.assertNull(mapper.map("jvm.memory.heap.used"));
+        Assert.assertNull(MetricNameMapper.NONE.map("killbill-service.kb_event_dispatch_delivered.INVOICE_CREATION"));
+    }
+
+    @Test(groups = "fast")
+    public void testUserRules() {
+        final MetricNameMapper mapper = MetricNameMapper.create("killbill-service.kb_event_dispatch_delivered.{type}=kb_delivered, invalid, a.{x:**}.{y:**}=b", true);
+
+        final MetricNameMapper.MappedName delivered = mapper.map("killbill-service.kb_event_dispatch_delivered.INVOICE_CREATION");
+        Assert.assertNotNull(delivered);
+        Assert.assertEquals(delivered.getFamilyName(), "kb_delivered");
+        Assert.assertEquals(delivered.getLabelNames(), new String[]{"type"});
+
+        final MetricNameMapper multi = new MetricNameMapper(List.of("a.{x:**}.c={x}_total", "a.{x}.{y}=other"));
+        Assert.assertEquals(multi.map("a.b.c").getFamilyName(), "other");
+        Assert.assertEquals(multi.map("a.b.b.c").getFamilyName(), "b_b_total");
+        Assert.assertNull(multi.map("a.c"));
+    }
+
+    @Test(groups = "fast")
+    public void testReservedLabels() {
+        final MetricNameMapper mapper = MetricNameMapper.create("a.{le}=x, b.{quantile}.c=y, d.{le}.{e}={le}_total", false);
+        Assert.assertNull(mapper.map("a.b"));
+        Assert.assertNull(mapper.map("b.1.c"));
+        // Only used in the family name, not as a label
+        final MetricNameMapper.MappedName mappedName = mapper.map("d.f.g");
+        Assert.assertNotNull(mappedName);
+        Assert.assertEquals(mappedName.getFamilyName(), "f_total");
+        Assert.assertEquals(mappedName.getLabelNames(), new String[]{"e"});
+
+        try {
+            new MetricNameMapper(List.of("a.{le}=x"));
+            Assert.fail("le is reserved");
+        } catch (final IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -19,12 +19,21 @@
 
 package org.killbill.billing.osgi.libs.killbill;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Set;
 
+import org.killbill.billing.ObjectType;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.api.OSGIKillbillBatchEventObserver;
+import org.killbill.billing.osgi.api.OSGIKillbillEventObserver;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.util.tracker.ServiceTracker;
@@ -72,52 +81,9 @@ public class OSGIKillbillEventDispatcher extends OSGIKillbillLibraryBase {
     // implemented in the private methods handleKillbillEvent and handleOSGIStartEvent below
     //
     private void registerEventHandler(final OSGIHandlerMarker handlerOfSomeType) {
-        final Observer observer = new Observer() {
-
-            @Override
-            public void update(final Observable o, final Object arg) {
-
-                final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
-                Thread.currentThread().setContextClassLoader(handlerOfSomeType.getClass().getClassLoader());
-                try {
-                    if (handlerOfSomeType instanceof OSGIKillbillEventHandler) {
-                        handleKillbillEvent((OSGIKillbillEventHandler) handlerOfSomeType, arg);
-                    } else if (handlerOfSomeType instanceof OSGIFrameworkEventHandler) {
-                        handleOSGIStartEvent((OSGIFrameworkEventHandler) handlerOfSomeType, arg);
-                    }
-                } finally {
-                    Thread.currentThread().setContextClassLoader(initialContextClassLoader);
-                }
-            }
-
-            private void handleKillbillEvent(final OSGIKillbillEventHandler handler, final Object arg) {
-                if (!(arg instanceof ExtBusEvent)) {
-                    logger.debug("OSGIKillbillEventDispatcher unexpected event type " + (arg != null ? arg.getClass() : "null"));
-                    return;
-                }
-                handler.handleKillbillEvent((ExtBusEvent) arg);
-            }
-
-            private void handleOSGIStartEvent(final OSGIFrameworkEventHandler handler, final Object arg) {
-                if (!(arg instanceof Event)) {
-                    logger.debug("OSGIFrameworkEventHandler unexpected event type " + (arg != null ? arg.getClass() : "null"));
-                    return;
-                }
-
-                final String topic = ((Event) arg).getTopic();
-                // Platform is up, all bundles/plugins have been started
-                if ("org/killbill/billing/osgi/lifecycle/STARTED".equals(topic)) {
-                    handler.started();
-                } else if (("org/killbill/billing/osgi/plugin/START_PLUGIN".equals(topic) || "org/killbill/billing/osgi/plugin/RESTART_PLUGIN".equals(topic))) {
-
-                    final String symbolicNameProperty = (String) ((Event) arg).getProperty("symbolicName");
-                    // This specific plugin has been started/restarted
-                    if (symbolicNameProperty != null && symbolicNameProperty.equals(symbolicName)) {
-                        handler.started();
-                    }
-                }
-            }
-        };
+        final Observer observer = handlerOfSomeType instanceof OSGIKillbillBatchEventHandler ?
+                                  new BatchHandlerObserver((OSGIKillbillBatchEventHandler) handlerOfSomeType) :
+                                  new HandlerObserver(handlerOfSomeType);
         registerEventHandler(handlerOfSomeType, observer);
     }
 
@@ -169,11 +135,203 @@ public class OSGIKillbillEventDispatcher extends OSGIKillbillLibraryBase {
     }
 
 
+    private class HandlerObserver implements OSGIKillbillEventObserver {
+
+        protected final OSGIHandlerMarker handlerOfSomeType;
+
+        private HandlerObserver(final OSGIHandlerMarker handlerOfSomeType) {
+            this.handlerOfSomeType = handlerOfSomeType;
+        }
+
+        @Override
+        public String getObserverName() {
+            return symbolicName + ":" + handlerOfSomeType.getClass().getName();
+        }
+
+        @Override
+        public Set<String> getSubscribedEventTypes() {
+            if (handlerOfSomeType instanceof OSGIKillbillEventHandler) {
+                return toNames(((OSGIKillbillEventHandler) handlerOfSomeType).getSubscribedEventTypes());
+            } else if (handlerOfSomeType instanceof OSGIKillbillBatchEventHandler) {
+                return toNames(((OSGIKillbillBatchEventHandler) handlerOfSomeType).getSubscribedEventTypes());
+            }
+            // OSGIFrameworkEventHandler: not interested in Kill Bill events
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getSubscribedObjectTypes() {
+            if (handlerOfSomeType instanceof OSGIKillbillEventHandler) {
+                return toNames(((OSGIKillbillEventHandler) handlerOfSomeType).getSubscribedObjectTypes());
+            } else if (handlerOfSomeType instanceof OSGIKillbillBatchEventHandler) {
+                return toNames(((OSGIKillbillBatchEventHandler) handlerOfSomeType).getSubscribedObjectTypes());
+            }
+            return null;
+        }
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+
+            final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(handlerOfSomeType.getClass().getClassLoader());
+            try {
+                if (handlerOfSomeType instanceof OSGIKillbillEventHandler) {
+                    handleKillbillEvent((OSGIKillbillEventHandler) handlerOfSomeType, arg);
+                } else if (handlerOfSomeType instanceof OSGIKillbillBatchEventHandler) {
+                    handleKillbillEvent((OSGIKillbillBatchEventHandler) handlerOfSomeType, arg);
+                } else if (handlerOfSomeType instanceof OSGIFrameworkEventHandler) {
+                    handleOSGIStartEvent((OSGIFrameworkEventHandler) handlerOfSomeType, arg);
+                }
+            } finally {
+                Thread.currentThread().setContextClassLoader(initialContextClassLoader);
+            }
+        }
+
+        private void handleKillbillEvent(final OSGIKillbillEventHandler handler, final Object arg) {
+            if (!(arg instanceof ExtBusEvent)) {
+                logger.debug("OSGIKillbillEventDispatcher unexpected event type " + (arg != null ? arg.getClass() : "null"));
+                return;
+            }
+            handler.handleKillbillEvent((ExtBusEvent) arg);
+        }
+
+        // Batches are normally delivered through updateBatch
+        private void handleKillbillEvent(final OSGIKillbillBatchEventHandler handler, final Object arg) {
+            if (!(arg instanceof ExtBusEvent)) {
+                logger.debug("OSGIKillbillEventDispatcher unexpected event type " + (arg != null ? arg.getClass() : "null"));
+                return;
+            }
+            handler.handleKillbillEvents(Collections.singletonList((ExtBusEvent) arg));
+        }
+
+        private void handleOSGIStartEvent(final OSGIFrameworkEventHandler handler, final Object arg) {
+            if (!(arg instanceof Event)) {
+                logger.debug("OSGIFrameworkEventHandler unexpected event type " + (arg != null ? arg.getClass() : "null"));
+                return;
+            }
+
+            final String topic = ((Event) arg).getTopic();
+            // Platform is up, all bundles/plugins have been started
+            if ("org/killbill/billing/osgi/lifecycle/STARTED".equals(topic)) {
+                handler.started();
+            } else if (("org/killbill/billing/osgi/plugin/START_PLUGIN".equals(topic) || "org/killbill/billing/osgi/plugin/RESTART_PLUGIN".equals(topic))) {
+
+                final String symbolicNameProperty = (String) ((Event) arg).getProperty("symbolicName");
+                // This specific plugin has been started/restarted
+                if (symbolicNameProperty != null && symbolicNameProperty.equals(symbolicName)) {
+                    handler.started();
+                }
+            }
+        }
+    }
+
+    private final class BatchHandlerObserver extends HandlerObserver implements OSGIKillbillBatchEventObserver {
+
+        private final OSGIKillbillBatchEventHandler handler;
+
+        private BatchHandlerObserver(final OSGIKillbillBatchEventHandler handler) {
+            super(handler);
+            this.handler = handler;
+        }
+
+        @Override
+        public void updateBatch(final Observable o, final List<Object> events) {
+            final List<ExtBusEvent> killbillEvents = new ArrayList<ExtBusEvent>(events.size());
+            for (final Object event : events) {
+                if (event instanceof ExtBusEvent) {
+                    killbillEvents.add((ExtBusEvent) event);
+                } else {
+                    logger.debug("OSGIKillbillEventDispatcher unexpected event type " + (event != null ? event.getClass() : "null"));
+                }
+            }
+
+            final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(handler.getClass().getClassLoader());
+            try {
+                handler.handleKillbillEvents(Collections.unmodifiableList(killbillEvents));
+            } finally {
+                Thread.currentThread().setContextClassLoader(initialContextClassLoader);
+            }
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return handler.getMaxBatchSize();
+        }
+
+        @Override
+        public long getLingerMillis() {
+            return handler.getLingerMillis();
+        }
+    }
+
+    private static Set<String> toNames(final Set<? extends Enum<?>> values) {
+        if (values == null) {
+            return null;
+        }
+        final Set<String> names = new HashSet<String>();
+        for (final Enum<?> value : values) {
+            names.add(value.name());
+        }
+        return names;
+    }
+
     public interface OSGIHandlerMarker {
     }
 
     public interface OSGIKillbillEventHandler extends OSGIHandlerMarker {
         public void handleKillbillEvent(final ExtBusEvent killbillEvent);
+
+        /**
+         * @return the event types to be notified of, or null (default) for all of them
+         */
+        default Set<ExtBusEventType> getSubscribedEventTypes() {
+            return null;
+        }
+
+        /**
+         * @return the object types of the events to be notified of, or null (default) for all of them
+         */
+        default Set<ObjectType> getSubscribedObjectTypes() {
+            return null;
+        }
+    }
+
+    /**
+     * Opt-in alternative to OSGIKillbillEventHandler, for plugins which can amortize their work (e.g. database round-trips)
+     * across events.
+     * <p>
+     * Kill Bill queues the events for the handler, and a dedicated worker delivers them in micro-batches of up to
+     * getMaxBatchSize() events, waiting up to getLingerMillis() for a batch to fill up. Events are acknowledged on the bus
+     * once queued: if the handler throws (e.g. a QueueRetryException), each event of the batch is retried.
+     */
+    public interface OSGIKillbillBatchEventHandler extends OSGIHandlerMarker {
+        public void handleKillbillEvents(final List<ExtBusEvent> killbillEvents);
+
+        default int getMaxBatchSize() {
+            return 100;
+        }
+
+        /**
+         * @return how long the first event of a batch waits for more events (0 to only batch the events already queued)
+         */
+        default long getLingerMillis() {
+            return 0;
+        }
+
+        /**
+         * @return the event types to be notified of, or null (default) for all of them
+         */
+        default Set<ExtBusEventType> getSubscribedEventTypes() {
+            return null;
+        }
+
+        /**
+         * @return the object types of the events to be notified of, or null (default) for all of them
+         */
+        default Set<ObjectType> getSubscribedObjectTypes() {
+            return null;
+        }
     }
 
     public interface OSGIFrameworkEventHandler extends OSGIHandlerMarker {
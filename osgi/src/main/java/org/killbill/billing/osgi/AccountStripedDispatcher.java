@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed number of stripes (bounded queue and worker thread each) running the tasks submitted for a given key (the account id)
+ * one after another, in submission order. Tasks for keys mapped to different stripes run in parallel.
+ * <p>
+ * Once stopped, submitted tasks run in place, and the tasks the stripes didn't get to are handed back to the caller.
+ */
+final class AccountStripedDispatcher<T extends Runnable> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountStripedDispatcher.class);
+
+    private static final String METRIC_PREFIX = "killbill-service.kb_event_dispatch_stripe_";
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final List<Stripe> stripes;
+    private final MetricRegistry metricRegistry;
+    private final Counter errors;
+    private final long shutdownTimeoutMillis;
+
+    private volatile boolean running = true;
+
+    AccountStripedDispatcher(final int nbStripes, final int capacity, final MetricRegistry metricRegistry) {
+        this(nbStripes, capacity, metricRegistry, SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    AccountStripedDispatcher(final int nbStripes, final int capacity, final MetricRegistry metricRegistry, final long shutdownTimeoutMillis) {
+        this.metricRegistry = metricRegistry;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.stripes = new ArrayList<>(nbStripes);
+        for (int i = 0; i < nbStripes; i++) {
+            final Stripe stripe = new Stripe(i, capacity);
+            stripes.add(stripe);
+            metricRegistry.gauge(METRIC_PREFIX + "queue_depth." + i, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return stripe.queue.size();
+                }
+            });
+        }
+        // Occupancy: how many stripes are delivering (or have pending) events
+        metricRegistry.gauge(METRIC_PREFIX + "busy", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int busy = 0;
+                for (final Stripe stripe : stripes) {
+                    if (stripe.busy || !stripe.queue.isEmpty()) {
+                        busy++;
+                    }
+                }
+                return busy;
+            }
+        });
+        this.errors = metricRegistry.counter(METRIC_PREFIX + "errors");
+    }
+
+    void start() {
+        for (final Stripe stripe : stripes) {
+            stripe.executor.submit(stripe::drain);
+        }
+    }
+
+    /**
+     * Blocks while the stripe is full. Once the dispatcher is stopped, the task runs in place.
+     *
+     * @param key  ordering key (null keys share the first stripe)
+     * @param task task to run after the ones previously submitted for the same key
+     */
+    void submit(@Nullable final UUID key, final T task) {
+        final Stripe stripe = stripes.get(stripeIndex(key, stripes.size()));
+        try {
+            while (running) {
+                if (stripe.queue.offer(task, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (!running && stripe.queue.remove(task)) {
+                        // Stopped meanwhile: the stripe may not get to it
+                        break;
+                    }
+                    return;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to queue an event in stripe " + stripe.index, e);
+        }
+        task.run();
+    }
+
+    /**
+     * Lets the stripes drain their queues (for up to 10 seconds by default).
+     *
+     * @return the tasks which didn't run
+     */
+    List<T> stop() {
+        running = false;
+        for (final Stripe stripe : stripes) {
+            stripe.executor.shutdown();
+        }
+        final List<T> undelivered = new ArrayList<>();
+        for (final Stripe stripe : stripes) {
+            try {
+                if (!stripe.executor.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Stopping event stripe {} with {} undelivered event(s)", stripe.index, stripe.queue.size());
+                    stripe.executor.shutdownNow();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stripe.executor.shutdownNow();
+            }
+            stripe.queue.drainTo(undelivered);
+            metricRegistry.remove(METRIC_PREFIX + "queue_depth." + stripe.index);
+        }
+        metricRegistry.remove(METRIC_PREFIX + "busy");
+        return undelivered;
+    }
+
+    static int stripeIndex(@Nullable final UUID key, final int nbStripes) {
+        if (key == null) {
+            return 0;
+        }
+        // Spread the (random) bits of the UUID
+        final long hash = key.getMostSignificantBits() ^ key.getLeastSignificantBits();
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) nbStripes);
+    }
+
+    private final class Stripe {
+
+        private final int index;
+        private final BlockingQueue<T> queue;
+        private final ExecutorService executor;
+
+        private volatile boolean busy;
+
+        private Stripe(final int index, final int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.executor = Executors.newSingleThreadExecutor("osgi-event-stripe-" + index);
+        }
+
+        private void drain() {
+            while (running || !queue.isEmpty()) {
+                final T task;
+                try {
+                    task = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (task == null) {
+                    continue;
+                }
+
+                busy = true;
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    // The task is expected to handle (retry) its failures
+                    errors.inc(1);
+                    logger.error("Failed to deliver event in stripe {}", index, e);
+                } finally {
+                    busy = false;
+                }
+            }
+        }
+    }
+}
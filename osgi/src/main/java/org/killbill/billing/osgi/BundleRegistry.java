@@ -19,12 +19,12 @@
 
 package org.killbill.billing.osgi;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -54,16 +54,18 @@ public class BundleRegistry {
     @Inject
     public BundleRegistry(final FileInstall fileInstall) {
         this.fileInstall = fileInstall;
-        this.registry = new HashMap<String, BundleWithMetadata>();
+        // Services are registered concurrently when bundles are started in parallel
+        this.registry = new ConcurrentHashMap<String, BundleWithMetadata>();
     }
 
-    public void installBundles(final Framework framework) {
+    public List<BundleWithConfig> installBundles(final Framework framework) {
         // Keep a copy of the framework during initialization phase when we first install all bundles
         this.framework = framework;
         bundleWithConfigs = fileInstall.installBundles(framework);
         for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
             registry.put(getPluginName(bundleWithConfig), new BundleWithMetadata(bundleWithConfig));
         }
+        return List.copyOf(bundleWithConfigs);
     }
 
     public BundleWithMetadata installAndStartNewBundle(final String pluginName, @Nullable final String pluginVersion) throws BundleException {
@@ -102,8 +104,10 @@ public class BundleRegistry {
 
     public void startBundles(final Iterable<String> mandatoryPlugins) throws Exception {
         final List<String> pluginsStarted = new LinkedList<>();
-        for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
-            final boolean isBundleStarted = fileInstall.startBundle(bundleWithConfig.getBundle());
+        final List<Boolean> bundlesStarted = fileInstall.startBundles(bundleWithConfigs);
+        for (int i = 0; i < bundleWithConfigs.size(); i++) {
+            final BundleWithConfig bundleWithConfig = bundleWithConfigs.get(i);
+            final boolean isBundleStarted = bundlesStarted.get(i);
 
             final String pluginName = getPluginName(bundleWithConfig);
             if (isBundleStarted) {
@@ -139,7 +143,11 @@ public class BundleRegistry {
         for (final BundleWithConfig bundleWithConfig : bundleWithConfigs) {
             try {
                 if (bundleWithConfig.getBundle() != null && bundleWithConfig.getConfig() != null) {
-                    stopAndUninstallBundle(bundleWithConfig.getBundle(), bundleWithConfig.getConfig().getPluginName());
+                    // Bundles aren't uninstalled, so that they can be reused from the cache on next start
+                    if (bundleWithConfig.getBundle().getState() == Bundle.ACTIVE) {
+                        bundleWithConfig.getBundle().stop();
+                    }
+                    registry.remove(bundleWithConfig.getConfig().getPluginName());
                 }
             } catch (final BundleException e) {
                 log.warn("Unable to stop bundle", e);
@@ -192,7 +200,7 @@ public class BundleRegistry {
 
         public BundleWithMetadata(final BundleWithConfig bundleWithConfig) {
             super(bundleWithConfig.getBundle(), bundleWithConfig.getConfig());
-            serviceNames = new HashSet<>();
+            serviceNames = ConcurrentHashMap.newKeySet();
         }
 
         public String getPluginName() {
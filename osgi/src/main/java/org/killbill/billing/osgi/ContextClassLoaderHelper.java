@@ -19,13 +19,17 @@
 
 package org.killbill.billing.osgi;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -37,13 +41,15 @@ import org.killbill.commons.profiling.Profiling;
 import org.killbill.commons.profiling.Profiling.WithProfilingCallback;
 import org.killbill.commons.profiling.ProfilingFeature.ProfilingFeatureType;
 import org.killbill.commons.utils.Joiner;
-import org.killbill.commons.utils.cache.Cache;
-import org.killbill.commons.utils.cache.DefaultCache;
-import org.killbill.commons.utils.cache.DefaultSynchronizedCache;
+import org.killbill.commons.utils.annotation.VisibleForTesting;
 import org.killbill.commons.utils.reflect.AbstractInvocationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ContextClassLoaderHelper {
 
+    private static final Logger logger = LoggerFactory.getLogger(ContextClassLoaderHelper.class);
+
     private static final Joiner DOT_JOINER = Joiner.on(".");
 
     /*
@@ -62,16 +68,36 @@ public class ContextClassLoaderHelper {
 
       => So our current implementation is to proxy all calls from Killbill to OSGI registered services, and set/unset classloader before/after entering the call
 
+      To keep the overhead of each call low, everything a service method needs (MethodHandle bound to the plugin instance,
+      profiling id, metric names) is resolved once, when the proxy is created. Reflection is only used for methods which cannot be bound.
     */
 
-    @SuppressWarnings("unchecked")
     public static <T> T getWrappedServiceWithCorrectContextClassLoader(final T service, final Class<T> serviceType, final String serviceName, @Nullable final MetricRegistry metricRegistry) {
+        return getWrappedServiceWithCorrectContextClassLoader(service, serviceType, serviceName, metricRegistry, true);
+    }
+
+    @VisibleForTesting
+    @SuppressWarnings("unchecked")
+    static <T> T getWrappedServiceWithCorrectContextClassLoader(final T service, final Class<T> serviceType, final String serviceName, @Nullable final MetricRegistry metricRegistry, final boolean bindMethodHandles) {
 
         final Class<T> serviceClass = (Class<T>) service.getClass();
         final List<Class<?>> allServiceInterfaces = getAllInterfaces(serviceClass);
         final Class<?>[] serviceClassInterfaces = allServiceInterfaces.toArray(new Class[allServiceInterfaces.size()]);
 
-        final InvocationHandler handler = new ClassLoaderInvocationHandler<T>(service, serviceName, serviceType, metricRegistry);
+        // Don't instrument the MetricRegistry itself to avoid infinite recursion
+        final MethodDescriptorFactory methodDescriptorFactory = new MethodDescriptorFactory(service,
+                                                                                            serviceName,
+                                                                                            serviceType.getSimpleName(),
+                                                                                            serviceType == MetricRegistry.class ? null : metricRegistry,
+                                                                                            bindMethodHandles);
+        final Map<Method, MethodDescriptor> methodDescriptors = new HashMap<>();
+        for (final Class<?> serviceInterface : allServiceInterfaces) {
+            for (final Method method : serviceInterface.getMethods()) {
+                methodDescriptors.computeIfAbsent(method, methodDescriptorFactory::create);
+            }
+        }
+
+        final InvocationHandler handler = new ClassLoaderInvocationHandler(serviceClass.getClassLoader(), Map.copyOf(methodDescriptors), methodDescriptorFactory);
         return (T) Proxy.newProxyInstance(serviceClass.getClassLoader(),
                                           serviceClassInterfaces,
                                           handler);
@@ -102,92 +128,213 @@ public class ContextClassLoaderHelper {
         return list;
     }
 
-    private static class ClassLoaderInvocationHandler<T> extends AbstractInvocationHandler {
+    private interface MethodInvoker {
+
+        // Throws the exception thrown by the plugin as-is
+        Object invoke(Object[] args) throws Throwable;
+    }
+
+    private static final class MethodHandleInvoker implements MethodInvoker {
+
+        private final MethodHandle methodHandle;
+
+        private MethodHandleInvoker(final Object service, final Method method) throws IllegalAccessException {
+            // (Object[])Object, bound to the plugin instance: no per-call access checks nor varargs re-boxing
+            this.methodHandle = MethodHandles.publicLookup()
+                                             .unreflect(method)
+                                             .bindTo(service)
+                                             .asSpreader(Object[].class, method.getParameterCount())
+                                             .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+
+        @Override
+        public Object invoke(final Object[] args) throws Throwable {
+            return methodHandle.invokeExact(args);
+        }
+    }
+
+    private static final class ReflectionInvoker implements MethodInvoker {
+
+        private final Object service;
+        private final Method method;
+
+        private ReflectionInvoker(final Object service, final Method method) {
+            this.service = service;
+            this.method = method;
+        }
+
+        @Override
+        public Object invoke(final Object[] args) throws Throwable {
+            try {
+                return method.invoke(service, args);
+            } catch (final InvocationTargetException e) {
+                if (e.getCause() != null) {
+                    throw e.getCause();
+                } else {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private static final class MethodDescriptorFactory {
 
+        private final Object service;
         private final String serviceName;
-        private final T service;
-        private final Class<?> serviceClass;
         private final String serviceInterfaceName;
         private final MetricRegistry metricRegistry;
+        private final boolean bindMethodHandles;
 
-        private Cache<String, Timer> timerMetricCache;
-        private Cache<String, Meter> errorMetricCache;
-
-        public ClassLoaderInvocationHandler(final T service,
-                                            final String serviceName,
-                                            final Class<T> serviceInterface,
-                                            final MetricRegistry metricRegistry) {
+        private MethodDescriptorFactory(final Object service,
+                                        final String serviceName,
+                                        final String serviceInterfaceName,
+                                        @Nullable final MetricRegistry metricRegistry,
+                                        final boolean bindMethodHandles) {
             this.service = service;
             this.serviceName = serviceName;
-            // Don't instrument the MetricRegistry itself to avoid infinite recursion
-            this.metricRegistry = serviceInterface == MetricRegistry.class ? null : metricRegistry;
+            this.serviceInterfaceName = serviceInterfaceName;
+            this.metricRegistry = metricRegistry;
+            this.bindMethodHandles = bindMethodHandles;
+        }
+
+        private MethodDescriptor create(final Method method) {
+            MethodInvoker methodInvoker = null;
+            if (bindMethodHandles) {
+                try {
+                    methodInvoker = new MethodHandleInvoker(service, method);
+                } catch (final IllegalAccessException | RuntimeException e) {
+                    logger.warn("Unable to bind method {} for service {}, defaulting to reflection", method, serviceName, e);
+                }
+            }
+            if (methodInvoker == null) {
+                methodInvoker = new ReflectionInvoker(service, method);
+            }
+
+            final String profilingId = (serviceInterfaceName + "." + method.getName()).intern();
+            if (metricRegistry == null) {
+                return new MethodDescriptor(methodInvoker, profilingId, null, null, null);
+            }
+            final String timerMetricName = DOT_JOINER.join("killbill-service",
+                                                           "kb_plugin_latency",
+                                                           serviceName,
+                                                           serviceInterfaceName,
+                                                           method.getName());
+            final String errorMetricName = DOT_JOINER.join("killbill-service",
+                                                           "kb_plugin_errors",
+                                                           serviceName,
+                                                           serviceInterfaceName,
+                                                           method.getName());
+            return new MethodDescriptor(methodInvoker, profilingId, metricRegistry, timerMetricName, errorMetricName);
+        }
+    }
+
+    // Everything needed to invoke a given service method, resolved once per Method (overloads get their own descriptor,
+    // but still share their metrics as these are named after the method name only)
+    private static final class MethodDescriptor {
+
+        private final MethodInvoker methodInvoker;
+        private final String profilingId;
+        private final MetricRegistry metricRegistry;
+        private final String timerMetricName;
+        private final String errorMetricName;
+
+        // Resolved on first use, to only register metrics for methods actually called
+        private volatile Timer timer;
+        private volatile Meter errorMeter;
 
-            this.serviceClass = service.getClass();
-            this.serviceInterfaceName = serviceInterface.getSimpleName();
+        private MethodDescriptor(final MethodInvoker methodInvoker,
+                                 final String profilingId,
+                                 @Nullable final MetricRegistry metricRegistry,
+                                 @Nullable final String timerMetricName,
+                                 @Nullable final String errorMetricName) {
+            this.methodInvoker = methodInvoker;
+            this.profilingId = profilingId;
+            this.metricRegistry = metricRegistry;
+            this.timerMetricName = timerMetricName;
+            this.errorMetricName = errorMetricName;
+        }
+
+        private Object invoke(final Object[] args) throws Throwable {
+            try {
+                return methodInvoker.invoke(args);
+            } catch (final Throwable e) {
+                // Only count what the plugin threw, not failures of the platform around the call (e.g. profiling)
+                markError();
+                throw e;
+            }
+        }
 
-            if (this.metricRegistry != null) {
-                initializeMetricCaches();
+        private void updateTimer(final long durationNanos) {
+            if (metricRegistry == null) {
+                return;
+            }
+            Timer timer = this.timer;
+            if (timer == null) {
+                // Racy but idempotent: the registry always returns the same instance for a given name
+                timer = metricRegistry.timer(timerMetricName);
+                this.timer = timer;
+            }
+            timer.update(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void markError() {
+            if (metricRegistry == null) {
+                return;
+            }
+            Meter errorMeter = this.errorMeter;
+            if (errorMeter == null) {
+                errorMeter = metricRegistry.meter(errorMetricName);
+                this.errorMeter = errorMeter;
             }
+            errorMeter.mark(1);
+        }
+    }
+
+    private static class ClassLoaderInvocationHandler extends AbstractInvocationHandler {
+
+        private final ClassLoader serviceClassLoader;
+        private final Map<Method, MethodDescriptor> methodDescriptors;
+        private final MethodDescriptorFactory methodDescriptorFactory;
+
+        public ClassLoaderInvocationHandler(final ClassLoader serviceClassLoader,
+                                            final Map<Method, MethodDescriptor> methodDescriptors,
+                                            final MethodDescriptorFactory methodDescriptorFactory) {
+            this.serviceClassLoader = serviceClassLoader;
+            this.methodDescriptors = methodDescriptors;
+            this.methodDescriptorFactory = methodDescriptorFactory;
         }
 
         @Override
         protected Object handleInvocation(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final MethodDescriptor methodDescriptor = methodDescriptor(method);
+
             final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
             final long start = System.nanoTime();
             try {
-                Thread.currentThread().setContextClassLoader(serviceClass.getClassLoader());
-                final String methodName = method.getName();
+                Thread.currentThread().setContextClassLoader(serviceClassLoader);
+
+                if (Profiling.getPerThreadProfilingData() == null) {
+                    // Per-thread profiling isn't active, skip the profiling machinery altogether
+                    return methodDescriptor.invoke(args);
+                }
 
                 final Profiling<Object, Throwable> prof = new Profiling<>();
-                final String profilingId = serviceInterfaceName + "." + methodName;
-                return prof.executeWithProfiling(ProfilingFeatureType.PLUGIN, profilingId, new WithProfilingCallback<>() {
+                return prof.executeWithProfiling(ProfilingFeatureType.PLUGIN, methodDescriptor.profilingId, new WithProfilingCallback<>() {
                     @Override
                     public Object execute() throws Throwable {
-                        return method.invoke(service, args);
+                        return methodDescriptor.invoke(args);
                     }
                 });
-            } catch (final InvocationTargetException e) {
-                final Optional<Meter> errors = errorMeter(method);
-                errors.ifPresent(meter -> meter.mark(1));
-                if (e.getCause() != null) {
-                    throw e.getCause();
-                } else {
-                    throw new RuntimeException(e);
-                }
             } finally {
-                final Optional<Timer> times = timer(method);
-                times.ifPresent(timer -> timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+                methodDescriptor.updateTimer(System.nanoTime() - start);
                 Thread.currentThread().setContextClassLoader(initialContextClassLoader);
             }
         }
 
-        private Optional<Timer> timer(final Method method) {
-            return timerMetricCache == null ? Optional.empty() : Optional.of(timerMetricCache.get(method.getName()));
-        }
-
-        private Optional<Meter> errorMeter(final Method method) {
-            return errorMetricCache == null ? Optional.empty() : Optional.of(errorMetricCache.get(method.getName()));
-        }
-
-        private void initializeMetricCaches() {
-            timerMetricCache = new DefaultSynchronizedCache<>(Integer.MAX_VALUE, DefaultCache.NO_TIMEOUT, methodName -> {
-                final String timerMetricName = DOT_JOINER.join("killbill-service",
-                                                               "kb_plugin_latency",
-                                                               serviceName,
-                                                               serviceInterfaceName,
-                                                               methodName);
-
-                return metricRegistry.timer(timerMetricName);
-            });
-            errorMetricCache = new DefaultSynchronizedCache<>(Integer.MAX_VALUE, DefaultCache.NO_TIMEOUT, methodName -> {
-                final String counterMetricName = DOT_JOINER.join("killbill-service",
-                                                                 "kb_plugin_errors",
-                                                                 serviceName,
-                                                                 serviceInterfaceName,
-                                                                 methodName);
-
-                return metricRegistry.meter(counterMetricName);
-            });
+        private MethodDescriptor methodDescriptor(final Method method) {
+            final MethodDescriptor methodDescriptor = methodDescriptors.get(method);
+            // Shouldn't happen, all methods of the proxied interfaces are resolved upfront
+            return methodDescriptor != null ? methodDescriptor : methodDescriptorFactory.create(method);
         }
     }
 }
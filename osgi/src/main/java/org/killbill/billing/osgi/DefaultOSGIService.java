@@ -19,13 +19,13 @@
 
 package org.killbill.billing.osgi;
 
-import java.io.File;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -37,6 +37,7 @@ import org.killbill.billing.platform.api.LifecycleHandlerType;
 import org.killbill.billing.platform.api.OSGIService;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.bus.api.PersistentBus.EventBusException;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.launch.Framework;
@@ -53,6 +54,7 @@ public class DefaultOSGIService implements OSGIService {
     private final List<BundleWithConfig> installedBundles;
     private final PersistentBus externalBus;
     private final OSGIListener osgiListener;
+    private final OSGIBundleCache bundleCache;
 
     private Framework framework;
 
@@ -66,6 +68,7 @@ public class DefaultOSGIService implements OSGIService {
         this.externalBus = externalBus;
         this.osgiListener = osgiListener;
         this.installedBundles = new LinkedList<BundleWithConfig>();
+        this.bundleCache = new OSGIBundleCache(osgiConfig.getOSGIBundleRootDir(), osgiConfig.isOSGIBundleCachePersistent());
         this.framework = null;
     }
 
@@ -82,13 +85,21 @@ public class DefaultOSGIService implements OSGIService {
     @LifecycleHandlerType(LifecycleHandlerType.LifecycleLevel.INIT_PLUGIN)
     public void initialize() {
         try {
-            // We start by deleting existing osi cache; we might optimize later keeping the cache
-            pruneOSGICache();
+            final long startTime = System.nanoTime();
 
-            // Create the system bundle for killbill and start the framework
+            // Create the system bundle for killbill and start the framework. Cached bundles whose jar
+            // changed are evicted before the framework starts, so they get reinstalled below.
             this.framework = createAndInitFramework();
+            bundleCache.evictStaleBundles(framework.getBundleContext());
             framework.start();
-            bundleRegistry.installBundles(framework);
+
+            final List<Bundle> bundles = new ArrayList<Bundle>();
+            for (final BundleWithConfig bundleWithConfig : bundleRegistry.installBundles(framework)) {
+                bundles.add(bundleWithConfig.getBundle());
+            }
+            bundleCache.commit(framework.getBundleContext(), bundles);
+            logger.info("OSGI framework initialized in {} ms ({} bundles installed, {} reused from the cache, {} evicted from the cache)",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), bundles.size(), bundleCache.getNbReusedBundles(), bundleCache.getNbEvictedBundles());
 
             externalBus.register(osgiListener);
         } catch (final BundleException e) {
@@ -168,43 +179,9 @@ public class DefaultOSGIService implements OSGIService {
                         List.<BundleActivator>of(killbillActivator));
 
         final Framework felix = new Felix(felixConfig);
+        // The bundle cache is opened on init
+        bundleCache.prepare(felix.getVersion().toString(), config);
         felix.init();
         return felix;
     }
-
-    private void pruneOSGICache() {
-        final String path = osgiConfig.getOSGIBundleRootDir();
-        deleteUnderDirectory(new File(path));
-    }
-
-    private static void deleteUnderDirectory(final File path) {
-        deleteDirectory(path, false);
-    }
-
-    private static void deleteDirectory(final File path, final boolean deleteParent) {
-        if (path == null) {
-            return;
-        }
-
-        if (path.exists()) {
-            final File[] files = path.listFiles();
-            if (files != null) {
-                for (final File f : files) {
-                    if (f.isDirectory()) {
-                        deleteDirectory(f, true);
-                    } else if (!f.delete()) {
-                        logger.warn("Unable to delete {}", f.getAbsolutePath());
-                    }
-                }
-            }
-
-            if (deleteParent) {
-                if (!path.delete()) {
-                    logger.warn("Unable to delete {}", path.getAbsolutePath());
-                } else {
-                    logger.info("Deleted recursively {}", path.getAbsolutePath());
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.api.OSGIKillbillBatchEventObserver;
+import org.killbill.billing.osgi.config.OSGIConfig.EventBackpressurePolicy;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue and worker thread delivering events to a single plugin observer, so that a slow
+ * plugin doesn't delay the other ones (nor hold the bus thread).
+ * <p>
+ * Events are acknowledged on the bus once queued: the events the observer fails to handle, and the ones still queued
+ * when the lane stops, are handed to the failure handler (retry queue).
+ * <p>
+ * Batch observers get the queued events in micro-batches (see {@link OSGIKillbillBatchEventObserver}), built by the worker.
+ */
+final class EventDeliveryLane {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventDeliveryLane.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    interface FailureHandler {
+
+        /**
+         * @param name  name of the lane (observer)
+         * @param event event which wasn't delivered
+         * @param cause exception thrown by the observer, or why the event wasn't delivered
+         */
+        void onFailure(String name, Object event, RuntimeException cause);
+    }
+
+    private final String name;
+    private final Observable observable;
+    private final Observer observer;
+    private final EventBackpressurePolicy backpressurePolicy;
+    private final FailureHandler failureHandler;
+    private final BlockingQueue<QueuedEvent> queue;
+    private final ExecutorService executor;
+    private final MetricRegistry metricRegistry;
+    private final String queueDepthMetricName;
+    private final Timer latency;
+    private final Counter dropped;
+    private final Counter errors;
+
+    private volatile boolean running = true;
+
+    EventDeliveryLane(final String name,
+                      final Observable observable,
+                      final Observer observer,
+                      final int capacity,
+                      final EventBackpressurePolicy backpressurePolicy,
+                      final FailureHandler failureHandler,
+                      final MetricRegistry metricRegistry) {
+        this.name = name;
+        this.observable = observable;
+        this.observer = observer;
+        this.backpressurePolicy = backpressurePolicy;
+        this.failureHandler = failureHandler;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = Executors.newSingleThreadExecutor("osgi-event-lane-" + name);
+        this.metricRegistry = metricRegistry;
+
+        this.queueDepthMetricName = "killbill-service.kb_event_dispatch_queue_depth." + name;
+        metricRegistry.gauge(queueDepthMetricName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.size();
+            }
+        });
+        this.latency = metricRegistry.timer("killbill-service.kb_event_dispatch_latency." + name);
+        this.dropped = metricRegistry.counter("killbill-service.kb_event_dispatch_dropped." + name);
+        this.errors = metricRegistry.counter("killbill-service.kb_event_dispatch_errors." + name);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void start() {
+        executor.submit(this::drain);
+    }
+
+    /**
+     * @param event event to deliver
+     * @return false if the event couldn't be queued (RETRY policy, or stopped lane), in which case it should be retried later
+     */
+    boolean submit(final Object event) {
+        if (!running) {
+            return false;
+        }
+        final QueuedEvent queuedEvent = new QueuedEvent(event, System.nanoTime());
+        final boolean queued = offer(queuedEvent);
+        // Stopped meanwhile: awaitStop may have drained the queue already, in which case the event would be lost
+        if (queued && !running && queue.remove(queuedEvent)) {
+            return false;
+        }
+        return queued;
+    }
+
+    private boolean offer(final QueuedEvent queuedEvent) {
+        switch (backpressurePolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(queuedEvent)) {
+                    final QueuedEvent evicted = queue.poll();
+                    if (evicted != null) {
+                        dropped.inc(1);
+                        logger.warn("Event queue for observer {} is full, dropping event {}", name, evicted.event);
+                    }
+                }
+                return true;
+            case RETRY:
+                return queue.offer(queuedEvent);
+            case BLOCK:
+            default:
+                try {
+                    // Don't block forever if the lane stops meanwhile
+                    while (running) {
+                        if (queue.offer(queuedEvent, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while waiting to queue event {} for observer {}", queuedEvent.event, name);
+                    return false;
+                }
+        }
+    }
+
+    /**
+     * Stops accepting events and lets the worker drain the queue. See awaitStop.
+     */
+    void stop() {
+        running = false;
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the worker to drain the queue (up to 10 seconds), then hands the remaining events to the failure handler.
+     */
+    void awaitStop() {
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+
+        final List<QueuedEvent> undelivered = new ArrayList<>();
+        queue.drainTo(undelivered);
+        if (!undelivered.isEmpty()) {
+            logger.warn("Stopping event lane for observer {} with {} undelivered event(s)", name, undelivered.size());
+            final RuntimeException cause = new IllegalStateException("Event lane for observer " + name + " stopped");
+            for (final QueuedEvent queuedEvent : undelivered) {
+                failureHandler.onFailure(name, queuedEvent.event, cause);
+            }
+        }
+        metricRegistry.remove(queueDepthMetricName);
+    }
+
+    private void drain() {
+        final OSGIKillbillBatchEventObserver batchObserver = observer instanceof OSGIKillbillBatchEventObserver ? (OSGIKillbillBatchEventObserver) observer : null;
+        final List<QueuedEvent> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            final QueuedEvent queuedEvent;
+            try {
+                queuedEvent = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (queuedEvent == null) {
+                continue;
+            }
+            if (batchObserver != null) {
+                deliverBatch(batchObserver, queuedEvent, batch);
+                continue;
+            }
+
+            try {
+                observer.update(observable, queuedEvent.event);
+            } catch (final RuntimeException e) {
+                errors.inc(1);
+                logger.warn("Observer {} failed to handle event {}", name, queuedEvent.event, e);
+                failureHandler.onFailure(name, queuedEvent.event, e);
+            } finally {
+                latency.update(System.nanoTime() - queuedEvent.enqueuedNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void deliverBatch(final OSGIKillbillBatchEventObserver batchObserver, final QueuedEvent first, final List<QueuedEvent> batch) {
+        final int maxBatchSize = Math.max(1, batchObserver.getMaxBatchSize());
+        batch.clear();
+        batch.add(first);
+        queue.drainTo(batch, maxBatchSize - 1);
+
+        // Don't linger when stopping (polls are bounded so that stop is noticed)
+        final long lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchObserver.getLingerMillis()));
+        final long deadline = System.nanoTime() + lingerNanos;
+        while (running && batch.size() < maxBatchSize) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                break;
+            }
+            final QueuedEvent next;
+            try {
+                next = queue.poll(Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MILLIS)), TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (next != null) {
+                batch.add(next);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            }
+        }
+
+        final List<Object> events = new ArrayList<>(batch.size());
+        for (final QueuedEvent queuedEvent : batch) {
+            events.add(queuedEvent.event);
+        }
+        try {
+            batchObserver.updateBatch(observable, Collections.unmodifiableList(events));
+        } catch (final RuntimeException e) {
+            // Each event is retried on its own (in a batch of one, see KillbillEventObservable#deliver): retry notifications
+            // hold a single bus event, keyed by its account, and the events of a batch may belong to different accounts
+            errors.inc(1);
+            logger.warn("Observer {} failed to handle a batch of {} event(s)", name, events.size(), e);
+            for (final Object event : events) {
+                failureHandler.onFailure(name, event, e);
+            }
+        } finally {
+            final long nowNanos = System.nanoTime();
+            for (final QueuedEvent queuedEvent : batch) {
+                latency.update(nowNanos - queuedEvent.enqueuedNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static final class QueuedEvent {
+
+        private final Object event;
+        private final long enqueuedNanos;
+
+        private QueuedEvent(final Object event, final long enqueuedNanos) {
+            this.event = event;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
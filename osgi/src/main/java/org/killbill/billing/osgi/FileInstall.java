@@ -20,19 +20,25 @@
 package org.killbill.billing.osgi;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import org.killbill.billing.osgi.ParallelBundleRunner.Outcome;
 import org.killbill.billing.osgi.api.KillbillNodesApiHolder;
 import org.killbill.billing.osgi.api.config.PluginConfig;
 import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
 import org.killbill.billing.osgi.api.config.PluginJavaConfig;
 import org.killbill.billing.osgi.api.config.PluginLanguage;
 import org.killbill.billing.osgi.api.config.PluginRubyConfig;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.pluginconf.DefaultPluginConfig;
 import org.killbill.billing.osgi.pluginconf.DefaultPluginConfigServiceApi;
 import org.killbill.billing.osgi.pluginconf.PluginConfigException;
 import org.killbill.billing.osgi.pluginconf.PluginFinder;
@@ -52,12 +58,14 @@ public class FileInstall {
     private final PureOSGIBundleFinder osgiBundleFinder;
     private final PluginFinder pluginFinder;
     private final PluginConfigServiceApi pluginConfigServiceApi;
+    private final ParallelBundleRunner bundleRunner;
 
     @Inject
-    public FileInstall(final PureOSGIBundleFinder osgiBundleFinder, final PluginFinder pluginFinder, final KillbillNodesApiHolder nodesApiHolder, final PluginConfigServiceApi pluginConfigServiceApi) {
+    public FileInstall(final PureOSGIBundleFinder osgiBundleFinder, final PluginFinder pluginFinder, final KillbillNodesApiHolder nodesApiHolder, final PluginConfigServiceApi pluginConfigServiceApi, final OSGIConfig osgiConfig) {
         this.osgiBundleFinder = osgiBundleFinder;
         this.pluginFinder = pluginFinder;
         this.pluginConfigServiceApi = pluginConfigServiceApi;
+        this.bundleRunner = new ParallelBundleRunner(osgiConfig.getBundleStartThreads(), osgiConfig.getBundleStartTimeout().getMillis());
     }
 
     public List<BundleWithConfig> installBundles(final Framework framework) {
@@ -67,7 +75,8 @@ public class FileInstall {
 
             final BundleContext context = framework.getBundleContext();
 
-            // Install all bundles and create service mapping
+            // Install all bundles and create service mapping. Pure OSGI (library) bundles are installed first,
+            // before the Kill Bill plugins which may depend on them.
             installAllOSGIBundles(context, installedBundles);
             installAllJavaPluginBundles(context, installedBundles);
         } catch (final PluginConfigException e) {
@@ -131,9 +140,34 @@ public class FileInstall {
 
     private void installAllJavaPluginBundles(final BundleContext context, final List<BundleWithConfig> installedBundles) throws PluginConfigException, BundleException, IOException {
         final List<PluginJavaConfig> pluginJavaConfigs = pluginFinder.getLatestJavaPlugins();
-        for (final PluginJavaConfig cur : pluginJavaConfigs) {
-            final Bundle bundle = installBundle(cur, context, PluginLanguage.JAVA);
-            installedBundles.add(new BundleWithConfig(bundle, cur));
+        final List<Outcome<Bundle>> outcomes = bundleRunner.run("install", pluginJavaConfigs, cur -> installBundle(cur, context, PluginLanguage.JAVA), null, this::uninstallLateBundle);
+
+        BundleException firstFailure = null;
+        for (int i = 0; i < pluginJavaConfigs.size(); i++) {
+            final Outcome<Bundle> outcome = outcomes.get(i);
+            if (outcome.getException() != null) {
+                if (!bundleRunner.isParallel()) {
+                    // Historical behavior: stop at the first failure
+                    throw toBundleException(outcome.getException());
+                } else if (firstFailure == null) {
+                    firstFailure = toBundleException(outcome.getException());
+                }
+            } else if (outcome.getResult() != null) {
+                installedBundles.add(new BundleWithConfig(outcome.getResult(), pluginJavaConfigs.get(i)));
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    private static BundleException toBundleException(final Exception e) {
+        if (e instanceof BundleException) {
+            return (BundleException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else {
+            return new BundleException(e.getMessage(), e);
         }
     }
 
@@ -148,8 +182,10 @@ public class FileInstall {
                 if (bundle == null) {
                     logger.info("Installing Java bundle for plugin {} from {}", javaConfig.getPluginName(), javaConfig.getBundleJarPath());
                     bundle = context.installBundle(location);
-                    ((DefaultPluginConfigServiceApi) pluginConfigServiceApi).registerBundle(bundle.getBundleId(), javaConfig);
+                } else {
+                    logger.info("Reusing cached Java bundle for plugin {} from {}", javaConfig.getPluginName(), javaConfig.getBundleJarPath());
                 }
+                ((DefaultPluginConfigServiceApi) pluginConfigServiceApi).registerBundle(bundle.getBundleId(), javaConfig);
                 break;
             default:
                 throw new IllegalStateException("Unknown pluginLanguage " + pluginLanguage);
@@ -157,6 +193,44 @@ public class FileInstall {
         return bundle;
     }
 
+    /**
+     * Start the bundles: pure OSGI bundles first (one after the other), then the Kill Bill plugins, by increasing start order
+     * (see {@link DefaultPluginConfig#getStartOrder()}). Plugins with the same start order may be started in parallel.
+     *
+     * @param bundleWithConfigs bundles to start
+     * @return whether each bundle was started, in the same order
+     */
+    public List<Boolean> startBundles(final List<BundleWithConfig> bundleWithConfigs) {
+        final Map<Integer, List<Integer>> bundleIndexesByStartOrder = new TreeMap<Integer, List<Integer>>();
+        final List<Integer> pureOSGIBundleIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < bundleWithConfigs.size(); i++) {
+            final BundleWithConfig bundleWithConfig = bundleWithConfigs.get(i);
+            if (bundleWithConfig.getConfig() == null) {
+                pureOSGIBundleIndexes.add(i);
+            } else {
+                final int startOrder = bundleWithConfig.getConfig() instanceof DefaultPluginConfig ? ((DefaultPluginConfig) bundleWithConfig.getConfig()).getStartOrder() : 0;
+                bundleIndexesByStartOrder.computeIfAbsent(startOrder, k -> new ArrayList<Integer>()).add(i);
+            }
+        }
+
+        final Boolean[] started = new Boolean[bundleWithConfigs.size()];
+        for (final Integer i : pureOSGIBundleIndexes) {
+            started[i] = startBundle(bundleWithConfigs.get(i).getBundle());
+        }
+        for (final List<Integer> batch : bundleIndexesByStartOrder.values()) {
+            final List<Bundle> bundles = new ArrayList<Bundle>(batch.size());
+            for (final Integer i : batch) {
+                bundles.add(bundleWithConfigs.get(i).getBundle());
+            }
+            final List<Outcome<Boolean>> outcomes = bundleRunner.run("start", bundles, this::startBundle, false, this::stopLateBundle);
+            for (int j = 0; j < batch.size(); j++) {
+                // startBundle doesn't throw
+                started[batch.get(j)] = Boolean.TRUE.equals(outcomes.get(j).getResult());
+            }
+        }
+        return List.of(started);
+    }
+
     public boolean startBundle(final Bundle bundle) {
         if (bundle.getState() == Bundle.UNINSTALLED) {
             logger.info("Skipping uninstalled bundle {}", bundle.getLocation());
@@ -166,7 +240,8 @@ public class FileInstall {
         } else {
             logger.info("Starting bundle {}", bundle.getLocation());
             try {
-                bundle.start();
+                // Transient, as the Kill Bill lifecycle (and not the framework) decides when plugins start
+                bundle.start(Bundle.START_TRANSIENT);
                 return true;
             } catch (final BundleException e) {
                 logger.warn("Unable to start bundle", e);
@@ -175,6 +250,32 @@ public class FileInstall {
         return false;
     }
 
+    // The install timed out: the bundle was reported as not installed
+    private void uninstallLateBundle(final PluginJavaConfig config, final Bundle bundle) {
+        if (bundle == null) {
+            return;
+        }
+        logger.warn("Uninstalling bundle {}, installed after the timeout", bundle.getLocation());
+        try {
+            bundle.uninstall();
+        } catch (final BundleException e) {
+            logger.warn("Unable to uninstall bundle {}", bundle.getLocation(), e);
+        }
+    }
+
+    // The start timed out: the bundle was reported as not started
+    private void stopLateBundle(final Bundle bundle, final Boolean started) {
+        if (!Boolean.TRUE.equals(started)) {
+            return;
+        }
+        logger.warn("Stopping bundle {}, started after the timeout", bundle.getLocation());
+        try {
+            bundle.stop(Bundle.STOP_TRANSIENT);
+        } catch (final BundleException e) {
+            logger.warn("Unable to stop bundle {}", bundle.getLocation(), e);
+        }
+    }
+
     /**
      * Check if a bundle is a fragment.
      *
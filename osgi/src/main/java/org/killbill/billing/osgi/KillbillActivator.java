@@ -50,6 +50,7 @@ import org.killbill.billing.osgi.api.OSGIServiceRegistrable;
 import org.killbill.billing.osgi.api.OSGIServiceRegistration;
 import org.killbill.billing.osgi.api.OSGISingleServiceRegistration;
 import org.killbill.billing.osgi.api.ServiceDiscoveryRegistry;
+import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.billing.osgi.glue.DefaultOSGIModule;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.platform.jndi.JNDIManager;
@@ -90,6 +91,7 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
     private final JNDIManager jndiManager;
     private final MetricRegistry metricsRegistry;
     private final BundleRegistry bundleRegistry;
+    private final OSGIConfig osgiConfig;
     private final List<OSGIServiceRegistrable> allRegistrationHandlers;
 
     private BundleContext context = null;
@@ -109,7 +111,8 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
                              final OSGIConfigProperties configProperties,
                              final MetricRegistry metricsRegistry,
                              final HealthCheckRegistry healthCheckRegistry,
-                             final JNDIManager jndiManager) {
+                             final JNDIManager jndiManager,
+                             final OSGIConfig osgiConfig) {
         this.osgiKillbill = osgiKillbill;
         this.bundleRegistry = bundleRegistry;
         this.defaultHttpService = defaultHttpService;
@@ -121,6 +124,7 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
         this.jndiManager = jndiManager;
         this.metricsRegistry = metricsRegistry;
         this.healthCheckRegistry = healthCheckRegistry;
+        this.osgiConfig = osgiConfig;
         this.registrar = new OSGIKillbillRegistrar();
         this.allRegistrationHandlers = new LinkedList<OSGIServiceRegistrable>();
     }
@@ -199,7 +203,12 @@ public class KillbillActivator implements BundleActivator, AllServiceListener {
 
             final ch.qos.logback.classic.Logger root = ((ch.qos.logback.classic.LoggerContext) factory).getLogger(Logger.ROOT_LOGGER_NAME);
 
-            osgiAppender = new OSGIAppender(logTracker, context.getBundle());
+            osgiAppender = new OSGIAppender(logTracker,
+                                            context.getBundle(),
+                                            osgiConfig.getLogForwardingMode(),
+                                            osgiConfig.getLogForwardingQueueCapacity(),
+                                            osgiConfig.getLogForwardingOverflowPolicy(),
+                                            metricsRegistry);
             osgiAppender.setContext(root.getLoggerContext());
             osgiAppender.start();
             root.addAppender(osgiAppender);
@@ -19,13 +19,166 @@
 
 package org.killbill.billing.osgi;
 
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.api.OSGIKillbillBatchEventObserver;
+import org.killbill.billing.osgi.api.OSGIKillbillEventObserver;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.config.OSGIConfig.EventBackpressurePolicy;
+import org.killbill.billing.osgi.config.OSGIConfig.EventDispatchMode;
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kill Bill event service (registered as a {@link Observable} in OSGI).
+ * <p>
+ * The inherited (synchronized) observer list isn't used: observers are kept in an immutable registry, republished through a
+ * volatile field on (rare) registration changes, so that dispatching an event only reads the current snapshot.
+ */
 public class KillbillEventObservable extends Observable {
 
+    private static final Logger logger = LoggerFactory.getLogger(KillbillEventObservable.class);
+
+    private static final String INVOCATION_LATENCY_METRIC_PREFIX = "killbill-service.kb_event_observer_latency.";
+    private static final int DEFAULT_LANE_CAPACITY = 1000;
+
+    private final EventDispatchMode dispatchMode;
+    private final int laneCapacity;
+    private final EventBackpressurePolicy backpressurePolicy;
+    private final MetricRegistry metricRegistry;
+
+    // Written with the monitor held
+    private volatile ObserverRegistry registry = ObserverRegistry.EMPTY;
+    // Events the delivery lanes failed to deliver (see KillbillEventRetriableBusHandler)
+    private volatile EventDeliveryLane.FailureHandler laneFailureHandler;
+    private final Map<ExtBusEventType, Counter> deliveredByEventType = new EnumMap<>(ExtBusEventType.class);
+    private final Map<ExtBusEventType, Counter> skippedByEventType = new EnumMap<>(ExtBusEventType.class);
+    private final Map<ExtBusEventType, Counter> excludedFromRetryByEventType = new EnumMap<>(ExtBusEventType.class);
+
+    public KillbillEventObservable() {
+        this(EventDispatchMode.SYNC, 0, EventBackpressurePolicy.BLOCK, new NoOpMetricRegistry());
+    }
+
+    @Inject
+    public KillbillEventObservable(final OSGIConfig osgiConfig, final MetricRegistry metricRegistry) {
+        this(osgiConfig.getEventDispatchMode(), osgiConfig.getEventDispatchQueueCapacity(), osgiConfig.getEventDispatchBackpressurePolicy(), metricRegistry);
+    }
+
+    public KillbillEventObservable(final EventDispatchMode dispatchMode,
+                                   final int laneCapacity,
+                                   final EventBackpressurePolicy backpressurePolicy,
+                                   final MetricRegistry metricRegistry) {
+        this.dispatchMode = dispatchMode;
+        this.laneCapacity = laneCapacity;
+        this.backpressurePolicy = backpressurePolicy;
+        this.metricRegistry = metricRegistry;
+        for (final ExtBusEventType eventType : ExtBusEventType.values()) {
+            deliveredByEventType.put(eventType, metricRegistry.counter("killbill-service.kb_event_dispatch_delivered." + eventType));
+            skippedByEventType.put(eventType, metricRegistry.counter("killbill-service.kb_event_dispatch_skipped." + eventType));
+            excludedFromRetryByEventType.put(eventType, metricRegistry.counter("killbill-service.kb_event_dispatch_retry_excluded." + eventType));
+        }
+    }
+
+    @Override
+    public synchronized void addObserver(final Observer o) {
+        if (o == null) {
+            throw new NullPointerException();
+        }
+        final ObserverRegistry current = registry;
+        if (current.contains(o)) {
+            return;
+        }
+
+        final String name = uniqueName(o, current);
+        EventDeliveryLane lane = null;
+        // Batches are built by the lane worker, whatever the dispatch mode
+        if (dispatchMode == EventDispatchMode.ASYNC || o instanceof OSGIKillbillBatchEventObserver) {
+            lane = new EventDeliveryLane(name, this, o, laneCapacity > 0 ? laneCapacity : DEFAULT_LANE_CAPACITY, backpressurePolicy, this::onLaneFailure, metricRegistry);
+            lane.start();
+        }
+        registry = current.with(new Subscription(o, name, lane, metricRegistry.timer(INVOCATION_LATENCY_METRIC_PREFIX + name)));
+    }
+
+    @Override
+    public synchronized void deleteObserver(final Observer o) {
+        final ObserverRegistry current = registry;
+        final Subscription subscription = current.find(o);
+        if (subscription == null) {
+            return;
+        }
+        registry = current.without(subscription);
+        if (subscription.lane != null) {
+            subscription.lane.stop();
+            subscription.lane.awaitStop();
+        }
+    }
+
+    @Override
+    public synchronized void deleteObservers() {
+        final ObserverRegistry current = registry;
+        registry = ObserverRegistry.EMPTY;
+        // Let the lanes drain in parallel
+        for (final Subscription subscription : current.allSubscriptions) {
+            if (subscription.lane != null) {
+                subscription.lane.stop();
+            }
+        }
+        for (final Subscription subscription : current.allSubscriptions) {
+            if (subscription.lane != null) {
+                subscription.lane.awaitStop();
+            }
+        }
+    }
+
+    void setLaneFailureHandler(@Nullable final EventDeliveryLane.FailureHandler laneFailureHandler) {
+        this.laneFailureHandler = laneFailureHandler;
+    }
+
+    private void onLaneFailure(final String name, final Object event, final RuntimeException cause) {
+        final EventDeliveryLane.FailureHandler handler = laneFailureHandler;
+        if (handler == null) {
+            logger.warn("Event {} not delivered to observer {}", event, name, cause);
+            return;
+        }
+        try {
+            handler.onFailure(name, event, cause);
+        } catch (final RuntimeException e) {
+            logger.error("Failed to schedule the retry of event {} for observer {}", event, name, e);
+        }
+    }
+
+    @Override
+    public int countObservers() {
+        return registry.allSubscriptions.length;
+    }
+
+    @Override
+    public void notifyObservers() {
+        notifyObservers(null);
+    }
+
     //
     // Override notifyObservers from Observable to prevent from having to
     // call setChanged and then notifyObservers, which are not atomic
@@ -33,31 +186,324 @@ public class KillbillEventObservable extends Observable {
     //
     @Override
     public void notifyObservers(final Object arg) {
-        final Vector obsCopy = getDeclaredField("obs");
-        final Object[] arrLocal = obsCopy.toArray();
-        for (int i = arrLocal.length - 1; i >= 0; i--) {
-            ((Observer) arrLocal[i]).update(this, arg);
+        if (!(arg instanceof ExtBusEvent)) {
+            // OSGI framework events are rare and delivered in place to everybody
+            for (final Subscription subscription : registry.allSubscriptions) {
+                invoke(subscription, arg);
+            }
+            return;
+        }
+
+        final DeliveryResult result = deliver((ExtBusEvent) arg, null);
+        if (result.getRetryException() != null) {
+            // Spill the event back to the retry queue. Note that all subscribed observers will see it again.
+            throw result.getRetryException();
+        }
+        if (result.getFailure() != null) {
+            throw result.getFailure();
+        }
+    }
+
+    /**
+     * Deliver an external bus event to the subscribed observers.
+     * <p>
+     * Unlike notifyObservers, an observer asking for a retry, failing, or whose delivery lane is full doesn't prevent the
+     * delivery to the next ones: the failed observers are returned, so that the retry only targets them.
+     * <p>
+     * Retries are delivered in place, bypassing the delivery lanes, so that a failed retry is reported to the caller and
+     * counts against the retry schedule.
+     *
+     * @param event         the event
+     * @param observerNames names of the observers to deliver to (retries), null for all subscribed observers
+     * @return the delivery result
+     */
+    public DeliveryResult deliver(final ExtBusEvent event, @Nullable final Set<String> observerNames) {
+        final ObserverRegistry current = registry;
+        final ExtBusEventType eventType = event.getEventType();
+        final ObjectType objectType = event.getObjectType();
+        int delivered = 0;
+        int excluded = 0;
+        Set<String> failedObserverNames = null;
+        QueueRetryException retryException = null;
+        RuntimeException failure = null;
+        List<String> notQueued = null;
+        for (final Subscription subscription : current.getSubscriptions(eventType)) {
+            if (subscription.objectTypes != null && !subscription.objectTypes.contains(objectType)) {
+                continue;
+            }
+            if (observerNames != null && !observerNames.contains(subscription.name)) {
+                // Retry: the observer handled the event already
+                excluded++;
+                continue;
+            }
+            delivered++;
+
+            if (subscription.lane == null || observerNames != null) {
+                try {
+                    invoke(subscription, event);
+                } catch (final QueueRetryException e) {
+                    if (retryException == null) {
+                        // Its retry schedule is used for all failed observers
+                        retryException = e;
+                    }
+                    if (failedObserverNames == null) {
+                        failedObserverNames = new HashSet<>();
+                    }
+                    failedObserverNames.add(subscription.name);
+                } catch (final RuntimeException e) {
+                    logger.warn("Observer {} failed to handle event {}", subscription.name, event, e);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    if (failedObserverNames == null) {
+                        failedObserverNames = new HashSet<>();
+                    }
+                    failedObserverNames.add(subscription.name);
+                }
+            } else if (!subscription.lane.submit(event)) {
+                if (notQueued == null) {
+                    notQueued = new ArrayList<>();
+                }
+                notQueued.add(subscription.name);
+                if (failedObserverNames == null) {
+                    failedObserverNames = new HashSet<>();
+                }
+                failedObserverNames.add(subscription.name);
+            }
+        }
+        if (eventType != null) {
+            deliveredByEventType.get(eventType).inc(delivered);
+            // Not subscribed
+            skippedByEventType.get(eventType).inc(current.allSubscriptions.length - delivered - excluded);
+            excludedFromRetryByEventType.get(eventType).inc(excluded);
+        }
+
+        if (notQueued != null && failure == null) {
+            failure = new QueueRetryException(new IllegalStateException("Event queue full for observer(s) " + notQueued));
+        }
+        if (failedObserverNames == null) {
+            return DeliveryResult.successful(delivered);
         }
+        return new DeliveryResult(delivered, failedObserverNames, retryException, failure);
     }
 
     public void setChangedAndNotifyObservers(final Object event) {
-        setChanged();
+        // The changed flag isn't used
         notifyObservers(event);
     }
 
-    //
-    // Ugly hack to access private field 'obs'
-    //
-    @SuppressWarnings("unchecked")
-    private <T> T getDeclaredField(final String fieldName) {
+    // In place invocations only (the delivery lanes time their own)
+    private void invoke(final Subscription subscription, final Object arg) {
+        final long startNanos = System.nanoTime();
         try {
-            final Field f = Observable.class.getDeclaredField(fieldName);
-            f.setAccessible(true);
-            return (T) f.get(this);
-        } catch (final NoSuchFieldException e) {
-            throw new RuntimeException("Failed to retrieve private field from Observable class " + fieldName, e);
-        } catch (final IllegalAccessException e) {
-            throw new RuntimeException("Failed to retrieve private field from Observable class " + fieldName, e);
+            if (subscription.batchObserver != null && arg instanceof ExtBusEvent) {
+                subscription.batchObserver.updateBatch(this, Collections.singletonList(arg));
+            } else {
+                subscription.observer.update(this, arg);
+            }
+        } finally {
+            subscription.invocations.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static <E extends Enum<E>> Set<E> toEnumSet(final Class<E> enumClass, final Set<String> names, final String observerName) {
+        if (names == null) {
+            return null;
+        }
+        final Set<E> values = EnumSet.noneOf(enumClass);
+        for (final String name : names) {
+            try {
+                values.add(Enum.valueOf(enumClass, name));
+            } catch (final IllegalArgumentException e) {
+                logger.warn("Ignoring unknown {} {} in subscriptions of observer {}", enumClass.getSimpleName(), name, observerName);
+            }
+        }
+        return values;
+    }
+
+    private static String observerName(final Observer observer) {
+        return observer instanceof OSGIKillbillEventObserver ?
+               ((OSGIKillbillEventObserver) observer).getObserverName() :
+               observer.getClass().getName();
+    }
+
+    // Identifies the observer in retries, lanes and metrics: unique among the registered observers, and stable across
+    // restarts as long as the observers sharing a name (e.g. plain observers of the same class) register in the same order
+    private static String uniqueName(final Observer observer, final ObserverRegistry registry) {
+        final String name = observerName(observer);
+        String uniqueName = name;
+        for (int i = 2; registry.hasName(uniqueName); i++) {
+            uniqueName = name + "#" + i;
+        }
+        return uniqueName;
+    }
+
+    private static final class Subscription {
+
+        private final Observer observer;
+        // Retries only (the delivery lane builds the batches)
+        private final OSGIKillbillBatchEventObserver batchObserver;
+        // See uniqueName
+        private final String name;
+        // ASYNC mode and batch observers only
+        private final EventDeliveryLane lane;
+        // Invocation count and latency
+        private final Timer invocations;
+        // null for all
+        private final Set<ExtBusEventType> eventTypes;
+        private final Set<ObjectType> objectTypes;
+
+        private Subscription(final Observer observer, final String name, @Nullable final EventDeliveryLane lane, final Timer invocations) {
+            this.observer = observer;
+            this.batchObserver = observer instanceof OSGIKillbillBatchEventObserver ? (OSGIKillbillBatchEventObserver) observer : null;
+            this.name = name;
+            this.lane = lane;
+            this.invocations = invocations;
+            if (observer instanceof OSGIKillbillEventObserver) {
+                final OSGIKillbillEventObserver killbillObserver = (OSGIKillbillEventObserver) observer;
+                this.eventTypes = toEnumSet(ExtBusEventType.class, killbillObserver.getSubscribedEventTypes(), name);
+                this.objectTypes = toEnumSet(ObjectType.class, killbillObserver.getSubscribedObjectTypes(), name);
+            } else {
+                this.eventTypes = null;
+                this.objectTypes = null;
+            }
+        }
+    }
+
+    public static final class DeliveryResult {
+
+        // Shared (immutable) results of the successful deliveries, by number of observers
+        private static final DeliveryResult[] SUCCESSFUL = new DeliveryResult[64];
+
+        static {
+            for (int i = 0; i < SUCCESSFUL.length; i++) {
+                SUCCESSFUL[i] = new DeliveryResult(i, Set.of(), null, null);
+            }
+        }
+
+        private final int nbDelivered;
+        private final Set<String> failedObserverNames;
+        private final QueueRetryException retryException;
+        private final RuntimeException failure;
+
+        private DeliveryResult(final int nbDelivered,
+                               final Set<String> failedObserverNames,
+                               @Nullable final QueueRetryException retryException,
+                               @Nullable final RuntimeException failure) {
+            this.nbDelivered = nbDelivered;
+            this.failedObserverNames = failedObserverNames;
+            this.retryException = retryException;
+            this.failure = failure;
+        }
+
+        private static DeliveryResult successful(final int nbDelivered) {
+            return nbDelivered < SUCCESSFUL.length ? SUCCESSFUL[nbDelivered] : new DeliveryResult(nbDelivered, Set.of(), null, null);
+        }
+
+        // Number of observers the event was delivered (or submitted) to, including the failed ones
+        public int getNbDelivered() {
+            return nbDelivered;
+        }
+
+        public Set<String> getFailedObserverNames() {
+            return failedObserverNames;
+        }
+
+        // Retry requested by an observer (with its schedule), null if none
+        @Nullable
+        public QueueRetryException getRetryException() {
+            return retryException;
+        }
+
+        // First exception thrown by an observer (other than a retry request) or full delivery lane, null if none
+        @Nullable
+        public RuntimeException getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccessful() {
+            return retryException == null && failure == null;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the observers, in notification order (reverse registration order, as Observable), with the
+     * observers subscribed to each event type.
+     */
+    private static final class ObserverRegistry {
+
+        private static final Subscription[] NONE = new Subscription[0];
+        private static final ObserverRegistry EMPTY = new ObserverRegistry(NONE);
+
+        private final Subscription[] allSubscriptions;
+        private final Map<ExtBusEventType, Subscription[]> subscriptionsByEventType = new EnumMap<>(ExtBusEventType.class);
+
+        private ObserverRegistry(final Subscription[] allSubscriptions) {
+            this.allSubscriptions = allSubscriptions;
+
+            final Map<ExtBusEventType, List<Subscription>> subscriptions = new EnumMap<>(ExtBusEventType.class);
+            for (final ExtBusEventType eventType : ExtBusEventType.values()) {
+                subscriptions.put(eventType, new ArrayList<>());
+            }
+            for (final Subscription subscription : allSubscriptions) {
+                for (final Entry<ExtBusEventType, List<Subscription>> entry : subscriptions.entrySet()) {
+                    if (subscription.eventTypes == null || subscription.eventTypes.contains(entry.getKey())) {
+                        entry.getValue().add(subscription);
+                    }
+                }
+            }
+            for (final Entry<ExtBusEventType, List<Subscription>> entry : subscriptions.entrySet()) {
+                subscriptionsByEventType.put(entry.getKey(), entry.getValue().toArray(NONE));
+            }
+        }
+
+        private boolean hasName(final String name) {
+            for (final Subscription subscription : allSubscriptions) {
+                if (subscription.name.equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean contains(final Observer observer) {
+            return find(observer) != null;
+        }
+
+        @Nullable
+        private Subscription find(final Observer observer) {
+            for (final Subscription subscription : allSubscriptions) {
+                if (subscription.observer.equals(observer)) {
+                    return subscription;
+                }
+            }
+            return null;
+        }
+
+        private ObserverRegistry with(final Subscription subscription) {
+            final Subscription[] subscriptions = new Subscription[allSubscriptions.length + 1];
+            subscriptions[0] = subscription;
+            System.arraycopy(allSubscriptions, 0, subscriptions, 1, allSubscriptions.length);
+            return new ObserverRegistry(subscriptions);
+        }
+
+        private ObserverRegistry without(final Subscription subscription) {
+            final List<Subscription> subscriptions = new ArrayList<>(allSubscriptions.length);
+            for (final Subscription existing : allSubscriptions) {
+                if (existing != subscription) {
+                    subscriptions.add(existing);
+                }
+            }
+            return subscriptions.isEmpty() ? EMPTY : new ObserverRegistry(subscriptions.toArray(NONE));
+        }
+
+        // Events without type (not expected in practice) go to all observers
+        private Subscription[] getSubscriptions(final ExtBusEventType eventType) {
+            if (eventType == null) {
+                return allSubscriptions;
+            }
+            final Subscription[] subscriptions = subscriptionsByEventType.get(eventType);
+            return subscriptions == null ? NONE : subscriptions;
         }
     }
 }
@@ -20,21 +20,35 @@
 package org.killbill.billing.osgi;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.joda.time.Period;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.KillbillEventObservable.DeliveryResult;
 import org.killbill.billing.osgi.api.KillbillEventRetriableBusHandlerService;
+import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.billing.platform.api.LifecycleHandlerType;
 import org.killbill.billing.platform.api.LifecycleHandlerType.LifecycleLevel;
+import org.killbill.billing.util.queue.QueueRetryException;
 import org.killbill.bus.api.BusEvent;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.bus.api.PersistentBus.EventBusException;
 import org.killbill.clock.Clock;
 import org.killbill.commons.eventbus.AllowConcurrentEvents;
 import org.killbill.commons.eventbus.Subscribe;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NoSuchNotificationQueue;
 import org.killbill.queue.QueueObjectMapper;
@@ -42,16 +56,21 @@ import org.killbill.queue.retry.RetryableService;
 import org.killbill.queue.retry.RetryableSubscriber;
 import org.killbill.queue.retry.RetryableSubscriber.SubscriberAction;
 import org.killbill.queue.retry.RetryableSubscriber.SubscriberQueueHandler;
+import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
@@ -60,29 +79,94 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
 
     private final Logger logger = LoggerFactory.getLogger(KillbillEventRetriableBusHandler.class);
 
+    private static final String RETRIES_METRIC_PREFIX = "killbill-service.kb_event_retries.";
+    private static final String REDELIVERIES_AVOIDED_METRIC_NAME = "killbill-service.kb_event_redeliveries_avoided";
+
     private final PersistentBus externalBus;
     private final KillbillEventObservable killbillEventObservable;
+    private final MetricRegistry metricRegistry;
+    private final Counter redeliveriesAvoided;
+    // For the observers which fail without specifying one
+    private final List<Period> retrySchedule;
     private final RetryableSubscriber retryableSubscriber;
     private final SubscriberQueueHandler subscriberQueueHandler = new SubscriberQueueHandler();
+    // Null when events are delivered on the bus threads
+    private final AccountStripedDispatcher<StripedDelivery> stripedDispatcher;
 
     @Inject
     public KillbillEventRetriableBusHandler(@Named("externalBus") final PersistentBus externalBus,
                                             final KillbillEventObservable killbillEventObservable,
                                             final NotificationQueueService notificationQueueService,
-                                            final Clock clock) {
+                                            final Clock clock,
+                                            final OSGIConfig osgiConfig,
+                                            final MetricRegistry metricRegistry) {
         super(notificationQueueService);
         this.externalBus = externalBus;
         this.killbillEventObservable = killbillEventObservable;
+        this.metricRegistry = metricRegistry;
+        this.redeliveriesAvoided = metricRegistry.counter(REDELIVERIES_AVOIDED_METRIC_NAME);
+        this.retrySchedule = new ArrayList<>();
+        for (final TimeSpan timeSpan : osgiConfig.getEventDispatchRetrySchedule()) {
+            retrySchedule.add(new Period(timeSpan.getMillis()));
+        }
         subscriberQueueHandler.subscribe(OSGIBusEvent.class,
                                          new SubscriberAction<OSGIBusEvent>() {
                                              @Override
                                              public void run(final OSGIBusEvent osgiBusEvent) {
                                                  final ExtBusEvent extBusEvent = osgiBusEvent.getExtBusEvent();
+                                                 if (osgiBusEvent.getDeferredRetry() != null) {
+                                                     // Not delivered (see defer): straight to the retry queue
+                                                     throw osgiBusEvent.getDeferredRetry();
+                                                 }
                                                  logger.debug("Received external event " + extBusEvent.toString());
-                                                 killbillEventObservable.setChangedAndNotifyObservers(extBusEvent);
+                                                 deliver(osgiBusEvent);
                                              }
                                          });
         this.retryableSubscriber = new RetryableSubscriber(clock, this, subscriberQueueHandler);
+        // Events the delivery lanes failed to deliver are retried for their observer only (in place, see deliver)
+        killbillEventObservable.setLaneFailureHandler((observerName, event, cause) -> {
+            if (event instanceof ExtBusEvent) {
+                final ExtBusEvent extBusEvent = (ExtBusEvent) event;
+                defer(new OSGIBusEvent(extBusEvent, extBusEvent.getClass(), Set.of(observerName)), cause);
+            }
+        });
+        if (osgiConfig.getEventDispatchStripes() > 0) {
+            this.stripedDispatcher = new AccountStripedDispatcher<>(osgiConfig.getEventDispatchStripes(), osgiConfig.getEventDispatchStripeQueueCapacity(), metricRegistry);
+        } else {
+            this.stripedDispatcher = null;
+        }
+    }
+
+    // On retries, only the observers which failed the previous attempt see the event again
+    private void deliver(final OSGIBusEvent osgiBusEvent) {
+        final DeliveryResult result = killbillEventObservable.deliver(osgiBusEvent.getExtBusEvent(), osgiBusEvent.getObserverNames());
+        if (result.isSuccessful()) {
+            return;
+        }
+
+        final Set<String> failedObserverNames = result.getFailedObserverNames();
+        for (final String observerName : failedObserverNames) {
+            metricRegistry.counter(RETRIES_METRIC_PREFIX + observerName).inc(1);
+        }
+        redeliveriesAvoided.inc(result.getNbDelivered() - failedObserverNames.size());
+
+        // The RetryableSubscriber serializes this event in the retry notification once the exception is caught
+        osgiBusEvent.setObserverNames(failedObserverNames);
+        if (result.getRetryException() != null) {
+            throw result.getRetryException();
+        }
+        // Observer failures and full delivery lanes go through the retry queue as well, so that the other observers don't see the event again
+        throw new QueueRetryException(result.getFailure(), retrySchedule);
+    }
+
+    // Hands the event to the retry queue without delivering it (events already acknowledged on the bus)
+    private void defer(final OSGIBusEvent osgiBusEvent, final RuntimeException cause) {
+        osgiBusEvent.setDeferredRetry(cause instanceof QueueRetryException ? (QueueRetryException) cause : new QueueRetryException(cause, retrySchedule));
+        try {
+            retryableSubscriber.handleEvent(osgiBusEvent);
+        } catch (final RuntimeException e) {
+            logger.error("Failed to schedule the delivery of event {}", osgiBusEvent, e);
+        }
     }
 
     public void register() throws EventBusException {
@@ -114,31 +198,77 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
     @LifecycleHandlerType(LifecycleLevel.START_SERVICE)
     public void start() {
         super.start();
+        if (stripedDispatcher != null) {
+            stripedDispatcher.start();
+        }
     }
 
     @LifecycleHandlerType(LifecycleLevel.STOP_SERVICE)
     public void stop() throws NoSuchNotificationQueue {
+        if (stripedDispatcher != null) {
+            // These events are already acknowledged on the bus
+            final RuntimeException cause = new IllegalStateException("Event dispatch stopped");
+            for (final StripedDelivery delivery : stripedDispatcher.stop()) {
+                defer(delivery.event, cause);
+            }
+        }
         super.stop();
     }
 
+    // With stripes, the bus threads only queue the events: events for one account are delivered in the order they are received
     @AllowConcurrentEvents
     @Subscribe
     public void handleKillbillEvent(final ExtBusEvent extBusEvent) {
-        final BusEvent event = new OSGIBusEvent(extBusEvent, extBusEvent.getClass());
-        retryableSubscriber.handleEvent(event);
+        final OSGIBusEvent event = new OSGIBusEvent(extBusEvent, extBusEvent.getClass());
+        if (stripedDispatcher == null) {
+            retryableSubscriber.handleEvent(event);
+        } else {
+            // Tenant level events (no account) are ordered per tenant
+            final UUID stripingKey = extBusEvent.getAccountId() != null ? extBusEvent.getAccountId() : extBusEvent.getTenantId();
+            stripedDispatcher.submit(stripingKey, new StripedDelivery(event));
+        }
+    }
+
+    // Failures are handled by the RetryableSubscriber (retry notification), as the event is already acknowledged on the bus
+    private final class StripedDelivery implements Runnable {
+
+        private final OSGIBusEvent event;
+
+        private StripedDelivery(final OSGIBusEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            retryableSubscriber.handleEvent(event);
+        }
     }
 
+    // Stored in the retry notifications: the class is written first so that the deserializer can bind the event in a
+    // single pass, and the derived search keys and user token (recomputed from the event) are not written
     @JsonDeserialize(using = OSGIBusEventDeserializer.class)
+    @JsonPropertyOrder({"extBusEventClass", "observerNames", "extBusEvent"})
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     protected static class OSGIBusEvent implements BusEvent {
 
         private final ExtBusEvent extBusEvent;
         private final Class extBusEventClass;
+        // Observers to deliver to (retries), null for all
+        private Set<String> observerNames;
+        // Not delivered (see defer), not serialized
+        private QueueRetryException deferredRetry;
+
+        public OSGIBusEvent(final ExtBusEvent extBusEvent, final Class extBusEventClass) {
+            this(extBusEvent, extBusEventClass, null);
+        }
 
         @JsonCreator
         public OSGIBusEvent(@JsonProperty("extBusEvent") final ExtBusEvent extBusEvent,
-                            @JsonProperty("extBusEventClass") final Class extBusEventClass) {
+                            @JsonProperty("extBusEventClass") final Class extBusEventClass,
+                            @JsonProperty("observerNames") @Nullable final Set<String> observerNames) {
             this.extBusEvent = extBusEvent;
             this.extBusEventClass = extBusEventClass;
+            this.observerNames = observerNames;
         }
 
         public ExtBusEvent getExtBusEvent() {
@@ -149,18 +279,39 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
             return extBusEventClass;
         }
 
+        @Nullable
+        public Set<String> getObserverNames() {
+            return observerNames;
+        }
+
+        void setObserverNames(final Set<String> observerNames) {
+            this.observerNames = observerNames;
+        }
+
+        @JsonIgnore
+        QueueRetryException getDeferredRetry() {
+            return deferredRetry;
+        }
+
+        void setDeferredRetry(final QueueRetryException deferredRetry) {
+            this.deferredRetry = deferredRetry;
+        }
+
+        @JsonIgnore
         @Override
         public Long getSearchKey1() {
             final UUID accountId = extBusEvent.getAccountId();
             return accountId == null ? null : accountId.getMostSignificantBits() & Long.MAX_VALUE;
         }
 
+        @JsonIgnore
         @Override
         public Long getSearchKey2() {
             final UUID tenantId = extBusEvent.getTenantId();
             return tenantId == null ? null : tenantId.getMostSignificantBits() & Long.MAX_VALUE;
         }
 
+        @JsonIgnore
         @Override
         public UUID getUserToken() {
             return extBusEvent.getUserToken();
@@ -171,6 +322,7 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
             final StringBuilder sb = new StringBuilder("OSGIBusEvent{");
             sb.append("extBusEvent=").append(extBusEvent);
             sb.append(", extBusEventClass=").append(extBusEventClass);
+            sb.append(", observerNames=").append(observerNames);
             sb.append('}');
             return sb.toString();
         }
@@ -204,18 +356,67 @@ public class KillbillEventRetriableBusHandler extends RetryableService implement
 
         private static final ObjectMapper objectMapper = QueueObjectMapper.get();
 
+        // Bounded, as the class names come from the payloads (in practice, a handful of event classes)
+        private static final int MAX_CACHED_CLASSES = 64;
+        private static final Map<String, Class<?>> extBusEventClasses = new ConcurrentHashMap<>();
+
         @Override
-        public OSGIBusEvent deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
-            final JsonNode node = p.getCodec().readTree(p);
-
-            final Class<ExtBusEvent> extBusEventClass;
-            try {
-                extBusEventClass = (Class<ExtBusEvent>) Class.forName(node.get("extBusEventClass").textValue());
-            } catch (final ClassNotFoundException e) {
-                throw new IOException(e);
+        public OSGIBusEvent deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException {
+            Class<ExtBusEvent> extBusEventClass = null;
+            ExtBusEvent extBusEvent = null;
+            // Only for payloads written before the class was the first property
+            TreeNode bufferedExtBusEvent = null;
+            Set<String> observerNames = null;
+
+            JsonToken token = p.currentToken();
+            if (token == JsonToken.START_OBJECT) {
+                token = p.nextToken();
+            }
+            for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+                final String fieldName = p.getCurrentName();
+                final JsonToken valueToken = p.nextToken();
+                if ("extBusEventClass".equals(fieldName)) {
+                    extBusEventClass = resolveClass(p.getText());
+                } else if ("extBusEvent".equals(fieldName) && valueToken != JsonToken.VALUE_NULL) {
+                    if (extBusEventClass != null) {
+                        extBusEvent = objectMapper.readValue(p, extBusEventClass);
+                    } else {
+                        bufferedExtBusEvent = p.readValueAsTree();
+                    }
+                } else if ("observerNames".equals(fieldName) && valueToken == JsonToken.START_ARRAY) {
+                    observerNames = new HashSet<>();
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        observerNames.add(p.getText());
+                    }
+                } else {
+                    // E.g. searchKey1, searchKey2 and userToken in older payloads
+                    p.skipChildren();
+                }
             }
 
-            return new OSGIBusEvent(objectMapper.treeToValue(node.get("extBusEvent"), extBusEventClass), extBusEventClass);
+            if (extBusEventClass == null) {
+                throw JsonMappingException.from(p, "Missing extBusEventClass");
+            }
+            if (bufferedExtBusEvent != null) {
+                extBusEvent = objectMapper.treeToValue(bufferedExtBusEvent, extBusEventClass);
+            }
+            return new OSGIBusEvent(extBusEvent, extBusEventClass, observerNames);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<ExtBusEvent> resolveClass(final String className) throws IOException {
+            Class<?> extBusEventClass = extBusEventClasses.get(className);
+            if (extBusEventClass == null) {
+                try {
+                    extBusEventClass = Class.forName(className);
+                } catch (final ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+                if (extBusEventClasses.size() < MAX_CACHED_CLASSES) {
+                    extBusEventClasses.put(className, extBusEventClass);
+                }
+            }
+            return (Class<ExtBusEvent>) extBusEventClass;
         }
     }
 }
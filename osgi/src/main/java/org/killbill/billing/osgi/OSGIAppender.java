@@ -22,55 +22,197 @@ package org.killbill.billing.osgi;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.killbill.billing.osgi.config.OSGIConfig.LogForwardingMode;
+import org.killbill.billing.osgi.config.OSGIConfig.LogOverflowPolicy;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.MDC;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
+/**
+ * Forwards core log entries to the OSGI LogService (i.e. to the logger bundle).
+ * <p>
+ * In ASYNC mode, the logging thread formats the message and queues the event (with a snapshot of its MDC): it is
+ * handed to the LogService by a dedicated thread. When the queue is full, entries are discarded (or the logging
+ * thread blocks) according to the {@link LogOverflowPolicy}.
+ */
 public class OSGIAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
+    private static final String METRIC_PREFIX = "killbill-service.kb_log_forwarding_";
+    private static final String QUEUE_DEPTH_METRIC_NAME = METRIC_PREFIX + "queue_depth";
+    // Percentage of the queue capacity above which DEBUG and INFO entries are discarded (DISCARD_DEBUG_INFO_FIRST)
+    private static final int DISCARD_DEBUG_INFO_THRESHOLD_PCT = 80;
+
     private final ServiceTracker<LogService, LogService> logTracker;
     private final ServiceReference SR;
+    private final LogForwardingMode mode;
+    private final LogOverflowPolicy overflowPolicy;
+    private final int queueCapacity;
+    private final MetricRegistry metricRegistry;
+    private final Map<Integer, Counter> droppedByLevel;
+
+    private volatile BlockingQueue<QueuedLoggingEvent> queue;
+    private volatile boolean forwarding;
+    private ExecutorService executor;
 
     public OSGIAppender(final ServiceTracker<LogService, LogService> logTracker, final Bundle bundle) {
+        this(logTracker, bundle, LogForwardingMode.SYNC, 0, LogOverflowPolicy.DISCARD_DEBUG_INFO_FIRST, new NoOpMetricRegistry());
+    }
+
+    public OSGIAppender(final ServiceTracker<LogService, LogService> logTracker,
+                        final Bundle bundle,
+                        final LogForwardingMode mode,
+                        final int queueCapacity,
+                        final LogOverflowPolicy overflowPolicy,
+                        final MetricRegistry metricRegistry) {
         this.logTracker = logTracker;
         this.SR = new RootBundleLogbackServiceReference(bundle);
+        this.mode = mode;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.metricRegistry = metricRegistry;
+        this.droppedByLevel = Map.of(LogService.LOG_DEBUG, metricRegistry.counter(METRIC_PREFIX + "dropped.DEBUG"),
+                                     LogService.LOG_INFO, metricRegistry.counter(METRIC_PREFIX + "dropped.INFO"),
+                                     LogService.LOG_WARNING, metricRegistry.counter(METRIC_PREFIX + "dropped.WARN"),
+                                     LogService.LOG_ERROR, metricRegistry.counter(METRIC_PREFIX + "dropped.ERROR"));
+    }
+
+    @Override
+    public void start() {
+        if (mode == LogForwardingMode.ASYNC) {
+            if (queueCapacity < 1) {
+                addError("Invalid log forwarding queue capacity " + queueCapacity);
+                return;
+            }
+            final BlockingQueue<QueuedLoggingEvent> asyncQueue = new ArrayBlockingQueue<QueuedLoggingEvent>(queueCapacity);
+            queue = asyncQueue;
+            metricRegistry.gauge(QUEUE_DEPTH_METRIC_NAME, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return asyncQueue.size();
+                }
+            });
+            forwarding = true;
+            executor = Executors.newSingleThreadExecutor("osgi-log-forwarder");
+            executor.submit(() -> drain(asyncQueue));
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (executor != null) {
+            // Let the forwarder finish the entry in progress, only interrupt it if it's stuck
+            forwarding = false;
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        if (queue != null) {
+            // Flush what's left, the LogService is still tracked at this point
+            QueuedLoggingEvent queuedLoggingEvent;
+            while ((queuedLoggingEvent = queue.poll()) != null) {
+                deliver(queuedLoggingEvent.event, queuedLoggingEvent.mdc);
+            }
+            metricRegistry.remove(QUEUE_DEPTH_METRIC_NAME);
+            queue = null;
+        }
     }
 
     @Override
     protected void append(final ILoggingEvent eventObject) {
+        if (logTracker.getService() == null) {
+            return;
+        }
+
+        final BlockingQueue<QueuedLoggingEvent> asyncQueue = queue;
+        if (asyncQueue == null) {
+            deliver(eventObject, null);
+            return;
+        }
+
+        final int level = toLogServiceLevel(eventObject);
+        if (overflowPolicy == LogOverflowPolicy.DISCARD_DEBUG_INFO_FIRST &&
+            (level == LogService.LOG_DEBUG || level == LogService.LOG_INFO) &&
+            asyncQueue.size() * 100L >= (long) queueCapacity * DISCARD_DEBUG_INFO_THRESHOLD_PCT) {
+            droppedByLevel.get(level).inc(1);
+            return;
+        }
+
+        // The message arguments may change once the logging call returns and the MDC is attached to the logging thread:
+        // format the message and take a snapshot of the MDC now (the forwarder only calls the LogService)
+        eventObject.prepareForDeferredProcessing();
+        final QueuedLoggingEvent queuedLoggingEvent = new QueuedLoggingEvent(eventObject, eventObject.getMDCPropertyMap());
+        final boolean queued;
+        if (overflowPolicy == LogOverflowPolicy.BLOCK) {
+            try {
+                asyncQueue.put(queuedLoggingEvent);
+                queued = true;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedByLevel.get(level).inc(1);
+                return;
+            }
+        } else {
+            queued = asyncQueue.offer(queuedLoggingEvent);
+        }
+        if (!queued) {
+            // Don't log anything here, this would loop back into this appender
+            droppedByLevel.get(level).inc(1);
+        }
+    }
+
+    private void drain(final BlockingQueue<QueuedLoggingEvent> asyncQueue) {
+        while (forwarding) {
+            final QueuedLoggingEvent queuedLoggingEvent;
+            try {
+                queuedLoggingEvent = asyncQueue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (queuedLoggingEvent == null) {
+                continue;
+            }
+
+            try {
+                deliver(queuedLoggingEvent.event, queuedLoggingEvent.mdc);
+            } catch (final RuntimeException e) {
+                addWarn("Unable to forward log entry to the OSGI LogService", e);
+            }
+        }
+    }
+
+    private void deliver(final ILoggingEvent eventObject, final Map<String, String> mdc) {
         final LogService logService = logTracker.getService();
         if (logService == null) {
             return;
         }
 
-        final int level;
-        switch (eventObject.getLevel().toInt()) {
-            case Level.TRACE_INT:
-                level = LogService.LOG_DEBUG;
-                break;
-            case Level.DEBUG_INT:
-                level = LogService.LOG_DEBUG;
-                break;
-            case Level.INFO_INT:
-                level = LogService.LOG_INFO;
-                break;
-            case Level.WARN_INT:
-                level = LogService.LOG_WARNING;
-                break;
-            case Level.ERROR_INT:
-                level = LogService.LOG_ERROR;
-                break;
-            default:
-                level = LogService.LOG_DEBUG;
-                break;
-        }
+        final int level = toLogServiceLevel(eventObject);
 
         Throwable t = null;
         if (eventObject.getThrowableProxy() != null) {
@@ -85,7 +227,48 @@ public class OSGIAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
         final String msg = loggerName + "; " + eventObject.getFormattedMessage();
 
-        logService.log(SR, level, msg, t);
+        if (mdc == null) {
+            logService.log(SR, level, msg, t);
+            return;
+        }
+
+        // The logger bundle reads the user token, tenant and account record ids from the MDC
+        if (!mdc.isEmpty()) {
+            MDC.setContextMap(mdc);
+        }
+        try {
+            logService.log(SR, level, msg, t);
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    private static int toLogServiceLevel(final ILoggingEvent eventObject) {
+        switch (eventObject.getLevel().toInt()) {
+            case Level.TRACE_INT:
+                return LogService.LOG_DEBUG;
+            case Level.DEBUG_INT:
+                return LogService.LOG_DEBUG;
+            case Level.INFO_INT:
+                return LogService.LOG_INFO;
+            case Level.WARN_INT:
+                return LogService.LOG_WARNING;
+            case Level.ERROR_INT:
+                return LogService.LOG_ERROR;
+            default:
+                return LogService.LOG_DEBUG;
+        }
+    }
+
+    private static final class QueuedLoggingEvent {
+
+        private final ILoggingEvent event;
+        private final Map<String, String> mdc;
+
+        private QueuedLoggingEvent(final ILoggingEvent event, final Map<String, String> mdc) {
+            this.event = event;
+            this.mdc = mdc;
+        }
     }
 
     private static final class RootBundleLogbackServiceReference implements ServiceReference {
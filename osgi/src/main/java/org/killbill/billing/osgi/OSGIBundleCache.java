@@ -0,0 +1,327 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the Felix bundle cache across restarts.
+ * <p>
+ * A manifest, written next to the cache, records the framework fingerprint (Felix version and configuration, including
+ * the system packages) as well as the path, size, modification time and SHA-256 digest of each installed bundle jar.
+ * The whole cache is wiped when the fingerprint changes; otherwise, cached bundles are only reused if their jar
+ * is unchanged (the digest is only recomputed when the size or modification time differ).
+ */
+final class OSGIBundleCache {
+
+    static final String MANIFEST_FILE_NAME = "killbill-bundle-cache.properties";
+
+    private static final Logger logger = LoggerFactory.getLogger(OSGIBundleCache.class);
+
+    private static final String FRAMEWORK_FINGERPRINT_KEY = "framework.fingerprint";
+    private static final String BUNDLE_KEY_PREFIX = "bundle.";
+    private static final String FILE_LOCATION_PREFIX = "file:";
+
+    private final File rootDir;
+    private final File manifestFile;
+    private final boolean persistent;
+
+    private Properties manifest = new Properties();
+    private int nbReusedBundles;
+    private int nbEvictedBundles;
+
+    OSGIBundleCache(final String rootDir, final boolean persistent) {
+        this.rootDir = new File(rootDir);
+        this.manifestFile = new File(rootDir, MANIFEST_FILE_NAME);
+        this.persistent = persistent;
+    }
+
+    /**
+     * Must be called before the framework is initialized (i.e. before the cache is opened).
+     *
+     * @param felixVersion framework version
+     * @param config       framework configuration
+     * @return true if the existing cache can be reused
+     */
+    boolean prepare(final String felixVersion, final Map<String, String> config) {
+        nbReusedBundles = 0;
+        nbEvictedBundles = 0;
+
+        final String fingerprint = computeFrameworkFingerprint(felixVersion, config);
+        manifest = persistent ? loadManifest() : new Properties();
+        if (fingerprint.equals(manifest.getProperty(FRAMEWORK_FINGERPRINT_KEY))) {
+            logger.info("Reusing OSGI bundle cache under {}", rootDir.getAbsolutePath());
+            return true;
+        }
+
+        if (persistent && manifestFile.exists()) {
+            logger.info("OSGI framework configuration changed, pruning bundle cache under {}", rootDir.getAbsolutePath());
+        }
+        deleteUnderDirectory(rootDir);
+        manifest = new Properties();
+        manifest.setProperty(FRAMEWORK_FINGERPRINT_KEY, fingerprint);
+        return false;
+    }
+
+    /**
+     * Uninstall the cached bundles whose jar has been modified or removed since the last run. Must be called
+     * once the framework has been initialized (cached bundles restored), before bundles are installed.
+     */
+    void evictStaleBundles(final BundleContext context) {
+        for (final Bundle bundle : context.getBundles()) {
+            if (bundle.getBundleId() == 0) {
+                continue;
+            }
+            if (isUpToDate(bundle.getLocation())) {
+                nbReusedBundles++;
+            } else {
+                logger.info("Bundle {} changed since last run, evicting it from the cache", bundle.getLocation());
+                uninstall(bundle);
+            }
+        }
+    }
+
+    /**
+     * Uninstall the cached bundles which were not installed during this run (e.g. removed or disabled plugin),
+     * and record the installed ones in the manifest.
+     */
+    void commit(final BundleContext context, final Collection<Bundle> installedBundles) {
+        final Set<Long> installedBundleIds = new HashSet<Long>();
+        for (final Bundle bundle : installedBundles) {
+            installedBundleIds.add(bundle.getBundleId());
+        }
+
+        final Properties newManifest = new Properties();
+        newManifest.setProperty(FRAMEWORK_FINGERPRINT_KEY, manifest.getProperty(FRAMEWORK_FINGERPRINT_KEY));
+        for (final Bundle bundle : context.getBundles()) {
+            if (bundle.getBundleId() == 0) {
+                continue;
+            }
+            if (!installedBundleIds.contains(bundle.getBundleId())) {
+                logger.info("Bundle {} isn't installed anymore, evicting it from the cache", bundle.getLocation());
+                uninstall(bundle);
+                continue;
+            }
+
+            final String location = bundle.getLocation();
+            final File jar = toFile(location);
+            if (jar == null) {
+                continue;
+            }
+            try {
+                // Refresh the modification time so that the digest isn't recomputed next time
+                final String sha256 = isUpToDate(location) ? JarEntry.parse(manifest.getProperty(BUNDLE_KEY_PREFIX + location)).sha256 : sha256(jar);
+                newManifest.setProperty(BUNDLE_KEY_PREFIX + location, new JarEntry(jar.length(), jar.lastModified(), sha256).toString());
+            } catch (final IOException e) {
+                logger.warn("Unable to compute digest of {}, it won't be reused from the cache", jar, e);
+            }
+        }
+        manifest = newManifest;
+
+        if (persistent) {
+            saveManifest();
+        }
+    }
+
+    int getNbReusedBundles() {
+        return nbReusedBundles;
+    }
+
+    int getNbEvictedBundles() {
+        return nbEvictedBundles;
+    }
+
+    private boolean isUpToDate(final String location) {
+        final String rawEntry = manifest.getProperty(BUNDLE_KEY_PREFIX + location);
+        final File jar = toFile(location);
+        if (rawEntry == null || jar == null || !jar.isFile()) {
+            return false;
+        }
+
+        final JarEntry entry = JarEntry.parse(rawEntry);
+        if (entry == null || entry.size != jar.length()) {
+            return false;
+        }
+        if (entry.lastModified == jar.lastModified()) {
+            return true;
+        }
+        try {
+            return entry.sha256.equals(sha256(jar));
+        } catch (final IOException e) {
+            logger.warn("Unable to compute digest of {}", jar, e);
+            return false;
+        }
+    }
+
+    private void uninstall(final Bundle bundle) {
+        try {
+            bundle.uninstall();
+            nbEvictedBundles++;
+        } catch (final BundleException e) {
+            logger.warn("Unable to uninstall bundle {}", bundle.getLocation(), e);
+        }
+    }
+
+    private Properties loadManifest() {
+        final Properties properties = new Properties();
+        if (manifestFile.isFile()) {
+            try (final InputStream in = Files.newInputStream(manifestFile.toPath())) {
+                properties.load(in);
+            } catch (final IOException | IllegalArgumentException e) {
+                logger.warn("Unable to read OSGI bundle cache manifest {}, ignoring", manifestFile, e);
+                return new Properties();
+            }
+        }
+        return properties;
+    }
+
+    private void saveManifest() {
+        final File tmpFile = new File(rootDir, MANIFEST_FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(rootDir.toPath());
+            try (final OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+                manifest.store(out, "Kill Bill OSGI bundle cache manifest, do not edit");
+            }
+            Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            logger.warn("Unable to write OSGI bundle cache manifest {}, the cache will be pruned on next start", manifestFile, e);
+        }
+    }
+
+    private static File toFile(final String location) {
+        return location != null && location.startsWith(FILE_LOCATION_PREFIX) ? new File(location.substring(FILE_LOCATION_PREFIX.length())) : null;
+    }
+
+    private static String computeFrameworkFingerprint(final String felixVersion, final Map<String, String> config) {
+        final StringBuilder fingerprint = new StringBuilder(String.valueOf(felixVersion));
+        for (final Map.Entry<String, String> entry : new TreeMap<String, String>(config).entrySet()) {
+            fingerprint.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return toHex(newSha256().digest(fingerprint.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String sha256(final File file) throws IOException {
+        final MessageDigest digest = newSha256();
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void deleteUnderDirectory(final File path) {
+        deleteDirectory(path, false);
+    }
+
+    private static void deleteDirectory(final File path, final boolean deleteParent) {
+        if (path == null) {
+            return;
+        }
+
+        if (path.exists()) {
+            final File[] files = path.listFiles();
+            if (files != null) {
+                for (final File f : files) {
+                    if (f.isDirectory()) {
+                        deleteDirectory(f, true);
+                    } else if (!f.delete()) {
+                        logger.warn("Unable to delete {}", f.getAbsolutePath());
+                    }
+                }
+            }
+
+            if (deleteParent) {
+                if (!path.delete()) {
+                    logger.warn("Unable to delete {}", path.getAbsolutePath());
+                } else {
+                    logger.info("Deleted recursively {}", path.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    // size:lastModified:sha256
+    private static final class JarEntry {
+
+        private final long size;
+        private final long lastModified;
+        private final String sha256;
+
+        private JarEntry(final long size, final long lastModified, final String sha256) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+        }
+
+        private static JarEntry parse(final String raw) {
+            final String[] parts = raw.split(":");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new JarEntry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + ":" + lastModified + ":" + sha256;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.commons.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an install or start task for each bundle of a batch, on a bounded pool. Tasks are run in place when the
+ * pool size is 1, to keep the historical (sequential) behavior.
+ * <p>
+ * The timeout applies to each task, from the time it starts running: the result of a task which times out is
+ * replaced by the fallback value, but the task isn't interrupted (bundle activators can't be safely interrupted).
+ * Instead, the task keeps being tracked: once it eventually completes, its result is handed to the late completion
+ * handler, which undoes it (e.g. stops a bundle whose activator eventually returned), so that the bundle state
+ * matches what the caller was told.
+ */
+final class ParallelBundleRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelBundleRunner.class);
+
+    interface BundleTask<T, R> {
+
+        R run(T input) throws Exception;
+    }
+
+    interface LateCompletionHandler<T, R> {
+
+        /**
+         * Called from the pool thread, once a task which timed out completes successfully.
+         *
+         * @param input  input of the task
+         * @param result result the caller didn't get (it got the fallback value)
+         */
+        void onLateCompletion(T input, R result);
+    }
+
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int TIMED_OUT = 2;
+
+    private final int nbThreads;
+    private final long timeoutNanos;
+
+    ParallelBundleRunner(final int nbThreads, final long timeoutMillis) {
+        this.nbThreads = nbThreads;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    boolean isParallel() {
+        return nbThreads > 1;
+    }
+
+    /**
+     * @param action   description of the task, for logging
+     * @param inputs   bundles (or bundle descriptions) to process
+     * @param task     task to run for each input, exceptions are propagated
+     * @param fallback result for the tasks which timed out
+     * @param lateCompletionHandler called when a task which timed out eventually completes, null to ignore it
+     * @return the results, in the order of the inputs
+     */
+    <T, R> List<Outcome<R>> run(final String action,
+                                final List<T> inputs,
+                                final BundleTask<T, R> task,
+                                final R fallback,
+                                @Nullable final LateCompletionHandler<T, R> lateCompletionHandler) {
+        final List<Outcome<R>> outcomes = new ArrayList<Outcome<R>>(inputs.size());
+        if (!isParallel() || inputs.size() <= 1) {
+            for (final T input : inputs) {
+                outcomes.add(runInPlace(task, input));
+            }
+            return outcomes;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbThreads, inputs.size()), "osgi-bundle-" + action);
+        try {
+            final List<AtomicLong> startTimes = new ArrayList<AtomicLong>(inputs.size());
+            final List<AtomicInteger> states = new ArrayList<AtomicInteger>(inputs.size());
+            final List<Future<R>> futures = new ArrayList<Future<R>>(inputs.size());
+            for (final T input : inputs) {
+                final AtomicLong startTime = new AtomicLong();
+                startTimes.add(startTime);
+                final AtomicInteger state = new AtomicInteger(RUNNING);
+                states.add(state);
+                futures.add(executor.submit(() -> {
+                    startTime.set(System.nanoTime());
+                    final R result = task.run(input);
+                    if (!state.compareAndSet(RUNNING, COMPLETED)) {
+                        onLateCompletion(action, input, result, lateCompletionHandler);
+                    }
+                    return result;
+                }));
+            }
+
+            for (int i = 0; i < inputs.size(); i++) {
+                outcomes.add(await(action, inputs.get(i), futures.get(i), startTimes.get(i), states.get(i), fallback));
+            }
+        } finally {
+            // Don't interrupt tasks which timed out
+            executor.shutdown();
+        }
+        return outcomes;
+    }
+
+    private <T, R> Outcome<R> runInPlace(final BundleTask<T, R> task, final T input) {
+        try {
+            return Outcome.success(task.run(input));
+        } catch (final Exception e) {
+            return Outcome.failure(e);
+        }
+    }
+
+    private <T, R> void onLateCompletion(final String action, final T input, final R result, @Nullable final LateCompletionHandler<T, R> lateCompletionHandler) {
+        logger.warn("Bundle {} ({}) completed after the timeout", input, action);
+        if (lateCompletionHandler == null) {
+            return;
+        }
+        try {
+            lateCompletionHandler.onLateCompletion(input, result);
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to undo the late {} of bundle {}", action, input, e);
+        }
+    }
+
+    private <T, R> Outcome<R> await(final String action, final T input, final Future<R> future, final AtomicLong startTime, final AtomicInteger state, final R fallback) {
+        try {
+            while (true) {
+                final long started = startTime.get();
+                try {
+                    if (started == 0) {
+                        // Still queued behind other bundles, its own timeout hasn't started yet
+                        return Outcome.success(future.get(timeoutNanos, TimeUnit.NANOSECONDS));
+                    }
+                    return Outcome.success(future.get(Math.max(started + timeoutNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+                } catch (final TimeoutException e) {
+                    if (started != 0) {
+                        if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                            logger.warn("Timed out after {} ms waiting for bundle {} ({})", TimeUnit.NANOSECONDS.toMillis(timeoutNanos), input, action);
+                            return Outcome.success(fallback);
+                        }
+                        // Completed meanwhile: its result is about to be available
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.failure(e);
+        } catch (final ExecutionException e) {
+            return Outcome.failure(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    static final class Outcome<R> {
+
+        private final R result;
+        private final Exception exception;
+
+        private Outcome(final R result, final Exception exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+
+        private static <R> Outcome<R> success(final R result) {
+            return new Outcome<R>(result, null);
+        }
+
+        private static <R> Outcome<R> failure(final Exception exception) {
+            return new Outcome<R>(null, exception);
+        }
+
+        R getResult() {
+            return result;
+        }
+
+        Exception getException() {
+            return exception;
+        }
+    }
+}
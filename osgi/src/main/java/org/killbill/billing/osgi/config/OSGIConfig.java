@@ -19,6 +19,7 @@
 
 package org.killbill.billing.osgi.config;
 
+import java.util.List;
 import java.util.Set;
 
 import org.killbill.billing.platform.api.KillbillPlatformConfig;
@@ -26,9 +27,42 @@ import org.skife.config.Config;
 import org.skife.config.Default;
 import org.skife.config.DefaultNull;
 import org.skife.config.Description;
+import org.skife.config.TimeSpan;
 
 public interface OSGIConfig extends KillbillPlatformConfig {
 
+    enum EventDispatchMode {
+        // Events are delivered to each plugin in turn, on the bus thread
+        SYNC,
+        // Each plugin observer gets its own bounded queue and worker thread
+        ASYNC
+    }
+
+    enum EventBackpressurePolicy {
+        // Block the bus thread until there is room in the queue
+        BLOCK,
+        // Evict the oldest queued event
+        DROP_OLDEST,
+        // Hand the event back to the retry queue
+        RETRY
+    }
+
+    enum LogForwardingMode {
+        // Core log entries are forwarded to the OSGI LogService on the thread which logged
+        SYNC,
+        // Core log entries are queued, and forwarded by a dedicated thread
+        ASYNC
+    }
+
+    enum LogOverflowPolicy {
+        // Discard DEBUG and INFO entries when the queue is 80% full, WARN and ERROR entries only when it is full
+        DISCARD_DEBUG_INFO_FIRST,
+        // Discard any entry when the queue is full
+        DISCARD_NEWEST,
+        // Block the logging thread until there is room in the queue
+        BLOCK
+    }
+
     @Config("org.killbill.osgi.bundle.property.name")
     @Default("killbill.properties")
     @Description("Name of the properties file for OSGI plugins")
@@ -44,11 +78,28 @@ public interface OSGIConfig extends KillbillPlatformConfig {
     @Description("Bundles cache name")
     public String getOSGIBundleCacheName();
 
+    @Config("org.killbill.osgi.bundle.cache.persistent")
+    @Default("false")
+    @Description("Whether to keep the OSGI bundles cache across restarts (unchanged bundles aren't reinstalled). " +
+                 "Opt-in: by default the cache is wiped on every boot")
+    public boolean isOSGIBundleCachePersistent();
+
     @Config("org.killbill.osgi.bundle.install.dir")
     @Default("/var/tmp/bundles")
     @Description("Bundles install directory")
     public String getRootInstallationDir();
 
+    @Config("org.killbill.osgi.bundle.start.threads")
+    @Default("1")
+    @Description("Number of threads used to install and start plugin bundles (1 to install and start them one after another)")
+    public int getBundleStartThreads();
+
+    @Config("org.killbill.osgi.bundle.start.timeout")
+    @Default("5m")
+    @Description("Maximum time to install or start a plugin bundle, when done in parallel. A bundle which times out is reported " +
+                 "as failed, and is uninstalled (or stopped) if its install (or start) eventually completes")
+    public TimeSpan getBundleStartTimeout();
+
     @Config("org.killbill.osgi.system.bundle.export.packages.api")
     @Default("org.killbill.billing.account.api," +
              "org.killbill.billing.analytics.api.sanity," +
@@ -271,6 +322,54 @@ public interface OSGIConfig extends KillbillPlatformConfig {
     @Default("")
     public String getSystemBundleExportPackagesExtra();
 
+    @Config("org.killbill.osgi.event.dispatch.mode")
+    @Default("SYNC")
+    @Description("How Kill Bill events are delivered to plugins: SYNC (on the bus thread) or ASYNC (one queue and worker per plugin observer). " +
+                 "Batch observers always get their own queue and worker")
+    public EventDispatchMode getEventDispatchMode();
+
+    @Config("org.killbill.osgi.event.dispatch.queue.capacity")
+    @Default("1000")
+    @Description("Capacity of each per-plugin event queue (ASYNC dispatch mode, or batch observers)")
+    public int getEventDispatchQueueCapacity();
+
+    @Config("org.killbill.osgi.event.dispatch.backpressure")
+    @Default("BLOCK")
+    @Description("What to do when a per-plugin event queue is full: BLOCK, DROP_OLDEST or RETRY (ASYNC dispatch mode, or batch observers)")
+    public EventBackpressurePolicy getEventDispatchBackpressurePolicy();
+
+    @Config("org.killbill.osgi.event.dispatch.retry.schedule")
+    @Default("5m,1h,1d,1d,1d")
+    @Description("Retry schedule of the events a plugin failed to handle (when the plugin didn't specify one)")
+    public List<TimeSpan> getEventDispatchRetrySchedule();
+
+    @Config("org.killbill.osgi.event.dispatch.stripes")
+    @Default("0")
+    @Description("Number of account stripes delivering external bus events to plugins: events for one account are delivered in order, " +
+                 "events for different accounts in parallel. Once queued, events are acknowledged on the bus: failed deliveries " +
+                 "are retried through the retry queue (0 to deliver them on the bus threads)")
+    public int getEventDispatchStripes();
+
+    @Config("org.killbill.osgi.event.dispatch.stripe.queue.capacity")
+    @Default("1000")
+    @Description("Capacity of each account stripe queue: the bus thread blocks when the stripe is full")
+    public int getEventDispatchStripeQueueCapacity();
+
+    @Config("org.killbill.osgi.log.forwarding.mode")
+    @Default("SYNC")
+    @Description("How core log entries are forwarded to the OSGI LogService: SYNC (on the logging thread) or ASYNC (queued, forwarded by a dedicated thread)")
+    public LogForwardingMode getLogForwardingMode();
+
+    @Config("org.killbill.osgi.log.forwarding.queue.capacity")
+    @Default("10000")
+    @Description("Capacity of the log forwarding queue (ASYNC log forwarding mode only)")
+    public int getLogForwardingQueueCapacity();
+
+    @Config("org.killbill.osgi.log.forwarding.overflow")
+    @Default("DISCARD_DEBUG_INFO_FIRST")
+    @Description("What to do when the log forwarding queue is full: DISCARD_DEBUG_INFO_FIRST, DISCARD_NEWEST or BLOCK (ASYNC log forwarding mode only)")
+    public LogOverflowPolicy getLogForwardingOverflowPolicy();
+
     @Config("org.killbill.billing.plugin.mandatory.plugins")
     @Description("Comma separated list of mandatory plugins")
     @DefaultNull
@@ -38,9 +38,13 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
 
     // Internal Servlet routing table: map of plugin prefixes to servlet instances.
     // A plugin prefix can be /foo, /foo/bar, /foo/bar/baz, ... and is mounted on /plugins/<pluginPrefix>
+    // Guarded by this, the read path uses the immutable routingTable snapshot below
     private final Map<String, Servlet> pluginPathServlets = new HashMap<String, Servlet>();
     private final Map<String, OSGIServiceDescriptor> pluginRegistrations = new HashMap<String, OSGIServiceDescriptor>();
 
+    // Rebuilt (copy-on-write) on each registration change
+    private volatile ServletRoutingTable routingTable = ServletRoutingTable.EMPTY;
+
     @Override
     public void registerService(final OSGIServiceDescriptor desc, final Servlet httpServlet) {
         // Enforce each route to start with /
@@ -59,11 +63,14 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
 
     public void registerServiceFromPath(final String path, final Servlet httpServlet) {
         final String pathPrefix = sanitizePathPrefix(path);
-        registerServletInternal(pathPrefix, httpServlet);
+        synchronized (this) {
+            registerServletInternal(pathPrefix, httpServlet);
+        }
     }
 
     private void registerServletInternal(final String pathPrefix, final Servlet httpServlet) {
         pluginPathServlets.put(pathPrefix, httpServlet);
+        routingTable = ServletRoutingTable.build(pluginPathServlets);
     }
 
     private void registerServiceInternal(final OSGIServiceDescriptor desc) {
@@ -92,11 +99,17 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
 
     public void unregisterServiceFromPath(final String path) {
         final String pathPrefix = sanitizePathPrefix(path);
-        unRegisterServletInternal(pathPrefix);
+        synchronized (this) {
+            unRegisterServletInternal(pathPrefix);
+        }
     }
 
     private Servlet unRegisterServletInternal(final String pathPrefix) {
-        return pluginPathServlets.remove(pathPrefix);
+        final Servlet removed = pluginPathServlets.remove(pathPrefix);
+        if (removed != null) {
+            routingTable = ServletRoutingTable.build(pluginPathServlets);
+        }
+        return removed;
     }
 
     private OSGIServiceDescriptor unRegisterServiceInternal(final OSGIServiceDescriptor desc) {
@@ -110,7 +123,9 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
             return null;
         }
         final String registeredPath = getPathPrefixFromDescriptor(desc);
-        return pluginPathServlets.get(registeredPath);
+        synchronized (this) {
+            return pluginPathServlets.get(registeredPath);
+        }
     }
 
     private String getPathPrefixFromDescriptor(final OSGIServiceDescriptor desc) {
@@ -118,7 +133,18 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
     }
 
     public Servlet getServiceForPath(final String path) {
-        return getServletForPathPrefix(path);
+        final ServletRoute route = getRouteForPath(path);
+        return route == null ? null : route.getServlet();
+    }
+
+    /**
+     * Find the servlet mounted on the longest plugin prefix of the specified path, in a single lookup.
+     *
+     * @param path request path (minus the /plugins prefix)
+     * @return the matching route or null if no plugin is mounted on that path
+     */
+    public ServletRoute getRouteForPath(final String path) {
+        return routingTable.lookup(path);
     }
 
     @Override
@@ -131,20 +157,9 @@ public class DefaultServletRouter implements OSGIServiceRegistration<Servlet> {
         return Servlet.class;
     }
 
-    // TODO PIERRE Naive implementation - we should rather switch to e.g. heap tree
     public String getPluginPrefixForPath(final String pathPrefix) {
-        String bestMatch = null;
-        for (final String potentialMatch : pluginPathServlets.keySet()) {
-            if (pathPrefix.startsWith(potentialMatch) && (bestMatch == null || bestMatch.length() < potentialMatch.length())) {
-                bestMatch = potentialMatch;
-            }
-        }
-        return bestMatch;
-    }
-
-    private Servlet getServletForPathPrefix(final String pathPrefix) {
-        final String bestMatch = getPluginPrefixForPath(pathPrefix);
-        return bestMatch == null ? null : pluginPathServlets.get(bestMatch);
+        final ServletRoute route = getRouteForPath(pathPrefix);
+        return route == null ? null : route.getPluginPrefix();
     }
 
     private static String sanitizePathPrefix(final String inputPath) {
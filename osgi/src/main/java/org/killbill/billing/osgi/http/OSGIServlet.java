@@ -81,11 +81,12 @@ public class OSGIServlet extends HttpServlet {
         // requestPath is the full path minus the JAX-RS prefix (/plugins)
         final String requestPath = req.getServletPath() + req.getPathInfo();
 
-        final Servlet pluginServlet = getPluginServlet(requestPath);
+        final ServletRoute route = getPluginRoute(requestPath);
 
-        if (pluginServlet != null) {
+        if (route != null) {
+            final Servlet pluginServlet = route.getServlet();
             initializeServletIfNeeded(req, pluginServlet);
-            final OSGIServletRequestWrapper requestWrapper = new OSGIServletRequestWrapper(req, servletRouter.getPluginPrefixForPath(requestPath));
+            final OSGIServletRequestWrapper requestWrapper = new OSGIServletRequestWrapper(req, route.getPluginPrefix());
             pluginServlet.service(requestWrapper, resp);
         } else {
             resp.sendError(404);
@@ -129,9 +130,9 @@ public class OSGIServlet extends HttpServlet {
         }
     }
 
-    private Servlet getPluginServlet(final String requestPath) {
+    private ServletRoute getPluginRoute(final String requestPath) {
         if (requestPath != null) {
-            return servletRouter.getServiceForPath(requestPath);
+            return servletRouter.getRouteForPath(requestPath);
         } else {
             return null;
         }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import javax.servlet.Servlet;
+
+/**
+ * Result of a plugin servlet lookup: the servlet, the plugin prefix it is mounted on and the plugin name.
+ */
+public final class ServletRoute {
+
+    private final String pluginPrefix;
+    private final String pluginName;
+    private final Servlet servlet;
+
+    ServletRoute(final String pluginPrefix, final Servlet servlet) {
+        this.pluginPrefix = pluginPrefix;
+        this.pluginName = pluginNameFromPrefix(pluginPrefix);
+        this.servlet = servlet;
+    }
+
+    public String getPluginPrefix() {
+        return pluginPrefix;
+    }
+
+    public String getPluginName() {
+        return pluginName;
+    }
+
+    public Servlet getServlet() {
+        return servlet;
+    }
+
+    // /foo/bar -> foo
+    private static String pluginNameFromPrefix(final String pluginPrefix) {
+        final int end = pluginPrefix.indexOf('/', 1);
+        return end == -1 ? pluginPrefix.substring(1) : pluginPrefix.substring(1, end);
+    }
+
+    @Override
+    public String toString() {
+        return "ServletRoute{" +
+               "pluginPrefix='" + pluginPrefix + '\'' +
+               ", pluginName='" + pluginName + '\'' +
+               '}';
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+import javax.servlet.Servlet;
+
+/**
+ * Immutable radix tree of plugin prefixes, used to find the longest registered prefix of a request path.
+ * <p>
+ * Matching is done character by character (and not path segment by path segment) to keep the historical
+ * {@code String#startsWith} semantics. The cost of a lookup is bounded by the length of the path, regardless
+ * of the number of registered plugins. Instances are never modified: {@link DefaultServletRouter} builds a new
+ * table on each (rare) registration change and publishes it.
+ */
+final class ServletRoutingTable {
+
+    static final ServletRoutingTable EMPTY = new ServletRoutingTable(new Node("", null, new char[0], new Node[0]));
+
+    private final Node root;
+
+    private ServletRoutingTable(final Node root) {
+        this.root = root;
+    }
+
+    static ServletRoutingTable build(final Map<String, Servlet> servletsByPrefix) {
+        if (servletsByPrefix.isEmpty()) {
+            return EMPTY;
+        }
+
+        final MutableNode mutableRoot = new MutableNode();
+        for (final Entry<String, Servlet> entry : servletsByPrefix.entrySet()) {
+            MutableNode cur = mutableRoot;
+            final String prefix = entry.getKey();
+            for (int i = 0; i < prefix.length(); i++) {
+                cur = cur.children.computeIfAbsent(prefix.charAt(i), c -> new MutableNode());
+            }
+            cur.route = new ServletRoute(prefix, entry.getValue());
+        }
+        return new ServletRoutingTable(freeze("", mutableRoot));
+    }
+
+    @Nullable
+    ServletRoute lookup(final String path) {
+        Node cur = root;
+        ServletRoute bestMatch = cur.route;
+        int pos = 0;
+        while (pos < path.length()) {
+            final int idx = Arrays.binarySearch(cur.firstChars, path.charAt(pos));
+            if (idx < 0) {
+                break;
+            }
+            final Node child = cur.children[idx];
+            if (!path.startsWith(child.label, pos)) {
+                break;
+            }
+            pos += child.label.length();
+            cur = child;
+            if (cur.route != null) {
+                bestMatch = cur.route;
+            }
+        }
+        return bestMatch;
+    }
+
+    // Collapse chains of single-child nodes without route into a single edge
+    private static Node freeze(final String label, final MutableNode node) {
+        final char[] firstChars = new char[node.children.size()];
+        final Node[] children = new Node[node.children.size()];
+        int i = 0;
+        for (final Entry<Character, MutableNode> entry : node.children.entrySet()) {
+            final StringBuilder childLabel = new StringBuilder().append(entry.getKey().charValue());
+            MutableNode child = entry.getValue();
+            while (child.route == null && child.children.size() == 1) {
+                final Entry<Character, MutableNode> onlyChild = child.children.firstEntry();
+                childLabel.append(onlyChild.getKey().charValue());
+                child = onlyChild.getValue();
+            }
+            firstChars[i] = entry.getKey();
+            children[i] = freeze(childLabel.toString(), child);
+            i++;
+        }
+        return new Node(label, node.route, firstChars, children);
+    }
+
+    private static final class Node {
+
+        private final String label;
+        private final ServletRoute route;
+        // Sorted, for binary search
+        private final char[] firstChars;
+        private final Node[] children;
+
+        private Node(final String label, @Nullable final ServletRoute route, final char[] firstChars, final Node[] children) {
+            this.label = label;
+            this.route = route;
+            this.firstChars = firstChars;
+            this.children = children;
+        }
+    }
+
+    private static final class MutableNode {
+
+        private final TreeMap<Character, MutableNode> children = new TreeMap<>();
+        private ServletRoute route;
+    }
+}
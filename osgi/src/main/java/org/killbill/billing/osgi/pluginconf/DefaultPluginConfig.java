@@ -30,6 +30,8 @@ public abstract class DefaultPluginConfig implements PluginConfig, Comparable<Pl
 
 
     private static final String PROP_PLUGIN_TYPE_NAME = "pluginType";
+    // Start order hint: plugins with a lower value are started first (plugins with the same value may be started in parallel)
+    private static final String PROP_PLUGIN_START_ORDER_NAME = "startOrder";
 
     private final String pluginKey;
     private final String pluginName;
@@ -38,6 +40,7 @@ public abstract class DefaultPluginConfig implements PluginConfig, Comparable<Pl
     private final File pluginVersionRoot;
     private final boolean isSelectedForStart;
     private final boolean isDisabled;
+    private final int startOrder;
 
     public DefaultPluginConfig(final DefaultPluginConfig input, final boolean isSelectedForStart) {
         this.pluginKey = input.getPluginKey();
@@ -47,6 +50,7 @@ public abstract class DefaultPluginConfig implements PluginConfig, Comparable<Pl
         this.isSelectedForStart = isSelectedForStart;
         this.pluginType = input.getPluginType();
         this.isDisabled = input.isDisabled();
+        this.startOrder = input.getStartOrder();
     }
 
 
@@ -58,6 +62,7 @@ public abstract class DefaultPluginConfig implements PluginConfig, Comparable<Pl
         this.isSelectedForStart = isVersionToStartLinkedToMe;
         this.pluginType = PluginType.valueOf(props.getProperty(PROP_PLUGIN_TYPE_NAME, PluginType.__UNKNOWN__.toString()));
         this.isDisabled = isDisabled;
+        this.startOrder = parseStartOrder(props.getProperty(PROP_PLUGIN_START_ORDER_NAME));
     }
 
 
@@ -102,11 +107,26 @@ public abstract class DefaultPluginConfig implements PluginConfig, Comparable<Pl
     }
 
 
+    public int getStartOrder() {
+        return startOrder;
+    }
+
     @Override
     public abstract PluginLanguage getPluginLanguage();
 
     protected abstract void validate() throws PluginConfigException;
 
+    private static int parseStartOrder(final String startOrder) {
+        if (startOrder == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(startOrder.trim());
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
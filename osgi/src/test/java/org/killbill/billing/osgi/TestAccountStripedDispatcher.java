@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestAccountStripedDispatcher {
+
+    private static final int NB_STRIPES = 8;
+    private static final int NB_PRODUCERS = 8;
+    private static final int NB_ACCOUNTS_PER_PRODUCER = 50;
+    private static final int NB_EVENTS_PER_ACCOUNT = 200;
+
+    @Test(groups = "fast")
+    public void testOrderingUnderConcurrentLoad() throws Exception {
+        final AccountStripedDispatcher<Runnable> dispatcher = new AccountStripedDispatcher<>(NB_STRIPES, 100, new NoOpMetricRegistry());
+        dispatcher.start();
+
+        final Map<UUID, List<Integer>> deliveredPerAccount = new ConcurrentHashMap<>();
+        final AtomicInteger nbDelivered = new AtomicInteger();
+        try {
+            // Each producer (bus thread) interleaves the events of its accounts, in order for each account
+            final List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < NB_PRODUCERS; p++) {
+                final List<UUID> accountIds = new ArrayList<>();
+                for (int a = 0; a < NB_ACCOUNTS_PER_PRODUCER; a++) {
+                    final UUID accountId = UUID.randomUUID();
+                    accountIds.add(accountId);
+                    deliveredPerAccount.put(accountId, new CopyOnWriteArrayList<>());
+                }
+                final Thread producer = new Thread(() -> {
+                    final int[] nextSequence = new int[NB_ACCOUNTS_PER_PRODUCER];
+                    int remaining = NB_ACCOUNTS_PER_PRODUCER * NB_EVENTS_PER_ACCOUNT;
+                    while (remaining > 0) {
+                        final int a = ThreadLocalRandom.current().nextInt(NB_ACCOUNTS_PER_PRODUCER);
+                        if (nextSequence[a] == NB_EVENTS_PER_ACCOUNT) {
+                            continue;
+                        }
+                        final UUID accountId = accountIds.get(a);
+                        final int sequence = nextSequence[a]++;
+                        dispatcher.submit(accountId, () -> {
+                            deliveredPerAccount.get(accountId).add(sequence);
+                            nbDelivered.incrementAndGet();
+                        });
+                        remaining--;
+                    }
+                });
+                producer.start();
+                producers.add(producer);
+            }
+            for (final Thread producer : producers) {
+                producer.join();
+            }
+
+            final int nbEvents = NB_PRODUCERS * NB_ACCOUNTS_PER_PRODUCER * NB_EVENTS_PER_ACCOUNT;
+            Awaitility.await().atMost(30, TimeUnit.SECONDS).until(() -> nbDelivered.get() == nbEvents);
+            for (final List<Integer> delivered : deliveredPerAccount.values()) {
+                Assert.assertEquals(delivered.size(), NB_EVENTS_PER_ACCOUNT);
+                for (int i = 0; i < NB_EVENTS_PER_ACCOUNT; i++) {
+                    Assert.assertEquals((int) delivered.get(i), i);
+                }
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSlowAccountDoesNotBlockOtherStripes() throws Exception {
+        final AccountStripedDispatcher<Runnable> dispatcher = new AccountStripedDispatcher<>(2, 10, new NoOpMetricRegistry());
+        dispatcher.start();
+
+        final UUID slowAccountId = UUID.randomUUID();
+        UUID otherAccountId = UUID.randomUUID();
+        while (AccountStripedDispatcher.stripeIndex(otherAccountId, 2) == AccountStripedDispatcher.stripeIndex(slowAccountId, 2)) {
+            otherAccountId = UUID.randomUUID();
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch otherDelivered = new CountDownLatch(1);
+        try {
+            dispatcher.submit(slowAccountId, () -> {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            dispatcher.submit(otherAccountId, otherDelivered::countDown);
+            Assert.assertTrue(otherDelivered.await(5, TimeUnit.SECONDS));
+        } finally {
+            latch.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStop() throws Exception {
+        final AccountStripedDispatcher<Runnable> dispatcher = new AccountStripedDispatcher<>(1, 10, new NoOpMetricRegistry(), 100);
+        dispatcher.start();
+
+        final UUID accountId = UUID.randomUUID();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger nbDelivered = new AtomicInteger();
+        final Runnable pending = nbDelivered::incrementAndGet;
+        dispatcher.submit(accountId, () -> {
+            try {
+                latch.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.submit(accountId, pending);
+
+        // Stuck stripe: the pending task is handed back
+        final List<Runnable> undelivered = dispatcher.stop();
+        Assert.assertEquals(undelivered, List.of(pending));
+        Assert.assertEquals(nbDelivered.get(), 0);
+
+        // Once stopped, tasks run in place
+        dispatcher.submit(accountId, nbDelivered::incrementAndGet);
+        Assert.assertEquals(nbDelivered.get(), 1);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class TestContextClassLoaderHelper {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestContextClassLoaderHelper.class);
+
+    public interface PluginApi {
+
+        ClassLoader getContextClassLoader(int ignored);
+
+        String getName();
+
+        long add(long a, long b);
+
+        String concat(String a, String b);
+
+        void fail(String message) throws PluginApiException;
+    }
+
+    public static class PluginApiException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public PluginApiException(final String message) {
+            super(message);
+        }
+    }
+
+    public static class TestPluginApi implements PluginApi {
+
+        @Override
+        public ClassLoader getContextClassLoader(final int ignored) {
+            return Thread.currentThread().getContextClassLoader();
+        }
+
+        @Override
+        public String getName() {
+            return "test-plugin";
+        }
+
+        @Override
+        public long add(final long a, final long b) {
+            return a + b;
+        }
+
+        @Override
+        public String concat(final String a, final String b) {
+            return a + b;
+        }
+
+        @Override
+        public void fail(final String message) throws PluginApiException {
+            throw new PluginApiException(message);
+        }
+    }
+
+    @DataProvider(name = "bindMethodHandles")
+    public Object[][] bindMethodHandles() {
+        return new Object[][]{{true}, {false}};
+    }
+
+    @Test(groups = "fast", dataProvider = "bindMethodHandles")
+    public void testWrappedService(final boolean bindMethodHandles) throws Exception {
+        final PluginApi wrapped = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApi(), PluginApi.class, "test-plugin", new NoOpMetricRegistry(), bindMethodHandles);
+
+        final ClassLoader initialContextClassLoader = Thread.currentThread().getContextClassLoader();
+        final ClassLoader otherClassLoader = new URLClassLoader(new URL[0], null);
+        Thread.currentThread().setContextClassLoader(otherClassLoader);
+        try {
+            // The context classloader is the one of the plugin during the call, and is restored afterwards
+            Assert.assertEquals(wrapped.getContextClassLoader(1), TestPluginApi.class.getClassLoader());
+            Assert.assertEquals(Thread.currentThread().getContextClassLoader(), otherClassLoader);
+        } finally {
+            Thread.currentThread().setContextClassLoader(initialContextClassLoader);
+        }
+
+        Assert.assertEquals(wrapped.add(1, 2), 3L);
+        Assert.assertEquals(wrapped.concat("a", null), "anull");
+        try {
+            wrapped.fail("boom");
+            Assert.fail();
+        } catch (final PluginApiException e) {
+            Assert.assertEquals(e.getMessage(), "boom");
+        }
+        Assert.assertEquals(Thread.currentThread().getContextClassLoader(), initialContextClassLoader);
+
+        Assert.assertEquals(wrapped, wrapped);
+        Assert.assertNotNull(wrapped.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testErrorMetric() {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class);
+        final Meter errorMeter = Mockito.mock(Meter.class);
+        Mockito.when(metricRegistry.meter("killbill-service.kb_plugin_errors.test-plugin.PluginApi.fail")).thenReturn(errorMeter);
+        final Timer timer = Mockito.mock(Timer.class);
+        Mockito.when(metricRegistry.timer(Mockito.anyString())).thenReturn(timer);
+        final PluginApi wrapped = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApi(), PluginApi.class, "test-plugin", metricRegistry);
+
+        Assert.assertEquals(wrapped.add(1, 2), 3L);
+        try {
+            wrapped.fail("boom");
+            Assert.fail();
+        } catch (final PluginApiException e) {
+            Assert.assertEquals(e.getMessage(), "boom");
+        }
+
+        Mockito.verify(errorMeter).mark(1);
+        Mockito.verify(metricRegistry, Mockito.never()).meter("killbill-service.kb_plugin_errors.test-plugin.PluginApi.add");
+        // Failed calls are timed too
+        Mockito.verify(timer, Mockito.times(2)).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+    }
+
+    // Allocation counts depend on the JIT (e.g. escape analysis): not reliable enough for the fast suite
+    @Test(groups = "stress")
+    public void testNoAllocationOnHotPath() {
+        final PluginApi wrapped = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApi(), PluginApi.class, "test-plugin", new NoOpMetricRegistry());
+
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        final int nbCalls = 100_000;
+        long allocated = Long.MAX_VALUE;
+        // Several rounds, to get past the first-call initialization and the JIT
+        for (int round = 0; round < 5; round++) {
+            final long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < nbCalls; i++) {
+                wrapped.getName();
+            }
+            allocated = Math.min(allocated, threadMXBean.getThreadAllocatedBytes(threadId) - startBytes);
+        }
+
+        // No profiling object, profiling id, Optional nor metric lookup per call (only allow for the measurement noise)
+        Assert.assertTrue(allocated < nbCalls / 100, "allocated=" + allocated);
+    }
+
+    @Test(groups = "stress")
+    public void testInvocationCost() {
+        final MetricRegistry metricRegistry = new NoOpMetricRegistry();
+        final PluginApi reflectionProxy = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApi(), PluginApi.class, "test-plugin", metricRegistry, false);
+        final PluginApi methodHandleProxy = ContextClassLoaderHelper.getWrappedServiceWithCorrectContextClassLoader(new TestPluginApi(), PluginApi.class, "test-plugin", metricRegistry, true);
+
+        final int nbCalls = 5_000_000;
+        for (int i = 0; i < 3; i++) {
+            measure("reflection", reflectionProxy, nbCalls);
+            measure("method handles", methodHandleProxy, nbCalls);
+        }
+    }
+
+    private void measure(final String name, final PluginApi pluginApi, final int nbCalls) {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        long sum = 0;
+        final long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < nbCalls; i++) {
+            sum += pluginApi.add(i, 1);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+        Assert.assertTrue(sum > 0);
+
+        logger.info("{}: {} ns/call, {} bytes/call", name, elapsed / nbCalls, allocated / nbCalls);
+    }
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.TestOSGIBusEventDeserializer.TestExtBusEvent;
+import org.killbill.billing.osgi.api.OSGIKillbillBatchEventObserver;
+import org.killbill.billing.osgi.api.OSGIKillbillEventObserver;
+import org.killbill.billing.osgi.config.OSGIConfig.EventBackpressurePolicy;
+import org.killbill.billing.osgi.config.OSGIConfig.EventDispatchMode;
+import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestKillbillEventObservable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestKillbillEventObservable.class);
+
+    private static final int NB_OBSERVERS = 10;
+    private static final int NB_EVENTS = 10000000;
+    private static final int NB_BUS_THREADS = 16;
+    private static final int NB_EVENTS_PER_BUS_THREAD = 5000;
+
+    @Test(groups = "fast")
+    public void testSyncDispatch() {
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        final RecordingObserver first = new RecordingObserver("first", null);
+        final RecordingObserver second = new RecordingObserver("second", null);
+        observable.addObserver(first);
+        observable.addObserver(second);
+
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        observable.setChangedAndNotifyObservers(event);
+
+        // Delivered in place
+        Assert.assertEquals(first.events, List.of(event));
+        Assert.assertEquals(second.events, List.of(event));
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncDispatchWithSlowObserver() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 10, EventBackpressurePolicy.BLOCK, new NoOpMetricRegistry());
+        final CountDownLatch slowObserverLatch = new CountDownLatch(1);
+        final RecordingObserver slow = new RecordingObserver("slow", slowObserverLatch);
+        final RecordingObserver fast = new RecordingObserver("fast", null);
+        observable.addObserver(slow);
+        observable.addObserver(fast);
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+            }
+
+            // The slow observer doesn't hold the other one
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> fast.events.size() == 5);
+            Assert.assertEquals(slow.events.size(), 0);
+
+            slowObserverLatch.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> slow.events.size() == 5);
+            Assert.assertEquals(slow.events, fast.events);
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncDispatchDropOldest() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 2, EventBackpressurePolicy.DROP_OLDEST, new NoOpMetricRegistry());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final RecordingObserver observer = new RecordingObserver("observer", latch);
+        observable.addObserver(observer);
+
+        try {
+            final ExtBusEvent first = Mockito.mock(ExtBusEvent.class);
+            observable.setChangedAndNotifyObservers(first);
+            // Wait for the worker to pick up the first event (it then blocks on the latch)
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.inFlight != null);
+
+            final ExtBusEvent second = Mockito.mock(ExtBusEvent.class);
+            final ExtBusEvent third = Mockito.mock(ExtBusEvent.class);
+            final ExtBusEvent fourth = Mockito.mock(ExtBusEvent.class);
+            observable.setChangedAndNotifyObservers(second);
+            observable.setChangedAndNotifyObservers(third);
+            observable.setChangedAndNotifyObservers(fourth);
+
+            latch.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.events.size() == 3);
+            Assert.assertEquals(observer.events, List.of(first, third, fourth));
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncDispatchSpillToRetryQueue() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 1, EventBackpressurePolicy.RETRY, new NoOpMetricRegistry());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final RecordingObserver observer = new RecordingObserver("observer", latch);
+        observable.addObserver(observer);
+
+        try {
+            observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.inFlight != null);
+            observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+            try {
+                observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+                Assert.fail();
+            } catch (final QueueRetryException e) {
+                Assert.assertTrue(e.getCause().getMessage().contains("observer"));
+            }
+            latch.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.events.size() == 2);
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncDispatchFailuresAndStop() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 10, EventBackpressurePolicy.BLOCK, new NoOpMetricRegistry());
+        final List<Object> failedEvents = new CopyOnWriteArrayList<>();
+        observable.setLaneFailureHandler((name, event, cause) -> {
+            Assert.assertEquals(name, "failing");
+            failedEvents.add(event);
+        });
+        final RecordingObserver failing = new RecordingObserver("failing", null);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final RecordingObserver slow = new RecordingObserver("slow", latch, Set.of(ExtBusEventType.INVOICE_CREATION.name()), null);
+        observable.addObserver(failing);
+        observable.addObserver(slow);
+
+        // Handed to the failure handler (retry queue), even though the event was acknowledged
+        failing.nbRetriesRequested = 1;
+        final ExtBusEvent failedEvent = createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT);
+        observable.setChangedAndNotifyObservers(failedEvent);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> failedEvents.size() == 1);
+        Assert.assertEquals(failedEvents, List.of(failedEvent));
+
+        // Queued events are delivered before the lanes stop
+        for (int i = 0; i < 3; i++) {
+            observable.setChangedAndNotifyObservers(createEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+        }
+        final Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latch.countDown();
+        });
+        releaser.start();
+        observable.deleteObservers();
+        Assert.assertEquals(slow.events.size(), 3);
+        Assert.assertEquals(failing.events.size(), 3);
+        Assert.assertEquals(failedEvents.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testBatchDispatch() throws Exception {
+        // Batch observers get a delivery lane even in SYNC mode
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        final List<Object> failedEvents = new CopyOnWriteArrayList<>();
+        observable.setLaneFailureHandler((name, event, cause) -> failedEvents.add(event));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final BatchRecordingObserver observer = new BatchRecordingObserver("batch", latch, 3, 0);
+        observable.addObserver(observer);
+
+        try {
+            // The events queued while the first batch is handled are delivered in batches of up to 3 events
+            observable.setChangedAndNotifyObservers(createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT));
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.inFlight != null);
+            for (int i = 0; i < 7; i++) {
+                observable.setChangedAndNotifyObservers(createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT));
+            }
+            latch.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.events.size() == 8);
+            Assert.assertEquals(observer.batchSizes, List.of(1, 3, 3, 1));
+
+            // Each event of a failed batch is handed to the failure handler (retry queue)
+            observer.nbRetriesRequested = 1;
+            final ExtBusEvent failedEvent = createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT);
+            observable.setChangedAndNotifyObservers(failedEvent);
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> failedEvents.size() == 1);
+            Assert.assertEquals(failedEvents, List.of(failedEvent));
+            Assert.assertEquals(observer.events.size(), 8);
+
+            // And retried in a batch of its own, in place
+            final KillbillEventObservable.DeliveryResult retryResult = observable.deliver(failedEvent, Set.of("batch"));
+            Assert.assertTrue(retryResult.isSuccessful());
+            Assert.assertEquals(observer.events.size(), 9);
+            Assert.assertEquals(observer.batchSizes, List.of(1, 3, 3, 1, 1));
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testBatchDispatchWithLinger() throws Exception {
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        final BatchRecordingObserver observer = new BatchRecordingObserver("batch", null, 3, 60000);
+        observable.addObserver(observer);
+
+        try {
+            // A full batch doesn't wait for the linger time
+            for (int i = 0; i < 3; i++) {
+                observable.setChangedAndNotifyObservers(createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT));
+            }
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> observer.events.size() == 3);
+            Assert.assertEquals(observer.batchSizes, List.of(3));
+
+            // A partial batch is delivered on stop
+            observable.setChangedAndNotifyObservers(createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT));
+        } finally {
+            observable.deleteObservers();
+        }
+        Assert.assertEquals(observer.batchSizes, List.of(3, 1));
+    }
+
+    @Test(groups = "fast")
+    public void testSubscriptions() {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS);
+        final Counter deliveredAccountCreation = Mockito.mock(Counter.class);
+        final Counter skippedAccountCreation = Mockito.mock(Counter.class);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_event_dispatch_delivered.ACCOUNT_CREATION")).thenReturn(deliveredAccountCreation);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_event_dispatch_skipped.ACCOUNT_CREATION")).thenReturn(skippedAccountCreation);
+
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.SYNC, 0, EventBackpressurePolicy.BLOCK, metricRegistry);
+        final RecordingObserver all = new RecordingObserver("all", null);
+        final RecordingObserver broadcastOnly = new RecordingObserver("broadcastOnly", null, Set.of(ExtBusEventType.BROADCAST_SERVICE.name()), null);
+        final RecordingObserver invoiceObjectsOnly = new RecordingObserver("invoiceObjectsOnly", null, null, Set.of(ObjectType.INVOICE.name()));
+        final RecordingObserver noneAndUnknown = new RecordingObserver("noneAndUnknown", null, Set.of("NOT_A_KILLBILL_EVENT"), null);
+        observable.addObserver(all);
+        observable.addObserver(broadcastOnly);
+        observable.addObserver(invoiceObjectsOnly);
+        observable.addObserver(noneAndUnknown);
+
+        final ExtBusEvent accountCreation = createEvent(ExtBusEventType.ACCOUNT_CREATION, ObjectType.ACCOUNT);
+        final ExtBusEvent invoiceCreation = createEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE);
+        final ExtBusEvent broadcast = createEvent(ExtBusEventType.BROADCAST_SERVICE, ObjectType.SERVICE_BROADCAST);
+        observable.setChangedAndNotifyObservers(accountCreation);
+        observable.setChangedAndNotifyObservers(invoiceCreation);
+        observable.setChangedAndNotifyObservers(broadcast);
+
+        Assert.assertEquals(all.events, List.of(accountCreation, invoiceCreation, broadcast));
+        Assert.assertEquals(broadcastOnly.events, List.of(broadcast));
+        Assert.assertEquals(invoiceObjectsOnly.events, List.of(invoiceCreation));
+        Assert.assertEquals(noneAndUnknown.events, List.of());
+        Mockito.verify(deliveredAccountCreation).inc(1);
+        Mockito.verify(skippedAccountCreation).inc(3);
+
+        // OSGI framework events aren't filtered
+        final Object frameworkEvent = new Object();
+        observable.setChangedAndNotifyObservers(frameworkEvent);
+        Assert.assertEquals(noneAndUnknown.events, List.of(frameworkEvent));
+
+        // The index follows registration changes
+        observable.deleteObserver(all);
+        observable.setChangedAndNotifyObservers(accountCreation);
+        Assert.assertEquals(all.events.size(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryOnlyFailedObservers() {
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        final RecordingObserver healthy = new RecordingObserver("healthy", null);
+        final RecordingObserver failing = new RecordingObserver("failing", null);
+        final RecordingObserver otherHealthy = new RecordingObserver("otherHealthy", null);
+        observable.addObserver(healthy);
+        observable.addObserver(failing);
+        observable.addObserver(otherHealthy);
+
+        failing.nbRetriesRequested = 1;
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        final KillbillEventObservable.DeliveryResult result = observable.deliver(event, null);
+        // The failure didn't prevent the delivery to the next observer
+        Assert.assertEquals(healthy.events, List.of(event));
+        Assert.assertEquals(otherHealthy.events, List.of(event));
+        Assert.assertEquals(failing.events, List.of());
+        Assert.assertEquals(result.getNbDelivered(), 3);
+        Assert.assertEquals(result.getFailedObserverNames(), Set.of("failing"));
+        Assert.assertNotNull(result.getRetryException());
+
+        final KillbillEventObservable.DeliveryResult retryResult = observable.deliver(event, result.getFailedObserverNames());
+        Assert.assertNull(retryResult.getRetryException());
+        Assert.assertEquals(retryResult.getNbDelivered(), 1);
+        Assert.assertEquals(failing.events, List.of(event));
+        Assert.assertEquals(healthy.events, List.of(event));
+        Assert.assertEquals(otherHealthy.events, List.of(event));
+
+        // Successful deliveries share their result
+        Assert.assertSame(observable.deliver(event, Set.of("healthy")), retryResult);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryTargetsPlainObserverInstance() {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS);
+        final Counter skipped = Mockito.mock(Counter.class);
+        final Counter excludedFromRetry = Mockito.mock(Counter.class);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_event_dispatch_skipped.INVOICE_CREATION")).thenReturn(skipped);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_event_dispatch_retry_excluded.INVOICE_CREATION")).thenReturn(excludedFromRetry);
+
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.SYNC, 0, EventBackpressurePolicy.BLOCK, metricRegistry);
+        final PlainObserver first = new PlainObserver();
+        final PlainObserver second = new PlainObserver();
+        observable.addObserver(first);
+        observable.addObserver(second);
+
+        second.nbRetriesRequested = 1;
+        final ExtBusEvent event = createEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE);
+        final KillbillEventObservable.DeliveryResult result = observable.deliver(event, null);
+        Assert.assertEquals(result.getFailedObserverNames(), Set.of(PlainObserver.class.getName() + "#2"));
+
+        // Only the failed instance sees the event again
+        observable.deliver(event, result.getFailedObserverNames());
+        Assert.assertEquals(first.nbEvents, 1);
+        Assert.assertEquals(second.nbEvents, 1);
+        Mockito.verify(excludedFromRetry).inc(1);
+        Mockito.verify(skipped, Mockito.times(2)).inc(0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailingObserverDoesNotBlockOthers() {
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        final RecordingObserver healthy = new RecordingObserver("healthy", null);
+        final RecordingObserver failing = new RecordingObserver("failing", null) {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                throw new IllegalStateException("Plugin bug");
+            }
+        };
+        observable.addObserver(healthy);
+        observable.addObserver(failing);
+
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        final KillbillEventObservable.DeliveryResult result = observable.deliver(event, null);
+        Assert.assertEquals(healthy.events, List.of(event));
+        Assert.assertFalse(result.isSuccessful());
+        Assert.assertNull(result.getRetryException());
+        Assert.assertTrue(result.getFailure() instanceof IllegalStateException);
+        Assert.assertEquals(result.getFailedObserverNames(), Set.of("failing"));
+    }
+
+    @Test(groups = "fast")
+    public void testObserverRegistry() {
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS);
+        final Timer firstInvocations = Mockito.mock(Timer.class);
+        final Timer secondInvocations = Mockito.mock(Timer.class);
+        Mockito.when(metricRegistry.timer("killbill-service.kb_event_observer_latency.first")).thenReturn(firstInvocations);
+        Mockito.when(metricRegistry.timer("killbill-service.kb_event_observer_latency.second")).thenReturn(secondInvocations);
+
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.SYNC, 0, EventBackpressurePolicy.BLOCK, metricRegistry);
+        final List<String> notified = new CopyOnWriteArrayList<>();
+        final RecordingObserver first = new RecordingObserver("first", null) {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                notified.add("first");
+                super.update(o, arg);
+            }
+        };
+        final RecordingObserver second = new RecordingObserver("second", null) {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                notified.add("second");
+                super.update(o, arg);
+            }
+        };
+        observable.addObserver(first);
+        observable.addObserver(second);
+        // Registered once
+        observable.addObserver(first);
+        Assert.assertEquals(observable.countObservers(), 2);
+
+        observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+        observable.setChangedAndNotifyObservers(new Object());
+        // Last registered notified first, as Observable
+        Assert.assertEquals(notified, List.of("second", "first", "second", "first"));
+        Mockito.verify(firstInvocations, Mockito.times(2)).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+        Mockito.verify(secondInvocations, Mockito.times(2)).update(Mockito.anyLong(), Mockito.eq(TimeUnit.NANOSECONDS));
+
+        observable.deleteObserver(second);
+        Assert.assertEquals(observable.countObservers(), 1);
+        observable.setChangedAndNotifyObservers(Mockito.mock(ExtBusEvent.class));
+        Assert.assertEquals(first.events.size(), 3);
+        Assert.assertEquals(second.events.size(), 2);
+
+        observable.deleteObservers();
+        Assert.assertEquals(observable.countObservers(), 0);
+    }
+
+    @Test(groups = "stress")
+    public void testSyncDispatchThroughput() {
+        final KillbillEventObservable observable = new KillbillEventObservable();
+        for (int i = 0; i < NB_OBSERVERS; i++) {
+            observable.addObserver(new RecordingObserver("observer-" + i, null) {
+                @Override
+                public void update(final Observable o, final Object arg) {
+                }
+            });
+        }
+        final ExtBusEvent event = createEvent(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE);
+
+        // Warm-up
+        for (int i = 0; i < NB_EVENTS / 10; i++) {
+            observable.setChangedAndNotifyObservers(event);
+        }
+
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < NB_EVENTS; i++) {
+            observable.setChangedAndNotifyObservers(event);
+        }
+        logger.info("{} observers: {} events/s", NB_OBSERVERS, NB_EVENTS * 1000000000L / (System.nanoTime() - startTime));
+    }
+
+    @Test(groups = "stress")
+    public void testBatchDispatchThroughputWithDatabaseStub() throws Exception {
+        final JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        try (final Connection connection = dataSource.getConnection(); final Statement statement = connection.createStatement()) {
+            statement.execute("create table plugin_events (record_id bigint auto_increment primary key, event_type varchar(64), object_id varchar(36))");
+        }
+
+        try {
+            // One insert and commit per event
+            final long perEventRate = measureDispatch(new DatabaseObserver("perEvent", dataSource));
+            // One JDBC batch and commit per micro-batch (built by the delivery lane)
+            final long batchedRate = measureDispatch(new BatchDatabaseObserver("batched", dataSource));
+
+            logger.info("{} bus threads: {} events/s one event at a time, {} events/s in micro-batches", NB_BUS_THREADS, perEventRate, batchedRate);
+        } finally {
+            dataSource.dispose();
+        }
+    }
+
+    private static long measureDispatch(final DatabaseObserver observer) throws InterruptedException {
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 1000, EventBackpressurePolicy.BLOCK, new NoOpMetricRegistry());
+        observable.addObserver(observer);
+        final int nbEvents = NB_BUS_THREADS * NB_EVENTS_PER_BUS_THREAD;
+
+        try {
+            final long startTime = System.nanoTime();
+            final List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < NB_BUS_THREADS; i++) {
+                final Thread thread = new Thread(() -> {
+                    for (int j = 0; j < NB_EVENTS_PER_BUS_THREAD; j++) {
+                        observable.setChangedAndNotifyObservers(new TestExtBusEvent(UUID.randomUUID(), ObjectType.INVOICE, ExtBusEventType.INVOICE_CREATION, null, null, null, null));
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            Awaitility.await().atMost(5, TimeUnit.MINUTES).until(() -> observer.nbEvents.get() == nbEvents);
+            return nbEvents * 1000000000L / (System.nanoTime() - startTime);
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    private static ExtBusEvent createEvent(final ExtBusEventType eventType, final ObjectType objectType) {
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        Mockito.when(event.getEventType()).thenReturn(eventType);
+        Mockito.when(event.getObjectType()).thenReturn(objectType);
+        return event;
+    }
+
+    private static final class PlainObserver implements Observer {
+
+        private volatile int nbEvents;
+        private volatile int nbRetriesRequested;
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+            if (nbRetriesRequested > 0) {
+                nbRetriesRequested--;
+                throw new QueueRetryException(new IllegalStateException("Retry requested"));
+            }
+            nbEvents++;
+        }
+    }
+
+    private static class RecordingObserver implements OSGIKillbillEventObserver {
+
+        private final String name;
+        private final CountDownLatch latch;
+        private final Set<String> eventTypes;
+        private final Set<String> objectTypes;
+        private final List<Object> events = new CopyOnWriteArrayList<>();
+        private volatile Object inFlight;
+        private volatile int nbRetriesRequested;
+
+        private RecordingObserver(final String name, final CountDownLatch latch) {
+            this(name, latch, null, null);
+        }
+
+        private RecordingObserver(final String name, final CountDownLatch latch, final Set<String> eventTypes, final Set<String> objectTypes) {
+            this.name = name;
+            this.latch = latch;
+            this.eventTypes = eventTypes;
+            this.objectTypes = objectTypes;
+        }
+
+        @Override
+        public String getObserverName() {
+            return name;
+        }
+
+        @Override
+        public Set<String> getSubscribedEventTypes() {
+            return eventTypes;
+        }
+
+        @Override
+        public Set<String> getSubscribedObjectTypes() {
+            return objectTypes;
+        }
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+            if (nbRetriesRequested > 0) {
+                nbRetriesRequested--;
+                throw new QueueRetryException(new IllegalStateException("Retry requested by " + name));
+            }
+            inFlight = arg;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            events.add(arg);
+        }
+    }
+
+    private static class DatabaseObserver implements OSGIKillbillEventObserver {
+
+        private final String name;
+        private final JdbcConnectionPool dataSource;
+        private final AtomicInteger nbEvents = new AtomicInteger();
+
+        private DatabaseObserver(final String name, final JdbcConnectionPool dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public String getObserverName() {
+            return name;
+        }
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+            insert(List.of(arg));
+        }
+
+        void insert(final List<Object> events) {
+            try (final Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try (final PreparedStatement statement = connection.prepareStatement("insert into plugin_events (event_type, object_id) values (?, ?)")) {
+                    for (final Object event : events) {
+                        statement.setString(1, ((ExtBusEvent) event).getEventType().name());
+                        statement.setString(2, ((ExtBusEvent) event).getObjectId().toString());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                connection.commit();
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            nbEvents.addAndGet(events.size());
+        }
+    }
+
+    private static final class BatchDatabaseObserver extends DatabaseObserver implements OSGIKillbillBatchEventObserver {
+
+        private BatchDatabaseObserver(final String name, final JdbcConnectionPool dataSource) {
+            super(name, dataSource);
+        }
+
+        @Override
+        public void updateBatch(final Observable o, final List<Object> events) {
+            insert(events);
+        }
+
+        @Override
+        public long getLingerMillis() {
+            return 1;
+        }
+    }
+
+    private static final class BatchRecordingObserver extends RecordingObserver implements OSGIKillbillBatchEventObserver {
+
+        private final int maxBatchSize;
+        private final long lingerMillis;
+        private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+        private BatchRecordingObserver(final String name, final CountDownLatch latch, final int maxBatchSize, final long lingerMillis) {
+            super(name, latch);
+            this.maxBatchSize = maxBatchSize;
+            this.lingerMillis = lingerMillis;
+        }
+
+        @Override
+        public void updateBatch(final Observable o, final List<Object> events) {
+            if (nbRetriesRequested > 0) {
+                nbRetriesRequested--;
+                throw new QueueRetryException(new IllegalStateException("Retry requested by " + getObserverName()));
+            }
+            batchSizes.add(events.size());
+            for (final Object event : events) {
+                update(o, event);
+            }
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        @Override
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.TestOSGIBusEventDeserializer.TestExtBusEvent;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.config.OSGIConfig.EventBackpressurePolicy;
+import org.killbill.billing.osgi.config.OSGIConfig.EventDispatchMode;
+import org.killbill.bus.api.PersistentBus;
+import org.killbill.clock.ClockMock;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.killbill.notificationq.api.NotificationEvent;
+import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueService;
+import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.mockito.Mockito;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestKillbillEventRetriableBusHandler {
+
+    @Test(groups = "fast")
+    public void testAsyncRetriesFollowSchedule() throws Exception {
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.getEventDispatchRetrySchedule()).thenReturn(List.of(new TimeSpan("5m"), new TimeSpan("1h"), new TimeSpan("1d")));
+
+        // Retry notifications are recorded, then replayed by hand
+        final BlockingQueue<NotificationEvent> retries = new LinkedBlockingQueue<>();
+        final NotificationQueue retryQueue = Mockito.mock(NotificationQueue.class);
+        Mockito.doAnswer(invocation -> retries.add(invocation.getArgument(1)))
+               .when(retryQueue).recordFutureNotification(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+        final AtomicReference<NotificationQueueHandler> retryHandler = new AtomicReference<>();
+        final NotificationQueueService notificationQueueService = Mockito.mock(NotificationQueueService.class);
+        Mockito.when(notificationQueueService.createNotificationQueue(Mockito.anyString(), Mockito.anyString(), Mockito.any())).thenAnswer(invocation -> {
+            retryHandler.set(invocation.getArgument(2));
+            return retryQueue;
+        });
+
+        final ClockMock clock = new ClockMock();
+        final KillbillEventObservable observable = new KillbillEventObservable(EventDispatchMode.ASYNC, 10, EventBackpressurePolicy.BLOCK, new NoOpMetricRegistry());
+        final KillbillEventRetriableBusHandler handler = new KillbillEventRetriableBusHandler(Mockito.mock(PersistentBus.class), observable, notificationQueueService, clock, osgiConfig, new NoOpMetricRegistry());
+        handler.initialize();
+        final FailingObserver failing = new FailingObserver();
+        observable.addObserver(failing);
+
+        try {
+            handler.handleKillbillEvent(new TestExtBusEvent(UUID.randomUUID(), ObjectType.INVOICE, ExtBusEventType.INVOICE_CREATION, UUID.randomUUID(), UUID.randomUUID(), null, UUID.randomUUID()));
+
+            // The first attempt fails on the delivery lane, the retries fail in place
+            NotificationEvent retry = retries.poll(5, TimeUnit.SECONDS);
+            int nbRetries = 0;
+            while (retry != null) {
+                nbRetries++;
+                try {
+                    retryHandler.get().handleReadyNotification(retry, clock.getUTCNow(), null, null, null);
+                } catch (final RuntimeException ignored) {
+                    // Outcome of the retry, reported to the notification queue
+                }
+                retry = retries.poll();
+            }
+
+            // One retry per period of the schedule, then the event is given up
+            Assert.assertEquals(nbRetries, 3);
+            Assert.assertEquals(failing.nbAttempts.get(), 4);
+        } finally {
+            observable.deleteObservers();
+        }
+    }
+
+    private static final class FailingObserver implements Observer {
+
+        private final AtomicInteger nbAttempts = new AtomicInteger();
+
+        @Override
+        public void update(final Observable o, final Object arg) {
+            nbAttempts.incrementAndGet();
+            throw new IllegalStateException("Plugin bug");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.killbill.billing.osgi.config.OSGIConfig.LogForwardingMode;
+import org.killbill.billing.osgi.config.OSGIConfig.LogOverflowPolicy;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.MDC;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class TestOSGIAppender {
+
+    @Test(groups = "fast")
+    public void testAsyncForwarding() {
+        final List<String> forwarded = new CopyOnWriteArrayList<String>();
+        final LogService logService = Mockito.mock(LogService.class);
+        Mockito.doAnswer(invocation -> {
+            forwarded.add(Thread.currentThread().getName() + "|" + MDC.get("kb.userToken") + "|" + invocation.getArgument(2));
+            return null;
+        }).when(logService).log(Mockito.<ServiceReference>any(), Mockito.anyInt(), Mockito.anyString(), Mockito.any());
+
+        final OSGIAppender appender = createAppender(logService, 10, LogOverflowPolicy.DISCARD_NEWEST, Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS));
+        try {
+            appender.doAppend(createEvent(Level.INFO, "hello", Map.of("kb.userToken", "token-1")));
+            appender.doAppend(createEvent(Level.WARN, "world", Map.of()));
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> forwarded.size() == 2);
+            // Formatted and forwarded by the forwarder thread, with the MDC of the logging thread
+            Assert.assertTrue(forwarded.get(0).endsWith("|token-1|test.logger; hello"));
+            Assert.assertTrue(forwarded.get(1).endsWith("|null|test.logger; world"));
+            Assert.assertNotEquals(forwarded.get(0).split("\\|")[0], Thread.currentThread().getName());
+        } finally {
+            appender.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMessageFormattedOnLoggingThread() throws InterruptedException {
+        final CountDownLatch forwarderBlocked = new CountDownLatch(1);
+        final CountDownLatch unblockForwarder = new CountDownLatch(1);
+        final List<String> forwarded = new CopyOnWriteArrayList<String>();
+        final LogService logService = Mockito.mock(LogService.class);
+        Mockito.doAnswer(invocation -> {
+            forwarderBlocked.countDown();
+            unblockForwarder.await();
+            forwarded.add(invocation.getArgument(2));
+            return null;
+        }).when(logService).log(Mockito.<ServiceReference>any(), Mockito.anyInt(), Mockito.anyString(), Mockito.any());
+
+        final OSGIAppender appender = createAppender(logService, 10, LogOverflowPolicy.BLOCK, Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS));
+        try {
+            // Hold the forwarder
+            appender.doAppend(createEvent(Level.INFO, "first", Map.of()));
+            Assert.assertTrue(forwarderBlocked.await(5, TimeUnit.SECONDS));
+
+            final LoggerContext loggerContext = new LoggerContext();
+            final StringBuilder argument = new StringBuilder("before");
+            appender.doAppend(new LoggingEvent(TestOSGIAppender.class.getName(), loggerContext.getLogger("test.logger"), Level.INFO, "value={}", null, new Object[]{argument}));
+            // The caller is free to modify it once the logging call returns
+            argument.replace(0, argument.length(), "after");
+
+            unblockForwarder.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> forwarded.size() == 2);
+            Assert.assertEquals(forwarded.get(1), "test.logger; value=before");
+        } finally {
+            unblockForwarder.countDown();
+            appender.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDiscardDebugInfoFirst() throws InterruptedException {
+        final CountDownLatch forwarderBlocked = new CountDownLatch(1);
+        final CountDownLatch unblockForwarder = new CountDownLatch(1);
+        final LogService logService = Mockito.mock(LogService.class);
+        Mockito.doAnswer(invocation -> {
+            forwarderBlocked.countDown();
+            unblockForwarder.await();
+            return null;
+        }).when(logService).log(Mockito.<ServiceReference>any(), Mockito.anyInt(), Mockito.anyString(), Mockito.any());
+
+        final MetricRegistry metricRegistry = Mockito.mock(MetricRegistry.class, Mockito.RETURNS_MOCKS);
+        final Counter droppedInfo = Mockito.mock(Counter.class);
+        final Counter droppedWarn = Mockito.mock(Counter.class);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_log_forwarding_dropped.INFO")).thenReturn(droppedInfo);
+        Mockito.when(metricRegistry.counter("killbill-service.kb_log_forwarding_dropped.WARN")).thenReturn(droppedWarn);
+
+        final OSGIAppender appender = createAppender(logService, 10, LogOverflowPolicy.DISCARD_DEBUG_INFO_FIRST, metricRegistry);
+        try {
+            // Hold the forwarder
+            appender.doAppend(createEvent(Level.INFO, "first", Map.of()));
+            Assert.assertTrue(forwarderBlocked.await(5, TimeUnit.SECONDS));
+
+            // Fill the queue up to the threshold (80%)
+            for (int i = 0; i < 8; i++) {
+                appender.doAppend(createEvent(Level.INFO, "info-" + i, Map.of()));
+            }
+            Mockito.verify(droppedInfo, Mockito.never()).inc(Mockito.anyLong());
+
+            // INFO entries are now discarded, WARN entries are still queued until the queue is full
+            appender.doAppend(createEvent(Level.INFO, "discarded", Map.of()));
+            Mockito.verify(droppedInfo).inc(1);
+            appender.doAppend(createEvent(Level.WARN, "warn-1", Map.of()));
+            appender.doAppend(createEvent(Level.WARN, "warn-2", Map.of()));
+            Mockito.verify(droppedWarn, Mockito.never()).inc(Mockito.anyLong());
+            appender.doAppend(createEvent(Level.WARN, "warn-3", Map.of()));
+            Mockito.verify(droppedWarn).inc(1);
+        } finally {
+            unblockForwarder.countDown();
+            appender.stop();
+        }
+    }
+
+    private static OSGIAppender createAppender(final LogService logService, final int capacity, final LogOverflowPolicy overflowPolicy, final MetricRegistry metricRegistry) {
+        @SuppressWarnings("unchecked")
+        final ServiceTracker<LogService, LogService> logTracker = Mockito.mock(ServiceTracker.class);
+        Mockito.when(logTracker.getService()).thenReturn(logService);
+
+        final OSGIAppender appender = new OSGIAppender(logTracker, Mockito.mock(Bundle.class), LogForwardingMode.ASYNC, capacity, overflowPolicy, metricRegistry);
+        appender.setContext(new LoggerContext());
+        appender.start();
+        return appender;
+    }
+
+    private static ILoggingEvent createEvent(final Level level, final String message, final Map<String, String> mdc) {
+        final ILoggingEvent event = Mockito.mock(ILoggingEvent.class);
+        Mockito.when(event.getLevel()).thenReturn(level);
+        Mockito.when(event.getLoggerName()).thenReturn("test.logger");
+        Mockito.when(event.getFormattedMessage()).thenReturn(message);
+        Mockito.when(event.getMDCPropertyMap()).thenReturn(mdc);
+        return event;
+    }
+}
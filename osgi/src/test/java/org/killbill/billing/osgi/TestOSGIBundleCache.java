@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.felix.framework.Felix;
+import org.killbill.commons.utils.io.Files;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestOSGIBundleCache {
+
+    private File rootDir;
+    private File bundlesDir;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        rootDir = Files.createTempDirectory();
+        bundlesDir = Files.createTempDirectory();
+    }
+
+    @Test(groups = "fast")
+    public void testReuseAndInvalidation() throws Exception {
+        final File first = createBundleJar("first", "1");
+        final File second = createBundleJar("second", "1");
+
+        // Cold start
+        Boot boot = boot(true, "extra", first, second);
+        Assert.assertFalse(boot.warm);
+        Assert.assertEquals(boot.nbReused, 0);
+        Assert.assertTrue(new File(rootDir, OSGIBundleCache.MANIFEST_FILE_NAME).isFile());
+
+        // Warm start: both bundles are reused, with the same ids
+        final Map<String, Long> previousIds = boot.bundleIds;
+        boot = boot(true, "extra", first, second);
+        Assert.assertTrue(boot.warm);
+        Assert.assertEquals(boot.nbReused, 2);
+        Assert.assertEquals(boot.nbEvicted, 0);
+        Assert.assertEquals(boot.bundleIds, previousIds);
+
+        // Touching a jar doesn't invalidate it
+        Assert.assertTrue(first.setLastModified(first.lastModified() - 10000));
+        boot = boot(true, "extra", first, second);
+        Assert.assertEquals(boot.nbReused, 2);
+
+        // A modified jar is reinstalled
+        createBundleJar("first", "2");
+        boot = boot(true, "extra", first, second);
+        Assert.assertEquals(boot.nbReused, 1);
+        Assert.assertEquals(boot.nbEvicted, 1);
+        Assert.assertEquals(boot.versions.get("first"), "2.0.0");
+
+        // A bundle not installed anymore is evicted
+        boot = boot(true, "extra", first);
+        Assert.assertEquals(boot.nbReused, 2);
+        Assert.assertEquals(boot.nbEvicted, 1);
+        boot = boot(true, "extra", first);
+        Assert.assertEquals(boot.nbReused, 1);
+        Assert.assertEquals(boot.nbEvicted, 0);
+
+        // A framework configuration change wipes the cache
+        boot = boot(true, "other-extra", first);
+        Assert.assertFalse(boot.warm);
+        Assert.assertEquals(boot.nbReused, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testNonPersistentCache() throws Exception {
+        final File first = createBundleJar("first", "1");
+
+        boot(false, "extra", first);
+        final Boot boot = boot(false, "extra", first);
+        Assert.assertFalse(boot.warm);
+        Assert.assertEquals(boot.nbReused, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testTogglingPersistence() throws Exception {
+        final File first = createBundleJar("first", "1");
+
+        // Opting in: the cache left by a non-persistent run isn't reused
+        boot(false, "extra", first);
+        Assert.assertFalse(boot(true, "extra", first).warm);
+        Assert.assertTrue(boot(true, "extra", first).warm);
+
+        // Opting out wipes the cache, including its manifest: opting in again starts cold
+        Assert.assertFalse(boot(false, "extra", first).warm);
+        Assert.assertFalse(new File(rootDir, OSGIBundleCache.MANIFEST_FILE_NAME).exists());
+        final Boot boot = boot(true, "extra", first);
+        Assert.assertFalse(boot.warm);
+        Assert.assertEquals(boot.nbReused, 0);
+    }
+
+    // Mimic DefaultOSGIService: init, evict, start, install, commit, stop
+    private Boot boot(final boolean persistent, final String extraPackages, final File... jars) throws BundleException, InterruptedException {
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("org.osgi.framework.system.packages.extra", extraPackages);
+        config.put("felix.cache.rootdir", rootDir.getAbsolutePath());
+        config.put("org.osgi.framework.storage", "osgi-cache");
+
+        final OSGIBundleCache bundleCache = new OSGIBundleCache(rootDir.getAbsolutePath(), persistent);
+        final Framework framework = new Felix(new HashMap<Object, Object>(config));
+        final Boot boot = new Boot();
+        boot.warm = bundleCache.prepare(framework.getVersion().toString(), config);
+        framework.init();
+        try {
+            bundleCache.evictStaleBundles(framework.getBundleContext());
+            framework.start();
+
+            final List<Bundle> bundles = new ArrayList<Bundle>();
+            for (final File jar : jars) {
+                final Bundle bundle = framework.getBundleContext().installBundle("file:" + jar.getAbsolutePath());
+                bundle.start(Bundle.START_TRANSIENT);
+                bundles.add(bundle);
+                boot.bundleIds.put(bundle.getSymbolicName(), bundle.getBundleId());
+                boot.versions.put(bundle.getSymbolicName(), bundle.getVersion().toString());
+            }
+            bundleCache.commit(framework.getBundleContext(), bundles);
+            Assert.assertEquals(framework.getBundleContext().getBundles().length, jars.length + 1);
+        } finally {
+            framework.stop();
+            framework.waitForStop(0);
+        }
+        boot.nbReused = bundleCache.getNbReusedBundles();
+        boot.nbEvicted = bundleCache.getNbEvictedBundles();
+        return boot;
+    }
+
+    private File createBundleJar(final String symbolicName, final String version) throws IOException {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", symbolicName);
+        attributes.putValue("Bundle-Version", version);
+
+        final File jar = new File(bundlesDir, symbolicName + ".jar");
+        try (final OutputStream out = new FileOutputStream(jar); final JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+            jarOut.putNextEntry(new ZipEntry(symbolicName + "/README"));
+            jarOut.write(version.getBytes(StandardCharsets.UTF_8));
+        }
+        return jar;
+    }
+
+    private static final class Boot {
+
+        private final Map<String, Long> bundleIds = new HashMap<String, Long>();
+        private final Map<String, String> versions = new HashMap<String, String>();
+        private boolean warm;
+        private int nbReused;
+        private int nbEvicted;
+    }
+}
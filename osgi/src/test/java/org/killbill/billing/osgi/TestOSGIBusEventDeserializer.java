@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.KillbillEventRetriableBusHandler.OSGIBusEvent;
+import org.killbill.queue.QueueObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestOSGIBusEventDeserializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestOSGIBusEventDeserializer.class);
+
+    private static final int NB_EVENTS = 1000000;
+
+    private final ObjectMapper objectMapper = QueueObjectMapper.get();
+
+    @Test(groups = "fast")
+    public void testRoundTrip() throws IOException {
+        final OSGIBusEvent event = new OSGIBusEvent(createExtBusEvent(), TestExtBusEvent.class, Set.of("plugin-a", "plugin-b"));
+
+        final String json = objectMapper.writeValueAsString(event);
+        // Class first, no derived fields
+        Assert.assertTrue(json.startsWith("{\"extBusEventClass\":"), json);
+        Assert.assertFalse(json.contains("searchKey1"), json);
+
+        final OSGIBusEvent deserialized = objectMapper.readValue(json, OSGIBusEvent.class);
+        Assert.assertEquals(deserialized, event);
+        Assert.assertEquals(deserialized.getObserverNames(), Set.of("plugin-a", "plugin-b"));
+        Assert.assertEquals(deserialized.getSearchKey1(), event.getSearchKey1());
+
+        final OSGIBusEvent allObservers = objectMapper.readValue(objectMapper.writeValueAsString(new OSGIBusEvent(createExtBusEvent(), TestExtBusEvent.class)), OSGIBusEvent.class);
+        Assert.assertNull(allObservers.getObserverNames());
+    }
+
+    @Test(groups = "fast")
+    public void testPayloadsFromPreviousVersions() throws IOException {
+        final TestExtBusEvent extBusEvent = createExtBusEvent();
+        final String legacyJson = legacyPayload(extBusEvent);
+
+        final OSGIBusEvent deserialized = objectMapper.readValue(legacyJson, OSGIBusEvent.class);
+        Assert.assertEquals(deserialized.getExtBusEvent(), extBusEvent);
+        Assert.assertEquals(deserialized.getExtBusEventClass(), TestExtBusEvent.class);
+        Assert.assertNull(deserialized.getObserverNames());
+    }
+
+    @Test(groups = "stress")
+    public void testDeserializationThroughput() throws IOException {
+        final TestExtBusEvent extBusEvent = createExtBusEvent();
+        final byte[] legacyPayload = legacyPayload(extBusEvent).getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = objectMapper.writeValueAsBytes(new OSGIBusEvent(extBusEvent, TestExtBusEvent.class));
+
+        // Warm-up
+        deserializeLegacy(legacyPayload);
+        deserialize(payload);
+
+        logger.info("Tree deserializer: {} events/s ({} bytes stored per event)", deserializeLegacy(legacyPayload), legacyPayload.length);
+        logger.info("Streaming deserializer: {} events/s ({} bytes stored per event)", deserialize(payload), payload.length);
+    }
+
+    private long deserialize(final byte[] payload) throws IOException {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < NB_EVENTS; i++) {
+            Assert.assertNotNull(objectMapper.readValue(payload, OSGIBusEvent.class).getExtBusEvent());
+        }
+        return NB_EVENTS * 1000000000L / (System.nanoTime() - startTime);
+    }
+
+    // Previous implementation: tree, reflective class lookup and conversion
+    @SuppressWarnings("unchecked")
+    private long deserializeLegacy(final byte[] payload) throws IOException {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < NB_EVENTS; i++) {
+            final JsonNode node = objectMapper.readTree(payload);
+            final Class<ExtBusEvent> extBusEventClass;
+            try {
+                extBusEventClass = (Class<ExtBusEvent>) Class.forName(node.get("extBusEventClass").textValue());
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            Assert.assertNotNull(new OSGIBusEvent(objectMapper.treeToValue(node.get("extBusEvent"), extBusEventClass), extBusEventClass));
+        }
+        return NB_EVENTS * 1000000000L / (System.nanoTime() - startTime);
+    }
+
+    // As serialized before the property order and the ignored fields were set
+    private String legacyPayload(final TestExtBusEvent extBusEvent) throws IOException {
+        return "{\"extBusEvent\":" + objectMapper.writeValueAsString(extBusEvent) +
+               ",\"extBusEventClass\":\"" + TestExtBusEvent.class.getName() + "\"" +
+               ",\"searchKey1\":1,\"searchKey2\":2,\"userToken\":\"" + extBusEvent.getUserToken() + "\"}";
+    }
+
+    private static TestExtBusEvent createExtBusEvent() {
+        return new TestExtBusEvent(UUID.randomUUID(), ObjectType.INVOICE, ExtBusEventType.INVOICE_CREATION, UUID.randomUUID(), UUID.randomUUID(), "{\"foo\":\"bar\"}", UUID.randomUUID());
+    }
+
+    public static final class TestExtBusEvent implements ExtBusEvent {
+
+        private final UUID objectId;
+        private final ObjectType objectType;
+        private final ExtBusEventType eventType;
+        private final UUID accountId;
+        private final UUID tenantId;
+        private final String metaData;
+        private final UUID userToken;
+
+        @JsonCreator
+        public TestExtBusEvent(@JsonProperty("objectId") final UUID objectId,
+                               @JsonProperty("objectType") final ObjectType objectType,
+                               @JsonProperty("eventType") final ExtBusEventType eventType,
+                               @JsonProperty("accountId") final UUID accountId,
+                               @JsonProperty("tenantId") final UUID tenantId,
+                               @JsonProperty("metaData") final String metaData,
+                               @JsonProperty("userToken") final UUID userToken) {
+            this.objectId = objectId;
+            this.objectType = objectType;
+            this.eventType = eventType;
+            this.accountId = accountId;
+            this.tenantId = tenantId;
+            this.metaData = metaData;
+            this.userToken = userToken;
+        }
+
+        @Override
+        public ExtBusEventType getEventType() {
+            return eventType;
+        }
+
+        @Override
+        public ObjectType getObjectType() {
+            return objectType;
+        }
+
+        @Override
+        public UUID getObjectId() {
+            return objectId;
+        }
+
+        @Override
+        public UUID getAccountId() {
+            return accountId;
+        }
+
+        @Override
+        public UUID getTenantId() {
+            return tenantId;
+        }
+
+        @Override
+        public String getMetaData() {
+            return metaData;
+        }
+
+        @Override
+        public UUID getUserToken() {
+            return userToken;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TestExtBusEvent)) {
+                return false;
+            }
+            final TestExtBusEvent that = (TestExtBusEvent) o;
+            return objectId.equals(that.objectId) && eventType == that.eventType;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * objectId.hashCode() + eventType.hashCode();
+        }
+    }
+}
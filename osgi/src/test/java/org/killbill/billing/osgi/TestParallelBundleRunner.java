@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.killbill.billing.osgi.ParallelBundleRunner.Outcome;
+import org.killbill.billing.osgi.api.KillbillNodesApiHolder;
+import org.killbill.billing.osgi.api.config.PluginConfigServiceApi;
+import org.killbill.billing.osgi.config.OSGIConfig;
+import org.killbill.billing.osgi.pluginconf.DefaultPluginJavaConfig;
+import org.killbill.billing.osgi.pluginconf.PluginConfigException;
+import org.killbill.billing.osgi.pluginconf.PluginFinder;
+import org.killbill.commons.utils.io.Files;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.skife.config.TimeSpan;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestParallelBundleRunner {
+
+    @Test(groups = "fast")
+    public void testParallelRun() {
+        final ParallelBundleRunner runner = new ParallelBundleRunner(4, 10000);
+        // All 4 tasks need to run concurrently to complete
+        final CountDownLatch latch = new CountDownLatch(4);
+        final List<Outcome<String>> outcomes = runner.run("test", List.of("a", "b", "c", "d"), input -> {
+            latch.countDown();
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            if ("c".equals(input)) {
+                throw new BundleException("boom");
+            }
+            return input.toUpperCase();
+        }, null, null);
+
+        Assert.assertEquals(outcomes.get(0).getResult(), "A");
+        Assert.assertEquals(outcomes.get(1).getResult(), "B");
+        Assert.assertNull(outcomes.get(2).getResult());
+        Assert.assertEquals(outcomes.get(2).getException().getMessage(), "boom");
+        Assert.assertEquals(outcomes.get(3).getResult(), "D");
+    }
+
+    @Test(groups = "fast")
+    public void testTimeout() {
+        final ParallelBundleRunner runner = new ParallelBundleRunner(2, 1000);
+        final CountDownLatch hangingTask = new CountDownLatch(1);
+        try {
+            // The third task is queued behind the hanging one, but still gets its full timeout
+            final List<Outcome<Boolean>> outcomes = runner.run("test", List.of(1, 2, 3), input -> {
+                if (input == 1) {
+                    hangingTask.await();
+                } else {
+                    Thread.sleep(600);
+                }
+                return true;
+            }, false, null);
+
+            Assert.assertFalse(outcomes.get(0).getResult());
+            Assert.assertTrue(outcomes.get(1).getResult());
+            Assert.assertTrue(outcomes.get(2).getResult());
+        } finally {
+            hangingTask.countDown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLateCompletion() throws Exception {
+        final ParallelBundleRunner runner = new ParallelBundleRunner(2, 200);
+        final CountDownLatch hangingTask = new CountDownLatch(1);
+        final List<String> lateCompletions = new CopyOnWriteArrayList<String>();
+        final List<Outcome<Boolean>> outcomes = runner.run("test", List.of(1, 2), input -> {
+            if (input == 1) {
+                hangingTask.await();
+            }
+            return true;
+        }, false, (input, result) -> lateCompletions.add(input + "=" + result));
+
+        // The caller got the fallback value, the task is still tracked
+        Assert.assertFalse(outcomes.get(0).getResult());
+        Assert.assertTrue(outcomes.get(1).getResult());
+        Assert.assertTrue(lateCompletions.isEmpty());
+
+        hangingTask.countDown();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> lateCompletions.size() == 1);
+        Assert.assertEquals(lateCompletions, List.of("1=true"));
+    }
+
+    @Test(groups = "fast")
+    public void testStartTimeoutStopsLateBundle() throws Exception {
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.getBundleStartThreads()).thenReturn(2);
+        Mockito.when(osgiConfig.getBundleStartTimeout()).thenReturn(new TimeSpan("200ms"));
+        final FileInstall fileInstall = new FileInstall(Mockito.mock(PureOSGIBundleFinder.class),
+                                                        Mockito.mock(PluginFinder.class),
+                                                        Mockito.mock(KillbillNodesApiHolder.class),
+                                                        Mockito.mock(PluginConfigServiceApi.class),
+                                                        osgiConfig);
+
+        final List<String> startedBundles = new CopyOnWriteArrayList<String>();
+        final CountDownLatch slowActivator = new CountDownLatch(1);
+        final Bundle slow = createBundle("slow", startedBundles, false);
+        Mockito.doAnswer(invocation -> {
+            slowActivator.await();
+            startedBundles.add("slow");
+            return null;
+        }).when(slow).start(Mockito.anyInt());
+        final Bundle fast = createBundle("fast", startedBundles, false);
+
+        final List<Boolean> started = fileInstall.startBundles(List.of(new BundleWithConfig(slow, createConfig("slow", null)),
+                                                                       new BundleWithConfig(fast, createConfig("fast", null))));
+        Assert.assertEquals(started, List.of(false, true));
+        Mockito.verify(slow, Mockito.never()).stop(Mockito.anyInt());
+
+        // The activator eventually returns: the bundle is stopped, as reported
+        slowActivator.countDown();
+        Mockito.verify(slow, Mockito.timeout(5000)).stop(Bundle.STOP_TRANSIENT);
+        Mockito.verify(fast, Mockito.never()).stop(Mockito.anyInt());
+    }
+
+    @Test(groups = "fast")
+    public void testSequentialRun() {
+        final ParallelBundleRunner runner = new ParallelBundleRunner(1, 10);
+        final Thread caller = Thread.currentThread();
+        final List<Outcome<Boolean>> outcomes = runner.run("test", List.of(1, 2), input -> {
+            Thread.sleep(50);
+            return Thread.currentThread() == caller;
+        }, false, null);
+
+        // Run in place, without timeout
+        Assert.assertTrue(outcomes.get(0).getResult());
+        Assert.assertTrue(outcomes.get(1).getResult());
+    }
+
+    @Test(groups = "fast")
+    public void testStartOrder() throws Exception {
+        final OSGIConfig osgiConfig = Mockito.mock(OSGIConfig.class);
+        Mockito.when(osgiConfig.getBundleStartThreads()).thenReturn(4);
+        Mockito.when(osgiConfig.getBundleStartTimeout()).thenReturn(new TimeSpan("10s"));
+        final FileInstall fileInstall = new FileInstall(Mockito.mock(PureOSGIBundleFinder.class),
+                                                        Mockito.mock(PluginFinder.class),
+                                                        Mockito.mock(KillbillNodesApiHolder.class),
+                                                        Mockito.mock(PluginConfigServiceApi.class),
+                                                        osgiConfig);
+
+        final List<String> startedBundles = new CopyOnWriteArrayList<String>();
+        final List<BundleWithConfig> bundles = List.of(new BundleWithConfig(createBundle("late", startedBundles, false), createConfig("late", "10")),
+                                                       new BundleWithConfig(createBundle("plugin1", startedBundles, false), createConfig("plugin1", null)),
+                                                       new BundleWithConfig(createBundle("library", startedBundles, false), null),
+                                                       new BundleWithConfig(createBundle("broken", startedBundles, true), createConfig("broken", null)),
+                                                       new BundleWithConfig(createBundle("early", startedBundles, false), createConfig("early", "-1")),
+                                                       new BundleWithConfig(createBundle("plugin2", startedBundles, false), createConfig("plugin2", "0")));
+
+        final List<Boolean> started = fileInstall.startBundles(bundles);
+
+        Assert.assertEquals(started, List.of(true, true, true, false, true, true));
+        Assert.assertEquals(startedBundles.get(0), "library");
+        Assert.assertEquals(startedBundles.get(1), "early");
+        Assert.assertEquals(List.copyOf(startedBundles.subList(2, 4)).stream().sorted().toArray(), new String[]{"plugin1", "plugin2"});
+        Assert.assertEquals(startedBundles.get(4), "late");
+    }
+
+    private static Bundle createBundle(final String name, final List<String> startedBundles, final boolean failOnStart) throws BundleException {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getState()).thenReturn(Bundle.RESOLVED);
+        Mockito.when(bundle.getLocation()).thenReturn("file:/" + name + ".jar");
+        Mockito.when(bundle.toString()).thenReturn(name);
+        Mockito.doAnswer(invocation -> {
+            if (failOnStart) {
+                throw new BundleException("Unable to start " + name);
+            }
+            startedBundles.add(name);
+            return null;
+        }).when(bundle).start(Mockito.anyInt());
+        return bundle;
+    }
+
+    private static DefaultPluginJavaConfig createConfig(final String name, final String startOrder) throws PluginConfigException, IOException {
+        final File pluginVersionRoot = Files.createTempDirectory();
+        Assert.assertTrue(new File(pluginVersionRoot, name + ".jar").createNewFile());
+        final Properties props = new Properties();
+        if (startOrder != null) {
+            props.setProperty("startOrder", startOrder);
+        }
+        return new DefaultPluginJavaConfig(name, name, "1.0", pluginVersionRoot, props, true, false);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.osgi.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDefaultServletRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestDefaultServletRouter.class);
+
+    @Test(groups = "fast")
+    public void testLongestPrefixMatch() {
+        final DefaultServletRouter router = new DefaultServletRouter();
+        Assert.assertNull(router.getRouteForPath("/foo"));
+
+        final Servlet foo = new HttpServlet() {};
+        final Servlet fooBar = new HttpServlet() {};
+        final Servlet fizz = new HttpServlet() {};
+        router.registerServiceFromPath("foo", foo);
+        router.registerServiceFromPath("/foo/bar", fooBar);
+        router.registerServiceFromPath("/fizz", fizz);
+
+        ServletRoute route = router.getRouteForPath("/foo/bar/baz");
+        Assert.assertEquals(route.getServlet(), fooBar);
+        Assert.assertEquals(route.getPluginPrefix(), "/foo/bar");
+        Assert.assertEquals(route.getPluginName(), "foo");
+
+        route = router.getRouteForPath("/foo/ba");
+        Assert.assertEquals(route.getServlet(), foo);
+        Assert.assertEquals(route.getPluginPrefix(), "/foo");
+
+        // Same semantics as String#startsWith
+        Assert.assertEquals(router.getServiceForPath("/foobar"), foo);
+        Assert.assertEquals(router.getPluginPrefixForPath("/fizz/buzz"), "/fizz");
+        Assert.assertNull(router.getRouteForPath("/fi"));
+        Assert.assertNull(router.getRouteForPath("/other"));
+        Assert.assertNull(router.getRouteForPath(""));
+
+        router.unregisterServiceFromPath("/foo/bar");
+        Assert.assertEquals(router.getServiceForPath("/foo/bar/baz"), foo);
+        router.unregisterServiceFromPath("/foo");
+        Assert.assertNull(router.getServiceForPath("/foo/bar/baz"));
+        Assert.assertEquals(router.getServiceForPath("/fizz"), fizz);
+    }
+
+    @Test(groups = "stress")
+    public void testLookupLatencyWithManyPlugins() {
+        final List<Long> p99s = new ArrayList<Long>();
+        for (final int nbPlugins : Arrays.asList(10, 50, 100, 500)) {
+            final DefaultServletRouter router = new DefaultServletRouter();
+            final String[] paths = new String[nbPlugins];
+            for (int i = 0; i < nbPlugins; i++) {
+                router.registerServiceFromPath("/killbill-plugin-" + i, new HttpServlet() {});
+                paths[i] = "/killbill-plugin-" + i + "/v1/healthcheck";
+            }
+
+            // Each sample times a batch of lookups, to stay well above the System#nanoTime resolution
+            final int batchSize = 1000;
+            final long[] samples = new long[2000];
+            for (int warmup = 0; warmup < 2; warmup++) {
+                for (int s = 0; s < samples.length; s++) {
+                    final long start = System.nanoTime();
+                    for (int i = 0; i < batchSize; i++) {
+                        if (router.getRouteForPath(paths[i % nbPlugins]) == null) {
+                            Assert.fail();
+                        }
+                    }
+                    samples[s] = (System.nanoTime() - start) / batchSize;
+                }
+            }
+            Arrays.sort(samples);
+            final long p50 = samples[samples.length / 2];
+            final long p99 = samples[(int) (samples.length * 0.99)];
+            logger.info("nbPlugins={}: p50={}ns, p99={}ns per lookup", nbPlugins, p50, p99);
+            p99s.add(p99);
+        }
+
+        // Lookup cost only depends on the path length: allow for noise, but not for a linear growth
+        Assert.assertTrue(p99s.get(p99s.size() - 1) <= Math.max(5 * p99s.get(0), 1000), "p99s=" + p99s);
+    }
+}
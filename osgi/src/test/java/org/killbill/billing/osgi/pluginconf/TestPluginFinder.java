@@ -29,6 +29,7 @@ import javax.annotation.Nullable;
 import org.killbill.billing.osgi.api.config.PluginJavaConfig;
 import org.killbill.billing.osgi.config.OSGIConfig;
 import org.killbill.commons.utils.io.Files;
+import org.skife.config.TimeSpan;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -195,6 +196,21 @@ public class TestPluginFinder {
             public String getOSGIBundleCacheName() {
                 return null;
             }
+
+            @Override
+            public boolean isOSGIBundleCachePersistent() {
+                return false;
+            }
+
+            @Override
+            public int getBundleStartThreads() {
+                return 1;
+            }
+
+            @Override
+            public TimeSpan getBundleStartTimeout() {
+                return new TimeSpan("5m");
+            }
             @Override
             public String getRootInstallationDir() {
                 return rootInstallationDir.getAbsolutePath();
@@ -212,6 +228,42 @@ public class TestPluginFinder {
                 return null;
             }
             @Override
+            public EventDispatchMode getEventDispatchMode() {
+                return EventDispatchMode.SYNC;
+            }
+            @Override
+            public int getEventDispatchQueueCapacity() {
+                return 0;
+            }
+            @Override
+            public EventBackpressurePolicy getEventDispatchBackpressurePolicy() {
+                return EventBackpressurePolicy.BLOCK;
+            }
+            @Override
+            public List<TimeSpan> getEventDispatchRetrySchedule() {
+                return List.of(new TimeSpan("5m"));
+            }
+            @Override
+            public int getEventDispatchStripes() {
+                return 0;
+            }
+            @Override
+            public int getEventDispatchStripeQueueCapacity() {
+                return 1000;
+            }
+            @Override
+            public LogForwardingMode getLogForwardingMode() {
+                return LogForwardingMode.SYNC;
+            }
+            @Override
+            public int getLogForwardingQueueCapacity() {
+                return 0;
+            }
+            @Override
+            public LogOverflowPolicy getLogForwardingOverflowPolicy() {
+                return LogOverflowPolicy.DISCARD_DEBUG_INFO_FIRST;
+            }
+            @Override
             public Set<String> getMandatoryPlugins() {
                 return null;
             }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.platform.api.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor recording, at compile time, the interfaces extending <code>KillbillService</code> into
+ * {@link #INDEX_RESOURCE}, so that the lifecycle doesn't have to scan the classpath at startup.
+ * <p>
+ * The processor isn't registered by killbill-platform-api: modules declaring services add this artifact to the
+ * <code>annotationProcessorPaths</code> of the maven-compiler-plugin. Only interfaces are recorded, implementations
+ * are resolved through the injector.
+ */
+@SupportedAnnotationTypes("*")
+public class KillbillServiceIndexProcessor extends AbstractProcessor {
+
+    // Keep in sync with ServiceFinder (this artifact has no dependency, to keep the processor path minimal)
+    public static final String INDEX_RESOURCE = "META-INF/killbill/services.idx";
+    public static final String KILLBILL_SERVICE = "org.killbill.billing.platform.api.KillbillService";
+
+    private final Set<String> serviceInterfaces = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final TypeElement killbillService = processingEnv.getElementUtils().getTypeElement(KILLBILL_SERVICE);
+        if (killbillService == null) {
+            return false;
+        }
+
+        if (roundEnv.processingOver()) {
+            writeIndex(killbillService.asType());
+        } else {
+            for (final Element element : roundEnv.getRootElements()) {
+                collectServiceInterfaces(element, killbillService.asType());
+            }
+        }
+        // Don't claim any annotation
+        return false;
+    }
+
+    private void collectServiceInterfaces(final Element element, final TypeMirror killbillService) {
+        if (element.getKind() == ElementKind.INTERFACE && isServiceInterface((TypeElement) element, killbillService)) {
+            serviceInterfaces.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+        }
+        for (final Element enclosed : element.getEnclosedElements()) {
+            if (enclosed.getKind().isClass() || enclosed.getKind().isInterface()) {
+                collectServiceInterfaces(enclosed, killbillService);
+            }
+        }
+    }
+
+    private boolean isServiceInterface(final TypeElement element, final TypeMirror killbillService) {
+        return !element.getQualifiedName().contentEquals(KILLBILL_SERVICE) &&
+               processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(element.asType()), killbillService);
+    }
+
+    private void writeIndex(final TypeMirror killbillService) {
+        // Incremental compilation: keep the entries of the previous run whose source wasn't recompiled
+        try {
+            final FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String className = line.trim();
+                    if (className.isEmpty() || className.startsWith("#")) {
+                        continue;
+                    }
+                    final TypeElement element = processingEnv.getElementUtils().getTypeElement(className.replace('$', '.'));
+                    if (element != null && element.getKind() == ElementKind.INTERFACE && isServiceInterface(element, killbillService)) {
+                        serviceInterfaces.add(className);
+                    }
+                }
+            }
+        } catch (final IOException | IllegalArgumentException ignored) {
+            // No previous index
+        }
+
+        try {
+            final FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+            try (final Writer writer = index.openWriter()) {
+                writer.write("# Kill Bill service interfaces, generated at compile time\n");
+                for (final String serviceInterface : serviceInterfaces) {
+                    writer.write(serviceInterface);
+                    writer.write('\n');
+                }
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to write " + INDEX_RESOURCE + ": " + e.getMessage());
+        }
+    }
+}
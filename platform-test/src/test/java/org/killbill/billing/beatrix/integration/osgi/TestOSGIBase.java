@@ -19,6 +19,8 @@
 
 package org.killbill.billing.beatrix.integration.osgi;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
@@ -93,8 +95,12 @@ public class TestOSGIBase {
     protected CallContext callContext;
 
     public TestOSGIBase() {
+        this(Collections.emptyMap());
+    }
+
+    protected TestOSGIBase(final Map<String, String> extraDefaults) {
         try {
-            configSource = new TestKillbillConfigSource(null, PlatformDBTestingHelper.class);
+            configSource = new TestKillbillConfigSource(null, PlatformDBTestingHelper.class, extraDefaults);
         } catch (final Exception e) {
             final AssertionError assertionError = new AssertionError("Initialization error");
             assertionError.initCause(e);
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.beatrix.integration.osgi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.killbill.commons.utils.io.Resources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.AfterSuite;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+/**
+ * Compare cold (empty Felix cache) and warm (persistent cache) boot times with many bundles.
+ * <p>
+ * Bundles are copies of the beatrix test bundle, under a different symbolic name and without activator.
+ */
+public class TestOSGIBundleCacheBootTime extends TestOSGIBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestOSGIBundleCacheBootTime.class);
+
+    private static final String BUNDLE_TEST_RESOURCE = "killbill-osgi-bundles-test-beatrix-jar-with-dependencies.jar";
+    private static final String MANIFEST_FILE_NAME = "killbill-bundle-cache.properties";
+    private static final int NB_BUNDLES = 32;
+    private static final int NB_ITERATIONS = 5;
+
+    public TestOSGIBundleCacheBootTime() {
+        super(Map.of("org.killbill.osgi.bundle.cache.persistent", "true"));
+    }
+
+    @BeforeSuite(groups = "stress")
+    public void beforeSuite() throws Exception {
+        super.beforeSuite();
+    }
+
+    @BeforeClass(groups = "stress")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        final File platformDir = new File(osgiConfig.getRootInstallationDir(), "platform");
+        Assert.assertTrue(platformDir.isDirectory() || platformDir.mkdirs());
+        final URL resourceUrl = Resources.getResource(BUNDLE_TEST_RESOURCE);
+        for (int i = 0; i < NB_BUNDLES; i++) {
+            copyBundle(new File(resourceUrl.getFile()), new File(platformDir, "bundle-" + i + ".jar"), "org.kill-bill.billing.test.cache-" + i);
+        }
+    }
+
+    // The lifecycle is driven by the test
+    @BeforeMethod(groups = "stress")
+    public void beforeMethod() {
+    }
+
+    @AfterMethod(groups = "stress")
+    public void afterMethod() {
+    }
+
+    @AfterClass(groups = "stress")
+    public void afterClass() throws Exception {
+        super.afterClass();
+    }
+
+    @AfterSuite(groups = "stress")
+    public void afterSuite() throws Exception {
+        super.afterSuite();
+    }
+
+    @Test(groups = "stress")
+    public void testColdVersusWarmBoot() {
+        final File manifest = new File(osgiConfig.getOSGIBundleRootDir(), MANIFEST_FILE_NAME);
+
+        final long[] coldBootMillis = new long[NB_ITERATIONS];
+        final long[] warmBootMillis = new long[NB_ITERATIONS];
+        for (int i = 0; i < NB_ITERATIONS; i++) {
+            // Without manifest, the cache is pruned
+            Assert.assertTrue(!manifest.exists() || manifest.delete());
+            coldBootMillis[i] = bootAndShutdown();
+            Assert.assertTrue(manifest.exists());
+            warmBootMillis[i] = bootAndShutdown();
+        }
+
+        Arrays.sort(coldBootMillis);
+        Arrays.sort(warmBootMillis);
+        logger.info("OSGI boot with {} bundles: cold median={} ms (min={} ms), warm median={} ms (min={} ms)",
+                    NB_BUNDLES, coldBootMillis[NB_ITERATIONS / 2], coldBootMillis[0], warmBootMillis[NB_ITERATIONS / 2], warmBootMillis[0]);
+    }
+
+    private long bootAndShutdown() {
+        final long startTime = System.nanoTime();
+        lifecycle.fireStartupSequencePriorEventRegistration();
+        final long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+        lifecycle.fireStartupSequencePostEventRegistration();
+
+        lifecycle.fireShutdownSequencePriorEventUnRegistration();
+        lifecycle.fireShutdownSequencePostEventUnRegistration();
+        return elapsedMillis;
+    }
+
+    private static void copyBundle(final File source, final File target, final String symbolicName) throws IOException {
+        try (final InputStream in = new FileInputStream(source);
+             final JarInputStream jarIn = new JarInputStream(in)) {
+            final Manifest manifest = new Manifest(jarIn.getManifest());
+            final Attributes attributes = manifest.getMainAttributes();
+            attributes.putValue("Bundle-SymbolicName", symbolicName);
+            attributes.remove(new Attributes.Name("Bundle-Activator"));
+
+            try (final OutputStream out = new FileOutputStream(target);
+                 final JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+                JarEntry entry;
+                while ((entry = jarIn.getNextJarEntry()) != null) {
+                    jarOut.putNextEntry(new JarEntry(entry.getName()));
+                    jarIn.transferTo(jarOut);
+                    jarOut.closeEntry();
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ package org.killbill.billing.server.config;
 import org.killbill.billing.platform.api.KillbillPlatformConfig;
 import org.skife.config.Config;
 import org.skife.config.Default;
+import org.skife.config.DefaultNull;
 import org.skife.config.Description;
 import org.skife.config.TimeSpan;
 
@@ -76,4 +77,20 @@ public interface KillbillServerConfig extends KillbillPlatformConfig {
     @Default("true")
     @Description("Whether queue healthcheck is enabled")
     public boolean isQueueHealthCheckEnabled();
+
+    @Config(KILL_BILL_NAMESPACE + "server.queue.healthcheck.interval")
+    @Default("1m")
+    @Description("Interval between two samples of the queue sizes (the queue healthcheck returns the latest result)")
+    public TimeSpan getQueueHealthCheckInterval();
+
+    @Config(KILL_BILL_NAMESPACE + "server.metrics.timers.buckets")
+    @DefaultNull
+    @Description("Fixed buckets (in seconds) of the timers to export as histograms instead of reservoir-based timers, by metric name prefix " +
+                 "(e.g. killbill-service.kb_plugin_latency=0.005,0.01,0.025,0.05,0.1,0.25,0.5,1,2.5,5,10;killbill-service.kb_event_dispatch_latency=...)")
+    public String getTimerBuckets();
+
+    @Config(KILL_BILL_NAMESPACE + "server.metrics.default.enabled")
+    @Default("true")
+    @Description("Whether to record metrics in the built-in registry while no metrics plugin is installed")
+    public boolean isDefaultMetricRegistryEnabled();
 }
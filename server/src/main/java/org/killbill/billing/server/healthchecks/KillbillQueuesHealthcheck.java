@@ -24,7 +24,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -32,9 +35,13 @@ import javax.inject.Singleton;
 
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.joda.time.DateTime;
+import org.killbill.billing.platform.queue.QueueDepthSampler;
+import org.killbill.billing.platform.queue.QueueDepths;
+import org.killbill.billing.platform.queue.QueueDepths.QueueDepth;
 import org.killbill.billing.server.config.KillbillServerConfig;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
 import org.killbill.commons.health.api.HealthCheck;
 import org.killbill.commons.health.api.Result;
 import org.killbill.commons.health.impl.HealthyResultBuilder;
@@ -43,26 +50,37 @@ import org.killbill.commons.utils.annotation.VisibleForTesting;
 import org.killbill.commons.utils.collect.EvictingQueue;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueService;
+import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weakref.jmx.Managed;
 
-// Run this check asynchronously as it executes database queries: when the healthcheck is integrated with a load balancer,
+// Sample the queues asynchronously as it executes database queries: when the healthcheck is integrated with a load balancer,
 // we don't want to DDOS the database as the polling interval is most likely in the order of a few seconds (or less).
+// check() only returns the latest result (with its age), computed by a background sampler every
+// org.killbill.server.queue.healthcheck.interval, started and stopped with the server. The result is healthy until the first
+// sample, and unhealthy once the latest sample (or the sampler start, if nothing was sampled) is older than a few intervals,
+// e.g. when the database is down or the sampler is stuck. Ready entries are counted
+// by the QueueDepthSampler (one grouped query per table, shared with the metrics exporters), falling back to per-queue counts
+// for queues it doesn't cover.
 // Note: when the queues are configured in a sticky mode (e.g. on premise deployment), if this check fails, it means that
 // particular node is overloaded (cannot keep up processing bus or notification entries). Taking it out of rotation for a bit
 // makes sense, so it catches up before processing new requests. When the queues are configured in a polling mode however
 // (e.g. cloud deployment), all nodes behave the same (the healthcheck will fail on all nodes at the same time): in that case,
 // instead of taking the nodes out of rotation, new nodes should be deployed instead (i.e. Auto Scaling should be enabled), provided
 // the database is able to sustain the additional load.
-//@Async(initialState = InitialState.HEALTHY, initialDelay = 0, period = 1, unit = TimeUnit.MINUTES, scheduleType = ScheduleType.FIXED_DELAY)
 @Singleton
-// TODO
 public class KillbillQueuesHealthcheck implements HealthCheck {
 
     private static final Logger logger = LoggerFactory.getLogger(KillbillQueuesHealthcheck.class);
 
-    // Only consider the last 60 data points (60 minutes) to compute whether the queues are growing
+    static final String SAMPLED_AT_DETAIL = "sampledAt";
+    static final String SAMPLE_AGE_MS_DETAIL = "sampleAgeMs";
+
+    // Number of intervals after which the latest sample is considered stale
+    static final int MAX_SAMPLE_AGE_INTERVALS = 3;
+
+    // Only consider the last 60 data points (60 minutes, with the default interval) to compute whether the queues are growing
     private static final int SLIDING_WINDOW_SIZE = 60;
     // Simple exponential smoothing factor
     private static final double ALPHA = 0.3;
@@ -75,15 +93,25 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
     private final PersistentBus bus;
     private final PersistentBus externalBus;
     private final NotificationQueueService notificationQueueService;
+    private final QueueDepthSampler queueDepthSampler;
+    private final long intervalMillis;
+
+    private ScheduledExecutorService sampler;
+    // Null until the sampler is started
+    private volatile DateTime samplerStartedAt;
+    // Latest result computed by the sampler, null until the first sample
+    private volatile SampledResult latestResult;
 
     @Inject
     public KillbillQueuesHealthcheck(final Clock clock,
                                      final NotificationQueueService notificationQueueService,
                                      final PersistentBus bus,
                                      final KillbillServerConfig config,
-                                     @Named("externalBus") final PersistentBus externalBus) {
+                                     @Named("externalBus") final PersistentBus externalBus,
+                                     final QueueDepthSampler queueDepthSampler) {
         this.clock = clock;
         this.notificationQueueService = notificationQueueService;
+        this.queueDepthSampler = queueDepthSampler;
         this.bus = bus;
         this.externalBus = externalBus;
         if (config.isQueueHealthCheckEnabled()) {
@@ -91,6 +119,28 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         } else {
             deactivateHealthcheck();
         }
+
+        final TimeSpan interval = config.getQueueHealthCheckInterval();
+        if (interval == null || interval.getMillis() <= 0) {
+            throw new IllegalArgumentException("Invalid queues healthcheck interval (must be positive): " + interval);
+        }
+        this.intervalMillis = interval.getMillis();
+    }
+
+    public synchronized void startSampler() {
+        if (sampler != null) {
+            return;
+        }
+        samplerStartedAt = clock.getUTCNow();
+        sampler = Executors.newSingleThreadScheduledExecutor("killbill-queues-healthcheck");
+        sampler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopSampler() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
     }
 
     @Managed(description = "Kill Bill queues healthcheck")
@@ -114,45 +164,68 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
 
     @Override
     public Result check() {
-        if (healthcheckActive.get()) {
-            return check(SLIDING_WINDOW_SIZE, ALPHA);
-        } else {
+        if (!healthcheckActive.get()) {
             return new HealthyResultBuilder().createHealthyResult();
         }
 
+        final long maxSampleAgeMillis = MAX_SAMPLE_AGE_INTERVALS * intervalMillis;
+        final SampledResult sampledResult = latestResult;
+        if (sampledResult == null) {
+            final DateTime startedAt = samplerStartedAt;
+            if (startedAt == null) {
+                return new UnhealthyResultBuilder().setMessage("Queues sampler not started").createUnhealthyResult();
+            }
+            final long samplerAgeMillis = clock.getUTCNow().getMillis() - startedAt.getMillis();
+            if (samplerAgeMillis > maxSampleAgeMillis) {
+                return new UnhealthyResultBuilder().setMessage("Queues not sampled since " + startedAt).createUnhealthyResult();
+            }
+            return new HealthyResultBuilder().setMessage("Queues not sampled yet").createHealthyResult();
+        }
+
+        final long sampleAgeMillis = clock.getUTCNow().getMillis() - sampledResult.sampledAt.getMillis();
+        final Map<String, Object> details = new HashMap<>(sampledResult.result.getDetails());
+        details.put(SAMPLED_AT_DETAIL, sampledResult.sampledAt.toString());
+        details.put(SAMPLE_AGE_MS_DETAIL, sampleAgeMillis);
+        if (sampleAgeMillis > maxSampleAgeMillis) {
+            return new UnhealthyResultBuilder().setMessage("Stale queues sample (" + sampleAgeMillis + "ms old)").setDetails(details).createUnhealthyResult();
+        } else if (sampledResult.result.isHealthy()) {
+            return new HealthyResultBuilder().setMessage(sampledResult.result.getMessage()).setDetails(details).createHealthyResult();
+        } else {
+            return new UnhealthyResultBuilder().setMessage(sampledResult.result.getMessage()).setDetails(details).createUnhealthyResult();
+        }
+    }
+
+    // Called by the sampler
+    @VisibleForTesting
+    void sample() {
+        if (!healthcheckActive.get()) {
+            return;
+        }
+        try {
+            final DateTime sampledAt = clock.getUTCNow();
+            final Result result = check(SLIDING_WINDOW_SIZE, ALPHA);
+            latestResult = new SampledResult(result, sampledAt);
+        } catch (final RuntimeException e) {
+            // Keep the latest result (its age will tell)
+            logger.warn("Unable to sample the queues", e);
+        }
     }
 
     @VisibleForTesting
-    Result check(final int slidingWindowSize, final double alpha) {
+    synchronized Result check(final int slidingWindowSize, final double alpha) {
         final DateTime now = clock.getUTCNow();
+        final QueueDepths queueDepths = queueDepthSampler.getQueueDepths();
 
         if (bus != null) {
-            try {
-                final long nbReadyEntries = bus.getNbReadyEntries(now);
-                updateRegression("bus", now.getMillis(), nbReadyEntries, slidingWindowSize, alpha);
-            } catch (final UnsupportedOperationException e) {
-                // Ignore - not supported by this queue
-            }
+            updateRegression("bus", bus::getNbReadyEntries, queueDepths, now, slidingWindowSize, alpha);
         }
 
         if (externalBus != null) {
-            try {
-                final long nbReadyEntries = externalBus.getNbReadyEntries(now);
-                updateRegression("externalBus", now.getMillis(), nbReadyEntries, slidingWindowSize, alpha);
-            } catch (final UnsupportedOperationException e) {
-                // Ignore - not supported by this queue
-            }
+            updateRegression("externalBus", externalBus::getNbReadyEntries, queueDepths, now, slidingWindowSize, alpha);
         }
 
         for (final NotificationQueue notificationQueue : notificationQueueService.getNotificationQueues()) {
-            final String notificationQueueId = notificationQueue.getFullQName();
-
-            try {
-                final long nbReadyEntries = notificationQueue.getNbReadyEntries(now);
-                updateRegression(notificationQueueId, now.getMillis(), nbReadyEntries, slidingWindowSize, alpha);
-            } catch (final UnsupportedOperationException e) {
-                // Ignore - not supported by this queue
-            }
+            updateRegression(notificationQueue.getFullQName(), notificationQueue::getNbReadyEntries, queueDepths, now, slidingWindowSize, alpha);
         }
 
         final Result healthcheckResponse = buildHealthcheckResponse();
@@ -172,6 +245,27 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         return healthcheckResponse;
     }
 
+    private void updateRegression(final String queueId,
+                                  final Function<DateTime, Long> nbReadyEntriesCounter,
+                                  final QueueDepths queueDepths,
+                                  final DateTime now,
+                                  final int slidingWindowSize,
+                                  final double alpha) {
+        final QueueDepth queueDepth = queueDepths.getQueueDepth(queueId);
+        final long nbReadyEntries;
+        if (queueDepth != null) {
+            nbReadyEntries = queueDepth.getNbReadyEntries();
+        } else {
+            try {
+                nbReadyEntries = nbReadyEntriesCounter.apply(now);
+            } catch (final UnsupportedOperationException e) {
+                // Ignore - not supported by this queue
+                return;
+            }
+        }
+        updateRegression(queueId, now.getMillis(), nbReadyEntries, slidingWindowSize, alpha);
+    }
+
     private void updateRegression(final String queueId, final long now, final long nbReadyEntries, final int slidingWindowSize, final double alpha) {
         if (statsPerQueue.get(queueId) == null) {
             statsPerQueue.put(queueId, new QueueStats(queueId, slidingWindowSize, alpha));
@@ -212,6 +306,17 @@ public class KillbillQueuesHealthcheck implements HealthCheck {
         }
     }
 
+    private static final class SampledResult {
+
+        private final Result result;
+        private final DateTime sampledAt;
+
+        private SampledResult(final Result result, final DateTime sampledAt) {
+            this.result = result;
+            this.sampledAt = sampledAt;
+        }
+    }
+
     @VisibleForTesting
     static final class QueueStats {
 
@@ -104,6 +104,8 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
 
         startLifecycle();
 
+        startQueuesHealthcheck();
+
         // The host will be put in rotation in KillbillGuiceFilter, once Jersey is fully initialized
     }
 
@@ -118,6 +120,8 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
             return;
         }
 
+        stopQueuesHealthcheck();
+
         stopLifecycle();
 
         stopEmbeddedDBs();
@@ -242,6 +246,14 @@ public class KillbillPlatformGuiceListener extends GuiceServletContextListener {
         }
     }
 
+    protected void startQueuesHealthcheck() {
+        injector.getInstance(KillbillQueuesHealthcheck.class).startSampler();
+    }
+
+    protected void stopQueuesHealthcheck() {
+        injector.getInstance(KillbillQueuesHealthcheck.class).stopSampler();
+    }
+
     protected void stopLifecycle() {
         stopLifecycleStage1();
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.killbill.commons.metrics.api.Snapshot;
+
+/**
+ * Snapshot of a bucketed distribution (see NativeHistogram and BucketedTimer): individual updates aren't kept, the
+ * quantiles are estimated as the middle of the bucket containing them, within the observed range.
+ */
+final class BucketSnapshot implements Snapshot {
+
+    // Inclusive upper bound of each bucket, the first one starting at 0 (counts may hold an extra last bucket, up to +Inf)
+    private final long[] upperBounds;
+    private final long[] counts;
+    private final long total;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    BucketSnapshot(final long[] upperBounds, final long[] counts, final long sum, final long min, final long max) {
+        this.upperBounds = upperBounds;
+        this.counts = counts;
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        this.total = total;
+        this.sum = sum;
+        this.min = total == 0 ? 0 : min;
+        this.max = total == 0 ? 0 : max;
+    }
+
+    @Override
+    public double getValue(final double quantile) {
+        if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return bucketMiddle(i);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return up to 1028 values spread across the distribution
+     */
+    @Override
+    public long[] getValues() {
+        final long[] values = new long[(int) Math.min(total, 1028)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) getValue((i + 1) / (double) values.length);
+        }
+        return values;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public double getMedian() {
+        return getValue(0.5);
+    }
+
+    @Override
+    public double get75thPercentile() {
+        return getValue(0.75);
+    }
+
+    @Override
+    public double get95thPercentile() {
+        return getValue(0.95);
+    }
+
+    @Override
+    public double get98thPercentile() {
+        return getValue(0.98);
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getValue(0.99);
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getValue(0.999);
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public double getMean() {
+        return total == 0 ? 0.0 : sum / (double) total;
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public double getStdDev() {
+        if (total <= 1) {
+            return 0.0;
+        }
+        final double mean = getMean();
+        double variance = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                final double diff = bucketMiddle(i) - mean;
+                variance += counts[i] * diff * diff;
+            }
+        }
+        return Math.sqrt(variance / (total - 1));
+    }
+
+    // Middle of the bucket, within the observed range
+    private double bucketMiddle(final int index) {
+        final long lower = Math.max(index == 0 ? 0 : upperBounds[index - 1] + 1, min);
+        final long upper = Math.min(index == upperBounds.length ? max : upperBounds[index], max);
+        return lower + Math.max(upper - lower, 0) / 2.0;
+    }
+
+    @Override
+    public void dump(final OutputStream output) {
+        try (final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+            for (final long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        }
+    }
+}
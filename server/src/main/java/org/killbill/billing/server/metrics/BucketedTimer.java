@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.killbill.billing.osgi.api.BucketedHistogram;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.killbill.commons.metrics.api.Timer;
+
+/**
+ * Timer which records its durations in fixed buckets, so that it can be exported as a histogram.
+ * <p>
+ * There is no reservoir: the rates come from the delegate meter and the durations are only kept in the buckets
+ * (one long per bucket, plus the sum, min and max), so the memory cost is fixed. The trade-off is that the quantiles
+ * of {@link #getSnapshot()} are estimated from the buckets (within the bucket containing them), and cover the whole
+ * lifetime of the timer instead of the last few minutes.
+ */
+public class BucketedTimer implements Timer, BucketedHistogram {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Meter delegate;
+    private final double[] upperBounds;
+    private final long[] upperBoundsNanos;
+    // Last element is the +Inf bucket
+    private final AtomicLongArray bucketCounts;
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxNanos = new AtomicLong(Long.MIN_VALUE);
+
+    public BucketedTimer(final Meter delegate, final double[] upperBoundsSeconds) {
+        this.delegate = delegate;
+        this.upperBounds = Arrays.copyOf(upperBoundsSeconds, upperBoundsSeconds.length);
+        this.upperBoundsNanos = new long[upperBoundsSeconds.length];
+        for (int i = 0; i < upperBoundsSeconds.length; i++) {
+            upperBoundsNanos[i] = (long) (upperBoundsSeconds[i] * NANOS_PER_SECOND);
+        }
+        this.bucketCounts = new AtomicLongArray(upperBoundsSeconds.length + 1);
+    }
+
+    @Override
+    public void update(final long duration, final TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+        if (nanos < 0) {
+            return;
+        }
+        delegate.mark(1);
+
+        final int idx = Arrays.binarySearch(upperBoundsNanos, nanos);
+        // Upper bounds are inclusive; otherwise, the insertion point is the first bound above the value (or +Inf)
+        bucketCounts.incrementAndGet(idx >= 0 ? idx : -idx - 1);
+        sumNanos.addAndGet(nanos);
+
+        // Only CAS when the value is a new extreme
+        long current;
+        while (nanos < (current = minNanos.get()) && !minNanos.compareAndSet(current, nanos)) {
+            // Retry
+        }
+        while (nanos > (current = maxNanos.get()) && !maxNanos.compareAndSet(current, nanos)) {
+            // Retry
+        }
+    }
+
+    @Override
+    public double[] getUpperBounds() {
+        return Arrays.copyOf(upperBounds, upperBounds.length);
+    }
+
+    @Override
+    public long[] getBucketCounts() {
+        final long[] counts = new long[bucketCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = bucketCounts.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public double getSum() {
+        return sumNanos.get() / NANOS_PER_SECOND;
+    }
+
+    Meter getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            count += bucketCounts.get(i);
+        }
+        return count;
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return delegate.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return delegate.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return delegate.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return delegate.getOneMinuteRate();
+    }
+
+    /**
+     * @return a snapshot (in nanoseconds) estimated from the buckets
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        return new BucketSnapshot(upperBoundsNanos, getBucketCounts(), sumNanos.get(), minNanos.get(), maxNanos.get());
+    }
+}
@@ -17,10 +17,18 @@
 
 package org.killbill.billing.server.metrics;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.osgi.api.OSGISingleServiceRegistration;
 import org.killbill.commons.metrics.api.Counter;
 import org.killbill.commons.metrics.api.Gauge;
@@ -32,37 +40,70 @@ import org.killbill.commons.metrics.api.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * MetricRegistry of the platform, which forwards to the MetricRegistry exported by the metrics plugin (if any),
+ * or else to the default registry (see NativeMetricRegistry).
+ * <p>
+ * One wrapper is cached per metric name. Its plugin metric is resolved once and re-bound when the plugin
+ * registers or unregisters (the current plugin registry is swapped in a volatile field), so that steady-state
+ * updates don't look up the plugin registry nor the metric.
+ */
 public class KillbillPluginsMetricRegistry implements MetricRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(KillbillPluginsMetricRegistry.class);
 
     private final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry;
+    private final TimerBuckets timerBuckets;
+    // Used while no metrics plugin is registered (metrics are dropped if null)
+    private final MetricRegistry defaultMetricRegistry;
+    // Whether we are notified of the (un)registrations, otherwise the plugin registry is looked up each time
+    private final boolean trackingRegistrations;
+    private final Map<String, BoundCounter> counters = new ConcurrentHashMap<>();
+    private final Map<String, BoundHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, BoundMeter> meters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    // Timers also exported as histograms (see TimerBuckets): only their meter is forwarded to the plugin
+    private final Map<String, BucketedTimer> bucketedTimers = new ConcurrentHashMap<>();
+
+    private volatile MetricRegistry service;
 
     public KillbillPluginsMetricRegistry(final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry) {
+        this(pluginMetricRegistry, TimerBuckets.NONE);
+    }
+
+    public KillbillPluginsMetricRegistry(final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry, final TimerBuckets timerBuckets) {
+        this(pluginMetricRegistry, timerBuckets, null);
+    }
+
+    public KillbillPluginsMetricRegistry(final OSGISingleServiceRegistration<MetricRegistry> pluginMetricRegistry,
+                                         final TimerBuckets timerBuckets,
+                                         @Nullable final MetricRegistry defaultMetricRegistry) {
         this.pluginMetricRegistry = pluginMetricRegistry;
+        this.timerBuckets = timerBuckets;
+        this.defaultMetricRegistry = defaultMetricRegistry;
+
+        boolean trackingRegistrations;
+        try {
+            pluginMetricRegistry.addRegistrationListener(() -> service = pluginMetricRegistry.getService());
+            trackingRegistrations = true;
+        } catch (final UnsupportedOperationException e) {
+            logger.debug("{} doesn't support registration listeners, metrics won't be cached", pluginMetricRegistry);
+            trackingRegistrations = false;
+        }
+        this.trackingRegistrations = trackingRegistrations;
+        this.service = pluginMetricRegistry.getService();
     }
 
     @Override
     public Counter counter(final String name) {
-        return new Counter() {
-            @Override
-            public void inc(final long n) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.counter(name).inc(n);
-                }
-            }
-
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.counter(name).getCount() : 0;
-            }
-        };
+        return counters.computeIfAbsent(name, BoundCounter::new);
     }
 
     @Override
     public <T> Gauge<T> gauge(final String name, final Gauge<T> gauge) {
+        if (defaultMetricRegistry != null) {
+            defaultMetricRegistry.gauge(name, gauge);
+        }
         // Unlike other metrics, Gauges are usually created once and callers don't keep a reference to it
         pluginMetricRegistry.addRegistrationListener(new Runnable() {
             @Override
@@ -76,7 +117,7 @@ public class KillbillPluginsMetricRegistry implements MetricRegistry {
         return new Gauge<T>() {
             @Override
             public T getValue() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
+                final MetricRegistry service = currentService();
                 return service != null ? service.gauge(name, gauge).getValue() : null;
             }
         };
@@ -84,160 +125,398 @@ public class KillbillPluginsMetricRegistry implements MetricRegistry {
 
     @Override
     public Histogram histogram(final String name) {
-        return new Histogram() {
-            @Override
-            public void update(final long value) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.histogram(name).update(value);
-                }
-            }
-
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.histogram(name).getCount() : 0;
-            }
-
-            @Override
-            public Snapshot getSnapshot() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.histogram(name).getSnapshot() : null;
-            }
-        };
+        return histograms.computeIfAbsent(name, BoundHistogram::new);
     }
 
     @Override
     public Meter meter(final String name) {
-        return new Meter() {
-            @Override
-            public void mark(final long n) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.meter(name).mark(n);
-                }
-            }
-
-            @Override
-            public double getFifteenMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getFifteenMinuteRate() : 0;
-            }
-
-            @Override
-            public double getFiveMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getFiveMinuteRate() : 0;
-            }
-
-            @Override
-            public double getMeanRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getMeanRate() : 0;
-            }
-
-            @Override
-            public double getOneMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getOneMinuteRate() : 0;
-            }
-
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.meter(name).getCount() : 0;
-            }
-        };
+        return meters.computeIfAbsent(name, BoundMeter::new);
     }
 
     @Override
     public Timer timer(final String name) {
-        return new Timer() {
-            @Override
-            public long getCount() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getCount() : 0;
-            }
-
-            @Override
-            public void update(final long duration, final TimeUnit unit) {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                if (service != null) {
-                    service.timer(name).update(duration, unit);
-                }
-            }
-
-            @Override
-            public double getFifteenMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getFifteenMinuteRate() : 0;
+        return timers.computeIfAbsent(name, n -> {
+            final double[] upperBounds = timerBuckets.getUpperBounds(n);
+            if (upperBounds == null) {
+                return new BoundTimer(n);
             }
-
-            @Override
-            public double getFiveMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getFiveMinuteRate() : 0;
-            }
-
-            @Override
-            public double getMeanRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getMeanRate() : 0;
-            }
-
-            @Override
-            public double getOneMinuteRate() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getOneMinuteRate() : 0;
-            }
-
-            @Override
-            public Snapshot getSnapshot() {
-                final MetricRegistry service = pluginMetricRegistry.getService();
-                return service != null ? service.timer(name).getSnapshot() : null;
-            }
-        };
+            final BucketedTimer bucketedTimer = new BucketedTimer(new BoundMeter(n), upperBounds);
+            bucketedTimers.put(n, bucketedTimer);
+            return bucketedTimer;
+        });
     }
 
     @Override
     public boolean remove(final String name) {
-        final MetricRegistry service = pluginMetricRegistry.getService();
+        // Callers may still hold a reference to the wrappers: they will re-create the plugin metric on their next update
+        unbind(counters.remove(name));
+        unbind(histograms.remove(name));
+        unbind(meters.remove(name));
+        final Timer timer = timers.remove(name);
+        bucketedTimers.remove(name);
+        if (timer instanceof BucketedTimer) {
+            unbind((BoundMetric<?>) ((BucketedTimer) timer).getDelegate());
+        } else {
+            unbind((BoundTimer) timer);
+        }
+
+        final MetricRegistry service = currentService();
         return service != null && service.remove(name);
     }
 
     @Override
     public Map<String, ?> getMetrics() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
-        return service != null ? service.getMetrics() : Collections.emptyMap();
+        final MetricRegistry service = currentService();
+        return withBucketedTimers(service != null ? service.getMetrics() : Collections.emptyMap(), true);
     }
 
     @Override
     public Map<String, Counter> getCounters() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
+        final MetricRegistry service = currentService();
         return service != null ? service.getCounters() : Collections.emptyMap();
     }
 
     @Override
     public Map<String, Histogram> getHistograms() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
+        final MetricRegistry service = currentService();
         return service != null ? service.getHistograms() : Collections.emptyMap();
     }
 
     @Override
     public Map<String, Gauge<?>> getGauges() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
+        final MetricRegistry service = currentService();
         return service != null ? service.getGauges() : Collections.emptyMap();
     }
 
     @Override
     public Map<String, Meter> getMeters() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
-        return service != null ? service.getMeters() : Collections.emptyMap();
+        final MetricRegistry service = currentService();
+        return withBucketedTimers(service != null ? service.getMeters() : Collections.emptyMap(), false);
     }
 
     @Override
     public Map<String, Timer> getTimers() {
-        final MetricRegistry service = pluginMetricRegistry.getService();
-        return service != null ? service.getTimers() : Collections.emptyMap();
+        final MetricRegistry service = currentService();
+        return withBucketedTimers(service != null ? service.getTimers() : Collections.emptyMap(), true);
+    }
+
+    // Expose our bucketed timers instead of the plugin meters backing them, so that exporters can see the buckets
+    private <T> Map<String, T> withBucketedTimers(final Map<String, ? extends T> metrics, final boolean includeBucketedTimers) {
+        if (bucketedTimers.isEmpty()) {
+            //noinspection unchecked
+            return (Map<String, T>) metrics;
+        }
+        return new BucketedTimersView<>(metrics, bucketedTimers, includeBucketedTimers);
+    }
+
+    @Nullable
+    private MetricRegistry currentService() {
+        final MetricRegistry pluginService = trackingRegistrations ? service : pluginMetricRegistry.getService();
+        return pluginService != null ? pluginService : defaultMetricRegistry;
+    }
+
+    private static void unbind(@Nullable final BoundMetric<?> metric) {
+        if (metric != null) {
+            metric.unbind();
+        }
+    }
+
+    // Read-only view of the plugin metrics, with the bucketed timers in place of their plugin meters (nothing is copied)
+    private static final class BucketedTimersView<T> extends AbstractMap<String, T> {
+
+        private final Map<String, ? extends T> metrics;
+        private final Map<String, BucketedTimer> bucketedTimers;
+        private final boolean includeBucketedTimers;
+
+        private BucketedTimersView(final Map<String, ? extends T> metrics,
+                                   final Map<String, BucketedTimer> bucketedTimers,
+                                   final boolean includeBucketedTimers) {
+            this.metrics = metrics;
+            this.bucketedTimers = bucketedTimers;
+            this.includeBucketedTimers = includeBucketedTimers;
+        }
+
+        @Override
+        public T get(final Object key) {
+            if (bucketedTimers.containsKey(key)) {
+                //noinspection unchecked
+                return includeBucketedTimers ? (T) bucketedTimers.get(key) : null;
+            }
+            return metrics.get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return bucketedTimers.containsKey(key) ? includeBucketedTimers : metrics.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, T>> entrySet() {
+            return new AbstractSet<Entry<String, T>>() {
+                @Override
+                public Iterator<Entry<String, T>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    int size = metrics.size();
+                    for (final String name : bucketedTimers.keySet()) {
+                        if (metrics.containsKey(name)) {
+                            size--;
+                        }
+                        if (includeBucketedTimers) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+
+        // Plugin metrics not shadowed by a bucketed timer, then the bucketed timers
+        private final class EntryIterator implements Iterator<Entry<String, T>> {
+
+            private final Iterator<? extends Entry<String, ? extends T>> metricsIterator = metrics.entrySet().iterator();
+            private final Iterator<Entry<String, BucketedTimer>> bucketedTimersIterator = includeBucketedTimers ?
+                                                                                         bucketedTimers.entrySet().iterator() :
+                                                                                         Collections.emptyIterator();
+            private Entry<String, T> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && metricsIterator.hasNext()) {
+                    final Entry<String, ? extends T> entry = metricsIterator.next();
+                    if (!bucketedTimers.containsKey(entry.getKey())) {
+                        //noinspection unchecked
+                        next = (Entry<String, T>) entry;
+                    }
+                }
+                if (next == null && bucketedTimersIterator.hasNext()) {
+                    //noinspection unchecked
+                    next = (Entry<String, T>) (Entry<String, ?>) bucketedTimersIterator.next();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Entry<String, T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Entry<String, T> current = next;
+                next = null;
+                return current;
+            }
+        }
+    }
+
+    // Plugin metric, resolved in the plugin registry it was bound to
+    private static final class Binding<M> {
+
+        private final MetricRegistry service;
+        private final M metric;
+
+        private Binding(@Nullable final MetricRegistry service, @Nullable final M metric) {
+            this.service = service;
+            this.metric = metric;
+        }
+    }
+
+    private abstract class BoundMetric<M> {
+
+        protected final String name;
+
+        // Null when not bound yet (or after remove)
+        private volatile Binding<M> binding;
+
+        private BoundMetric(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the plugin metric, or null if there is no metrics plugin
+         */
+        @Nullable
+        protected M delegate() {
+            final MetricRegistry current = currentService();
+            Binding<M> currentBinding = binding;
+            if (currentBinding == null || currentBinding.service != current) {
+                // Racing threads resolve the same plugin metric, last one wins
+                currentBinding = new Binding<>(current, current == null ? null : resolve(current));
+                binding = currentBinding;
+            }
+            return currentBinding.metric;
+        }
+
+        private void unbind() {
+            binding = null;
+        }
+
+        protected abstract M resolve(MetricRegistry service);
+    }
+
+    private final class BoundCounter extends BoundMetric<Counter> implements Counter {
+
+        private BoundCounter(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Counter resolve(final MetricRegistry service) {
+            return service.counter(name);
+        }
+
+        @Override
+        public void inc(final long n) {
+            final Counter delegate = delegate();
+            if (delegate != null) {
+                delegate.inc(n);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            final Counter delegate = delegate();
+            return delegate != null ? delegate.getCount() : 0;
+        }
+    }
+
+    private final class BoundHistogram extends BoundMetric<Histogram> implements Histogram {
+
+        private BoundHistogram(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Histogram resolve(final MetricRegistry service) {
+            return service.histogram(name);
+        }
+
+        @Override
+        public void update(final long value) {
+            final Histogram delegate = delegate();
+            if (delegate != null) {
+                delegate.update(value);
+            }
+        }
+
+        @Override
+        public long getCount() {
+            final Histogram delegate = delegate();
+            return delegate != null ? delegate.getCount() : 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            final Histogram delegate = delegate();
+            return delegate != null ? delegate.getSnapshot() : null;
+        }
+    }
+
+    private final class BoundMeter extends BoundMetric<Meter> implements Meter {
+
+        private BoundMeter(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Meter resolve(final MetricRegistry service) {
+            return service.meter(name);
+        }
+
+        @Override
+        public void mark(final long n) {
+            final Meter delegate = delegate();
+            if (delegate != null) {
+                delegate.mark(n);
+            }
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            final Meter delegate = delegate();
+            return delegate != null ? delegate.getFifteenMinuteRate() : 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            final Meter delegate = delegate();
+            return delegate != null ? delegate.getFiveMinuteRate() : 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            final Meter delegate = delegate();
+            return delegate != null ? delegate.getMeanRate() : 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            final Meter delegate = delegate();
+            return delegate != null ? delegate.getOneMinuteRate() : 0;
+        }
+
+        @Override
+        public long getCount() {
+            final Meter delegate = delegate();
+            return delegate != null ? delegate.getCount() : 0;
+        }
+    }
+
+    private final class BoundTimer extends BoundMetric<Timer> implements Timer {
+
+        private BoundTimer(final String name) {
+            super(name);
+        }
+
+        @Override
+        protected Timer resolve(final MetricRegistry service) {
+            return service.timer(name);
+        }
+
+        @Override
+        public long getCount() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getCount() : 0;
+        }
+
+        @Override
+        public void update(final long duration, final TimeUnit unit) {
+            final Timer delegate = delegate();
+            if (delegate != null) {
+                delegate.update(duration, unit);
+            }
+        }
+
+        @Override
+        public double getFifteenMinuteRate() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getFifteenMinuteRate() : 0;
+        }
+
+        @Override
+        public double getFiveMinuteRate() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getFiveMinuteRate() : 0;
+        }
+
+        @Override
+        public double getMeanRate() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getMeanRate() : 0;
+        }
+
+        @Override
+        public double getOneMinuteRate() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getOneMinuteRate() : 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            final Timer delegate = delegate();
+            return delegate != null ? delegate.getSnapshot() : null;
+        }
     }
 }
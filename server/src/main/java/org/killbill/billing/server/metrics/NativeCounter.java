@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.commons.metrics.api.Counter;
+
+/**
+ * Counter of the NativeMetricRegistry (uncontended updates, the sum is only computed on reads).
+ */
+public class NativeCounter implements Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    @Override
+    public void inc(final long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.commons.metrics.api.Histogram;
+import org.killbill.commons.metrics.api.Snapshot;
+
+/**
+ * Histogram of the NativeMetricRegistry, backed by fixed log-linear buckets (lock-free, no allocation on updates).
+ * <p>
+ * Each power of two is split in 4 buckets: quantiles are estimated with a relative error of at most 12.5%
+ * (values below 4 are exact). Unlike Codahale's exponentially decaying reservoir, the distribution covers the
+ * whole lifetime of the histogram. The footprint is fixed: 248 longs (~2KB).
+ */
+public class NativeHistogram implements Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Exact buckets for 0..3, then 4 buckets per power of two up to 2^62
+    static final int NB_BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final long[] UPPER_BOUNDS = new long[NB_BUCKETS];
+
+    static {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            UPPER_BOUNDS[i] = bucketUpperBound(i);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    @Override
+    public void update(final long value) {
+        // Negative values aren't expected (durations, sizes, etc.)
+        final long clamped = Math.max(value, 0);
+        buckets.incrementAndGet(bucketIndex(clamped));
+        count.increment();
+        sum.add(clamped);
+
+        // Only CAS when the value is a new extreme
+        long current;
+        while (clamped < (current = min.get()) && !min.compareAndSet(current, clamped)) {
+            // Retry
+        }
+        while (clamped > (current = max.get()) && !max.compareAndSet(current, clamped)) {
+            // Retry
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        final long[] counts = new long[NB_BUCKETS];
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new BucketSnapshot(UPPER_BOUNDS, counts, sum.sum(), min.get(), max.get());
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (msb - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    static long bucketUpperBound(final int index) {
+        return index == NB_BUCKETS - 1 ? Long.MAX_VALUE : bucketLowerBound(index + 1) - 1;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.commons.metrics.api.Meter;
+
+/**
+ * Meter of the NativeMetricRegistry.
+ * <p>
+ * Marking only adds to a LongAdder: the exponentially-weighted moving averages are ticked lazily, when a rate is
+ * read (typically by a reporter), instead of on the update path.
+ */
+public class NativeMeter implements Meter {
+
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final LongAdder count = new LongAdder();
+    private final long startTimeNanos;
+    private final MovingAverage m1Rate = new MovingAverage(1);
+    private final MovingAverage m5Rate = new MovingAverage(5);
+    private final MovingAverage m15Rate = new MovingAverage(15);
+
+    // Guarded by this
+    private long lastTickNanos;
+    private long lastTickCount;
+
+    public NativeMeter() {
+        this.startTimeNanos = System.nanoTime();
+        this.lastTickNanos = startTimeNanos;
+    }
+
+    @Override
+    public void mark(final long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        tickIfNecessary();
+        return m15Rate.getRatePerSecond();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        tickIfNecessary();
+        return m5Rate.getRatePerSecond();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return m1Rate.getRatePerSecond();
+    }
+
+    @Override
+    public double getMeanRate() {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long elapsedNanos = System.nanoTime() - startTimeNanos;
+        return elapsedNanos <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    private synchronized void tickIfNecessary() {
+        final long now = System.nanoTime();
+        final long ticks = (now - lastTickNanos) / TICK_INTERVAL_NANOS;
+        if (ticks <= 0) {
+            return;
+        }
+        // Events since the last tick are accounted in the first missed tick, the other ones are idle
+        final long currentCount = count.sum();
+        final long uncounted = currentCount - lastTickCount;
+        lastTickCount = currentCount;
+        lastTickNanos += ticks * TICK_INTERVAL_NANOS;
+        m1Rate.tick(uncounted, ticks);
+        m5Rate.tick(uncounted, ticks);
+        m15Rate.tick(uncounted, ticks);
+    }
+
+    // Same averages as Codahale's EWMA
+    private static final class MovingAverage {
+
+        private final double alpha;
+        private boolean initialized;
+        // Events per nanosecond
+        private volatile double rate;
+
+        private MovingAverage(final int minutes) {
+            this.alpha = 1 - Math.exp(-TICK_INTERVAL_NANOS / (double) TimeUnit.MINUTES.toNanos(minutes));
+        }
+
+        private void tick(final long uncounted, final long ticks) {
+            final double instantRate = uncounted / (double) TICK_INTERVAL_NANOS;
+            if (initialized) {
+                rate += alpha * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+            if (ticks > 1) {
+                // Idle ticks: rate += alpha * (0 - rate), ticks - 1 times
+                rate *= Math.pow(1 - alpha, ticks - 1);
+            }
+        }
+
+        private double getRatePerSecond() {
+            return rate * TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}
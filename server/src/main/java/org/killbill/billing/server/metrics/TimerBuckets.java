@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bucket upper bounds of the timers backed by a BucketedTimer, by metric name prefix (the longest prefix wins).
+ * <p>
+ * Configured as {@code <prefix>=<bound>,<bound>,...;<prefix>=...}, bounds being expressed in seconds, e.g.
+ * {@code killbill-service.kb_plugin_latency=0.005,0.01,0.025,0.05,0.1,0.25,0.5,1,2.5,5,10}.
+ */
+public class TimerBuckets {
+
+    public static final TimerBuckets NONE = new TimerBuckets(Map.of());
+
+    // Sorted by decreasing prefix length
+    private final List<Map.Entry<String, double[]>> bucketsByPrefix;
+
+    public TimerBuckets(final Map<String, double[]> bucketsByPrefix) {
+        this.bucketsByPrefix = new ArrayList<>(bucketsByPrefix.entrySet());
+        this.bucketsByPrefix.sort(Comparator.comparingInt((Map.Entry<String, double[]> e) -> e.getKey().length()).reversed());
+    }
+
+    public static TimerBuckets parse(@Nullable final String config) {
+        if (config == null || config.trim().isEmpty()) {
+            return NONE;
+        }
+
+        final Map<String, double[]> bucketsByPrefix = new LinkedHashMap<>();
+        for (final String entry : config.split(";")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final int separatorIdx = entry.indexOf('=');
+            if (separatorIdx <= 0) {
+                throw new IllegalArgumentException("Invalid timer buckets configuration (expected <prefix>=<bounds>): " + entry);
+            }
+            final String prefix = entry.substring(0, separatorIdx).trim();
+            final String[] rawBounds = entry.substring(separatorIdx + 1).split(",");
+            final double[] bounds = new double[rawBounds.length];
+            for (int i = 0; i < rawBounds.length; i++) {
+                bounds[i] = Double.parseDouble(rawBounds[i].trim());
+                if (bounds[i] <= 0 || (i > 0 && bounds[i] <= bounds[i - 1])) {
+                    throw new IllegalArgumentException("Timer bucket bounds must be positive and increasing: " + entry);
+                }
+            }
+            bucketsByPrefix.put(prefix, bounds);
+        }
+        return new TimerBuckets(bucketsByPrefix);
+    }
+
+    /**
+     * @return the bucket upper bounds (in seconds) for that timer, or null if it shouldn't be bucketed
+     */
+    @Nullable
+    public double[] getUpperBounds(final String timerName) {
+        for (final Map.Entry<String, double[]> entry : bucketsByPrefix) {
+            if (timerName.startsWith(entry.getKey())) {
+                return Arrays.copyOf(entry.getValue(), entry.getValue().length);
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return bucketsByPrefix.isEmpty();
+    }
+}
@@ -42,6 +42,8 @@ import org.killbill.billing.platform.glue.ReferenceableDataSourceSpyProvider;
 import org.killbill.billing.platform.jndi.JNDIManager;
 import org.killbill.billing.server.config.KillbillServerConfig;
 import org.killbill.billing.server.metrics.KillbillPluginsMetricRegistry;
+import org.killbill.billing.server.metrics.NativeMetricRegistry;
+import org.killbill.billing.server.metrics.TimerBuckets;
 import org.killbill.clock.Clock;
 import org.killbill.clock.ClockMock;
 import org.killbill.clock.DefaultClock;
@@ -235,7 +237,11 @@ public class KillbillPlatformModule extends KillBillPlatformModuleBase {
         bind(new TypeLiteral<OSGISingleServiceRegistration<MetricRegistry>>() {
         }).toInstance(metricRegistryServiceRegistration);
 
-        final MetricRegistry metricRegistry = new KillbillPluginsMetricRegistry(metricRegistryServiceRegistration);
+        // Built-in registry, until a metrics plugin registers its own
+        final MetricRegistry defaultMetricRegistry = serverConfig.isDefaultMetricRegistryEnabled() ? new NativeMetricRegistry() : null;
+        final MetricRegistry metricRegistry = new KillbillPluginsMetricRegistry(metricRegistryServiceRegistration,
+                                                                                TimerBuckets.parse(serverConfig.getTimerBuckets()),
+                                                                                defaultMetricRegistry);
         bind(MetricRegistry.class).toInstance(metricRegistry);
         install(MetricsInstrumentationModule.builder().withMetricRegistry(metricRegistry).build());
     }
@@ -25,6 +25,8 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
 import org.joda.time.Period;
+import org.killbill.billing.platform.queue.QueueDepthSampler;
+import org.killbill.billing.platform.queue.QueueDepths;
 import org.killbill.billing.server.config.KillbillServerConfig;
 import org.killbill.billing.server.healthchecks.KillbillQueuesHealthcheck.QueueStats;
 import org.killbill.bus.api.PersistentBus;
@@ -34,7 +36,9 @@ import org.killbill.notificationq.api.NotificationQueueService;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.skife.config.TimeSpan;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -42,9 +46,12 @@ public class TestKillbillQueuesHealthcheck {
 
     private static final double DELTA = 0.0001;
 
+    private KillbillServerConfig config;
+    private QueueDepthSampler queueDepthSampler;
     private KillbillQueuesHealthcheck healthcheck;
     private ClockMock clock;
     private AtomicLong currentBusEntries;
+    private PersistentBus bus;
 
     @BeforeMethod(groups = "fast")
     public void setUp() throws Exception {
@@ -55,7 +62,7 @@ public class TestKillbillQueuesHealthcheck {
         Mockito.when(externalBus.getNbReadyEntries(Mockito.any(DateTime.class))).thenThrow(UnsupportedOperationException.class);
 
         currentBusEntries = new AtomicLong(0);
-        final PersistentBus bus = Mockito.mock(PersistentBus.class);
+        bus = Mockito.mock(PersistentBus.class);
         Mockito.when(bus.toString()).thenReturn("internalBus");
         Mockito.when(bus.getNbReadyEntries(Mockito.any(DateTime.class))).thenAnswer(new Answer<Long>() {
             @Override
@@ -66,15 +73,26 @@ public class TestKillbillQueuesHealthcheck {
 
         clock = new ClockMock();
 
-        final KillbillServerConfig config = Mockito.mock(KillbillServerConfig.class);
+        config = Mockito.mock(KillbillServerConfig.class);
+        Mockito.when(config.getQueueHealthCheckInterval()).thenReturn(new TimeSpan("1m"));
 
+        // The mocked queues are not covered by the sampler: the healthcheck falls back to getNbReadyEntries
+        queueDepthSampler = Mockito.mock(QueueDepthSampler.class);
+        Mockito.when(queueDepthSampler.getQueueDepths()).thenReturn(Mockito.mock(QueueDepths.class));
 
         healthcheck = new KillbillQueuesHealthcheck(clock,
                                                     notificationQueueService,
                                                     bus,
                                                     config,
-                                                    externalBus);
+                                                    externalBus,
+                                                    queueDepthSampler);
         healthcheck.activateHealthcheck();
+        healthcheck.startSampler();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        healthcheck.stopSampler();
     }
 
     @Test(groups = "fast")
@@ -221,6 +239,70 @@ public class TestKillbillQueuesHealthcheck {
         checkResult(16300, false);
     }
 
+    @Test(groups = "fast")
+    public void testCheckReturnsLatestSample() throws Exception {
+        // Healthy until the first sample
+        Assert.assertTrue(healthcheck.check().isHealthy());
+        Mockito.verify(bus, Mockito.never()).getNbReadyEntries(Mockito.any(DateTime.class));
+
+        currentBusEntries.set(10);
+        healthcheck.sample();
+        clock.addDeltaFromReality(30000);
+
+        for (int i = 0; i < 10; i++) {
+            final Result result = healthcheck.check();
+            Assert.assertTrue(result.isHealthy());
+            Assert.assertEquals(((QueueStats) result.getDetails().get("bus")).getRawSizes().toArray(), new Long[]{10L});
+            Assert.assertTrue((Long) result.getDetails().get(KillbillQueuesHealthcheck.SAMPLE_AGE_MS_DETAIL) >= 30000L);
+        }
+        // The database is only queried by the sampler
+        Mockito.verify(bus, Mockito.times(1)).getNbReadyEntries(Mockito.any(DateTime.class));
+    }
+
+    @Test(groups = "fast")
+    public void testStaleSample() throws Exception {
+        currentBusEntries.set(10);
+        healthcheck.sample();
+        clock.addDeltaFromReality(KillbillQueuesHealthcheck.MAX_SAMPLE_AGE_INTERVALS * 60000L);
+        Assert.assertTrue(healthcheck.check().isHealthy());
+
+        // e.g. the database is down: the latest result is kept, but is too old
+        Mockito.when(bus.getNbReadyEntries(Mockito.any(DateTime.class))).thenThrow(new RuntimeException("Database down"));
+        healthcheck.sample();
+        clock.addDeltaFromReality(1);
+        final Result result = healthcheck.check();
+        Assert.assertFalse(result.isHealthy());
+        Assert.assertEquals(result.getDetails().get(KillbillQueuesHealthcheck.SAMPLE_AGE_MS_DETAIL), KillbillQueuesHealthcheck.MAX_SAMPLE_AGE_INTERVALS * 60000L + 1);
+    }
+
+    @Test(groups = "fast")
+    public void testNeverSampled() throws Exception {
+        healthcheck.stopSampler();
+        final KillbillQueuesHealthcheck notStarted = new KillbillQueuesHealthcheck(clock,
+                                                                                   Mockito.mock(NotificationQueueService.class),
+                                                                                   bus,
+                                                                                   config,
+                                                                                   null,
+                                                                                   queueDepthSampler);
+        notStarted.activateHealthcheck();
+        Assert.assertFalse(notStarted.check().isHealthy());
+
+        notStarted.startSampler();
+        try {
+            Assert.assertTrue(notStarted.check().isHealthy());
+            clock.addDeltaFromReality(KillbillQueuesHealthcheck.MAX_SAMPLE_AGE_INTERVALS * 60000L + 1);
+            Assert.assertFalse(notStarted.check().isHealthy());
+        } finally {
+            notStarted.stopSampler();
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidInterval() throws Exception {
+        Mockito.when(config.getQueueHealthCheckInterval()).thenReturn(new TimeSpan("0s"));
+        new KillbillQueuesHealthcheck(clock, Mockito.mock(NotificationQueueService.class), bus, config, null, queueDepthSampler);
+    }
+
     private void checkResult(final int newBusEntries, final boolean healthy) {
         clock.addDeltaFromReality(Period.minutes(5).toStandardDuration().getMillis());
         currentBusEntries.set(newBusEntries);
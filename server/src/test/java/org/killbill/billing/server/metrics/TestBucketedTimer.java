@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestBucketedTimer {
+
+    @Test(groups = "fast")
+    public void testBuckets() {
+        final Meter delegate = Mockito.mock(Meter.class);
+        final BucketedTimer timer = new BucketedTimer(delegate, new double[]{0.01, 0.1, 1});
+
+        timer.update(5, TimeUnit.MILLISECONDS);
+        // Upper bounds are inclusive
+        timer.update(10, TimeUnit.MILLISECONDS);
+        timer.update(50, TimeUnit.MILLISECONDS);
+        timer.update(1, TimeUnit.SECONDS);
+        timer.update(3, TimeUnit.SECONDS);
+
+        Assert.assertEquals(timer.getBucketCounts(), new long[]{2, 1, 1, 1});
+        Assert.assertEquals(timer.getSum(), 4.065, 0.000001);
+        Assert.assertEquals(timer.getUpperBounds(), new double[]{0.01, 0.1, 1});
+        Assert.assertEquals(timer.getCount(), 5);
+        // Only the rates are forwarded
+        Mockito.verify(delegate, Mockito.times(5)).mark(1);
+        Mockito.verifyNoMoreInteractions(delegate);
+    }
+
+    @Test(groups = "fast")
+    public void testSnapshot() {
+        final BucketedTimer timer = new BucketedTimer(Mockito.mock(Meter.class), new double[]{0.01, 0.1, 1});
+        Assert.assertEquals(timer.getSnapshot().getMedian(), 0.0);
+
+        timer.update(5, TimeUnit.MILLISECONDS);
+        timer.update(10, TimeUnit.MILLISECONDS);
+        timer.update(50, TimeUnit.MILLISECONDS);
+        timer.update(1, TimeUnit.SECONDS);
+        timer.update(3, TimeUnit.SECONDS);
+        // Ignored
+        timer.update(-1, TimeUnit.SECONDS);
+
+        final Snapshot snapshot = timer.getSnapshot();
+        Assert.assertEquals(snapshot.size(), 5);
+        Assert.assertEquals(snapshot.getMin(), TimeUnit.MILLISECONDS.toNanos(5));
+        Assert.assertEquals(snapshot.getMax(), TimeUnit.SECONDS.toNanos(3));
+        Assert.assertEquals(snapshot.getMean(), TimeUnit.MILLISECONDS.toNanos(4065) / 5.0, 1.0);
+        // Estimated in the middle of the (10ms, 100ms] bucket
+        Assert.assertEquals(snapshot.getMedian(), TimeUnit.MILLISECONDS.toNanos(55), 1.0);
+        // The +Inf bucket is capped by the max
+        Assert.assertEquals(snapshot.get99thPercentile(), TimeUnit.SECONDS.toNanos(2), 1.0);
+    }
+
+    @Test(groups = "fast")
+    public void testTimerBuckets() {
+        final TimerBuckets timerBuckets = TimerBuckets.parse("killbill-service=0.1,1; killbill-service.kb_plugin_latency=0.01,0.1,1,10");
+
+        Assert.assertEquals(timerBuckets.getUpperBounds("killbill-service.kb_plugin_latency.stripe.PaymentPluginApi.purchasePayment"), new double[]{0.01, 0.1, 1, 10});
+        Assert.assertEquals(timerBuckets.getUpperBounds("killbill-service.kb_event_dispatch_latency.lane"), new double[]{0.1, 1});
+        Assert.assertNull(timerBuckets.getUpperBounds("jdbi.query"));
+        Assert.assertTrue(TimerBuckets.parse(null).isEmpty());
+
+        try {
+            TimerBuckets.parse("killbill-service=1,0.1");
+            Assert.fail("Bounds must be increasing");
+        } catch (final IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.osgi.MetricRegistryServiceRegistration;
+import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.Meter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Timer;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestKillbillPluginsMetricRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestKillbillPluginsMetricRegistry.class);
+
+    private static final int NB_THREADS = 16;
+    private static final int NB_UPDATES_PER_THREAD = 5000000;
+
+    @Test(groups = "fast")
+    public void testRebindOnRegistration() {
+        final MetricRegistryServiceRegistration registration = new MetricRegistryServiceRegistration();
+        final KillbillPluginsMetricRegistry registry = new KillbillPluginsMetricRegistry(registration);
+
+        final Counter counter = registry.counter("kb.counter");
+        Assert.assertSame(registry.counter("kb.counter"), counter);
+        // No metrics plugin yet
+        counter.inc(1);
+        Assert.assertEquals(counter.getCount(), 0);
+
+        final TestCounter pluginCounter1 = new TestCounter();
+        final MetricRegistry pluginRegistry1 = createPluginRegistry(pluginCounter1);
+        registration.registerService(createDescriptor("plugin1"), pluginRegistry1);
+        counter.inc(1);
+        counter.inc(2);
+        Assert.assertEquals(counter.getCount(), 3);
+        // Resolved once
+        Mockito.verify(pluginRegistry1, Mockito.times(1)).counter("kb.counter");
+
+        registration.unregisterService("plugin1");
+        counter.inc(1);
+        Assert.assertEquals(counter.getCount(), 0);
+        Assert.assertEquals(pluginCounter1.getCount(), 3);
+
+        final TestCounter pluginCounter2 = new TestCounter();
+        registration.registerService(createDescriptor("plugin2"), createPluginRegistry(pluginCounter2));
+        counter.inc(5);
+        Assert.assertEquals(counter.getCount(), 5);
+        Assert.assertEquals(pluginCounter1.getCount(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testRemove() {
+        final MetricRegistryServiceRegistration registration = new MetricRegistryServiceRegistration();
+        final KillbillPluginsMetricRegistry registry = new KillbillPluginsMetricRegistry(registration);
+        final MetricRegistry pluginRegistry = createPluginRegistry(new TestCounter());
+        Mockito.when(pluginRegistry.remove("kb.counter")).thenReturn(true);
+        registration.registerService(createDescriptor("plugin"), pluginRegistry);
+
+        final Counter counter = registry.counter("kb.counter");
+        counter.inc(1);
+        Assert.assertTrue(registry.remove("kb.counter"));
+        Assert.assertNotSame(registry.counter("kb.counter"), counter);
+
+        // Stale references resolve the metric again
+        counter.inc(1);
+        Mockito.verify(pluginRegistry, Mockito.times(2)).counter("kb.counter");
+    }
+
+    @Test(groups = "fast")
+    public void testBucketedTimers() {
+        final MetricRegistryServiceRegistration registration = new MetricRegistryServiceRegistration();
+        final KillbillPluginsMetricRegistry registry = new KillbillPluginsMetricRegistry(registration, TimerBuckets.parse("kb.timer=0.1,1"));
+        final TestCounter pluginCounter = new TestCounter();
+        final MetricRegistry pluginRegistry = createPluginRegistry(pluginCounter);
+        final Meter pluginMeter = Mockito.mock(Meter.class);
+        Mockito.when(pluginRegistry.meter("kb.timer")).thenReturn(pluginMeter);
+        Mockito.when(pluginRegistry.getMetrics()).thenReturn(Map.of("kb.counter", pluginCounter, "kb.timer", pluginMeter));
+        Mockito.when(pluginRegistry.getMeters()).thenReturn(Map.of("kb.timer", pluginMeter));
+        Mockito.when(pluginRegistry.getTimers()).thenReturn(Map.of());
+        registration.registerService(createDescriptor("plugin"), pluginRegistry);
+
+        final Timer timer = registry.timer("kb.timer");
+        Assert.assertTrue(timer instanceof BucketedTimer);
+        timer.update(1, TimeUnit.MILLISECONDS);
+        // No timer (nor reservoir) in the plugin, only a meter
+        Mockito.verify(pluginMeter).mark(1);
+        Mockito.verify(pluginRegistry, Mockito.never()).timer("kb.timer");
+
+        // The bucketed timer replaces its meter
+        final Map<String, ?> metrics = registry.getMetrics();
+        Assert.assertEquals(metrics.size(), 2);
+        Assert.assertSame(metrics.get("kb.timer"), timer);
+        Assert.assertSame(metrics.get("kb.counter"), pluginCounter);
+        Assert.assertEquals(Map.copyOf(metrics), Map.of("kb.counter", pluginCounter, "kb.timer", timer));
+        Assert.assertTrue(registry.getMeters().isEmpty());
+        Assert.assertEquals(registry.getTimers(), Map.of("kb.timer", timer));
+    }
+
+    @Test(groups = "stress")
+    public void testUpdateThroughput() throws InterruptedException {
+        final MetricRegistryServiceRegistration registration = new MetricRegistryServiceRegistration();
+        final KillbillPluginsMetricRegistry registry = new KillbillPluginsMetricRegistry(registration);
+        final TestCounter pluginCounter = new TestCounter();
+        final MetricRegistry pluginRegistry = createPluginRegistry(pluginCounter);
+        registration.registerService(createDescriptor("plugin"), pluginRegistry);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NB_THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // Typical call site: the counter is looked up by name on each update
+                for (int j = 0; j < NB_UPDATES_PER_THREAD; j++) {
+                    registry.counter("kb.counter").inc(1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+
+        final long nbUpdates = (long) NB_THREADS * NB_UPDATES_PER_THREAD;
+        Assert.assertEquals(pluginCounter.getCount(), nbUpdates);
+        // No lookup in the plugin registry in steady state
+        Mockito.verify(pluginRegistry, Mockito.times(1)).counter("kb.counter");
+        logger.info("{} threads: {} counter updates in {} ms ({} ns/update/thread)",
+                    NB_THREADS, nbUpdates, elapsedNanos / 1000000, elapsedNanos * NB_THREADS / nbUpdates);
+    }
+
+    private static MetricRegistry createPluginRegistry(final Counter counter) {
+        final MetricRegistry pluginRegistry = Mockito.mock(MetricRegistry.class);
+        Mockito.when(pluginRegistry.counter("kb.counter")).thenReturn(counter);
+        return pluginRegistry;
+    }
+
+    private static OSGIServiceDescriptor createDescriptor(final String name) {
+        final OSGIServiceDescriptor descriptor = Mockito.mock(OSGIServiceDescriptor.class);
+        Mockito.when(descriptor.getRegistrationName()).thenReturn(name);
+        return descriptor;
+    }
+
+    // Not a Mockito mock, which would record each invocation
+    private static final class TestCounter implements Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void inc(final long n) {
+            count.add(n);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+    }
+}
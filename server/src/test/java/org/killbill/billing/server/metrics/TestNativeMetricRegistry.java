@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020-2026 Equinix, Inc
+ * Copyright 2014-2026 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.MetricRegistryServiceRegistration;
+import org.killbill.billing.osgi.api.OSGIServiceDescriptor;
+import org.killbill.commons.metrics.api.Counter;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.killbill.commons.metrics.api.Snapshot;
+import org.killbill.commons.metrics.api.Timer;
+import org.killbill.commons.metrics.dropwizard.KillBillCodahaleMetricRegistry;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestNativeMetricRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestNativeMetricRegistry.class);
+
+    private static final int NB_THREADS = 16;
+    private static final int NB_UPDATES_PER_THREAD = 2000000;
+    private static final int NB_TIMERS = 2000;
+    private static final int NB_UPDATES_PER_TIMER = 2000;
+
+    @Test(groups = "fast")
+    public void testBuckets() {
+        long previousIndex = -1;
+        for (long value = 0; value < 100000; value++) {
+            final int index = NativeHistogram.bucketIndex(value);
+            Assert.assertTrue(NativeHistogram.bucketLowerBound(index) <= value);
+            Assert.assertTrue(NativeHistogram.bucketUpperBound(index) >= value);
+            Assert.assertTrue(index == previousIndex || index == previousIndex + 1);
+            previousIndex = index;
+        }
+        Assert.assertEquals(NativeHistogram.bucketIndex(Long.MAX_VALUE), NativeHistogram.NB_BUCKETS - 1);
+    }
+
+    @Test(groups = "fast")
+    public void testHistogramQuantiles() {
+        final NativeHistogram histogram = new NativeHistogram();
+        for (long value = 1; value <= 10000; value++) {
+            histogram.update(value);
+        }
+
+        final Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(histogram.getCount(), 10000);
+        Assert.assertEquals(snapshot.getMin(), 1);
+        Assert.assertEquals(snapshot.getMax(), 10000);
+        Assert.assertEquals(snapshot.getMean(), 5000.5, 0.0001);
+        // Relative error of at most 12.5%
+        Assert.assertEquals(snapshot.getMedian(), 5000, 5000 * 0.125);
+        Assert.assertEquals(snapshot.get99thPercentile(), 9900, 9900 * 0.125);
+        Assert.assertEquals(snapshot.getValue(1.0), 10000, 10000 * 0.125);
+        Assert.assertEquals(snapshot.getValues().length, 1028);
+    }
+
+    @Test(groups = "fast")
+    public void testRegistry() {
+        final NativeMetricRegistry registry = new NativeMetricRegistry();
+        final Counter counter = registry.counter("kb.counter");
+        counter.inc(3);
+        Assert.assertSame(registry.counter("kb.counter"), counter);
+        Assert.assertEquals(registry.getCounters().get("kb.counter").getCount(), 3);
+
+        final Timer timer = registry.timer("kb.timer");
+        timer.update(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(timer.getCount(), 1);
+        Assert.assertEquals(registry.getTimers().keySet().size(), 1);
+        Assert.assertEquals(registry.getMetrics().size(), 2);
+
+        try {
+            registry.meter("kb.counter");
+            Assert.fail();
+        } catch (final IllegalArgumentException ignored) {
+        }
+
+        Assert.assertTrue(registry.remove("kb.counter"));
+        Assert.assertEquals(registry.counter("kb.counter").getCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testDefaultUntilPluginRegisters() {
+        final MetricRegistryServiceRegistration registration = new MetricRegistryServiceRegistration();
+        final NativeMetricRegistry defaultRegistry = new NativeMetricRegistry();
+        final KillbillPluginsMetricRegistry registry = new KillbillPluginsMetricRegistry(registration, TimerBuckets.NONE, defaultRegistry);
+
+        final Counter counter = registry.counter("kb.counter");
+        counter.inc(1);
+        Assert.assertEquals(defaultRegistry.counter("kb.counter").getCount(), 1);
+        Assert.assertTrue(registry.getCounters().containsKey("kb.counter"));
+
+        final NativeMetricRegistry pluginRegistry = new NativeMetricRegistry();
+        final OSGIServiceDescriptor descriptor = Mockito.mock(OSGIServiceDescriptor.class);
+        Mockito.when(descriptor.getRegistrationName()).thenReturn("plugin");
+        registration.registerService(descriptor, pluginRegistry);
+        counter.inc(1);
+        Assert.assertEquals(pluginRegistry.counter("kb.counter").getCount(), 1);
+        Assert.assertEquals(defaultRegistry.counter("kb.counter").getCount(), 1);
+
+        registration.unregisterService("plugin");
+        counter.inc(1);
+        Assert.assertEquals(defaultRegistry.counter("kb.counter").getCount(), 2);
+    }
+
+    @Test(groups = "stress")
+    public void testUpdateCostAndFootprint() throws InterruptedException {
+        final MetricRegistry codahaleRegistry = new KillBillCodahaleMetricRegistry(new com.codahale.metrics.MetricRegistry());
+        final MetricRegistry nativeRegistry = new NativeMetricRegistry();
+
+        // Warm-up
+        measureTimerUpdates(codahaleRegistry);
+        measureTimerUpdates(nativeRegistry);
+
+        logger.info("Timer updates ({} threads, same timer): Codahale {} ns/update, native {} ns/update",
+                    NB_THREADS, measureTimerUpdates(codahaleRegistry), measureTimerUpdates(nativeRegistry));
+        logger.info("Heap per timer ({} updates each): Codahale ~{} bytes, native ~{} bytes",
+                    NB_UPDATES_PER_TIMER, measureTimerFootprint(true), measureTimerFootprint(false));
+    }
+
+    private static long measureTimerUpdates(final MetricRegistry registry) throws InterruptedException {
+        final Timer timer = registry.timer("kb.timer");
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NB_THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < NB_UPDATES_PER_THREAD; j++) {
+                    timer.update(random.nextLong(1000, 100000000), TimeUnit.NANOSECONDS);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+        registry.remove("kb.timer");
+
+        return elapsedNanos * NB_THREADS / ((long) NB_THREADS * NB_UPDATES_PER_THREAD);
+    }
+
+    private static long measureTimerFootprint(final boolean codahale) {
+        final long before = usedHeap();
+        final MetricRegistry registry = codahale ? new KillBillCodahaleMetricRegistry(new com.codahale.metrics.MetricRegistry()) : new NativeMetricRegistry();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < NB_TIMERS; i++) {
+            final Timer timer = registry.timer("kb.timer." + i);
+            for (int j = 0; j < NB_UPDATES_PER_TIMER; j++) {
+                timer.update(random.nextLong(1000, 100000000), TimeUnit.NANOSECONDS);
+            }
+        }
+        final long after = usedHeap();
+        Assert.assertEquals(registry.getTimers().size(), NB_TIMERS);
+        return (after - before) / NB_TIMERS;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}